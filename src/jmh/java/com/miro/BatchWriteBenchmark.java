@@ -0,0 +1,85 @@
+package com.miro;
+
+import com.miro.entities.Widget;
+import com.miro.entities.WidgetBatch;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/*
+** paste of batchSize widgets, one above the other, below the top of a dense stack: the first one is saved
+** shiftDepth widgets below the top, every widget of the paste shifts the same sequence again.
+** sequential saves them one by one, batch applies them with one applyBatch (the shifts are merged).
+** The repository is filled again before each iteration, the pasted widgets accumulate during the iteration.
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BatchWriteBenchmark {
+
+    @Param({"MAIN", "SHARDED"})
+    public String repositoryType;
+    @Param({"100000"})
+    public int size;
+    @Param({"500"})
+    public int batchSize;
+    @Param({"1000"})
+    public int shiftDepth;
+
+    private WidgetRepository repository;
+    private int boardSide;
+    /* the z-indexes are contiguous from 1 to top, every paste raises the top by batchSize */
+    private int top;
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        repository = BenchmarkSupport.repository(repositoryType, "DENSE");
+        boardSide = BenchmarkSupport.boardSide(size);
+    }
+
+    @Setup(Level.Iteration)
+    public void setupIteration() {
+        BenchmarkSupport.fill(repository, size, new Random(1));
+        top = size;
+    }
+
+    @Benchmark
+    public List<Widget> sequential() {
+        List<Widget> widgets = paste();
+        for (Widget widget : widgets) {
+            repository.save(widget);
+        }
+        return widgets;
+    }
+
+    @Benchmark
+    public List<Widget> batch() {
+        List<Widget> widgets = paste();
+        repository.applyBatch(new WidgetBatch(widgets, new ArrayList<>(), new ArrayList<>()));
+        return widgets;
+    }
+
+    private List<Widget> paste() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int zIndex = top - shiftDepth + 1;
+        List<Widget> widgets = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            widgets.add(new Widget(random.nextInt(boardSide), random.nextInt(boardSide),
+                    BenchmarkSupport.WIDGET_SIDE, BenchmarkSupport.WIDGET_SIDE, zIndex + i));
+        }
+        top += batchSize;
+        return widgets;
+    }
+}
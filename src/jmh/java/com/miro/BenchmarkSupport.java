@@ -0,0 +1,47 @@
+package com.miro;
+
+import com.miro.entities.Widget;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+
+import java.util.Random;
+
+/* creates and fills the repositories measured by the benchmarks */
+final class BenchmarkSupport {
+
+    /* side of the widgets, they are placed at random on a square board */
+    static final int WIDGET_SIDE = 10;
+
+    private BenchmarkSupport() {
+    }
+
+    static WidgetRepository repository(String repositoryType, String zOrderMode) {
+        return new RepositoryConfiguration().createRepository(RepositoryConfiguration.RepositoryType.valueOf(repositoryType),
+                WidgetMainRepository.ZOrderMode.valueOf(zOrderMode));
+    }
+
+    /* measured as in the application, in a Prometheus registry (see WidgetMeteredRepository) */
+    static WidgetRepository meteredRepository(String repositoryType, String zOrderMode) {
+        MeterRegistry registry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+        WidgetRepository repository = new RepositoryConfiguration().createRepository(
+                RepositoryConfiguration.RepositoryType.valueOf(repositoryType),
+                WidgetMainRepository.ZOrderMode.valueOf(zOrderMode), new WidgetRepositoryMetrics(registry));
+        return new WidgetMeteredRepository(repository, registry);
+    }
+
+    /* side of a board holding the given number of widgets, about one widget every 40x40 square */
+    static int boardSide(int size) {
+        return (int) Math.sqrt((double) size) * 40;
+    }
+
+    /* saves the widgets on top of each other: ids and z-indexes go from 1 to size */
+    static void fill(WidgetRepository repository, int size, Random random) {
+        int side = boardSide(size);
+        repository.clear();
+        repository.initSequence();
+        for (int i = 0; i < size; i++) {
+            repository.save(new Widget(random.nextInt(side), random.nextInt(side), WIDGET_SIDE, WIDGET_SIDE, null));
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.miro;
+
+import com.miro.entities.Widget;
+import com.miro.entities.WidgetChange;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+** cost of a save on top when the changes are published to the change feed, with and without subscribers:
+** the writer only stores the change in the ring, the subscribers are served by the threads of the feed.
+** NONE is the repository without the feed.
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ChangeFeedBenchmark {
+
+    @Param({"NONE", "0", "1000"})
+    public String subscribers;
+    @Param({"100000"})
+    public int size;
+
+    private ChangeFeed feed;
+    private WidgetRepository repository;
+    private int boardSide;
+    private final AtomicLong delivered = new AtomicLong();
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        WidgetRepository main = BenchmarkSupport.repository("MAIN", "DENSE");
+        feed = new ChangeFeed(1 << 16, 4);
+        repository = subscribers.equals("NONE") ? main : new WidgetFeedRepository(main, feed);
+        BenchmarkSupport.fill(repository, size, new Random(1));
+        boardSide = BenchmarkSupport.boardSide(size);
+        int count = subscribers.equals("NONE") ? 0 : Integer.parseInt(subscribers);
+        for (int i = 0; i < count; i++) {
+            feed.subscribe(feed.version(), new ChangeFeed.Subscriber() {
+                @Override
+                public boolean onChanges(List<WidgetChange> changes) {
+                    delivered.addAndGet(changes.size());
+                    return true;
+                }
+
+                @Override
+                public void onLagged() {
+                }
+            });
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        feed.close();
+    }
+
+    @Benchmark
+    public Widget saveOnTop() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Widget widget = new Widget(random.nextInt(boardSide), random.nextInt(boardSide),
+                BenchmarkSupport.WIDGET_SIDE, BenchmarkSupport.WIDGET_SIDE, null);
+        repository.save(widget);
+        return widget;
+    }
+}
@@ -0,0 +1,105 @@
+package com.miro;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+import org.springframework.web.context.request.ServletWebRequest;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/* the requests go through the Spring MVC dispatcher (without the network): binding, controller and JSON rendering */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ControllerBenchmark {
+
+    @Param({"MAIN"})
+    public String repositoryType;
+    @Param({"100000"})
+    public int size;
+    @Param({"100"})
+    public int pageSize;
+    /* the responses kept rendered (see WidgetResponseCache), 0 for none */
+    @Param({"0", "1024"})
+    public int responseCache;
+
+    private MockMvc mvc;
+    private WidgetController controller;
+    private ChangeFeed feed;
+    /* the tag of the widgets, they do not change during the benchmark */
+    private String etag;
+
+    @Setup
+    public void setup() {
+        WidgetRepository repository = BenchmarkSupport.repository(repositoryType, "DENSE");
+        BenchmarkSupport.fill(repository, size, new Random(1));
+        controller = new WidgetController(repository, new WidgetUtil());
+        if (responseCache > 0) {
+            feed = new ChangeFeed(1 << 16, 1);
+            controller.repository = new WidgetFeedRepository(repository, feed);
+            controller.responseCache = new WidgetResponseCache(feed, responseCache);
+        }
+        mvc = MockMvcBuilders.standaloneSetup(controller)
+                .setControllerAdvice(new InvalidParameterAdvice(), new WidgetNotFoundAdvice())
+                .build();
+        etag = "\"" + WidgetETag.of(repository.version()) + "\"";
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (feed != null) {
+            feed.close();
+        }
+    }
+
+    @Benchmark
+    public MockHttpServletResponse getWidget() throws Exception {
+        long id = ThreadLocalRandom.current().nextLong(size) + 1;
+        return mvc.perform(MockMvcRequestBuilders.get("/widgets/" + id)).andReturn().getResponse();
+    }
+
+    @Benchmark
+    public MockHttpServletResponse getWidgetsPage() throws Exception {
+        int page = ThreadLocalRandom.current().nextInt(size / pageSize) + 1;
+        return mvc.perform(MockMvcRequestBuilders.get("/widgets")
+                .param("size", String.valueOf(pageSize))
+                .param("page", String.valueOf(page))).andReturn().getResponse();
+    }
+
+    /* a client polling widgets it already has: 304, nothing is read nor rendered */
+    @Benchmark
+    public MockHttpServletResponse getWidgetsPageNotModified() throws Exception {
+        int page = ThreadLocalRandom.current().nextInt(size / pageSize) + 1;
+        return mvc.perform(MockMvcRequestBuilders.get("/widgets")
+                .param("size", String.valueOf(pageSize))
+                .param("page", String.valueOf(page))
+                .header(HttpHeaders.IF_NONE_MATCH, etag)).andReturn().getResponse();
+    }
+
+    /* the controller alone: the response of MockMvc takes the body one byte at a time, longer than rendering it */
+    @Benchmark
+    public ResponseEntity<byte[]> getWidgetsPageHandler() throws Exception {
+        int page = ThreadLocalRandom.current().nextInt(size / pageSize) + 1;
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/widgets");
+        request.setQueryString("size=" + pageSize + "&page=" + page);
+        RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(request));
+        return controller.getAllWidgets(pageSize, page, null, null, null, new ServletWebRequest(request));
+    }
+}
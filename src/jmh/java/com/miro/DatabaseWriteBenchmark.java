@@ -0,0 +1,94 @@
+package com.miro;
+
+import com.miro.entities.Widget;
+import com.zaxxer.hikari.HikariDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+** write throughput of the repository kept in an H2 file database, through a connection pool as in the application:
+** WRITE_BEHIND queues the changes and writes them in batches, SYNCHRONOUS writes every change in its own transaction
+** (the difference grows with the cost of a commit, see commit).
+** An invocation makes CHANGES changes (saves on top and moves of the existing widgets, half of them to the top)
+** and waits for them to be in the database.
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DatabaseWriteBenchmark {
+
+    private static final int CHANGES = 1000;
+
+    @Param({"WRITE_BEHIND", "SYNCHRONOUS"})
+    public String persistence;
+    /* DELAYED: the default of H2, the commits are written to the file every second; IMMEDIATE: at every commit */
+    @Param({"DELAYED", "IMMEDIATE"})
+    public String commit;
+    @Param({"10000"})
+    public int size;
+
+    private Path dir;
+    private HikariDataSource dataSource;
+    private WidgetDatabaseRepository repository;
+    private final Random random = new Random(42);
+    /* the ids go from 1 to lastId, no widget is deleted */
+    private long lastId;
+
+    @Setup(Level.Iteration)
+    public void setup() throws IOException, SQLException {
+        dir = Files.createTempDirectory("widgets");
+        dataSource = new HikariDataSource();
+        dataSource.setJdbcUrl("jdbc:h2:file:" + dir.resolve("widgets").toAbsolutePath()
+                + (commit.equals("IMMEDIATE") ? ";WRITE_DELAY=0" : ""));
+        WidgetRepository main = BenchmarkSupport.repository("MAIN", "DENSE");
+        main.clear();
+        repository = new WidgetDatabaseRepository(main, dataSource, persistence.equals("WRITE_BEHIND"), 100);
+        BenchmarkSupport.fill(repository, size, random);
+        repository.flush();
+        lastId = size;
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        repository.close();
+        dataSource.close();
+        TestUtils.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CHANGES)
+    public void write() {
+        int side = BenchmarkSupport.boardSide(size);
+        for (int i = 0; i < CHANGES; i++) {
+            if (random.nextBoolean()) {
+                Widget widget = new Widget(random.nextInt(side), random.nextInt(side),
+                        BenchmarkSupport.WIDGET_SIDE, BenchmarkSupport.WIDGET_SIDE, null);
+                repository.save(widget);
+                lastId = widget.getId();
+            } else {
+                Widget widget = repository.findByIdOrNull(1 + (long) random.nextInt((int) lastId));
+                Widget moved = new Widget(random.nextInt(side), random.nextInt(side), widget.getWidth(),
+                        widget.getHeight(), random.nextBoolean() ? widget.getzIndex() : null);
+                moved.setId(widget.getId());
+                repository.update(widget, moved);
+            }
+        }
+        repository.flush();
+    }
+}
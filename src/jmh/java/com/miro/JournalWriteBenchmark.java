@@ -0,0 +1,68 @@
+package com.miro;
+
+import com.miro.entities.Widget;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/*
+** latency of a save with the write-ahead log (percentiles in the results, p0.99 included):
+** NONE without the log, ASYNC with the records forced to disk every fsyncIntervalMillis,
+** SYNC waiting for the record to be on disk (the threads waiting share the same fsync, run with -t to see it).
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class JournalWriteBenchmark {
+
+    @Param({"NONE", "ASYNC", "SYNC"})
+    public String durability;
+    @Param({"10"})
+    public long fsyncIntervalMillis;
+
+    private WidgetRepository repository;
+    private Path file;
+
+    @Setup(Level.Iteration)
+    public void setup() throws IOException {
+        WidgetRepository main = BenchmarkSupport.repository("MAIN", "DENSE");
+        main.clear();
+        main.initSequence();
+        if (durability.equals("NONE")) {
+            repository = main;
+            return;
+        }
+        file = Files.createTempFile("widgets", ".wal");
+        repository = new WidgetJournaledRepository(main, file, fsyncIntervalMillis, durability.equals("SYNC"));
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        if (repository instanceof WidgetJournaledRepository) {
+            ((WidgetJournaledRepository) repository).close();
+            Files.delete(file);
+        }
+    }
+
+    @Benchmark
+    public Widget save() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Widget widget = new Widget(random.nextInt(10000), random.nextInt(10000),
+                BenchmarkSupport.WIDGET_SIDE, BenchmarkSupport.WIDGET_SIDE, null);
+        repository.save(widget);
+        return widget;
+    }
+}
@@ -0,0 +1,57 @@
+package com.miro;
+
+import com.miro.entities.Widget;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/*
+** Reads by id and geometry-only updates of random widgets, in the given proportion.
+** The number of threads is set on the command line: -Djmh.args="-t 4" (default 1).
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MixedWorkloadBenchmark {
+
+    @Param({"MAIN", "SNAPSHOT", "SHARDED"})
+    public String repositoryType;
+    @Param({"100000"})
+    public int size;
+    @Param({"95", "50"})
+    public int readPercent;
+
+    private final WidgetUtil util = new WidgetUtil();
+    private WidgetRepository repository;
+    private int boardSide;
+
+    @Setup
+    public void setup() {
+        repository = BenchmarkSupport.repository(repositoryType, "DENSE");
+        BenchmarkSupport.fill(repository, size, new Random(1));
+        boardSide = BenchmarkSupport.boardSide(size);
+    }
+
+    @Benchmark
+    public Object readOrUpdate() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long id = random.nextLong(size) + 1;
+        Widget widget = repository.findById(id).orElseThrow();
+        if (random.nextInt(100) < readPercent) {
+            return widget;
+        }
+        Widget newWidget = new Widget(random.nextInt(boardSide), random.nextInt(boardSide), null, null, null);
+        util.merge(widget, newWidget);
+        repository.update(widget, newWidget);
+        return newWidget;
+    }
+}
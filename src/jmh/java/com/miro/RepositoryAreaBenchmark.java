@@ -0,0 +1,51 @@
+package com.miro;
+
+import com.miro.entities.Point;
+import com.miro.entities.Widget;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/* findAllInRectangle, the selectivity is the fraction of the board covered by the searched area */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RepositoryAreaBenchmark {
+
+    @Param({"MAIN", "SNAPSHOT", "SHARDED"})
+    public String repositoryType;
+    @Param({"1000000"})
+    public int size;
+    @Param({"0.0001", "0.001", "0.01"})
+    public double selectivity;
+
+    private WidgetRepository repository;
+    private int boardSide;
+    private int areaSide;
+
+    @Setup
+    public void setup() {
+        repository = BenchmarkSupport.repository(repositoryType, "DENSE");
+        BenchmarkSupport.fill(repository, size, new Random(1));
+        boardSide = BenchmarkSupport.boardSide(size);
+        areaSide = (int) (boardSide * Math.sqrt(selectivity));
+    }
+
+    @Benchmark
+    public SortedSet<Widget> findAllInRectangle() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int x = random.nextInt(boardSide - areaSide);
+        int y = random.nextInt(boardSide - areaSide);
+        return repository.findAllInRectangle(new Point(x, y), new Point(x + areaSide, y + areaSide));
+    }
+}
@@ -0,0 +1,69 @@
+package com.miro;
+
+import com.miro.entities.Widget;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Optional;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/* findById (with and without the Optional), pages by number and pages by cursor */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RepositoryReadBenchmark {
+
+    @Param({"MAIN", "SNAPSHOT", "SHARDED"})
+    public String repositoryType;
+    @Param({"1000000"})
+    public int size;
+    @Param({"100"})
+    public int pageSize;
+
+    /* the repository measured as in the application */
+    @Param({"false", "true"})
+    public boolean metrics;
+
+    private WidgetRepository repository;
+
+    @Setup
+    public void setup() {
+        repository = metrics ? BenchmarkSupport.meteredRepository(repositoryType, "DENSE")
+                : BenchmarkSupport.repository(repositoryType, "DENSE");
+        BenchmarkSupport.fill(repository, size, new Random(1));
+    }
+
+    @Benchmark
+    public Optional<Widget> findById() {
+        return repository.findById(ThreadLocalRandom.current().nextLong(size) + 1);
+    }
+
+    @Benchmark
+    public Widget findByIdOrNull() {
+        return repository.findByIdOrNull(ThreadLocalRandom.current().nextLong(size) + 1);
+    }
+
+    @Benchmark
+    public SortedSet<Widget> findAllFirstPage() {
+        return repository.findAll(pageSize, 1);
+    }
+
+    @Benchmark
+    public SortedSet<Widget> findAllRandomPage() {
+        return repository.findAll(pageSize, ThreadLocalRandom.current().nextInt(size / pageSize) + 1);
+    }
+
+    @Benchmark
+    public SortedSet<Widget> findAllAfterRandomZIndex() {
+        return repository.findAllAfter(ThreadLocalRandom.current().nextInt(size), pageSize);
+    }
+}
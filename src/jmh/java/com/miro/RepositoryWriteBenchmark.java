@@ -0,0 +1,78 @@
+package com.miro;
+
+import com.miro.entities.Widget;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/*
+** save on top of the other widgets (no shift), and save below the top of the stack:
+** the z-index is taken by a widget, the shiftDepth widgets from there to the top are shifted.
+** The repository is filled again before each iteration, the saved widgets accumulate during the iteration.
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RepositoryWriteBenchmark {
+
+    @Param({"MAIN", "SNAPSHOT", "SHARDED"})
+    public String repositoryType;
+    /* only used by the MAIN repository */
+    @Param({"DENSE", "LAZY"})
+    public String zOrderMode;
+    @Param({"100000"})
+    public int size;
+    @Param({"10", "1000"})
+    public int shiftDepth;
+
+    /* the repository measured as in the application */
+    @Param({"false", "true"})
+    public boolean metrics;
+
+    private WidgetRepository repository;
+    private int boardSide;
+    /* the z-indexes are contiguous from 1 to top, every save raises the top by one */
+    private int top;
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        repository = metrics ? BenchmarkSupport.meteredRepository(repositoryType, zOrderMode)
+                : BenchmarkSupport.repository(repositoryType, zOrderMode);
+        boardSide = BenchmarkSupport.boardSide(size);
+    }
+
+    @Setup(Level.Iteration)
+    public void setupIteration() {
+        BenchmarkSupport.fill(repository, size, new Random(1));
+        top = size;
+    }
+
+    @Benchmark
+    public Widget saveOnTop() {
+        return save(null);
+    }
+
+    @Benchmark
+    public Widget saveWithShift() {
+        return save(top - shiftDepth + 1);
+    }
+
+    private Widget save(Integer zIndex) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Widget widget = new Widget(random.nextInt(boardSide), random.nextInt(boardSide),
+                BenchmarkSupport.WIDGET_SIDE, BenchmarkSupport.WIDGET_SIDE, zIndex);
+        repository.save(widget);
+        top++;
+        return widget;
+    }
+}
@@ -0,0 +1,96 @@
+package com.miro;
+
+import com.miro.entities.Point;
+import com.miro.entities.Widget;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/*
+** Long scans while a writer updates random widgets: a page of an area read in z-index order (a scan of the z-order
+** until the page is full) and all the widgets of an area (through the R-tree), each measured in its own group with
+** 'writers' threads updating. A scan that sees a write is made again under the read lock (see
+** WidgetMainRepository.read).
+*/
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ScanUnderWritesBenchmark {
+
+    @Param({"MAIN"})
+    public String repositoryType;
+    @Param({"100000"})
+    public int size;
+    /* side of the area, the board is boardSide(size) wide */
+    @Param({"2000"})
+    public int areaSide;
+
+    private final WidgetUtil util = new WidgetUtil();
+    private WidgetRepository repository;
+    private int boardSide;
+
+    @Setup
+    public void setup() {
+        repository = BenchmarkSupport.repository(repositoryType, "DENSE");
+        BenchmarkSupport.fill(repository, size, new Random(1));
+        boardSide = BenchmarkSupport.boardSide(size);
+    }
+
+    private Point[] randomArea() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int x = random.nextInt(boardSide - areaSide);
+        int y = random.nextInt(boardSide - areaSide);
+        return new Point[]{Point.of(x, y), Point.of(x + areaSide, y + areaSide)};
+    }
+
+    private Widget update() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Widget widget = repository.findByIdOrNull(random.nextLong(size) + 1);
+        Widget newWidget = new Widget(random.nextInt(boardSide), random.nextInt(boardSide), null, null, null);
+        util.merge(widget, newWidget);
+        repository.update(widget, newWidget);
+        return newWidget;
+    }
+
+    @Benchmark
+    @Group("areaPage")
+    @GroupThreads(1)
+    public SortedSet<Widget> areaPage() {
+        Point[] area = randomArea();
+        return repository.findAll(100, 1, area[0], area[1]);
+    }
+
+    @Benchmark
+    @Group("areaPage")
+    @GroupThreads(1)
+    public Widget areaPageWriter() {
+        return update();
+    }
+
+    @Benchmark
+    @Group("areaAll")
+    @GroupThreads(1)
+    public SortedSet<Widget> areaAll() {
+        Point[] area = randomArea();
+        return repository.findAllInRectangle(area[0], area[1]);
+    }
+
+    @Benchmark
+    @Group("areaAll")
+    @GroupThreads(1)
+    public Widget areaAllWriter() {
+        return update();
+    }
+}
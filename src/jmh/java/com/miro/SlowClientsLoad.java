@@ -0,0 +1,172 @@
+package com.miro;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/*
+** Not a JMH benchmark: a load against a running server, the Spring MVC one or the 'reactive' one.
+** 'clients' connections ask for the list of all the widgets and read it slowly (readRate bytes per second each, with
+** a small receive buffer: the server cannot push the response into the socket), meanwhile a single widget is asked
+** again and again on another connection. Reported: the slow connections open, those answered (their first bytes
+** received), and the latency of the single widgets (p50, p99, max, failures: no answer within 10 s).
+** The board is filled first with 'widgets' widgets, the list must be larger than the socket buffers.
+**   java -cp target/test-classes com.miro.SlowClientsLoad [host:port] [clients] [seconds] [widgets] [readRate]
+*/
+public class SlowClientsLoad {
+
+    private static final int RECEIVE_BUFFER = 4096;
+    private static final int TICK_MILLIS = 100;
+    private static final int PROBE_TIMEOUT_MILLIS = 10_000;
+
+    public static void main(String[] args) throws Exception {
+        String[] address = (args.length > 0 ? args[0] : "localhost:8080").split(":");
+        InetSocketAddress server = new InetSocketAddress(address[0], Integer.parseInt(address[1]));
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 60;
+        int widgets = args.length > 3 ? Integer.parseInt(args[3]) : 20_000;
+        int readRate = args.length > 4 ? Integer.parseInt(args[4]) : 1024;
+        String base = "http://" + address[0] + ":" + address[1];
+
+        long probeId = fill(base, widgets);
+        System.out.printf("%d widgets, %d slow clients reading %d B/s for %d s%n", widgets, clients, readRate, seconds);
+
+        byte[] request = ("GET /widgets HTTP/1.1\r\nHost: " + address[0] + "\r\nAccept: application/json\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII);
+        List<SocketChannel> channels = new ArrayList<>(clients);
+        int refused = 0;
+        for (int i = 0; i < clients; i++) {
+            try {
+                SocketChannel channel = SocketChannel.open();
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER);
+                channel.connect(server);
+                channel.write(ByteBuffer.wrap(request));
+                channel.configureBlocking(false);
+                channels.add(channel);
+            } catch (IOException e) {
+                refused++;
+            }
+        }
+
+        Probe probe = new Probe(base + "/widgets/" + probeId);
+        Thread probing = new Thread(probe, "probe");
+        probing.start();
+
+        boolean[] answered = new boolean[channels.size()];
+        boolean[] closed = new boolean[channels.size()];
+        ByteBuffer buffer = ByteBuffer.allocate(Math.max(1, readRate * TICK_MILLIS / 1000));
+        long end = System.currentTimeMillis() + seconds * 1000L;
+        while (System.currentTimeMillis() < end) {
+            long tick = System.currentTimeMillis();
+            for (int i = 0; i < channels.size(); i++) {
+                if (closed[i]) {
+                    continue;
+                }
+                buffer.clear();
+                try {
+                    int read = channels.get(i).read(buffer);
+                    if (read > 0) {
+                        answered[i] = true;
+                    } else if (read < 0) {
+                        closed[i] = true;
+                    }
+                } catch (IOException e) {
+                    closed[i] = true;
+                }
+            }
+            Thread.sleep(Math.max(0, TICK_MILLIS - (System.currentTimeMillis() - tick)));
+        }
+        probe.stop = true;
+        probing.join();
+
+        int open = 0;
+        int served = 0;
+        for (int i = 0; i < channels.size(); i++) {
+            open += closed[i] ? 0 : 1;
+            served += answered[i] ? 1 : 0;
+            channels.get(i).close();
+        }
+        System.out.printf("slow connections: %d open, %d answered, %d closed, %d refused%n",
+                open, served, channels.size() - open, refused);
+        probe.report();
+    }
+
+    /* posts the widgets, returns the id of the one to probe */
+    private static long fill(String base, int widgets) throws IOException {
+        Random random = new Random(1);
+        int side = BenchmarkSupport.boardSide(widgets);
+        long id = 0;
+        for (int i = 0; i < widgets; i++) {
+            HttpURLConnection connection = (HttpURLConnection) new URL(base + "/widgets").openConnection();
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setDoOutput(true);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(String.format("{\"x\":%d,\"y\":%d,\"width\":10,\"height\":10}",
+                        random.nextInt(side), random.nextInt(side)).getBytes(StandardCharsets.UTF_8));
+            }
+            String location = connection.getHeaderField("Location");
+            id = Long.parseLong(location.substring(location.lastIndexOf('/') + 1));
+            connection.getInputStream().readAllBytes();
+        }
+        return id;
+    }
+
+    private static final class Probe implements Runnable {
+        final String url;
+        final List<Long> latencies = new ArrayList<>();
+        int failures;
+        volatile boolean stop;
+
+        Probe(String url) {
+            this.url = url;
+        }
+
+        @Override
+        public void run() {
+            while (!stop) {
+                long start = System.nanoTime();
+                try {
+                    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+                    connection.setConnectTimeout(PROBE_TIMEOUT_MILLIS);
+                    connection.setReadTimeout(PROBE_TIMEOUT_MILLIS);
+                    try (InputStream in = connection.getInputStream()) {
+                        in.readAllBytes();
+                    }
+                    latencies.add(System.nanoTime() - start);
+                    Thread.sleep(10);
+                } catch (IOException e) {
+                    failures++;
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        void report() {
+            long[] sorted = latencies.stream().mapToLong(Long::longValue).toArray();
+            Arrays.sort(sorted);
+            if (sorted.length == 0) {
+                System.out.printf("single widget: no answer, %d failures%n", failures);
+                return;
+            }
+            System.out.printf("single widget: %d requests, p50 %.2f ms, p99 %.2f ms, max %.2f ms, %d failures%n",
+                    sorted.length, millis(sorted, 0.5), millis(sorted, 0.99), sorted[sorted.length - 1] / 1e6, failures);
+        }
+
+        private static double millis(long[] sorted, double quantile) {
+            return sorted[Math.min(sorted.length - 1, (int) (sorted.length * quantile))] / 1e6;
+        }
+    }
+}
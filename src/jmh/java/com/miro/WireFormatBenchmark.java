@@ -0,0 +1,58 @@
+package com.miro;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.miro.entities.Widget;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.concurrent.TimeUnit;
+
+/*
+** serialization of a whole board for GET /widgets: JSON as rendered by the application (Jackson, ISO dates)
+** against the binary records of WidgetBinaryFormat. The size of both payloads is printed at setup.
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class WireFormatBenchmark {
+
+    @Param({"10000"})
+    public int size;
+
+    private SortedSet<Widget> widgets;
+    private ObjectMapper mapper;
+    private ByteBuffer buffer;
+
+    @Setup
+    public void setup() throws JsonProcessingException {
+        WidgetRepository repository = BenchmarkSupport.repository("MAIN", "DENSE");
+        BenchmarkSupport.fill(repository, size, new Random(1));
+        widgets = repository.findAll(null, null);
+        mapper = Jackson2ObjectMapperBuilder.json().build();
+        buffer = WidgetBinaryFormat.allocate(size);
+        System.out.println("payload of " + size + " widgets (bytes), JSON: " + json().length + ", binary: " + binary());
+    }
+
+    @Benchmark
+    public byte[] json() throws JsonProcessingException {
+        return mapper.writeValueAsBytes(widgets);
+    }
+
+    @Benchmark
+    public int binary() {
+        buffer.clear();
+        WidgetBinaryFormat.write(widgets, buffer);
+        return buffer.position();
+    }
+}
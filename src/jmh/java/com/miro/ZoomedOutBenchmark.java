@@ -0,0 +1,88 @@
+package com.miro;
+
+import com.miro.entities.Point;
+import com.miro.entities.Widget;
+import com.miro.entities.WidgetClusters;
+import com.miro.index.WidgetTilePyramid;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/*
+** A zoomed-out view covering 'selectivity' of the board: all its widgets (findAllInRectangle) against at most
+** 'maxWidgets' clusters of the tile pyramid (see WidgetTilePyramid). 'update' measures what the pyramid costs to the
+** writers, with 'tiles' false the repository has none.
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ZoomedOutBenchmark {
+
+    @Param({"MAIN"})
+    public String repositoryType;
+    @Param({"1000000"})
+    public int size;
+    @Param({"0.25", "1"})
+    public double selectivity;
+    @Param({"1000"})
+    public int maxWidgets;
+    @Param({"true", "false"})
+    public boolean tiles;
+
+    private final WidgetUtil util = new WidgetUtil();
+    private WidgetRepository repository;
+    private WidgetTilePyramid pyramid;
+    private int boardSide;
+    private int areaSide;
+
+    @Setup
+    public void setup() {
+        repository = BenchmarkSupport.repository(repositoryType, "DENSE");
+        if (tiles) {
+            pyramid = new WidgetTilePyramid();
+            repository = new WidgetTiledRepository(repository, pyramid);
+        }
+        BenchmarkSupport.fill(repository, size, new Random(1));
+        boardSide = BenchmarkSupport.boardSide(size);
+        areaSide = (int) (boardSide * Math.sqrt(selectivity));
+    }
+
+    private Point[] randomArea() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int x = random.nextInt(boardSide - areaSide + 1);
+        int y = random.nextInt(boardSide - areaSide + 1);
+        return new Point[]{Point.of(x, y), Point.of(x + areaSide, y + areaSide)};
+    }
+
+    @Benchmark
+    public SortedSet<Widget> findAllInRectangle() {
+        Point[] area = randomArea();
+        return repository.findAllInRectangle(area[0], area[1]);
+    }
+
+    @Benchmark
+    public WidgetClusters cluster() {
+        Point[] area = randomArea();
+        return pyramid == null ? null : pyramid.cluster(area[0], area[1], maxWidgets);
+    }
+
+    @Benchmark
+    public Widget update() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Widget widget = repository.findByIdOrNull(random.nextLong(size) + 1);
+        Widget newWidget = new Widget(random.nextInt(boardSide), random.nextInt(boardSide), null, null, null);
+        util.merge(widget, newWidget);
+        repository.update(widget, newWidget);
+        return newWidget;
+    }
+}
@@ -0,0 +1,98 @@
+package com.miro;
+
+import com.miro.entities.Point;
+import com.miro.entities.Widget;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.net.URI;
+import java.security.InvalidParameterException;
+import java.util.SortedSet;
+
+/*
+** The widgets of the other boards, the same operations as /widgets on the repository of the board (see WidgetBoards).
+** The ids are generated per board.
+*/
+@RestController
+@Profile("!reactive")
+public class BoardController {
+
+    private static final int MAX_PAGE_SIZE = 500;
+
+    @Autowired
+    WidgetBoards boards;
+    @Autowired
+    WidgetUtil utility;
+
+    @GetMapping("/boards/{boardId}/widgets")
+    public SortedSet<Widget> getAllWidgets(@PathVariable String boardId, @RequestParam(required = false) Integer size,
+            @RequestParam(required = false) Integer page, @RequestParam(required = false) Point lowerLeft,
+            @RequestParam(required = false) Point upperRight) {
+        if (size != null && (size <= 0 || size > MAX_PAGE_SIZE)) {
+            throw new InvalidParameterException("Page size must be between 1 and " + MAX_PAGE_SIZE + ", but was: " + size + ".");
+        }
+        if (page != null && page <= 0) {
+            throw new InvalidParameterException("The requested 'page' must be greater than zero, but was: " + page + ".");
+        }
+        int page_size = size == null ? 10 : size;
+        return boards.withBoard(boardId, repository -> {
+            if (page == null && lowerLeft != null && upperRight != null) {
+                return repository.findAllInRectangle(lowerLeft, upperRight);
+            }
+            return repository.findAll(page_size, page, lowerLeft, upperRight);
+        });
+    }
+
+    @GetMapping("/boards/{boardId}/widgets/{id}")
+    ResponseEntity<Widget> getWidget(@PathVariable String boardId, @PathVariable long id) {
+        Widget widget = boards.withBoard(boardId, repository -> repository.findByIdOrNull(id));
+        if (widget == null) {
+            throw new WidgetNotFoundException(id);
+        }
+        return ResponseEntity.ok().body(widget);
+    }
+
+    @PostMapping("/boards/{boardId}/widgets")
+    ResponseEntity<Widget> createWidget(@PathVariable String boardId, @RequestBody Widget newWidget) {
+        utility.validate(newWidget);
+        boards.withBoard(boardId, repository -> {
+            repository.save(newWidget);
+            return newWidget;
+        });
+        URI uri = URI.create("/boards/" + boardId + "/widgets/" + newWidget.getId());
+        return ResponseEntity.created(uri).body(newWidget);
+    }
+
+    @PutMapping("/boards/{boardId}/widgets/{id}")
+    ResponseEntity<Widget> updateWidget(@PathVariable String boardId, @RequestBody Widget newWidget,
+            @PathVariable long id) {
+        boards.withBoard(boardId, repository -> {
+            Widget widget = repository.findByIdOrNull(id);
+            if (widget == null) {
+                throw new WidgetNotFoundException(id);
+            }
+            utility.merge(widget, newWidget);
+            repository.update(widget, newWidget);
+            return newWidget;
+        });
+        return ResponseEntity.ok().body(newWidget);
+    }
+
+    @DeleteMapping("/boards/{boardId}/widgets/{id}")
+    ResponseEntity<?> deleteWidget(@PathVariable String boardId, @PathVariable long id) {
+        boards.withBoard(boardId, repository -> {
+            repository.deleteById(id);
+            return null;
+        });
+        return ResponseEntity.noContent().build();
+    }
+}
@@ -0,0 +1,239 @@
+package com.miro;
+
+import com.miro.entities.WidgetChange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+** The changes of the widgets in order of version (see WidgetChange), published by the repository inside its own
+** critical sections (see WidgetFeedRepository, WidgetChangeListener).
+** The last 'capacity' changes are kept in a ring: a reader can resume after any version still retained.
+** Publishing takes no lock: the writer claims the next version with an atomic increment, stores the change in its
+** slot, and moves the version forward over the changes stored contiguously. A change is visible to the readers only
+** once all the changes before it are.
+** The changes are pushed to the subscribers by the threads of the feed, never by the writers: publishing stores the
+** change in the ring and wakes up the dispatcher, its cost does not depend on the number of subscribers.
+** The dispatcher hands every subscriber that is behind to the delivery threads, one delivery at a time per subscriber:
+** a slow subscriber delays only itself. A subscriber that falls behind by more than the retained changes is told
+** it has lagged and is removed, it has to read the widgets again.
+*/
+public class ChangeFeed implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChangeFeed.class);
+    /* the changes passed to a subscriber at a time */
+    private static final int DELIVERY_SIZE = 256;
+
+    /* receives the changes on a delivery thread of the feed */
+    public interface Subscriber {
+        /* the changes following the ones already delivered, in order of version; returns false to unsubscribe */
+        boolean onChanges(List<WidgetChange> changes);
+        /* the changes following the ones already delivered are not retained anymore, the subscriber is removed */
+        void onLagged();
+    }
+
+    private static final class Subscription {
+        final Subscriber subscriber;
+        /* the version of the last change delivered */
+        volatile long delivered;
+        /* set while a delivery is scheduled or running */
+        final AtomicBoolean scheduled = new AtomicBoolean();
+
+        Subscription(Subscriber subscriber, long delivered) {
+            this.subscriber = subscriber;
+            this.delivered = delivered;
+        }
+    }
+
+    /* held in shared mode by the writers while they apply and publish a change (see lock and lockShared) */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicReferenceArray<WidgetChange> ring;
+    private final int mask;
+    /* the version of the last change claimed, it may not be stored in the ring yet */
+    private final AtomicLong claimed = new AtomicLong();
+    /* the version of the last change published: all the changes up to it are stored in the ring */
+    private final AtomicLong version = new AtomicLong();
+    private final Map<Subscriber, Subscription> subscriptions = new ConcurrentHashMap<>();
+    private final Thread dispatcher;
+    private final ExecutorService delivery;
+    private volatile boolean closed;
+
+    /* the capacity must be a power of two */
+    public ChangeFeed(int capacity, int deliveryThreads) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("The capacity of the change feed must be a power of two: " + capacity);
+        }
+        ring = new AtomicReferenceArray<>(capacity);
+        mask = capacity - 1;
+        delivery = Executors.newFixedThreadPool(deliveryThreads, runnable -> {
+            Thread thread = new Thread(runnable, "widgets-change-feed-delivery");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dispatcher = new Thread(this::dispatch, "widgets-change-feed");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /*
+    ** excludes the writers holding the shared lock (see WidgetFeedRepository): holding it, a reader sees the widgets
+    ** exactly as they are at version(). Only to copy all the widgets at a version (e.g. a reset of the delta sync).
+    */
+    public void lock() {
+        lock.writeLock().lock();
+    }
+
+    public void unlock() {
+        lock.writeLock().unlock();
+    }
+
+    /*
+    ** held by the writers while they change the widgets and publish the changes: they proceed in parallel, ordered
+    ** only by the locks of the repository, and are excluded by the holder of the lock.
+    */
+    public void lockShared() {
+        lock.readLock().lock();
+    }
+
+    public void unlockShared() {
+        lock.readLock().unlock();
+    }
+
+    /*
+    ** assigns the next version to the change and publishes it. The changes get their versions in the order this
+    ** function is called: the writers whose changes conflict have to call it inside the same critical section
+    ** (e.g. a lock of the repository, see WidgetChangeListener).
+    */
+    public void publish(WidgetChange change) {
+        long v = claimed.incrementAndGet();
+        change.setVersion(v);
+        ring.set((int) v & mask, change);
+        advance();
+        if (!subscriptions.isEmpty()) {
+            LockSupport.unpark(dispatcher);
+        }
+    }
+
+    /*
+    ** moves the version forward over the changes stored contiguously after it: a writer whose change follows one not
+    ** stored yet leaves it to the writer of that one, which sees its change once it has stored its own.
+    */
+    private void advance() {
+        long current = version.get();
+        while (true) {
+            long next = current + 1;
+            WidgetChange change = ring.get((int) next & mask);
+            if (change == null || change.getVersion() != next) {
+                return;
+            }
+            if (version.compareAndSet(current, next)) {
+                current = next;
+            } else {
+                current = version.get();
+            }
+        }
+    }
+
+    /* the version of the last change published, 0 if there are none */
+    public long version() {
+        return version.get();
+    }
+
+    /*
+    ** at most max changes following the given version, in order of version: empty if there are none,
+    ** null if they are not retained anymore (or if the version is unknown, e.g. from before a restart).
+    */
+    public List<WidgetChange> read(long after, int max) {
+        long last = version.get();
+        if (after < 0 || after > last) {
+            return null;
+        }
+        List<WidgetChange> ret = new ArrayList<>((int) Math.min(max, last - after));
+        for (long v = after + 1; v <= last && ret.size() < max; v++) {
+            WidgetChange change = ring.get((int) v & mask);
+            // replaced by a later change
+            if (change == null || change.getVersion() != v) {
+                return null;
+            }
+            ret.add(change);
+        }
+        return ret;
+    }
+
+    /* the subscriber receives the changes following the given version, those still retained first */
+    public void subscribe(long after, Subscriber subscriber) {
+        subscriptions.put(subscriber, new Subscription(subscriber, after));
+        LockSupport.unpark(dispatcher);
+    }
+
+    public void unsubscribe(Subscriber subscriber) {
+        subscriptions.remove(subscriber);
+    }
+
+    public int subscribers() {
+        return subscriptions.size();
+    }
+
+    private void dispatch() {
+        while (!closed) {
+            // a wake-up arriving meanwhile is not lost, the next park returns at once
+            LockSupport.park(this);
+            long last = version.get();
+            for (Subscription subscription : subscriptions.values()) {
+                if (subscription.delivered < last && subscription.scheduled.compareAndSet(false, true)) {
+                    delivery.execute(() -> deliver(subscription));
+                }
+            }
+        }
+    }
+
+    private void deliver(Subscription subscription) {
+        try {
+            while (true) {
+                List<WidgetChange> changes = read(subscription.delivered, DELIVERY_SIZE);
+                if (changes == null) {
+                    subscriptions.remove(subscription.subscriber);
+                    subscription.subscriber.onLagged();
+                    return;
+                }
+                if (changes.isEmpty()) {
+                    break;
+                }
+                if (!subscription.subscriber.onChanges(changes)) {
+                    subscriptions.remove(subscription.subscriber);
+                    return;
+                }
+                subscription.delivered = changes.get(changes.size() - 1).getVersion();
+            }
+        } catch (RuntimeException e) {
+            LOG.warn("Delivery of the widget changes failed, the subscriber is removed", e);
+            subscriptions.remove(subscription.subscriber);
+            return;
+        } finally {
+            subscription.scheduled.set(false);
+        }
+        // a change published after the last read may have been skipped by the dispatcher
+        if (subscription.delivered < version.get()) {
+            LockSupport.unpark(dispatcher);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(dispatcher);
+        delivery.shutdownNow();
+        subscriptions.clear();
+    }
+}
@@ -1,14 +1,197 @@
 package com.miro;
 
+import com.miro.index.WidgetTilePyramid;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.embedded.netty.NettyReactiveWebServerFactory;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
 
 @Configuration
 public class RepositoryConfiguration {
 
+    /*
+    ** MAIN: a single structure guarded by a read/write lock (see WidgetMainRepository).
+    ** SNAPSHOT: immutable snapshots, readers never lock (see WidgetSnapshotRepository).
+    ** SHARDED: one lock per shard, the writers on different shards proceed in parallel (see WidgetShardedRepository).
+    ** COLUMNAR: primitive arrays instead of objects, several times less memory (see WidgetColumnarRepository).
+    ** OFF_HEAP: the widgets are kept in direct buffers, outside of the heap (see WidgetOffHeapRepository).
+    */
+    public enum RepositoryType {
+        MAIN,
+        SNAPSHOT,
+        SHARDED,
+        COLUMNAR,
+        OFF_HEAP
+    }
+
+    /*
+    ** the repository can be selected with the property widgets.repository (MAIN, SNAPSHOT, SHARDED, COLUMNAR or OFF_HEAP),
+    ** the z-order mode of the MAIN repository with the property widgets.z-order (DENSE or LAZY).
+    ** The widgets are kept in memory only, unless the file of a write-ahead log is set with widgets.wal.file:
+    ** widgets.wal.fsync-interval-ms is the time the records wait to be forced to disk together,
+    ** with widgets.wal.sync-writes=true a change returns only when its record is on disk (see WriteAheadLog).
+    ** A checkpoint is taken every widgets.wal.checkpoint-interval-ms (never if 0), the startup replays only the log
+    ** that follows it (see WidgetJournaledRepository).
+    ** With widgets.database.enabled=true the widgets are kept instead in the table of the spring.datasource database
+    ** (e.g. jdbc:h2:file:./widgets), loaded at startup; the changes are written in batches every
+    ** widgets.database.flush-interval-ms, or one by one with widgets.database.write-behind=false
+    ** (see WidgetDatabaseRepository).
+    ** Every change is published to the change feed (see WidgetFeedRepository), and applied to the tile pyramid of the
+    ** clusters if they are enabled (see WidgetTiledRepository).
+    ** The number of widgets and the internals of the MAIN repository are measured in the registry of the application
+    ** (see WidgetRepositoryMetrics), unless widgets.metrics.enabled=false. The time of every call of the repository
+    ** is measured too with widgets.metrics.calls.enabled=true (see WidgetMeteredRepository): off by default,
+    ** it costs more than a find by id.
+    */
+    @Bean
+    public WidgetRepository repository(ChangeFeed changeFeed,
+                                       @Value("${widgets.repository:MAIN}") RepositoryType repositoryType,
+                                       @Value("${widgets.z-order:DENSE}") WidgetMainRepository.ZOrderMode zOrderMode,
+                                       @Value("${widgets.wal.file:}") String walFile,
+                                       @Value("${widgets.wal.fsync-interval-ms:10}") long fsyncIntervalMillis,
+                                       @Value("${widgets.wal.sync-writes:false}") boolean syncWrites,
+                                       @Value("${widgets.wal.checkpoint-interval-ms:60000}") long checkpointIntervalMillis,
+                                       @Value("${widgets.database.enabled:false}") boolean database,
+                                       @Value("${widgets.database.write-behind:true}") boolean writeBehind,
+                                       @Value("${widgets.database.flush-interval-ms:100}") long flushIntervalMillis,
+                                       @Value("${widgets.metrics.enabled:true}") boolean metricsEnabled,
+                                       @Value("${widgets.metrics.calls.enabled:false}") boolean callsMetricsEnabled,
+                                       ObjectProvider<DataSource> dataSource,
+                                       ObjectProvider<MeterRegistry> meterRegistry,
+                                       ObjectProvider<WidgetTilePyramid> tilePyramid) throws IOException, SQLException {
+        MeterRegistry registry = metricsEnabled ? meterRegistry.getIfAvailable() : null;
+        WidgetRepositoryMetrics metrics = registry == null ? WidgetRepositoryMetrics.NONE : new WidgetRepositoryMetrics(registry);
+        WidgetRepository repository = createRepository(repositoryType, zOrderMode, metrics);
+        WidgetTilePyramid tiles = tilePyramid.getIfAvailable();
+        if (tiles != null) {
+            // below the log and the database: the widgets they restore at startup are added to the tiles
+            repository = new WidgetTiledRepository(repository, tiles);
+        }
+        if (database) {
+            repository = new WidgetDatabaseRepository(repository, dataSource.getObject(), writeBehind, flushIntervalMillis);
+        } else if (!walFile.isEmpty()) {
+            repository = new WidgetJournaledRepository(repository, Path.of(walFile), fsyncIntervalMillis, syncWrites,
+                    checkpointIntervalMillis);
+        }
+        repository = new WidgetFeedRepository(repository, changeFeed);
+        if (registry == null) {
+            return repository;
+        }
+        if (callsMetricsEnabled) {
+            return new WidgetMeteredRepository(repository, registry);
+        }
+        WidgetMeteredRepository.registerSize(repository, registry);
+        return repository;
+    }
+
+    /*
+    ** the last widgets.changes.retained changes (a power of two) can be read again by the clients that resume,
+    ** they are pushed to the subscribers by widgets.changes.delivery-threads threads (see ChangeFeed).
+    */
+    @Bean
+    public ChangeFeed changeFeed(@Value("${widgets.changes.retained:65536}") int retained,
+                                 @Value("${widgets.changes.delivery-threads:4}") int deliveryThreads) {
+        return new ChangeFeed(retained, deliveryThreads);
+    }
+
+    /*
+    ** the boards of /boards/{boardId}/widgets, a repository each of the type of widgets.repository (see WidgetBoards):
+    ** the boards not used for widgets.boards.idle-timeout-ms are evicted, written to widgets.boards.dir if set.
+    */
+    @Bean
+    public WidgetBoards boards(@Value("${widgets.repository:MAIN}") RepositoryType repositoryType,
+                               @Value("${widgets.z-order:DENSE}") WidgetMainRepository.ZOrderMode zOrderMode,
+                               @Value("${widgets.boards.dir:}") String dir,
+                               @Value("${widgets.boards.idle-timeout-ms:600000}") long idleTimeoutMillis) throws IOException {
+        Path path = null;
+        if (!dir.isEmpty()) {
+            path = Files.createDirectories(Path.of(dir));
+        }
+        return new WidgetBoards(() -> createRepository(repositoryType, zOrderMode), path, idleTimeoutMillis);
+    }
+
+    /*
+    ** the threads of the reactive controller that use the repository (see WidgetReactiveController): at most
+    ** widgets.reactive.threads, with widgets.reactive.queue calls waiting for each one, the others are rejected.
+    */
+    @Bean(destroyMethod = "dispose")
+    @Profile("reactive")
+    public Scheduler repositoryScheduler(@Value("${widgets.reactive.threads:16}") int threads,
+                                         @Value("${widgets.reactive.queue:1000}") int queue) {
+        return Schedulers.newBoundedElastic(threads, queue, "widgets-repository");
+    }
+
+    /* Netty, Tomcat would be preferred to it by Spring Boot since both are present */
+    @Bean
+    @Profile("reactive")
+    public NettyReactiveWebServerFactory nettyServerFactory() {
+        return new NettyReactiveWebServerFactory();
+    }
+
+    /* the repository in memory, without the write-ahead log */
+    WidgetRepository createRepository(RepositoryType repositoryType, WidgetMainRepository.ZOrderMode zOrderMode) {
+        return createRepository(repositoryType, zOrderMode, WidgetRepositoryMetrics.NONE);
+    }
+
+    WidgetRepository createRepository(RepositoryType repositoryType, WidgetMainRepository.ZOrderMode zOrderMode,
+                                      WidgetRepositoryMetrics metrics) {
+        if (repositoryType == RepositoryType.SNAPSHOT) {
+            return new WidgetSnapshotRepository();
+        }
+        if (repositoryType == RepositoryType.SHARDED) {
+            return new WidgetShardedRepository();
+        }
+        if (repositoryType == RepositoryType.COLUMNAR) {
+            return new WidgetColumnarRepository();
+        }
+        if (repositoryType == RepositoryType.OFF_HEAP) {
+            return new WidgetOffHeapRepository();
+        }
+        return new WidgetMainRepository(zOrderMode, metrics);
+    }
+
+    /*
+    ** the rendered responses of the last widgets.response-cache.size pages and areas queried (see WidgetResponseCache),
+    ** no bean if widgets.response-cache.enabled=false. Its hits, misses, invalidations and evictions are measured in the
+    ** registry of the application (widgets.response.cache.*), unless widgets.metrics.enabled=false.
+    */
+    @Bean
+    @ConditionalOnProperty(name = "widgets.response-cache.enabled", havingValue = "true", matchIfMissing = true)
+    public WidgetResponseCache responseCache(ChangeFeed changeFeed,
+                                             @Value("${widgets.response-cache.size:1024}") int size,
+                                             @Value("${widgets.metrics.enabled:true}") boolean metricsEnabled,
+                                             ObjectProvider<MeterRegistry> meterRegistry) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("The size of the response cache must be positive: " + size);
+        }
+        WidgetResponseCache cache = new WidgetResponseCache(changeFeed, size);
+        MeterRegistry registry = metricsEnabled ? meterRegistry.getIfAvailable() : null;
+        if (registry != null) {
+            cache.register(registry);
+        }
+        return cache;
+    }
+
+    /*
+    ** the tiles of GET /widgets?maxWidgets, the widgets of a zoomed-out view aggregated by area (see WidgetTilePyramid),
+    ** every change costs MAX_LEVEL + 1 tiles: only with widgets.clusters.enabled=true.
+    */
     @Bean
-    public WidgetRepository repository() {
-        return new WidgetMainRepository();
+    @ConditionalOnProperty(name = "widgets.clusters.enabled", havingValue = "true")
+    public WidgetTilePyramid tilePyramid() {
+        return new WidgetTilePyramid();
     }
 
     @Bean
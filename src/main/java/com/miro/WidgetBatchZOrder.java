@@ -0,0 +1,229 @@
+package com.miro;
+
+import com.miro.entities.Widget;
+import com.miro.entities.WidgetBatch;
+import com.miro.index.ZOrder;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/*
+** The z-index each widget of a batch takes when the batch is applied one by one (see WidgetRepository.applyBatch),
+** and whether it shifts the widgets above: found before the repository applies the whole batch at once, to report it
+** as the changes of its parts (see WidgetChangeListener, WidgetDatabaseRepository).
+** The z-indexes taken are simulated, the widgets removed by the batch excluded. The stored z-indexes are read, from the
+** z-order or from the repository, only as far as the saves reach, from the lowest z-index of the batch upwards, as
+** DenseZOrder.insertAll does.
+** This class has to be used while no other writer changes the widgets.
+*/
+final class WidgetBatchZOrder {
+
+    private static final int CHUNK = 256;
+
+    /* the stored widgets, read by the simulation */
+    private interface Source {
+        /* the widgets in z-index order, from the first one with a z-index >= the given one */
+        Iterator<Widget> from(int zIndex);
+        /* the widget of the rank (0 is the lowest z-index), null if there is none */
+        Widget at(int rank);
+        int size();
+    }
+
+    private final Source source;
+    /* the ids deleted, then the ids updated */
+    private final Set<Long> removed = new LinkedHashSet<>();
+    /* the widgets updated, then the widgets created */
+    private final List<Widget> saved;
+    private final int[] zIndexes;
+    private final boolean[] shifts;
+    private final TreeSet<Integer> taken = new TreeSet<>();
+    /* the stored widgets from the lowest z-index of the batch, read on demand */
+    private Iterator<Widget> stored;
+    /* the stored z-indexes up to this one are in taken: a long, the z-index below Integer.MIN_VALUE included */
+    private long loaded;
+    /* the z-index of the top stored widget not removed (null if none), read at the first insert on top */
+    private boolean topRead;
+    private Integer storedTop;
+
+    /* reads the z-order of an in-memory repository, holding its write lock */
+    WidgetBatchZOrder(ZOrder zOrder, WidgetBatch batch) {
+        this(new Source() {
+            @Override
+            public Iterator<Widget> from(int zIndex) {
+                return zOrder.iteratorFrom(zIndex);
+            }
+
+            @Override
+            public Widget at(int rank) {
+                Iterator<Widget> it = zOrder.iterator(rank);
+                return it.hasNext() ? it.next() : null;
+            }
+
+            @Override
+            public int size() {
+                return zOrder.size();
+            }
+        }, batch);
+    }
+
+    /* reads the repository by chunks of CHUNK widgets */
+    WidgetBatchZOrder(WidgetRepository repository, WidgetBatch batch) {
+        this(new Source() {
+            @Override
+            public Iterator<Widget> from(int zIndex) {
+                return new Chunks(repository, zIndex);
+            }
+
+            @Override
+            public Widget at(int rank) {
+                SortedSet<Widget> page = repository.findAll(1, rank + 1);
+                return page.isEmpty() ? null : page.first();
+            }
+
+            @Override
+            public int size() {
+                return repository.size();
+            }
+        }, batch);
+    }
+
+    private WidgetBatchZOrder(Source source, WidgetBatch batch) {
+        this.source = source;
+        removed.addAll(batch.getDelete());
+        saved = new ArrayList<>(batch.getUpdate().size() + batch.getCreate().size());
+        saved.addAll(batch.getUpdate());
+        saved.addAll(batch.getCreate());
+        int from = Integer.MAX_VALUE;
+        for (Widget widget : batch.getUpdate()) {
+            removed.add(widget.getId());
+        }
+        for (Widget widget : saved) {
+            if (widget.getzIndex() != null) {
+                from = Math.min(from, widget.getzIndex());
+            }
+        }
+        loaded = (long) from - 1;
+        zIndexes = new int[saved.size()];
+        shifts = new boolean[saved.size()];
+        for (int i = 0; i < saved.size(); i++) {
+            Integer zIndex = saved.get(i).getzIndex();
+            if (zIndex == null) {
+                zIndexes[i] = insertOnTop();
+            } else {
+                zIndexes[i] = zIndex;
+                shifts[i] = insert(zIndex);
+            }
+        }
+    }
+
+    Set<Long> removed() {
+        return removed;
+    }
+
+    List<Widget> saved() {
+        return saved;
+    }
+
+    /* the z-index the i-th widget saved takes, the later saves of the batch may shift it */
+    int zIndex(int i) {
+        return zIndexes[i];
+    }
+
+    /* true if the i-th widget saved shifts the contiguous sequence of widgets from its z-index */
+    boolean shifts(int i) {
+        return shifts[i];
+    }
+
+    /* takes the z-index, returns true if it was taken: the contiguous sequence from there is shifted */
+    private boolean insert(int zIndex) {
+        load(zIndex);
+        if (taken.add(zIndex)) {
+            return false;
+        }
+        int top = zIndex;
+        load((long) top + 1);
+        while (taken.contains(top + 1)) {
+            top++;
+            load((long) top + 1);
+        }
+        taken.add(top + 1);
+        return true;
+    }
+
+    /* takes the z-index following the top one, as the repository does for a widget without z-index (1 if none) */
+    private int insertOnTop() {
+        if (!topRead) {
+            topRead = true;
+            for (int rank = source.size() - 1; rank >= 0; rank--) {
+                Widget widget = source.at(rank);
+                if (widget != null && !removed.contains(widget.getId())) {
+                    storedTop = widget.getzIndex();
+                    break;
+                }
+            }
+        }
+        Integer top = storedTop;
+        if (!taken.isEmpty() && (top == null || taken.last() > top)) {
+            top = taken.last();
+        }
+        int zIndex = top == null ? 1 : top + 1;
+        taken.add(zIndex);
+        return zIndex;
+    }
+
+    private void load(long zIndex) {
+        if (stored == null) {
+            stored = source.from((int) (loaded + 1));
+        }
+        while (loaded < zIndex && stored.hasNext()) {
+            Widget widget = stored.next();
+            loaded = widget.getzIndex();
+            if (!removed.contains(widget.getId())) {
+                taken.add(widget.getzIndex());
+            }
+        }
+    }
+
+    /* the widgets of the repository from a z-index, read by chunks with the keyset pagination (see findAllAfter) */
+    private static final class Chunks implements Iterator<Widget> {
+        private final WidgetRepository repository;
+        private Iterator<Widget> chunk;
+        private boolean last;
+        private Widget previous;
+
+        Chunks(WidgetRepository repository, int zIndex) {
+            this.repository = repository;
+            // the z-index before Integer.MIN_VALUE does not exist: the first page instead
+            read(zIndex == Integer.MIN_VALUE
+                    ? repository.findAll(CHUNK, 1) : repository.findAllAfter(zIndex - 1, CHUNK));
+        }
+
+        private void read(SortedSet<Widget> widgets) {
+            chunk = widgets.iterator();
+            last = widgets.size() < CHUNK;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (!chunk.hasNext() && !last) {
+                read(repository.findAllAfter(previous.getzIndex(), CHUNK));
+            }
+            return chunk.hasNext();
+        }
+
+        @Override
+        public Widget next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            previous = chunk.next();
+            return previous;
+        }
+    }
+}
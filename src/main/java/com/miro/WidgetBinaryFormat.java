@@ -0,0 +1,62 @@
+package com.miro;
+
+import com.miro.entities.Widget;
+import com.miro.index.SlotWidgetStore;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/*
+** Compact binary encoding of the widgets, for the clients that download whole boards (media type MEDIA_TYPE):
+** one record of RECORD_SIZE bytes per widget, little endian, without any header, the records follow each other
+** until the end of the body. Record: id (8 bytes), x, y, width, height, z-index (4 bytes each),
+** modification date (8 bytes, microseconds since the epoch, UTC).
+** The records are written directly into a buffer, without Jackson and without formatting numbers or dates as text.
+*/
+public final class WidgetBinaryFormat {
+
+    public static final String MEDIA_TYPE = "application/x-widgets";
+    public static final int RECORD_SIZE = 8 + 5 * 4 + 8;
+
+    private WidgetBinaryFormat() {
+    }
+
+    /* a buffer for the given number of records, in the byte order of the format */
+    public static ByteBuffer allocate(int records) {
+        return ByteBuffer.allocate(records * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /* the buffer must have room for all the widgets */
+    public static void write(Collection<Widget> widgets, ByteBuffer buffer) {
+        for (Widget widget : widgets) {
+            buffer.putLong(widget.getId())
+                    .putInt(widget.getX())
+                    .putInt(widget.getY())
+                    .putInt(widget.getWidth())
+                    .putInt(widget.getHeight())
+                    .putInt(widget.getzIndex())
+                    .putLong(SlotWidgetStore.toMicros(widget.getModificationDate()));
+        }
+    }
+
+    /* decodes all the records remaining in the buffer */
+    public static List<Widget> read(ByteBuffer buffer) {
+        ByteBuffer in = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (in.remaining() % RECORD_SIZE != 0) {
+            throw new IllegalArgumentException("Truncated record: " + in.remaining() + " bytes is not a multiple of "
+                    + RECORD_SIZE + ".");
+        }
+        List<Widget> widgets = new ArrayList<>(in.remaining() / RECORD_SIZE);
+        while (in.hasRemaining()) {
+            long id = in.getLong();
+            Widget widget = new Widget(in.getInt(), in.getInt(), in.getInt(), in.getInt(), in.getInt());
+            widget.setId(id);
+            widget.setModificationDate(SlotWidgetStore.fromMicros(in.getLong()));
+            widgets.add(widget);
+        }
+        return widgets;
+    }
+}
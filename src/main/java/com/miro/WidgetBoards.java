@@ -0,0 +1,225 @@
+package com.miro;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.InvalidParameterException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/*
+** The boards, each one with its own repository: its own locks and its own sequence of ids, a board never waits
+** for another one. A board is created when it is first used.
+** A board not used for idleTimeoutMillis is evicted: dropped if it has no widgets, otherwise written to a checkpoint
+** in 'dir' (see WidgetCheckpoint) and loaded again when it is used. Without 'dir' the boards with widgets are kept.
+** The checkpoint of a board stays in 'dir' until the board is written again (or dropped once empty): a crash never
+** loses more than the changes since the last eviction. The boards still in memory are written when it is closed.
+** The requests run on the board between acquire and release, it is never evicted meanwhile: every board has its
+** own monitor for that, the registry is not locked while a board is loaded or written. Once closed, the requests are
+** refused and a board is written only when the requests running on it have returned.
+*/
+public class WidgetBoards implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WidgetBoards.class);
+    /* the ids are used as names of files */
+    private static final Pattern BOARD_ID = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+    /* the time close waits for the requests running on a board */
+    private static final long CLOSE_TIMEOUT_MILLIS = 10_000;
+
+    private static final class Board {
+        final String id;
+        /* null until the board is loaded, guarded by the monitor of the board */
+        WidgetRepository repository;
+        int active;
+        long lastUsed;
+        /* removed from the registry, the requests look it up again */
+        boolean removed;
+
+        Board(String id) {
+            this.id = id;
+        }
+    }
+
+    private final Map<String, Board> boards = new ConcurrentHashMap<>();
+    private final Supplier<WidgetRepository> factory;
+    private final Path dir;
+    private final long idleTimeoutMillis;
+    private final ScheduledExecutorService evictor;
+    /* set by close, checked holding the monitor of the board */
+    private volatile boolean closed;
+
+    public WidgetBoards(Supplier<WidgetRepository> factory, Path dir, long idleTimeoutMillis) {
+        this.factory = factory;
+        this.dir = dir;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "widgets-boards-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, idleTimeoutMillis / 2);
+        evictor.scheduleWithFixedDelay(() -> evictIdle(System.currentTimeMillis()), period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /* runs the action on the repository of the board, created if needed */
+    public <T> T withBoard(String boardId, Function<WidgetRepository, T> action) {
+        Board board = acquire(boardId);
+        try {
+            return action.apply(board.repository);
+        } finally {
+            release(board);
+        }
+    }
+
+    private Board acquire(String boardId) {
+        if (!BOARD_ID.matcher(boardId).matches()) {
+            throw new InvalidParameterException("A board id has at most 64 letters, digits, '-' or '_', but was: " + boardId + ".");
+        }
+        while (true) {
+            Board board = boards.computeIfAbsent(boardId, Board::new);
+            synchronized (board) {
+                if (closed) {
+                    throw new IllegalStateException("The boards are closed");
+                }
+                if (board.removed) {
+                    continue;
+                }
+                if (board.repository == null) {
+                    board.repository = load(boardId);
+                }
+                board.active++;
+                return board;
+            }
+        }
+    }
+
+    private void release(Board board) {
+        synchronized (board) {
+            board.active--;
+            board.lastUsed = System.currentTimeMillis();
+            if (board.active == 0) {
+                // close may be waiting for it
+                board.notifyAll();
+            }
+        }
+    }
+
+    private WidgetRepository load(String boardId) {
+        WidgetRepository repository = factory.get();
+        repository.initSequence();
+        if (dir == null) {
+            return repository;
+        }
+        try {
+            Path file = file(boardId);
+            WidgetCheckpoint checkpoint = WidgetCheckpoint.load(file, repository);
+            repository.initSequence(checkpoint.lastId);
+            return repository;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Path file(String boardId) {
+        return dir.resolve(boardId + ".checkpoint");
+    }
+
+    /* evicts the boards not used for idleTimeoutMillis at the given time */
+    void evictIdle(long now) {
+        for (Board board : boards.values()) {
+            synchronized (board) {
+                if (board.active > 0 || board.repository == null || now - board.lastUsed < idleTimeoutMillis) {
+                    continue;
+                }
+                evict(board);
+            }
+        }
+    }
+
+    /*
+    ** removes the board from the registry once written, the next request loads it again.
+    ** This function has to be used holding the monitor of the board.
+    */
+    private void evict(Board board) {
+        try {
+            if (board.repository.size() == 0) {
+                if (dir != null) {
+                    Files.deleteIfExists(file(board.id));
+                }
+            } else if (dir != null) {
+                WidgetCheckpoint.write(file(board.id), 0, board.repository.lastId(), board.repository);
+            } else {
+                // nowhere to write it
+                return;
+            }
+            board.repository = null;
+            board.removed = true;
+            boards.remove(board.id, board);
+        } catch (IOException e) {
+            // kept in memory, written again at the next eviction
+            LOG.error("Cannot write the board {}", board.id, e);
+        }
+    }
+
+    /* the boards in memory */
+    public int size() {
+        int size = 0;
+        for (Board board : boards.values()) {
+            synchronized (board) {
+                if (board.repository != null) {
+                    size++;
+                }
+            }
+        }
+        return size;
+    }
+
+    /*
+    ** refuses the next requests and writes the boards still in memory, each one once the requests running on it have
+    ** returned (at most CLOSE_TIMEOUT_MILLIS). Called by Spring when the application stops.
+    */
+    @Override
+    public void close() {
+        closed = true;
+        evictor.shutdownNow();
+        try {
+            evictor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MILLIS;
+        for (Board board : boards.values()) {
+            synchronized (board) {
+                awaitIdle(board, deadline);
+                if (board.repository != null) {
+                    evict(board);
+                }
+            }
+        }
+    }
+
+    /* This function has to be used holding the monitor of the board */
+    private void awaitIdle(Board board, long deadline) {
+        try {
+            for (long left = deadline - System.currentTimeMillis(); board.active > 0 && left > 0;
+                    left = deadline - System.currentTimeMillis()) {
+                board.wait(left);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (board.active > 0) {
+            LOG.warn("The board {} is written while {} requests are still running on it", board.id, board.active);
+        }
+    }
+}
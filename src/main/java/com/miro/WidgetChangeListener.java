@@ -0,0 +1,15 @@
+package com.miro;
+
+import com.miro.entities.WidgetChange;
+
+/*
+** Receives the changes of the widgets made by a repository (see WidgetRepository.setChangeListener), e.g. the change
+** feed. The repository calls it inside the critical section that applies the change, once the change is visible to
+** the readers: the changes that move widgets in the z-order, or change the same widget, are received in the order
+** they are applied. It has to return quickly and must not use the repository.
+*/
+@FunctionalInterface
+public interface WidgetChangeListener {
+
+    void changed(WidgetChange change);
+}
@@ -0,0 +1,147 @@
+package com.miro;
+
+import com.miro.entities.Widget;
+import com.miro.index.SlotWidgetStore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.SortedSet;
+import java.util.zip.CRC32;
+
+/*
+** Binary image of all the widgets of a repository, taken at the end of a segment of the write-ahead log:
+** at startup the checkpoint is loaded and only the segments that follow it are replayed.
+** Layout (little endian): header (magic, format, last segment included, last id assigned), one record of
+** RECORD_SIZE bytes per widget in z-index order (id, x, y, width, height, z-index, modification date in epoch
+** microseconds), trailer (number of widgets, CRC32 of header and records).
+** The file is read through memory mappings, without copying it to the heap.
+** A new checkpoint is written to a temporary file and renamed, so there is always a complete one.
+*/
+final class WidgetCheckpoint {
+
+    private static final int MAGIC = 0x57434b50;
+    private static final int FORMAT = 2;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8;
+    private static final int RECORD_SIZE = 8 + 5 * 4 + 8;
+    private static final int TRAILER_SIZE = 8 + 4;
+    /* records per mapping, a mapping cannot exceed 2 GB */
+    private static final int RECORDS_PER_MAPPING = (1 << 30) / RECORD_SIZE;
+    /* widgets read from the repository at a time while writing */
+    private static final int PAGE_SIZE = 10000;
+
+    static final WidgetCheckpoint EMPTY = new WidgetCheckpoint(0, 0, 0);
+
+    /* the last segment of the log included, the following ones have to be replayed */
+    final long lastSegment;
+    final long lastId;
+    final long count;
+
+    private WidgetCheckpoint(long lastSegment, long lastId, long count) {
+        this.lastSegment = lastSegment;
+        this.lastId = lastId;
+        this.count = count;
+    }
+
+    static Path file(Path base) {
+        return base.resolveSibling(base.getFileName() + ".checkpoint");
+    }
+
+    /* writes the widgets of the repository (that must not change meanwhile) */
+    static WidgetCheckpoint write(Path file, long lastSegment, long lastId, WidgetRepository repository) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        CRC32 crc = new CRC32();
+        long count = 0;
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + PAGE_SIZE * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(FORMAT).putLong(lastSegment).putLong(lastId);
+            for (int page = 1; ; page++) {
+                SortedSet<Widget> widgets = repository.findAll(PAGE_SIZE, page);
+                for (Widget widget : widgets) {
+                    buffer.putLong(widget.getId()).putInt(widget.getX()).putInt(widget.getY())
+                            .putInt(widget.getWidth()).putInt(widget.getHeight()).putInt(widget.getzIndex())
+                            .putLong(SlotWidgetStore.toMicros(widget.getModificationDate()));
+                }
+                count += widgets.size();
+                write(out, buffer, crc);
+                if (widgets.size() < PAGE_SIZE) {
+                    break;
+                }
+            }
+            buffer.putLong(count).putInt((int) crc.getValue());
+            write(out, buffer, null);
+            out.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return new WidgetCheckpoint(lastSegment, lastId, count);
+    }
+
+    private static void write(FileChannel out, ByteBuffer buffer, CRC32 crc) throws IOException {
+        buffer.flip();
+        if (crc != null) {
+            crc.update(buffer.array(), 0, buffer.limit());
+        }
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /* saves the widgets of the checkpoint in the repository, EMPTY if there is no checkpoint */
+    static WidgetCheckpoint load(Path file, WidgetRepository repository) throws IOException {
+        if (!Files.exists(file)) {
+            return EMPTY;
+        }
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = in.size();
+            if (size < HEADER_SIZE + TRAILER_SIZE) {
+                throw new IOException("Checkpoint truncated: " + file);
+            }
+            ByteBuffer header = in.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer trailer = in.map(FileChannel.MapMode.READ_ONLY, size - TRAILER_SIZE, TRAILER_SIZE)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != FORMAT) {
+                throw new IOException("Not a checkpoint of the widgets: " + file);
+            }
+            long lastSegment = header.getLong(8);
+            long lastId = header.getLong(16);
+            long count = trailer.getLong(0);
+            if (size != HEADER_SIZE + count * RECORD_SIZE + TRAILER_SIZE) {
+                throw new IOException("Checkpoint truncated: " + file);
+            }
+            // the CRC is verified before any widget is saved
+            CRC32 crc = new CRC32();
+            crc.update(header);
+            for (long first = 0; first < count; first += RECORDS_PER_MAPPING) {
+                crc.update(map(in, first, Math.min(RECORDS_PER_MAPPING, count - first)));
+            }
+            if ((int) crc.getValue() != trailer.getInt(8)) {
+                throw new IOException("Checkpoint corrupted: " + file);
+            }
+            for (long first = 0; first < count; first += RECORDS_PER_MAPPING) {
+                MappedByteBuffer records = map(in, first, Math.min(RECORDS_PER_MAPPING, count - first));
+                records.order(ByteOrder.LITTLE_ENDIAN);
+                while (records.hasRemaining()) {
+                    long id = records.getLong();
+                    // in z-index order: every widget is saved on top, nothing is shifted
+                    Widget widget = new Widget(records.getInt(), records.getInt(), records.getInt(), records.getInt(),
+                            records.getInt());
+                    widget.setId(id);
+                    WidgetClock.at(SlotWidgetStore.fromMicros(records.getLong()), () -> repository.save(widget));
+                }
+            }
+            return new WidgetCheckpoint(lastSegment, lastId, count);
+        }
+    }
+
+    private static MappedByteBuffer map(FileChannel in, long first, long records) throws IOException {
+        return in.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + first * RECORD_SIZE, records * RECORD_SIZE);
+    }
+}
@@ -0,0 +1,30 @@
+package com.miro;
+
+import java.time.LocalDateTime;
+
+/*
+** The modification date given by the repositories to the widgets they save or shift: the current time, unless
+** a change is replayed with the date it was made at (see WidgetJournaledRepository), for the thread replaying it.
+*/
+final class WidgetClock {
+
+    private static final ThreadLocal<LocalDateTime> REPLAYED = new ThreadLocal<>();
+
+    private WidgetClock() {
+    }
+
+    static LocalDateTime now() {
+        LocalDateTime replayed = REPLAYED.get();
+        return replayed != null ? replayed : LocalDateTime.now();
+    }
+
+    /* applies the change with the given modification date, the current time if null */
+    static void at(LocalDateTime date, Runnable change) {
+        REPLAYED.set(date);
+        try {
+            change.run();
+        } finally {
+            REPLAYED.remove();
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package com.miro;
+
+import com.miro.entities.Point;
+import com.miro.entities.Widget;
+import com.miro.entities.WidgetBatch;
+import com.miro.entities.WidgetChange;
+import com.miro.index.ColumnarWidgetStore;
+import com.miro.index.SlotWidgetStore;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+
+/*
+** Repository storing the widgets by column, in primitive arrays indexed by slot (see ColumnarWidgetStore):
+** no object per widget is kept, the widgets are created only when they are returned, so the caller
+** always gets its own copy. A query by area walks the area index kept in the same columns.
+** Suited to large boards with a memory budget, the same lock scheme as WidgetMainRepository.
+*/
+public class WidgetColumnarRepository implements WidgetRepository {
+
+    private final StampedLock sl = new StampedLock();
+    private final SlotWidgetStore widgets;
+    private final AtomicLong sequence = new AtomicLong();
+    private volatile long version;
+    /* receives the changes while the write lock is held, null if none (see setChangeListener) */
+    private volatile WidgetChangeListener listener;
+
+    public WidgetColumnarRepository() {
+        this(new ColumnarWidgetStore());
+    }
+
+    /* the layout of the widgets in memory is defined by the store (see WidgetOffHeapRepository) */
+    protected WidgetColumnarRepository(SlotWidgetStore widgets) {
+        this.widgets = widgets;
+    }
+
+    @Override
+    public void save(Widget widget) {
+        long stamp = sl.writeLock();
+        try {
+            saveInternal(widget, listener);
+        } finally {
+            sl.unlockWrite(stamp);
+        }
+    }
+
+    /* This function has to be used while holding the write lock, the changes are passed to the listener if not null */
+    private void saveInternal(Widget widget, WidgetChangeListener listener) {
+        if (widget.getzIndex() == null) {
+            widget.setzIndex(getNextZIndex());
+        }
+        // the Id is already set in case of update
+        if (widget.getId() == null) {
+            widget.setId(sequence.incrementAndGet());
+        }
+        widget.setModificationDate(WidgetClock.now());
+        int shifted = widgets.insert(widget);
+        version++;
+        if (listener != null) {
+            if (shifted > 0) {
+                listener.changed(WidgetChange.shift(widget.getzIndex()));
+            }
+            listener.changed(WidgetChange.insert(widget));
+        }
+    }
+
+    @Override
+    public void update(Widget widget, Widget newWidget) {
+        long stamp = sl.writeLock();
+        try {
+            WidgetChangeListener listener = this.listener;
+            Widget stored = listener == null ? null : widgets.materialize(widget.getId());
+            widgets.remove(widget.getId());
+            if (stored != null && stored.getzIndex().equals(newWidget.getzIndex())) {
+                // the z-order does not change
+                saveInternal(newWidget, null);
+                listener.changed(WidgetChange.update(newWidget));
+            } else {
+                // removed first: the previous version of the widget may be in the sequence to shift
+                if (stored != null) {
+                    listener.changed(WidgetChange.delete(stored));
+                }
+                saveInternal(newWidget, listener);
+            }
+        } finally {
+            sl.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void applyBatch(WidgetBatch batch) {
+        long stamp = sl.writeLock();
+        try {
+            WidgetChangeListener listener = this.listener;
+            for (long id : batch.getDelete()) {
+                if (removeInternal(id, listener)) {
+                    version++;
+                }
+            }
+            for (Widget widget : batch.getUpdate()) {
+                removeInternal(widget.getId(), listener);
+            }
+            for (Widget widget : batch.getUpdate()) {
+                saveInternal(widget, listener);
+            }
+            for (Widget widget : batch.getCreate()) {
+                saveInternal(widget, listener);
+            }
+            // the widgets saved later in the batch may have shifted the ones saved before
+            for (List<Widget> saved : List.of(batch.getUpdate(), batch.getCreate())) {
+                for (Widget widget : saved) {
+                    Widget stored = widgets.materialize(widget.getId());
+                    widget.setzIndex(stored.getzIndex());
+                    widget.setModificationDate(stored.getModificationDate());
+                }
+            }
+        } finally {
+            sl.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public Optional<Widget> findById(long id) {
+        return Optional.ofNullable(findByIdOrNull(id));
+    }
+
+    @Override
+    public Widget findByIdOrNull(long id) {
+        Widget widget;
+        // acquire read lock only if the optimistic read "failed"
+        long stamp = sl.tryOptimisticRead();
+        widget = widgets.materialize(id);
+        if (!sl.validate(stamp)) {
+            stamp = sl.readLock();
+            try {
+                widget = widgets.materialize(id);
+            } finally {
+                sl.unlockRead(stamp);
+            }
+        }
+        return widget;
+    }
+
+    @Override
+    public SortedSet<Widget> findAll(Integer page_size, Integer page_num) {
+        return findAll(page_size, page_num, null, null);
+    }
+
+    @Override
+    public SortedSet<Widget> findAllInRectangle(Point lowerLeft, Point upperRight) {
+        if (lowerLeft == null || upperRight == null) {
+            return findAll(null, null, null, null);
+        }
+        // This return set is ordered by zIndex (natural order of Widget)
+        SortedSet<Widget> ret = new TreeSet<>();
+        long stamp = sl.readLock();
+        try {
+            widgets.collectInRectangle(lowerLeft.getX(), lowerLeft.getY(), upperRight.getX(), upperRight.getY(), ret);
+        } finally {
+            sl.unlockRead(stamp);
+        }
+        return ret;
+    }
+
+    @Override
+    public SortedSet<Widget> findAll(Integer page_size, Integer page_num, Point lowerLeft, Point upperRight) {
+        boolean pageFilter = page_num != null && page_size != null;
+        boolean areaFilter = lowerLeft != null && upperRight != null;
+        if (areaFilter) {
+            SortedSet<Widget> inArea = findAllInRectangle(lowerLeft, upperRight);
+            return pageFilter ? page(inArea, page_size, page_num) : inArea;
+        }
+
+        SortedSet<Widget> ret = new TreeSet<>();
+        long stamp = sl.readLock();
+        try {
+            if (!pageFilter) {
+                widgets.collect(0, Integer.MAX_VALUE, ret);
+                return ret;
+            }
+            int begin = (page_num * page_size) - page_size;
+            if (begin > widgets.size()) {
+                /* returns an empty set if the requested page is greater than total number of pages */
+                return Collections.emptySortedSet();
+            }
+            /* seeks directly to the first widget of the page */
+            widgets.collect(begin, page_size, ret);
+        } finally {
+            sl.unlockRead(stamp);
+        }
+        return ret;
+    }
+
+    private SortedSet<Widget> page(SortedSet<Widget> widgets, int page_size, int page_num) {
+        int begin = (page_num * page_size) - page_size;
+        int end = page_num * page_size;
+        SortedSet<Widget> ret = new TreeSet<>();
+        int count = 0;
+        for (Widget widget : widgets) {
+            if (count >= end) {
+                break;
+            }
+            if (count >= begin) {
+                ret.add(widget);
+            }
+            count++;
+        }
+        return ret;
+    }
+
+    /* keyset pagination: seeks to the given z-index instead of counting the widgets that come before */
+    @Override
+    public SortedSet<Widget> findAllAfter(int zIndex, int size) {
+        return findAllAfter(zIndex, size, null, null);
+    }
+
+    @Override
+    public SortedSet<Widget> findAllAfter(int zIndex, int size, Point lowerLeft, Point upperRight) {
+        SortedSet<Widget> ret = new TreeSet<>();
+        long stamp = sl.readLock();
+        try {
+            if (lowerLeft != null && upperRight != null) {
+                widgets.collectAfter(zIndex, size, lowerLeft.getX(), lowerLeft.getY(), upperRight.getX(),
+                        upperRight.getY(), ret);
+            } else {
+                widgets.collectAfter(zIndex, size, ret);
+            }
+        } finally {
+            sl.unlockRead(stamp);
+        }
+        return ret;
+    }
+
+    @Override
+    public void deleteById(long id) {
+        long stamp = sl.writeLock();
+        try {
+            /* does nothing if the widget does not exist */
+            if (removeInternal(id, listener)) {
+                version++;
+            }
+        } finally {
+            sl.unlockWrite(stamp);
+        }
+    }
+
+    /*
+    ** This function has to be used while holding the write lock, returns false if the widget does not exist.
+    ** The change is passed to the listener if not null.
+    */
+    private boolean removeInternal(long id, WidgetChangeListener listener) {
+        Widget stored = listener == null ? null : widgets.materialize(id);
+        if (!widgets.remove(id)) {
+            return false;
+        }
+        if (listener != null) {
+            listener.changed(WidgetChange.delete(stored));
+        }
+        return true;
+    }
+
+    /* This function has to be used holding the write lock */
+    private int getNextZIndex() {
+        int ret;
+        try {
+            ret = widgets.lastZIndex() + 1;
+        } catch (NoSuchElementException e) {
+            ret = 1;
+        }
+        return ret;
+    }
+
+    @Override
+    public void initSequence() {
+        sequence.set(0);
+    }
+
+    @Override
+    public void initSequence(long lastId) {
+        sequence.set(lastId);
+    }
+
+    @Override
+    public long lastId() {
+        return sequence.get();
+    }
+
+    @Override
+    public int size() {
+        long stamp = sl.readLock();
+        try {
+            return widgets.size();
+        } finally {
+            sl.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public long version() {
+        return version;
+    }
+
+    @Override
+    public void clear() {
+        long stamp = sl.writeLock();
+        try {
+            widgets.clear();
+            version++;
+            WidgetChangeListener listener = this.listener;
+            if (listener != null) {
+                listener.changed(WidgetChange.clear());
+            }
+        } finally {
+            sl.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void setChangeListener(WidgetChangeListener listener) {
+        this.listener = listener;
+    }
+}
@@ -1,33 +1,80 @@
 package com.miro;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import com.miro.entities.Point;
 import com.miro.entities.Widget;
+import com.miro.entities.WidgetBatch;
+import com.miro.entities.WidgetChange;
+import com.miro.entities.WidgetClusters;
+import com.miro.entities.WidgetDelta;
+import com.miro.index.WidgetTilePyramid;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.security.InvalidParameterException;
-import java.util.Optional;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.SortedSet;
 
 @RestController
+@Profile("!reactive")
 public class WidgetController {
 
     private static final int MAX_PAGE_SIZE = 500;
+    private static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+    public static final String APPLICATION_NDJSON = "application/x-ndjson";
+    /* widgets read from the repository at a time while streaming */
+    private static final int STREAM_CHUNK_SIZE = 1000;
+    private static final int MAX_BATCH_SIZE = 1000;
+    /* a stream of changes ends after this time, the client reconnects with the Last-Event-ID */
+    private static final long CHANGES_TIMEOUT_MILLIS = 600_000;
+    private static final int MAX_DELTA_SIZE = 10_000;
+    private static final int MAX_CLUSTERS = 10_000;
 
     @Autowired
     WidgetRepository repository;
     @Autowired
     WidgetUtil utility;
+    /* the mapper of the application, the default one if the controller is created without Spring */
+    @Autowired
+    ObjectMapper mapper = Jackson2ObjectMapperBuilder.json().build();
+    @Autowired
+    ChangeFeed changeFeed;
+    /* null if the responses are not kept */
+    @Autowired(required = false)
+    WidgetResponseCache responseCache;
+    /* null if the clusters are disabled */
+    @Autowired(required = false)
+    WidgetTilePyramid tilePyramid;
 
     WidgetController(WidgetRepository repository, WidgetUtil utility) {
         this.repository = repository;
@@ -39,17 +86,27 @@ public class WidgetController {
         return "Greetings from the Widget Controller!";
     }
 
-    /* pass the size/page params because a REST Api does not keep the state */
+    /*
+    ** pass the size/page params because a REST Api does not keep the state.
+    ** Alternatively the 'after' cursor, returned with the 'next' link of the previous page, resumes the listing
+    ** where the previous page ended: pages do not skip or repeat widgets when other widgets are created meanwhile.
+    ** The response is tagged with the version of the repository: nothing is read while the widgets are unchanged.
+    */
     @GetMapping("/widgets")
-    public ResponseEntity<SortedSet<Widget>> getAllWidgets(@RequestParam(required = false) Integer size,
+    public ResponseEntity<byte[]> getAllWidgets(@RequestParam(required = false) Integer size,
             @RequestParam(required = false) Integer page, @RequestParam(required = false) Point lowerLeft,
-            @RequestParam(required = false) Point upperRight) {
+            @RequestParam(required = false) Point upperRight, @RequestParam(required = false) String after,
+            WebRequest request) throws IOException {
         SortedSet<Widget> widgets;
-
-        if (size == null && page == null && lowerLeft != null && upperRight != null) {
-            widgets = repository.findAllInRectangle(lowerLeft, upperRight);
-        } else {
-            int page_size;
+        int page_size = 0;
+        /* read before the widgets: a change made meanwhile makes the cursor re-check the position of its widget */
+        long version = repository.version();
+        long feedVersion = feedVersion();
+        if (request.checkNotModified(WidgetETag.of(version))) {
+            return null;
+        }
+        boolean areaOnly = size == null && page == null && after == null && lowerLeft != null && upperRight != null;
+        if (!areaOnly) {
             if (size == null) {
                 page_size = 10;
             } else {
@@ -64,18 +121,273 @@ public class WidgetController {
             if (page != null && page <= 0) {
                 throw new InvalidParameterException("The requested 'page' must be greater than zero, but was: " + page + ".");
             }
+            if (after != null && (page != null || lowerLeft != null || upperRight != null)) {
+                throw new InvalidParameterException("The 'after' cursor cannot be combined with 'page', 'lowerLeft' or 'upperRight'.");
+            }
+        }
+        boolean paged = after != null || (page != null && lowerLeft == null && upperRight == null);
+
+        /* the pages and the areas are kept rendered, the cursors move on with the widgets */
+        String key = null;
+        long cacheVersion = 0;
+        Integer pageSize = page != null ? page_size : null;
+        if (responseCache != null && after == null) {
+            key = WidgetResponseCache.key(pageSize, page, lowerLeft, upperRight);
+            WidgetResponseCache.Response cached = responseCache.get(key);
+            if (cached != null) {
+                return respond(cached, paged, page_size);
+            }
+            cacheVersion = responseCache.version();
+        }
+
+        if (areaOnly) {
+            widgets = repository.findAllInRectangle(lowerLeft, upperRight);
+        } else if (after != null) {
+            widgets = repository.findAllAfter(WidgetCursor.decode(after).resumeZIndex(repository, changeFeed), page_size);
+        } else {
             widgets = repository.findAll(page_size, page, lowerLeft, upperRight);
         }
-        return ResponseEntity.ok().body(widgets);
+
+        String cursor = paged && widgets.size() == page_size ? WidgetCursor.of(widgets.last(), version, feedVersion).encode() : null;
+        WidgetResponseCache.Response response = new WidgetResponseCache.Response(mapper.writeValueAsBytes(widgets), cursor);
+        if (key != null) {
+            responseCache.put(key, cacheVersion, widgets, pageSize, lowerLeft, upperRight, response);
+        }
+        return respond(response, paged, page_size);
+    }
+
+    /* the counters of the responses kept (see WidgetResponseCache) */
+    @GetMapping("/widgets/cache")
+    public Map<String, Number> getResponseCacheStats() {
+        if (responseCache == null) {
+            return Map.of("size", 0);
+        }
+        Map<String, Number> stats = new LinkedHashMap<>();
+        stats.put("size", responseCache.size());
+        stats.put("hits", responseCache.hits());
+        stats.put("misses", responseCache.misses());
+        stats.put("hitRate", responseCache.hitRate());
+        stats.put("invalidations", responseCache.invalidations());
+        stats.put("evictions", responseCache.evictions());
+        return stats;
+    }
+
+    private ResponseEntity<byte[]> respond(WidgetResponseCache.Response response, boolean paged, int page_size) {
+        ResponseEntity.BodyBuilder builder = ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON);
+        if (paged && response.getCursor() != null) {
+            String next = ServletUriComponentsBuilder.fromCurrentRequest()
+                    .replaceQueryParam("page")
+                    .replaceQueryParam("size", page_size)
+                    .replaceQueryParam("after", response.getCursor())
+                    .toUriString();
+            builder.header(HttpHeaders.LINK, "<" + next + ">; rel=\"next\"")
+                   .header(NEXT_CURSOR_HEADER, response.getCursor());
+        }
+        return builder.body(response.getBody());
+    }
+
+    /*
+    ** delta sync: the changes following the version 'since' (see WidgetDelta), at most MAX_DELTA_SIZE, the client asks
+    ** again from the version returned until it gets fewer. If they are not retained anymore, all the widgets are returned
+    ** instead, copied holding the lock of the change feed so that they are exactly at the version returned.
+    */
+    @GetMapping(value = "/widgets", params = "since")
+    public WidgetDelta getWidgetsSince(@RequestParam long since) {
+        if (since < 0) {
+            throw new InvalidParameterException("The version 'since' cannot be negative, but was: " + since + ".");
+        }
+        List<WidgetChange> changes = changeFeed.read(since, MAX_DELTA_SIZE);
+        if (changes != null) {
+            return WidgetDelta.of(since, changes);
+        }
+        changeFeed.lock();
+        try {
+            List<Widget> widgets = new ArrayList<>(repository.size());
+            // the stored widgets may be shifted once the lock is released
+            for (Widget widget : repository.findAll(null, null)) {
+                widgets.add(new Widget(widget));
+            }
+            return WidgetDelta.reset(changeFeed.version(), widgets);
+        } finally {
+            changeFeed.unlock();
+        }
+    }
+
+    /*
+    ** the level of detail of a zoomed-out view: at most 'maxWidgets' items, whatever the number of widgets in the area
+    ** (the whole board without it). If the area has more widgets, they are aggregated by the tiles of the deepest level
+    ** of the tile pyramid with at most 'maxWidgets' tiles overlapping it (see WidgetTilePyramid); otherwise the widgets
+    ** that fall entirely into the area are returned, as without 'maxWidgets'. Tagged with the version as the list is.
+    */
+    @GetMapping(value = "/widgets", params = "maxWidgets")
+    public ResponseEntity<WidgetClusters> getWidgetClusters(@RequestParam int maxWidgets,
+            @RequestParam(required = false) Point lowerLeft, @RequestParam(required = false) Point upperRight,
+            WebRequest request) {
+        if (tilePyramid == null) {
+            throw new InvalidParameterException("The clusters are disabled, 'maxWidgets' is not supported.");
+        }
+        if (maxWidgets <= 0 || maxWidgets > MAX_CLUSTERS) {
+            throw new InvalidParameterException("'maxWidgets' must be between 1 and " + MAX_CLUSTERS + ", but was: " + maxWidgets + ".");
+        }
+        if ((lowerLeft == null) != (upperRight == null)) {
+            throw new InvalidParameterException("Both 'lowerLeft' and 'upperRight' are needed to cluster an area.");
+        }
+        if (request.checkNotModified(WidgetETag.of(repository.version()))) {
+            return null;
+        }
+        WidgetClusters clusters = tilePyramid.cluster(lowerLeft, upperRight, maxWidgets);
+        if (clusters.getCount() <= maxWidgets) {
+            SortedSet<Widget> widgets = lowerLeft == null ? repository.findAll(null, null)
+                    : repository.findAllInRectangle(lowerLeft, upperRight);
+            // unless widgets have been added meanwhile
+            if (widgets.size() <= maxWidgets) {
+                clusters = WidgetClusters.widgets(new ArrayList<>(widgets));
+            }
+        }
+        return ResponseEntity.ok().body(clusters);
+    }
+
+    /*
+    ** streams all the widgets (those in the area, if given) as newline-delimited JSON, one widget per line in z-index
+    ** order. The widgets are read in chunks of STREAM_CHUNK_SIZE and written as they are read, the memory used does not
+    ** depend on the number of widgets.
+    */
+    @GetMapping(value = "/widgets", produces = APPLICATION_NDJSON)
+    public void streamAllWidgets(@RequestParam(required = false) Point lowerLeft,
+            @RequestParam(required = false) Point upperRight, HttpServletResponse response) throws IOException {
+        checkArea(lowerLeft, upperRight);
+        response.setContentType(APPLICATION_NDJSON);
+        ObjectWriter writer = mapper.writerFor(Widget.class).without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        try (JsonGenerator generator = mapper.getFactory().createGenerator(response.getOutputStream())) {
+            stream(lowerLeft, upperRight, widgets -> {
+                for (Widget widget : widgets) {
+                    writer.writeValue(generator, widget);
+                    generator.writeRaw('\n');
+                }
+                generator.flush();
+            });
+        }
+    }
+
+    /* same as streamAllWidgets, in the binary records of WidgetBinaryFormat: no JSON is produced */
+    @GetMapping(value = "/widgets", produces = WidgetBinaryFormat.MEDIA_TYPE)
+    public void streamAllWidgetsBinary(@RequestParam(required = false) Point lowerLeft,
+            @RequestParam(required = false) Point upperRight, HttpServletResponse response) throws IOException {
+        checkArea(lowerLeft, upperRight);
+        response.setContentType(WidgetBinaryFormat.MEDIA_TYPE);
+        OutputStream out = response.getOutputStream();
+        ByteBuffer buffer = WidgetBinaryFormat.allocate(STREAM_CHUNK_SIZE);
+        stream(lowerLeft, upperRight, widgets -> {
+            buffer.clear();
+            WidgetBinaryFormat.write(widgets, buffer);
+            out.write(buffer.array(), 0, buffer.position());
+            out.flush();
+        });
+    }
+
+    private static void checkArea(Point lowerLeft, Point upperRight) {
+        if ((lowerLeft == null) != (upperRight == null)) {
+            throw new InvalidParameterException("Both 'lowerLeft' and 'upperRight' are needed to stream an area.");
+        }
+    }
+
+    /* writes a chunk of widgets to the response */
+    private interface ChunkWriter {
+        void write(SortedSet<Widget> widgets) throws IOException;
+    }
+
+    /*
+    ** passes all the widgets to the writer, in chunks of STREAM_CHUNK_SIZE in z-index order. Every chunk resumes after
+    ** the last widget of the previous one, as the 'after' cursor does: a widget shifted meanwhile is neither skipped
+    ** nor repeated.
+    */
+    private void stream(Point lowerLeft, Point upperRight, ChunkWriter writer) throws IOException {
+        WidgetCursor cursor = null;
+        while (true) {
+            long version = repository.version();
+            long feedVersion = feedVersion();
+            int zIndex = cursor == null ? Integer.MIN_VALUE : cursor.resumeZIndex(repository, changeFeed);
+            SortedSet<Widget> widgets = repository.findAllAfter(zIndex, STREAM_CHUNK_SIZE, lowerLeft, upperRight);
+            writer.write(widgets);
+            if (widgets.size() < STREAM_CHUNK_SIZE) {
+                return;
+            }
+            cursor = WidgetCursor.of(widgets.last(), version, feedVersion);
+        }
+    }
+
+    /* the version of the change feed, 0 if the controller is created without Spring and without feed */
+    private long feedVersion() {
+        return changeFeed == null ? 0 : changeFeed.version();
+    }
+
+    /*
+    ** pushes the changes of the widgets as server-sent events (see WidgetChange): the id of an event is the version of
+    ** the change, its name the type of the change. The changes following the version 'since' (or the Last-Event-ID of
+    ** a client that reconnects) are sent first; if they are not retained anymore a 'reset' event is sent and the stream
+    ** ends, the client has to read the widgets again. Without a version, the first event ('version') has the current one.
+    */
+    @GetMapping(value = "/widgets/changes", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamChanges(@RequestParam(required = false) Long since,
+            @RequestHeader(value = "Last-Event-ID", required = false) Long lastEventId) throws IOException {
+        Long after = lastEventId != null ? lastEventId : since;
+        SseEmitter emitter = new SseEmitter(CHANGES_TIMEOUT_MILLIS);
+        if (after == null) {
+            after = changeFeed.version();
+            emitter.send(SseEmitter.event().name("version").id(String.valueOf(after)).data(after));
+        }
+        ChangeSubscriber subscriber = new ChangeSubscriber(emitter, changeFeed);
+        // also called on timeout and on error
+        emitter.onCompletion(() -> changeFeed.unsubscribe(subscriber));
+        changeFeed.subscribe(after, subscriber);
+        return emitter;
+    }
+
+    /* writes the changes to the stream of a client, on a delivery thread of the change feed */
+    private static final class ChangeSubscriber implements ChangeFeed.Subscriber {
+        private final SseEmitter emitter;
+        private final ChangeFeed changeFeed;
+
+        ChangeSubscriber(SseEmitter emitter, ChangeFeed changeFeed) {
+            this.emitter = emitter;
+            this.changeFeed = changeFeed;
+        }
+
+        @Override
+        public boolean onChanges(List<WidgetChange> changes) {
+            try {
+                for (WidgetChange change : changes) {
+                    emitter.send(SseEmitter.event().id(String.valueOf(change.getVersion()))
+                            .name(change.getType().name()).data(change, MediaType.APPLICATION_JSON));
+                }
+                return true;
+            } catch (IOException | IllegalStateException e) {
+                // the client is gone, or the stream has ended
+                return false;
+            }
+        }
+
+        @Override
+        public void onLagged() {
+            try {
+                emitter.send(SseEmitter.event().name("reset").data(changeFeed.version()));
+                emitter.complete();
+            } catch (IOException | IllegalStateException e) {
+                // the client is gone
+            }
+        }
     }
 
     @GetMapping("/widgets/{id}")
-    ResponseEntity<Widget> getWidget(@PathVariable long id) {
-        Optional<Widget> widget = repository.findById(id);
-        if(widget.isEmpty()) {
+    ResponseEntity<Widget> getWidget(@PathVariable long id, WebRequest request) {
+        Widget widget = repository.findByIdOrNull(id);
+        if(widget == null) {
             throw new WidgetNotFoundException(id);
         }
-        return ResponseEntity.ok().body(widget.get());
+        if (request.checkNotModified(WidgetETag.of(widget))) {
+            return null;
+        }
+        return ResponseEntity.ok().body(widget);
     }
 
     @PostMapping("/widgets")
@@ -88,16 +400,50 @@ public class WidgetController {
 
     @PutMapping("/widgets/{id}")
     ResponseEntity<Widget> updateWidget(@RequestBody Widget newWidget, @PathVariable long id) {
-        Optional<Widget> widgetOpt = repository.findById(id);
-        if(widgetOpt.isEmpty()) {
+        Widget widget = repository.findByIdOrNull(id);
+        if(widget == null) {
             throw new WidgetNotFoundException(id);
         }
-        Widget widget = widgetOpt.get();
         utility.merge(widget, newWidget);
         repository.update(widget, newWidget);
         return ResponseEntity.ok().body(newWidget);
     }
 
+    /*
+    ** creates, updates and deletes many widgets with one request. The whole batch is validated before any change is
+    ** made, then it is applied at once (see WidgetRepository.applyBatch): the deletes, the updates, the creates.
+    ** The response is the batch with the widgets as saved.
+    */
+    @PostMapping("/widgets/batch")
+    ResponseEntity<WidgetBatch> applyBatch(@RequestBody WidgetBatch batch) {
+        if (batch.size() > MAX_BATCH_SIZE) {
+            throw new InvalidParameterException("A batch can have at most " + MAX_BATCH_SIZE + " changes, but had: " + batch.size() + ".");
+        }
+        Set<Long> changed = new HashSet<>(batch.getDelete());
+        for (Widget newWidget : batch.getUpdate()) {
+            Long id = newWidget.getId();
+            if (id == null) {
+                throw new InvalidParameterException("Every widget to update needs its 'id'.");
+            }
+            if (!changed.add(id)) {
+                throw new InvalidParameterException("The widget " + id + " is changed more than once in the batch.");
+            }
+            Widget widget = repository.findByIdOrNull(id);
+            if (widget == null) {
+                throw new WidgetNotFoundException(id);
+            }
+            utility.merge(widget, newWidget);
+        }
+        for (Widget newWidget : batch.getCreate()) {
+            if (newWidget.getId() != null) {
+                throw new InvalidParameterException("The 'id' of a new widget is generated, but was: " + newWidget.getId() + ".");
+            }
+            utility.validate(newWidget);
+        }
+        repository.applyBatch(batch);
+        return ResponseEntity.ok().body(batch);
+    }
+
     @DeleteMapping("/widgets/{id}")
     ResponseEntity<?> deleteWidget(@PathVariable long id) {
         repository.deleteById(id);
@@ -0,0 +1,113 @@
+package com.miro;
+
+import com.miro.entities.Widget;
+import com.miro.entities.WidgetChange;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.InvalidParameterException;
+import java.util.Base64;
+import java.util.List;
+
+/*
+** Opaque cursor used to resume the listing of the widgets after the last widget of a page.
+** It holds the z-index and the id of that widget, the version of the repository and the version of the change feed
+** when the page was read: if the repository changed in the meantime, the widget may have been shifted, and its current
+** z-index is used instead. Only a shift is followed: the shifts only ever increase the z-indexes, a widget moved by an
+** update (downwards, or upwards over widgets not listed yet) is not, the listing resumes from the z-index of the cursor.
+*/
+public class WidgetCursor {
+    private static final int ENCODED_LENGTH = Integer.BYTES + Long.BYTES + Long.BYTES + Long.BYTES;
+    /* the changes read from the feed at a time */
+    private static final int CHANGES_CHUNK_SIZE = 1024;
+
+    private final int zIndex;
+    private final long id;
+    private final long version;
+    private final long feedVersion;
+
+    public WidgetCursor(int zIndex, long id, long version, long feedVersion) {
+        this.zIndex = zIndex;
+        this.id = id;
+        this.version = version;
+        this.feedVersion = feedVersion;
+    }
+
+    /* the versions are read before the page */
+    public static WidgetCursor of(Widget last, long version, long feedVersion) {
+        return new WidgetCursor(last.getzIndex(), last.getId(), version, feedVersion);
+    }
+
+    public int getzIndex() {
+        return zIndex;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public long getFeedVersion() {
+        return feedVersion;
+    }
+
+    /*
+    ** the z-index to resume from: if the repository changed since the cursor was created, the last widget may have been
+    ** shifted. It is followed upwards only if the changes published since (the feed may be null) show that it has been
+    ** moved by shifts alone; if they are not retained anymore the listing resumes from the z-index of the cursor, it may
+    ** repeat some widgets but never skips any.
+    */
+    public int resumeZIndex(WidgetRepository repository, ChangeFeed feed) {
+        if (version == repository.version()) {
+            return zIndex;
+        }
+        Widget last = repository.findByIdOrNull(id);
+        if (last == null || last.getzIndex() <= zIndex) {
+            return zIndex;
+        }
+        return feed != null && shiftedOnly(feed) ? last.getzIndex() : zIndex;
+    }
+
+    /* true if the widget of the cursor has been neither removed nor saved again since the version of the feed */
+    private boolean shiftedOnly(ChangeFeed feed) {
+        long after = feedVersion;
+        while (true) {
+            List<WidgetChange> changes = feed.read(after, CHANGES_CHUNK_SIZE);
+            if (changes == null) {
+                return false;
+            }
+            if (changes.isEmpty()) {
+                return true;
+            }
+            for (WidgetChange change : changes) {
+                if (change.getType() == WidgetChange.Type.CLEAR ||
+                        (change.getType() == WidgetChange.Type.DELETE && change.getId() == id)) {
+                    return false;
+                }
+            }
+            after = changes.get(changes.size() - 1).getVersion();
+        }
+    }
+
+    public String encode() {
+        ByteBuffer buffer = ByteBuffer.allocate(ENCODED_LENGTH);
+        buffer.putInt(zIndex).putLong(id).putLong(version).putLong(feedVersion);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(buffer.array());
+    }
+
+    public static WidgetCursor decode(String cursor) {
+        try {
+            byte[] bytes = Base64.getUrlDecoder().decode(cursor);
+            if (bytes.length != ENCODED_LENGTH) {
+                throw new InvalidParameterException("The 'after' cursor is not valid: " + cursor + ".");
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            return new WidgetCursor(buffer.getInt(), buffer.getLong(), buffer.getLong(), buffer.getLong());
+        } catch (IllegalArgumentException | BufferUnderflowException e) {
+            throw new InvalidParameterException("The 'after' cursor is not valid: " + cursor + ".");
+        }
+    }
+}
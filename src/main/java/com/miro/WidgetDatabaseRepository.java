@@ -0,0 +1,592 @@
+package com.miro;
+
+import com.miro.entities.Point;
+import com.miro.entities.Widget;
+import com.miro.entities.WidgetBatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.SortedSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+** Keeps the widgets of a repository in a database table: the repository in memory serves all the reads, the changes
+** are written to the database behind it.
+** - write-behind: the changes are queued, a flusher thread writes them every flushIntervalMillis in one transaction,
+**   with JDBC batches (consecutive changes of the same kind share a batch, the updates of the same widget are
+**   coalesced); a crash loses the changes of the last interval. A transaction that fails is attempted again
+**   MAX_ATTEMPTS times, waiting longer each time, then its changes are written one by one: a change that still fails
+**   is logged and skipped, so the changes behind it are not held forever (flush reports the changes skipped).
+** - otherwise every change is written by the caller, one statement per row (the baseline of the benchmarks).
+** A shift is written as a single range UPDATE of the contiguous sequence of z-indexes, computed by the database.
+** The widgets are loaded from the table when the repository is created.
+*/
+public class WidgetDatabaseRepository implements WidgetRepository, AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WidgetDatabaseRepository.class);
+
+    private static final String[] SCHEMA = {
+            "CREATE TABLE IF NOT EXISTS widget (id BIGINT PRIMARY KEY, x INT NOT NULL, y INT NOT NULL, "
+                    + "width INT NOT NULL, height INT NOT NULL, z_index INT NOT NULL, modification_date TIMESTAMP)",
+            "CREATE INDEX IF NOT EXISTS widget_z_index ON widget (z_index)",
+            /* the last id assigned, the ids of the deleted widgets are not reused after a restart */
+            "CREATE TABLE IF NOT EXISTS widget_sequence (last_id BIGINT NOT NULL)",
+            "INSERT INTO widget_sequence SELECT 0 FROM DUAL WHERE NOT EXISTS (SELECT * FROM widget_sequence)"
+    };
+    private static final String INSERT = "INSERT INTO widget (id, x, y, width, height, z_index, modification_date) "
+            + "VALUES (?, ?, ?, ?, ?, ?, ?)";
+    private static final String UPDATE = "UPDATE widget SET x = ?, y = ?, width = ?, height = ?, z_index = ?, "
+            + "modification_date = ? WHERE id = ?";
+    private static final String DELETE = "DELETE FROM widget WHERE id = ?";
+    /* the end of the contiguous sequence of z-indexes from the given one: the first z-index followed by a gap */
+    private static final String SHIFT_END = "SELECT t.z_index FROM widget t WHERE t.z_index >= ? "
+            + "AND NOT EXISTS (SELECT * FROM widget u WHERE u.z_index = t.z_index + 1) ORDER BY t.z_index LIMIT 1";
+    private static final String SHIFT = "UPDATE widget SET z_index = z_index + 1, modification_date = ? "
+            + "WHERE z_index BETWEEN ? AND ?";
+    private static final String CLEAR = "DELETE FROM widget";
+    private static final String SEQUENCE = "UPDATE widget_sequence SET last_id = GREATEST(last_id, ?)";
+
+    /* the writers wait for the flusher beyond this number of changes queued */
+    private static final int MAX_QUEUED = 100_000;
+    /* attempts of a transaction before its changes are written one by one, the wait doubles after each failure */
+    private static final int MAX_ATTEMPTS = 5;
+
+    private enum Kind { INSERT, UPDATE, DELETE, SHIFT, CLEAR }
+
+    /* a change to write, with the values of the widget when it was made */
+    private static final class Change {
+        final Kind kind;
+        final long id;
+        final int x;
+        final int y;
+        final int width;
+        final int height;
+        final int zIndex;
+        final LocalDateTime modified;
+
+        Change(Kind kind, long id, int zIndex, LocalDateTime modified) {
+            this(kind, id, 0, 0, 0, 0, zIndex, modified);
+        }
+
+        Change(Kind kind, Widget widget) {
+            this(kind, widget.getId(), widget.getX(), widget.getY(), widget.getWidth(), widget.getHeight(),
+                    widget.getzIndex(), widget.getModificationDate());
+        }
+
+        Change(Kind kind, long id, int x, int y, int width, int height, int zIndex, LocalDateTime modified) {
+            this.kind = kind;
+            this.id = id;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.zIndex = zIndex;
+            this.modified = modified;
+        }
+    }
+
+    private final WidgetRepository repository;
+    private final DataSource dataSource;
+    private final boolean writeBehind;
+    private final long flushIntervalMillis;
+    /* the changes are applied in memory and queued in the same order */
+    private final ReentrantLock writeLock = new ReentrantLock();
+    /* guards the queue */
+    private final ReentrantLock queueLock = new ReentrantLock();
+    /* signaled to the flusher to write the changes without waiting for the end of the interval */
+    private final Condition pending = queueLock.newCondition();
+    /* signaled when changes are in the database */
+    private final Condition flushed = queueLock.newCondition();
+    private List<Change> queue = new ArrayList<>();
+    /* number of the changes queued, and of the changes written */
+    private long queued;
+    private long written;
+    /* number of the changes skipped after failing, and of those already reported by flush */
+    private long skipped;
+    private long reported;
+    private SQLException lastFailure;
+    private boolean flushNow;
+    private boolean closed;
+    private final Thread flusher;
+
+    public WidgetDatabaseRepository(WidgetRepository repository, DataSource dataSource, boolean writeBehind,
+                                    long flushIntervalMillis) throws SQLException {
+        this.repository = repository;
+        this.dataSource = dataSource;
+        this.writeBehind = writeBehind;
+        this.flushIntervalMillis = flushIntervalMillis;
+        load();
+        if (writeBehind) {
+            flusher = new Thread(this::flushLoop, "widgets-database-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        } else {
+            flusher = null;
+        }
+    }
+
+    /* creates the tables if needed and saves the widgets of the table in the repository */
+    private void load() throws SQLException {
+        long start = System.nanoTime();
+        long lastId;
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            for (String ddl : SCHEMA) {
+                statement.execute(ddl);
+            }
+            try (ResultSet rs = statement.executeQuery("SELECT last_id FROM widget_sequence")) {
+                rs.next();
+                lastId = rs.getLong(1);
+            }
+            // in z-index order: every widget is saved on top, nothing is shifted
+            try (ResultSet rs = statement.executeQuery("SELECT id, x, y, width, height, z_index, modification_date "
+                    + "FROM widget ORDER BY z_index")) {
+                while (rs.next()) {
+                    Widget widget = new Widget(rs.getInt(2), rs.getInt(3), rs.getInt(4), rs.getInt(5), rs.getInt(6));
+                    widget.setId(rs.getLong(1));
+                    // the widget keeps its modification date (see WidgetClock), the time of the load if it has none
+                    Timestamp modified = rs.getTimestamp(7);
+                    WidgetClock.at(modified == null ? null : modified.toLocalDateTime(), () -> repository.save(widget));
+                }
+            }
+        }
+        repository.initSequence(lastId);
+        LOG.info("{} widgets loaded from the database in {} ms", repository.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    @Override
+    public void save(Widget widget) {
+        writeLock.lock();
+        try {
+            boolean shift = widget.getzIndex() != null && isTaken(widget.getzIndex(), widget.getId());
+            repository.save(widget);
+            List<Change> changes = new ArrayList<>(2);
+            if (shift) {
+                changes.add(new Change(Kind.SHIFT, widget.getId(), widget.getzIndex(), widget.getModificationDate()));
+            }
+            changes.add(new Change(Kind.INSERT, widget));
+            write(changes);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void update(Widget widget, Widget newWidget) {
+        writeLock.lock();
+        try {
+            Widget stored = repository.findByIdOrNull(newWidget.getId());
+            Integer zIndex = newWidget.getzIndex();
+            if (stored != null && stored.getzIndex().equals(zIndex)) {
+                // the z-order does not change
+                repository.update(widget, newWidget);
+                write(List.of(new Change(Kind.UPDATE, newWidget)));
+                return;
+            }
+            boolean shift = zIndex != null && isTaken(zIndex, newWidget.getId());
+            repository.update(widget, newWidget);
+            List<Change> changes = new ArrayList<>(3);
+            if (stored != null) {
+                changes.add(new Change(Kind.DELETE, stored.getId(), 0, null));
+            }
+            if (shift) {
+                changes.add(new Change(Kind.SHIFT, newWidget.getId(), zIndex, newWidget.getModificationDate()));
+            }
+            changes.add(new Change(Kind.INSERT, newWidget));
+            write(changes);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /* true if another widget has the z-index: the save shifts it */
+    private boolean isTaken(int zIndex, Long id) {
+        // the z-index before Integer.MIN_VALUE does not exist: the lowest widget instead
+        SortedSet<Widget> next = zIndex == Integer.MIN_VALUE
+                ? repository.findAll(1, 1) : repository.findAllAfter(zIndex - 1, 1);
+        return !next.isEmpty() && next.first().getzIndex() == zIndex && !next.first().getId().equals(id);
+    }
+
+    /*
+    ** the repository applies the batch at once, it is written as the changes of its parts applied one by one
+    ** (see WidgetBatchZOrder): the deletes, then the shift (if any) and the insert of every widget saved
+    */
+    @Override
+    public void applyBatch(WidgetBatch batch) {
+        writeLock.lock();
+        try {
+            WidgetBatchZOrder zOrder = new WidgetBatchZOrder(repository, batch);
+            repository.applyBatch(batch);
+            List<Change> changes = new ArrayList<>(zOrder.removed().size() + 2 * zOrder.saved().size());
+            for (long id : zOrder.removed()) {
+                changes.add(new Change(Kind.DELETE, id, 0, null));
+            }
+            for (int i = 0; i < zOrder.saved().size(); i++) {
+                Widget widget = zOrder.saved().get(i);
+                if (zOrder.shifts(i)) {
+                    changes.add(new Change(Kind.SHIFT, widget.getId(), zOrder.zIndex(i), widget.getModificationDate()));
+                }
+                changes.add(new Change(Kind.INSERT, widget.getId(), widget.getX(), widget.getY(), widget.getWidth(),
+                        widget.getHeight(), zOrder.zIndex(i), widget.getModificationDate()));
+            }
+            write(changes);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void deleteById(long id) {
+        writeLock.lock();
+        try {
+            repository.deleteById(id);
+            write(List.of(new Change(Kind.DELETE, id, 0, null)));
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        writeLock.lock();
+        try {
+            repository.clear();
+            write(List.of(new Change(Kind.CLEAR, 0, 0, null)));
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /* This function has to be used while holding the write lock */
+    private void write(List<Change> changes) {
+        if (!writeBehind) {
+            try (Connection connection = dataSource.getConnection()) {
+                execute(connection, changes);
+            } catch (SQLException e) {
+                throw new IllegalStateException("The widgets cannot be written to the database", e);
+            }
+            return;
+        }
+        queueLock.lock();
+        try {
+            while (queue.size() >= MAX_QUEUED && !closed && flusher.isAlive()) {
+                flushNow = true;
+                pending.signal();
+                flushed.awaitUninterruptibly();
+            }
+            if (closed) {
+                throw new IllegalStateException("The repository is closed");
+            }
+            queue.addAll(changes);
+            queued += changes.size();
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    /*
+    ** waits until the changes made so far are in the database, throws IllegalStateException if changes had to be
+    ** skipped since the previous flush
+    */
+    public void flush() {
+        if (!writeBehind) {
+            return;
+        }
+        queueLock.lock();
+        try {
+            long target = queued;
+            flushNow = true;
+            pending.signal();
+            while (written < target && flusher.isAlive()) {
+                flushed.awaitUninterruptibly();
+            }
+            if (skipped > reported) {
+                long count = skipped - reported;
+                reported = skipped;
+                throw new IllegalStateException(count + " changes of the widgets could not be written to the database",
+                        lastFailure);
+            }
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    private void flushLoop() {
+        int failures = 0;
+        while (true) {
+            List<Change> changes;
+            boolean last;
+            queueLock.lock();
+            try {
+                // the changes made during the interval are written together, a failed transaction waits longer
+                long nanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis << failures);
+                while (nanos > 0 && !closed && (failures > 0 || !flushNow)) {
+                    nanos = pending.awaitNanos(nanos);
+                }
+                flushNow = false;
+                last = closed;
+                changes = queue;
+                queue = new ArrayList<>();
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                queueLock.unlock();
+            }
+            boolean retry = false;
+            int failed = 0;
+            SQLException failure = null;
+            if (!changes.isEmpty()) {
+                try {
+                    executeInTransaction(changes);
+                    failures = 0;
+                } catch (SQLException e) {
+                    failures++;
+                    if (failures < MAX_ATTEMPTS) {
+                        LOG.warn("The widgets cannot be written to the database, attempt {} of {}", failures,
+                                MAX_ATTEMPTS, e);
+                        retry = true;
+                    } else {
+                        failures = 0;
+                        failure = e;
+                        failed = executeOneByOne(changes);
+                    }
+                }
+            }
+            queueLock.lock();
+            try {
+                if (retry) {
+                    // written again with the changes queued meanwhile, in the same order
+                    changes.addAll(queue);
+                    queue = changes;
+                    continue;
+                }
+                written += changes.size();
+                if (failed > 0) {
+                    skipped += failed;
+                    lastFailure = failure;
+                }
+                flushed.signalAll();
+                if (last) {
+                    return;
+                }
+            } finally {
+                queueLock.unlock();
+            }
+        }
+    }
+
+    private void executeInTransaction(List<Change> changes) throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                execute(connection, changes);
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        }
+    }
+
+    /* isolates the changes that keep failing: each change is its own transaction, returns the number skipped */
+    private int executeOneByOne(List<Change> changes) {
+        int failed = 0;
+        for (Change change : changes) {
+            try {
+                executeInTransaction(List.of(change));
+            } catch (SQLException e) {
+                LOG.error("Change {} of the widget {} skipped, it cannot be written to the database", change.kind,
+                        change.id, e);
+                failed++;
+            }
+        }
+        return failed;
+    }
+
+    /*
+    ** writes the changes in order: a run of changes of the same kind is one JDBC batch,
+    ** in a run of updates only the last update of each widget is written
+    */
+    private void execute(Connection connection, List<Change> changes) throws SQLException {
+        try (PreparedStatement insert = connection.prepareStatement(INSERT);
+             PreparedStatement update = connection.prepareStatement(UPDATE);
+             PreparedStatement delete = connection.prepareStatement(DELETE);
+             PreparedStatement shiftEnd = connection.prepareStatement(SHIFT_END);
+             PreparedStatement shift = connection.prepareStatement(SHIFT);
+             PreparedStatement sequence = connection.prepareStatement(SEQUENCE)) {
+            long maxId = 0;
+            int i = 0;
+            while (i < changes.size()) {
+                Kind kind = changes.get(i).kind;
+                int end = i;
+                while (end < changes.size() && changes.get(end).kind == kind) {
+                    end++;
+                }
+                List<Change> run = changes.subList(i, end);
+                switch (kind) {
+                    case INSERT:
+                        for (Change c : run) {
+                            insert.setLong(1, c.id);
+                            insert.setInt(2, c.x);
+                            insert.setInt(3, c.y);
+                            insert.setInt(4, c.width);
+                            insert.setInt(5, c.height);
+                            insert.setInt(6, c.zIndex);
+                            insert.setTimestamp(7, Timestamp.valueOf(c.modified));
+                            insert.addBatch();
+                            maxId = Math.max(maxId, c.id);
+                        }
+                        insert.executeBatch();
+                        break;
+                    case UPDATE:
+                        Map<Long, Change> latest = new LinkedHashMap<>();
+                        for (Change c : run) {
+                            latest.put(c.id, c);
+                        }
+                        for (Change c : latest.values()) {
+                            update.setInt(1, c.x);
+                            update.setInt(2, c.y);
+                            update.setInt(3, c.width);
+                            update.setInt(4, c.height);
+                            update.setInt(5, c.zIndex);
+                            update.setTimestamp(6, Timestamp.valueOf(c.modified));
+                            update.setLong(7, c.id);
+                            update.addBatch();
+                        }
+                        update.executeBatch();
+                        break;
+                    case DELETE:
+                        for (Change c : run) {
+                            delete.setLong(1, c.id);
+                            delete.addBatch();
+                        }
+                        delete.executeBatch();
+                        break;
+                    case SHIFT:
+                        // every shift depends on the previous one
+                        for (Change c : run) {
+                            shiftEnd.setInt(1, c.zIndex);
+                            try (ResultSet rs = shiftEnd.executeQuery()) {
+                                rs.next();
+                                shift.setTimestamp(1, Timestamp.valueOf(c.modified));
+                                shift.setInt(2, c.zIndex);
+                                shift.setInt(3, rs.getInt(1));
+                            }
+                            shift.executeUpdate();
+                        }
+                        break;
+                    case CLEAR:
+                        try (Statement statement = connection.createStatement()) {
+                            statement.executeUpdate(CLEAR);
+                        }
+                        break;
+                }
+                i = end;
+            }
+            if (maxId > 0) {
+                sequence.setLong(1, maxId);
+                sequence.executeUpdate();
+            }
+        }
+    }
+
+    @Override
+    public Optional<Widget> findById(long id) {
+        return repository.findById(id);
+    }
+
+    @Override
+    public Widget findByIdOrNull(long id) {
+        return repository.findByIdOrNull(id);
+    }
+
+    @Override
+    public SortedSet<Widget> findAll(Integer size, Integer page) {
+        return repository.findAll(size, page);
+    }
+
+    @Override
+    public SortedSet<Widget> findAllInRectangle(Point lowerLeft, Point upperRight) {
+        return repository.findAllInRectangle(lowerLeft, upperRight);
+    }
+
+    @Override
+    public SortedSet<Widget> findAll(Integer size, Integer page, Point lowerLeft, Point upperRight) {
+        return repository.findAll(size, page, lowerLeft, upperRight);
+    }
+
+    @Override
+    public SortedSet<Widget> findAllAfter(int zIndex, int size) {
+        return repository.findAllAfter(zIndex, size);
+    }
+
+    @Override
+    public SortedSet<Widget> findAllAfter(int zIndex, int size, Point lowerLeft, Point upperRight) {
+        return repository.findAllAfter(zIndex, size, lowerLeft, upperRight);
+    }
+
+    @Override
+    public void initSequence() {
+        repository.initSequence();
+    }
+
+    @Override
+    public void initSequence(long lastId) {
+        repository.initSequence(lastId);
+    }
+
+    @Override
+    public long lastId() {
+        return repository.lastId();
+    }
+
+    @Override
+    public int size() {
+        return repository.size();
+    }
+
+    @Override
+    public long version() {
+        return repository.version();
+    }
+
+    @Override
+    public void setChangeListener(WidgetChangeListener listener) {
+        repository.setChangeListener(listener);
+    }
+
+    /* writes the changes queued, called by Spring when the application stops */
+    @Override
+    public void close() {
+        if (!writeBehind) {
+            return;
+        }
+        queueLock.lock();
+        try {
+            closed = true;
+            pending.signal();
+        } finally {
+            queueLock.unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
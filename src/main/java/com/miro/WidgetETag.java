@@ -0,0 +1,38 @@
+package com.miro;
+
+import com.miro.entities.Widget;
+import com.miro.index.SlotWidgetStore;
+
+/*
+** Strong entity tags of the responses, compared with If-None-Match before reading the widgets.
+** A list of widgets is tagged with the version of the repository (read before the widgets, the response is never
+** older than its tag) and the epoch of the process: the versions start again from 0 after a restart.
+** A widget is tagged with a hash of all its fields: every change of a widget, a shift too, sets its modification date.
+*/
+public final class WidgetETag {
+
+    private static final String EPOCH = Long.toString(System.currentTimeMillis(), 36);
+
+    private WidgetETag() {
+    }
+
+    public static String of(long version) {
+        return EPOCH + "-" + Long.toString(version, 36);
+    }
+
+    public static String of(Widget widget) {
+        long h = widget.getId();
+        h = mix(h, widget.getX());
+        h = mix(h, widget.getY());
+        h = mix(h, widget.getWidth());
+        h = mix(h, widget.getHeight());
+        h = mix(h, widget.getzIndex());
+        h = mix(h, SlotWidgetStore.toMicros(widget.getModificationDate()));
+        return Long.toString(widget.getId(), 36) + "-" + Long.toUnsignedString(h, 36);
+    }
+
+    private static long mix(long h, long value) {
+        h = (h ^ value) * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 29);
+    }
+}
@@ -0,0 +1,148 @@
+package com.miro;
+
+import com.miro.entities.Point;
+import com.miro.entities.Widget;
+import com.miro.entities.WidgetBatch;
+
+import java.util.Optional;
+import java.util.SortedSet;
+
+/*
+** Publishes every change of a repository to a change feed (see ChangeFeed): the repository passes its changes to the
+** feed inside its own critical sections (see WidgetChangeListener), so the changes that conflict get their versions
+** in the order they are applied, the others in parallel: publishing takes no lock (see ChangeFeed.publish).
+** A shift is published as a single SHIFT of the z-index taken, the widgets it moves are not listed: a client holding
+** the widgets applies the same rule (see WidgetChange). A batch is published as the changes of its parts applied
+** one by one.
+** The writes hold the shared lock of the feed only, excluded by a reader copying all the widgets at a version
+** (see ChangeFeed.lock). The reads go straight to the repository.
+*/
+public class WidgetFeedRepository implements WidgetRepository, AutoCloseable {
+
+    private final WidgetRepository repository;
+    private final ChangeFeed feed;
+
+    public WidgetFeedRepository(WidgetRepository repository, ChangeFeed feed) {
+        this.repository = repository;
+        this.feed = feed;
+        repository.setChangeListener(feed::publish);
+    }
+
+    @Override
+    public void save(Widget widget) {
+        feed.lockShared();
+        try {
+            repository.save(widget);
+        } finally {
+            feed.unlockShared();
+        }
+    }
+
+    @Override
+    public void update(Widget widget, Widget newWidget) {
+        feed.lockShared();
+        try {
+            repository.update(widget, newWidget);
+        } finally {
+            feed.unlockShared();
+        }
+    }
+
+    @Override
+    public void applyBatch(WidgetBatch batch) {
+        feed.lockShared();
+        try {
+            repository.applyBatch(batch);
+        } finally {
+            feed.unlockShared();
+        }
+    }
+
+    @Override
+    public void deleteById(long id) {
+        feed.lockShared();
+        try {
+            repository.deleteById(id);
+        } finally {
+            feed.unlockShared();
+        }
+    }
+
+    @Override
+    public void clear() {
+        feed.lockShared();
+        try {
+            repository.clear();
+        } finally {
+            feed.unlockShared();
+        }
+    }
+
+    @Override
+    public Optional<Widget> findById(long id) {
+        return repository.findById(id);
+    }
+
+    @Override
+    public Widget findByIdOrNull(long id) {
+        return repository.findByIdOrNull(id);
+    }
+
+    @Override
+    public SortedSet<Widget> findAll(Integer size, Integer page) {
+        return repository.findAll(size, page);
+    }
+
+    @Override
+    public SortedSet<Widget> findAllInRectangle(Point lowerLeft, Point upperRight) {
+        return repository.findAllInRectangle(lowerLeft, upperRight);
+    }
+
+    @Override
+    public SortedSet<Widget> findAll(Integer size, Integer page, Point lowerLeft, Point upperRight) {
+        return repository.findAll(size, page, lowerLeft, upperRight);
+    }
+
+    @Override
+    public SortedSet<Widget> findAllAfter(int zIndex, int size) {
+        return repository.findAllAfter(zIndex, size);
+    }
+
+    @Override
+    public SortedSet<Widget> findAllAfter(int zIndex, int size, Point lowerLeft, Point upperRight) {
+        return repository.findAllAfter(zIndex, size, lowerLeft, upperRight);
+    }
+
+    @Override
+    public void initSequence() {
+        repository.initSequence();
+    }
+
+    @Override
+    public void initSequence(long lastId) {
+        repository.initSequence(lastId);
+    }
+
+    @Override
+    public long lastId() {
+        return repository.lastId();
+    }
+
+    @Override
+    public int size() {
+        return repository.size();
+    }
+
+    @Override
+    public long version() {
+        return repository.version();
+    }
+
+    /* closes the repository below (e.g. the write-ahead log), called by Spring when the application stops */
+    @Override
+    public void close() throws Exception {
+        if (repository instanceof AutoCloseable) {
+            ((AutoCloseable) repository).close();
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package com.miro;
+
+import com.miro.entities.Point;
+import com.miro.entities.Widget;
+import com.miro.entities.WidgetBatch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Optional;
+import java.util.SortedSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+** Makes a repository durable: every change is recorded in a write-ahead log (see WriteAheadLog), and the log is
+** replayed into the repository when it is opened. The changes are logged and then applied in the same order, holding
+** a lock: a change the log refuses is not applied. The ids and the modification dates are assigned before a change is
+** logged, the replay restores them (see WidgetClock) and assigns the same z-indexes (shifts included);
+** the reads go straight to the repository.
+** A checkpoint (see WidgetCheckpoint) keeps the replay short: at startup it is loaded, and only the segments of the log
+** that follow it are replayed. A checkpoint is taken in the background: the writers are only blocked while the log
+** moves to a new segment, then the previous checkpoint and the closed segments are merged into the new one,
+** off the write path, in a separate (columnar) repository.
+*/
+public class WidgetJournaledRepository implements WidgetRepository, AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WidgetJournaledRepository.class);
+    /* memory taken by a widget in the repository of a merge: its slot and its entry by id (see ColumnarWidgetStore) */
+    private static final int MERGE_BYTES_PER_WIDGET = 72 + 32;
+
+    private final WidgetRepository repository;
+    private final Path base;
+    private final WriteAheadLog log;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    /* only one checkpoint at a time */
+    private final ReentrantLock checkpointLock = new ReentrantLock();
+    private final ScheduledExecutorService checkpointer;
+
+    public WidgetJournaledRepository(WidgetRepository repository, Path file, long fsyncIntervalMillis,
+                                     boolean syncWrites) throws IOException {
+        this(repository, file, fsyncIntervalMillis, syncWrites, 0);
+    }
+
+    /* a checkpoint is taken every checkpointIntervalMillis, never if 0 */
+    public WidgetJournaledRepository(WidgetRepository repository, Path file, long fsyncIntervalMillis,
+                                     boolean syncWrites, long checkpointIntervalMillis) throws IOException {
+        this.repository = repository;
+        this.base = file;
+        long start = System.nanoTime();
+        WidgetCheckpoint checkpoint = WidgetCheckpoint.load(WidgetCheckpoint.file(file), repository);
+        long loaded = System.nanoTime();
+        Replay replay = new Replay(repository, checkpoint.lastId);
+        log = new WriteAheadLog(file, checkpoint.lastSegment + 1, fsyncIntervalMillis, syncWrites, replay);
+        repository.initSequence(replay.lastId);
+        long ready = System.nanoTime();
+        LOG.info("Widgets ready in {} ms: {} widgets loaded from the checkpoint in {} ms, {} records of the log replayed in {} ms",
+                TimeUnit.NANOSECONDS.toMillis(ready - start), checkpoint.count, TimeUnit.NANOSECONDS.toMillis(loaded - start),
+                replay.records, TimeUnit.NANOSECONDS.toMillis(ready - loaded));
+        if (checkpointIntervalMillis > 0) {
+            checkpointer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "widgets-checkpoint");
+                thread.setDaemon(true);
+                return thread;
+            });
+            checkpointer.scheduleWithFixedDelay(this::checkpointQuietly, checkpointIntervalMillis,
+                    checkpointIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            checkpointer = null;
+        }
+    }
+
+    /* applies the records of the log to a repository */
+    private static final class Replay implements WriteAheadLog.Replayer {
+        final WidgetRepository repository;
+        /* the highest id found, the sequence of the repository restarts from it */
+        long lastId;
+        long records;
+
+        Replay(WidgetRepository repository, long lastId) {
+            this.repository = repository;
+            this.lastId = lastId;
+        }
+
+        @Override
+        public void apply(byte type, long id, Widget widget) {
+            lastId = Math.max(lastId, id);
+            records++;
+            switch (type) {
+                case WriteAheadLog.SAVE:
+                case WriteAheadLog.SAVE_ON_TOP:
+                    WidgetClock.at(widget.getModificationDate(), () -> repository.save(widget));
+                    break;
+                case WriteAheadLog.UPDATE:
+                    WidgetClock.at(widget.getModificationDate(), () -> repository.update(widget, widget));
+                    break;
+                case WriteAheadLog.DELETE:
+                    repository.deleteById(id);
+                    break;
+                case WriteAheadLog.CLEAR:
+                    repository.clear();
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown record type in the write-ahead log: " + type);
+            }
+        }
+    }
+
+    /*
+    ** writes a new checkpoint with the changes logged so far, then deletes the segments of the log it includes.
+    ** The writers wait only for the records pending to be written. Nothing is done if nothing has been logged since
+    ** the last checkpoint. The merge holds all the widgets in memory, the estimated size is logged.
+    */
+    public void checkpoint() throws IOException {
+        checkpointLock.lock();
+        try {
+            long lastSegment;
+            writeLock.lock();
+            try {
+                if (log.isIdle()) {
+                    LOG.debug("Checkpoint skipped, nothing logged since the last one");
+                    return;
+                }
+                lastSegment = log.rollover();
+            } finally {
+                writeLock.unlock();
+            }
+            Path file = WidgetCheckpoint.file(base);
+            WidgetRepository state = new WidgetColumnarRepository();
+            WidgetCheckpoint previous = WidgetCheckpoint.load(file, state);
+            Replay replay = new Replay(state, previous.lastId);
+            // every segment from the previous checkpoint on is closed: a missing or corrupted one fails the checkpoint
+            for (long segment = previous.lastSegment + 1; segment <= lastSegment; segment++) {
+                Path path = WriteAheadLog.segment(base, segment);
+                if (!Files.exists(path)) {
+                    throw new IOException("The segment " + path + " of the write-ahead log is missing");
+                }
+                WriteAheadLog.replay(path, replay);
+            }
+            WidgetCheckpoint checkpoint = WidgetCheckpoint.write(file, lastSegment, replay.lastId, state);
+            log.deleteSegments(lastSegment);
+            LOG.info("Checkpoint of {} widgets written, {} records of the log merged, about {} MB of memory taken by the merge",
+                    checkpoint.count, replay.records, checkpoint.count * MERGE_BYTES_PER_WIDGET >> 20);
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+
+    private void checkpointQuietly() {
+        try {
+            checkpoint();
+        } catch (IOException | RuntimeException e) {
+            // the log is kept, the next checkpoint will include it
+            LOG.error("Checkpoint of the widgets failed", e);
+        }
+    }
+
+    @Override
+    public void save(Widget widget) {
+        long record;
+        writeLock.lock();
+        try {
+            LocalDateTime date = now();
+            long lastId = repository.lastId();
+            if (widget.getId() == null) {
+                widget.setId(lastId + 1);
+            }
+            widget.setModificationDate(date);
+            record = appendSave(widget);
+            WidgetClock.at(date, () -> repository.save(widget));
+            repository.initSequence(Math.max(lastId, widget.getId()));
+        } finally {
+            writeLock.unlock();
+        }
+        // outside of the lock: the writers waiting for the disk share the same fsync
+        log.awaitDurable(record);
+    }
+
+    @Override
+    public void update(Widget widget, Widget newWidget) {
+        long record;
+        writeLock.lock();
+        try {
+            LocalDateTime date = now();
+            newWidget.setModificationDate(date);
+            record = log.append(WriteAheadLog.UPDATE, newWidget.getId(), newWidget);
+            WidgetClock.at(date, () -> repository.update(widget, newWidget));
+        } finally {
+            writeLock.unlock();
+        }
+        log.awaitDurable(record);
+    }
+
+    /*
+    ** the changes of the batch are logged one by one, then the batch is applied at once: replaying the records one by
+    ** one gives the same widgets (see WidgetRepository.applyBatch). The batch waits once for the disk.
+    */
+    @Override
+    public void applyBatch(WidgetBatch batch) {
+        long record = 0;
+        writeLock.lock();
+        try {
+            LocalDateTime date = now();
+            long lastId = repository.lastId();
+            for (Widget widget : batch.getCreate()) {
+                if (widget.getId() == null) {
+                    widget.setId(++lastId);
+                }
+            }
+            for (long id : batch.getDelete()) {
+                record = log.append(WriteAheadLog.DELETE, id, null);
+            }
+            for (Widget widget : batch.getUpdate()) {
+                record = log.append(WriteAheadLog.DELETE, widget.getId(), null);
+            }
+            for (List<Widget> saved : List.of(batch.getUpdate(), batch.getCreate())) {
+                for (Widget widget : saved) {
+                    widget.setModificationDate(date);
+                    record = appendSave(widget);
+                }
+            }
+            WidgetClock.at(date, () -> repository.applyBatch(batch));
+            repository.initSequence(Math.max(lastId, repository.lastId()));
+        } finally {
+            writeLock.unlock();
+        }
+        log.awaitDurable(record);
+    }
+
+    @Override
+    public void deleteById(long id) {
+        long record;
+        writeLock.lock();
+        try {
+            record = log.append(WriteAheadLog.DELETE, id, null);
+            repository.deleteById(id);
+        } finally {
+            writeLock.unlock();
+        }
+        log.awaitDurable(record);
+    }
+
+    @Override
+    public void clear() {
+        long record;
+        writeLock.lock();
+        try {
+            record = log.append(WriteAheadLog.CLEAR, 0, null);
+            repository.clear();
+        } finally {
+            writeLock.unlock();
+        }
+        log.awaitDurable(record);
+    }
+
+    /* the widgets saved without z-index are recorded as such, the replay puts them on top as well */
+    private long appendSave(Widget widget) {
+        byte type = widget.getzIndex() == null ? WriteAheadLog.SAVE_ON_TOP : WriteAheadLog.SAVE;
+        return log.append(type, widget.getId(), widget);
+    }
+
+    /* the log keeps the dates to the microsecond (see SlotWidgetStore.toMicros) */
+    private static LocalDateTime now() {
+        return LocalDateTime.now().truncatedTo(ChronoUnit.MICROS);
+    }
+
+    @Override
+    public Optional<Widget> findById(long id) {
+        return repository.findById(id);
+    }
+
+    @Override
+    public Widget findByIdOrNull(long id) {
+        return repository.findByIdOrNull(id);
+    }
+
+    @Override
+    public SortedSet<Widget> findAll(Integer size, Integer page) {
+        return repository.findAll(size, page);
+    }
+
+    @Override
+    public SortedSet<Widget> findAllInRectangle(Point lowerLeft, Point upperRight) {
+        return repository.findAllInRectangle(lowerLeft, upperRight);
+    }
+
+    @Override
+    public SortedSet<Widget> findAll(Integer size, Integer page, Point lowerLeft, Point upperRight) {
+        return repository.findAll(size, page, lowerLeft, upperRight);
+    }
+
+    @Override
+    public SortedSet<Widget> findAllAfter(int zIndex, int size) {
+        return repository.findAllAfter(zIndex, size);
+    }
+
+    @Override
+    public SortedSet<Widget> findAllAfter(int zIndex, int size, Point lowerLeft, Point upperRight) {
+        return repository.findAllAfter(zIndex, size, lowerLeft, upperRight);
+    }
+
+    @Override
+    public void initSequence() {
+        repository.initSequence();
+    }
+
+    @Override
+    public void initSequence(long lastId) {
+        repository.initSequence(lastId);
+    }
+
+    @Override
+    public long lastId() {
+        return repository.lastId();
+    }
+
+    @Override
+    public int size() {
+        return repository.size();
+    }
+
+    @Override
+    public long version() {
+        return repository.version();
+    }
+
+    @Override
+    public void setChangeListener(WidgetChangeListener listener) {
+        repository.setChangeListener(listener);
+    }
+
+    /* writes the records pending, called by Spring when the application stops */
+    @Override
+    public void close() throws IOException {
+        if (checkpointer != null) {
+            checkpointer.shutdownNow();
+        }
+        // waits for a checkpoint in progress
+        checkpointLock.lock();
+        try {
+            log.close();
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+}
@@ -1,13 +1,21 @@
 package com.miro;
 
+import com.miro.WidgetRepositoryMetrics.Read;
 import com.miro.entities.Point;
 import com.miro.entities.Widget;
+import com.miro.entities.WidgetBatch;
+import com.miro.entities.WidgetChange;
+import com.miro.index.DenseZOrder;
+import com.miro.index.LazyZOrder;
+import com.miro.index.LongObjectMap;
+import com.miro.index.WidgetRTree;
+import com.miro.index.ZOrder;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Optional;
 import java.util.SortedSet;
@@ -17,120 +25,372 @@ import java.util.concurrent.locks.StampedLock;
 
 public class WidgetMainRepository implements WidgetRepository {
 
+    /*
+    ** DENSE: the z-index is stored in the widgets, a shift renumbers the shifted widgets one by one.
+    ** LAZY: a shift is recorded once for the whole sequence of shifted widgets, and the z-index is computed when
+    ** the widgets are read; inserting at the bottom of a dense stack costs O(log n) instead of O(n).
+    */
+    public enum ZOrderMode {
+        DENSE,
+        LAZY
+    }
+
     private final StampedLock sl = new StampedLock();
-    /* HashMap is used to find by id (constant time on average) */
-    private final Map<Long, Widget> widgetsMap = new HashMap<>();
+    /* finds by id in constant time on average, the ids are not boxed */
+    private final LongObjectMap<Widget> widgetsMap = new LongObjectMap<>();
     /*
-    ** SortedSet is used to keep the widgets ordered by z-index.
+    ** Keeps the widgets ordered by z-index.
     ** It supports the findAll and findMaxZIndex.
-    ** It is also used to shift widgets efficiently (when necessary)
+    ** It is also used to shift widgets efficiently (when necessary).
     */
-    private final SortedSet<Widget> widgetsZIndex = new TreeSet<>();
+    private final ZOrder widgetsZIndex;
     /*
-    ** Comparator used to have a data structure ordered by the X coordinate of the widget equal if it has the same id.
-    ** 2 widgets are equal if the have the same Id (or same z-index).
+    ** R-tree over the bounding boxes of the widgets, it supports the findAllInRectangle.
+    ** Both axes are pruned, so the cost does not depend on the position of the area on the board.
     */
-    private final Comparator<Widget> compX = (w1, w2) -> {
-        if(w1.getId().intValue() == w2.getId().intValue()) {
-            return 0;
-        }
-        return (w1.getX() < w2.getX()) ? - 1 : 1;
-    };
-    private final SortedSet<Widget> widgetsX = new TreeSet<>(compX);
-    private static final AtomicLong sequence = new AtomicLong();
+    private final WidgetRTree widgetsArea = new WidgetRTree();
+    private final AtomicLong sequence = new AtomicLong();
+    /* incremented by every change, it is only written while holding the write lock */
+    private volatile long version;
+    private final WidgetRepositoryMetrics metrics;
+    /* when the write lock was acquired, only used while holding it */
+    private long lockedAt;
+    /* how each type of query reads, indexed by Read */
+    private final ReadStrategy[] strategies = new ReadStrategy[Read.values().length];
+    /* receives the changes while the write lock is held, null if none (see setChangeListener) */
+    private volatile WidgetChangeListener listener;
 
-    @Override
-    public void save(Widget widget) {
-        saveInternal(widget, false);
+    /* checks the optimistic reads every VALIDATE_INTERVAL widgets scanned (a power of two) */
+    private static final int VALIDATE_INTERVAL = 64;
+    /* thrown to give up an optimistic read, without stack trace */
+    private static final RuntimeException INVALIDATED =
+            new RuntimeException("optimistic read invalidated", null, false, false) {};
+
+    /* a query, run without lock if 'stamp' is not 0 (see checkValid) */
+    private interface Query<T> {
+        T run(long stamp);
     }
 
-    private void saveInternal(Widget widget, boolean writeLockAcquired) {
-        long stamp = 0;
-        boolean exists;
+    /*
+    ** the widgets found by a query and the number of widgets compared with its area (NOT_SEARCHED if it has none):
+    ** measured once the query returns, an optimistic attempt given up is not counted (see searched)
+    */
+    private static final class Found {
+        static final int NOT_SEARCHED = -1;
+
+        final SortedSet<Widget> widgets;
+        final int scanned;
 
-        if(!writeLockAcquired) {
-            // synchronization to guarantee atomic update
-            stamp = sl.writeLock();
+        Found(SortedSet<Widget> widgets, int scanned) {
+            this.widgets = widgets;
+            this.scanned = scanned;
         }
-        try {
-            if (widget.getzIndex() == null) {
-                widget.setzIndex(getNextZIndex());
-                exists = false;
-            } else {
-                exists = widgetsZIndex.contains(widget);
+    }
+
+    /*
+    ** Chooses between an optimistic read and the read lock for a type of query. The recent failure rate of its optimistic
+    ** reads is a moving average, in 1/ONE (every read weighs 1/16): once it reaches FAILURE_THRESHOLD, the next
+    ** LOCKED_READS queries take the read lock directly, then the optimistic reads are tried again, from half the threshold.
+    ** A failed scan costs the part already made and the whole scan under the lock: beyond one failure in eight the
+    ** reader loses more than it would wait for the lock.
+    ** It is updated without synchronization, a lost update only delays a switch.
+    */
+    static final class ReadStrategy {
+        static final int ONE = 1 << 16;
+        static final int FAILURE_THRESHOLD = ONE / 8;
+        static final int LOCKED_READS = 256;
+
+        private volatile int failureRate;
+        private volatile int lockedReads;
+
+        boolean optimistic() {
+            int locked = lockedReads;
+            if (locked == 0) {
+                return true;
             }
-            // the Id is already set in case of update
-            if (widget.getId() == null) {
-                widget.setId(sequence.incrementAndGet());
+            lockedReads = locked - 1;
+            return false;
+        }
+
+        void succeeded() {
+            int rate = failureRate;
+            // no write once the reads succeed
+            if (rate != 0) {
+                failureRate = rate - (rate >> 4) - 1;
             }
-            widget.setModificationDate(LocalDateTime.now());
-            if (exists) {
-                saveAndShift(widget);
+        }
+
+        void failed() {
+            int rate = failureRate;
+            rate += (ONE - rate) >> 4;
+            if (rate >= FAILURE_THRESHOLD) {
+                failureRate = FAILURE_THRESHOLD / 2;
+                lockedReads = LOCKED_READS;
             } else {
-                widgetsZIndex.add(widget); // adds to the set if not already present
-                widgetsMap.put(widget.getId(), widget); // if the key is already present, the value is replaced
-                widgetsX.add(widget); // adds to the set if not already present
+                failureRate = rate;
             }
         }
-        finally {
-            if (!writeLockAcquired) {
-                sl.unlockWrite(stamp);
-            }
+
+        double failureRate() {
+            return (double) failureRate / ONE;
         }
     }
 
-    private void saveAndShift(Widget widget) {
-        // update z-index of following widgets (if any)
-        SortedSet<Widget> w_subset = widgetsZIndex.tailSet(widget);
-        int previous_z = w_subset.first().getzIndex();
-        for(Widget w : w_subset) {
-            int current_z = w.getzIndex();
-            if(current_z > previous_z + 1) {
-                break;
+    public WidgetMainRepository() {
+        this(ZOrderMode.DENSE);
+    }
+
+    public WidgetMainRepository(ZOrderMode mode) {
+        this(mode, WidgetRepositoryMetrics.NONE);
+    }
+
+    public WidgetMainRepository(ZOrderMode mode, WidgetRepositoryMetrics metrics) {
+        widgetsZIndex = mode == ZOrderMode.LAZY ? new LazyZOrder() : new DenseZOrder();
+        this.metrics = metrics;
+        for (Read read : Read.values()) {
+            strategies[read.ordinal()] = new ReadStrategy();
+            metrics.failureRate(read, strategies[read.ordinal()], ReadStrategy::failureRate);
+        }
+    }
+
+    /* the write lock, the wait for it and the time it is held are measured */
+    private long writeLock() {
+        long requested = metrics.clock();
+        long stamp = sl.writeLock();
+        lockedAt = metrics.clock();
+        metrics.lockAcquired(requested, lockedAt);
+        return stamp;
+    }
+
+    private void unlockWrite(long stamp) {
+        long acquired = lockedAt;
+        long released = metrics.clock();
+        sl.unlockWrite(stamp);
+        metrics.lockReleased(acquired, released);
+    }
+
+    /*
+    ** Runs the query without lock and validates it, or runs it again under the read lock if a writer has changed the
+    ** widgets meanwhile (the inconsistent state seen may also have made it throw). A scan gives up as soon as it sees
+    ** the change instead of running to its end, before it can follow a cycle left by the writer. The type of query takes
+    ** the read lock directly while its optimistic reads fail too often (see ReadStrategy).
+    */
+    private <T> T read(Read read, Query<T> query) {
+        ReadStrategy strategy = strategies[read.ordinal()];
+        if (strategy.optimistic()) {
+            metrics.optimisticRead(read);
+            long stamp = sl.tryOptimisticRead();
+            if (stamp != 0) {
+                try {
+                    T ret = query.run(stamp);
+                    if (sl.validate(stamp)) {
+                        strategy.succeeded();
+                        return ret;
+                    }
+                } catch (RuntimeException e) {
+                    // a writer may have left a structure read without lock inconsistent: rethrown only if the read was valid
+                    if (e != INVALIDATED && sl.validate(stamp)) {
+                        throw e;
+                    }
+                }
             }
-            previous_z = current_z;
-            w.setzIndex(w.getzIndex() + 1);
-            w.setModificationDate(LocalDateTime.now());
-            widgetsZIndex.add(w);
+            strategy.failed();
+            metrics.optimisticReadFailed(read);
+        } else {
+            metrics.lockedRead(read);
+        }
+        long stamp = sl.readLock();
+        try {
+            return query.run(0);
+        } finally {
+            sl.unlockRead(stamp);
+        }
+    }
+
+    /* gives up an optimistic read once the widgets have changed, checked every VALIDATE_INTERVAL widgets scanned */
+    private void checkValid(long stamp, int scanned) {
+        if ((scanned & (VALIDATE_INTERVAL - 1)) == 0) {
+            checkValid(stamp);
+        }
+    }
+
+    private void checkValid(long stamp) {
+        if (stamp != 0 && !sl.validate(stamp)) {
+            throw INVALIDATED;
         }
-        widgetsMap.put(widget.getId(), widget);
-        widgetsZIndex.add(widget);
-        widgetsX.add(widget);
+    }
+
+    @Override
+    public void save(Widget widget) {
+        // synchronization to guarantee atomic update
+        long stamp = writeLock();
+        try {
+            inserted(widget, saveInternal(widget));
+        }
+        finally {
+            unlockWrite(stamp);
+        }
+    }
+
+    /* This function has to be used while holding the write lock, returns the number of widgets shifted */
+    private int saveInternal(Widget widget) {
+        if (widget.getzIndex() == null) {
+            widget.setzIndex(getNextZIndex());
+        }
+        // the Id is already set in case of update
+        if (widget.getId() == null) {
+            widget.setId(sequence.incrementAndGet());
+        }
+        widget.setModificationDate(WidgetClock.now());
+        version++;
+        // shifts the widgets with the same (and greater if needed) z-index, if any
+        int shifted = widgetsZIndex.insert(widget);
+        metrics.saved(shifted);
+        widgetsMap.put(widget.getId(), widget); // if the key is already present, the value is replaced
+        widgetsArea.insert(widget);
+        return shifted;
     }
 
     @Override
     public void update(Widget widget, Widget newWidget) {
         // synchronization to guarantee atomic update
-        long stamp = sl.writeLock();
+        long stamp = writeLock();
         try {
-            widgetsZIndex.remove(widget);
-            widgetsX.remove(widget);
-            saveInternal(newWidget, true);
+            // the widget passed by the caller can be a copy of the stored one
+            Widget stored = widgetsMap.get(widget.getId());
+            WidgetChangeListener listener = this.listener;
+            // with its current z-index: the lazy z-order does not update the stored widgets
+            Widget previous = listener == null || stored == null ? null : widgetsZIndex.materialize(stored);
+            if (stored != null) {
+                widgetsZIndex.remove(stored);
+                widgetsArea.remove(stored);
+            }
+            int shifted = saveInternal(newWidget);
+            if (previous != null && previous.getzIndex().equals(newWidget.getzIndex())) {
+                // the z-order does not change
+                listener.changed(WidgetChange.update(newWidget));
+            } else if (listener != null) {
+                // removed first: the previous version of the widget may be in the sequence to shift
+                if (previous != null) {
+                    listener.changed(WidgetChange.delete(previous));
+                }
+                inserted(newWidget, shifted);
+            }
         }
         finally {
-            sl.unlockWrite(stamp);
+            unlockWrite(stamp);
+        }
+    }
+
+    /* This function has to be used while holding the write lock, once the widget is saved */
+    private void inserted(Widget widget, int shifted) {
+        WidgetChangeListener listener = this.listener;
+        if (listener != null) {
+            if (shifted > 0) {
+                listener.changed(WidgetChange.shift(widget.getzIndex()));
+            }
+            listener.changed(WidgetChange.insert(widget));
+        }
+    }
+
+    /*
+    ** the shifts of all the widgets saved are merged by the z-order (see DenseZOrder.insertAll): the changes of the
+    ** parts of the batch, if listened to, are found before (see WidgetBatchZOrder)
+    */
+    @Override
+    public void applyBatch(WidgetBatch batch) {
+        long stamp = writeLock();
+        try {
+            WidgetChangeListener listener = this.listener;
+            WidgetBatchZOrder zOrder = listener == null ? null : new WidgetBatchZOrder(widgetsZIndex, batch);
+            List<Widget> deleted = listener == null ? null : new ArrayList<>();
+            for (long id : batch.getDelete()) {
+                removeInternal(id, deleted);
+            }
+            for (Widget widget : batch.getUpdate()) {
+                removeInternal(widget.getId(), deleted);
+            }
+            List<Widget> saved = new ArrayList<>(batch.getUpdate().size() + batch.getCreate().size());
+            saved.addAll(batch.getUpdate());
+            saved.addAll(batch.getCreate());
+            LocalDateTime now = WidgetClock.now();
+            for (Widget widget : saved) {
+                // the Id is already set in case of update
+                if (widget.getId() == null) {
+                    widget.setId(sequence.incrementAndGet());
+                }
+                widget.setModificationDate(now);
+            }
+            widgetsZIndex.insertAll(saved);
+            for (Widget widget : saved) {
+                // the widgets saved after it in the batch may have shifted it
+                Widget current = widgetsZIndex.materialize(widget);
+                if (current != widget) {
+                    widget.setzIndex(current.getzIndex());
+                    widget.setModificationDate(current.getModificationDate());
+                }
+                widgetsMap.put(widget.getId(), widget);
+                widgetsArea.insert(widget);
+            }
+            version++;
+            if (listener != null) {
+                for (Widget widget : deleted) {
+                    listener.changed(WidgetChange.delete(widget));
+                }
+                for (int i = 0; i < zOrder.saved().size(); i++) {
+                    if (zOrder.shifts(i)) {
+                        listener.changed(WidgetChange.shift(zOrder.zIndex(i)));
+                    }
+                    listener.changed(WidgetChange.insert(zOrder.saved().get(i), zOrder.zIndex(i)));
+                }
+            }
+        } finally {
+            unlockWrite(stamp);
         }
     }
 
     @Override
     public Optional<Widget> findById(long id) {
-        Widget widget;
-        long stamp;
-        // acquire read lock only if the optimistic read "failed"
-        stamp = sl.tryOptimisticRead();
-        widget = widgetsMap.get(id);
-        if (!sl.validate(stamp)) {
-            stamp = sl.readLock();
-            try {
-                widget = widgetsMap.get(id);
-            } finally {
-                sl.unlockRead(stamp);
+        return Optional.ofNullable(findByIdOrNull(id));
+    }
+
+    /* the optimistic read of read(), inlined: a find by id allocates no query */
+    @Override
+    public Widget findByIdOrNull(long id) {
+        ReadStrategy strategy = strategies[Read.FIND_BY_ID.ordinal()];
+        if (strategy.optimistic()) {
+            metrics.optimisticRead(Read.FIND_BY_ID);
+            long stamp = sl.tryOptimisticRead();
+            if (stamp != 0) {
+                try {
+                    Widget widget = findByIdInternal(id);
+                    if (sl.validate(stamp)) {
+                        strategy.succeeded();
+                        return widget;
+                    }
+                } catch (RuntimeException e) {
+                    // a writer may have left the z-order inconsistent: rethrown only if the read was valid
+                    if (sl.validate(stamp)) {
+                        throw e;
+                    }
+                }
             }
+            strategy.failed();
+            metrics.optimisticReadFailed(Read.FIND_BY_ID);
+        } else {
+            metrics.lockedRead(Read.FIND_BY_ID);
         }
-        if (widget == null) {
-            return Optional.empty();
+        long stamp = sl.readLock();
+        try {
+            return findByIdInternal(id);
+        } finally {
+            sl.unlockRead(stamp);
         }
-        return Optional.of(widget);
+    }
+
+    private Widget findByIdInternal(long id) {
+        Widget widget = widgetsMap.get(id);
+        return widget == null ? null : widgetsZIndex.materialize(widget);
     }
 
     @Override
@@ -140,62 +400,59 @@ public class WidgetMainRepository implements WidgetRepository {
 
     @Override
     public SortedSet<Widget> findAllInRectangle(Point lowerLeft, Point upperRight) {
-        // This return set is ordered by zIndex (natural order of Widget)
-        SortedSet<Widget> ret = new TreeSet<>();
-
         if (lowerLeft == null || upperRight == null) {
-            return widgetsZIndex;
+            return findAllWidgets(Read.FIND_ALL_IN_RECTANGLE);
         }
-        /* TODO can be optimized using the optimistic lock, as with getById */
+        return searched(read(Read.FIND_ALL_IN_RECTANGLE,
+                stamp -> findAllInRectangleInternal(lowerLeft, upperRight, stamp)));
+    }
+
+    /* the widgets found, the search of the area measured */
+    private SortedSet<Widget> searched(Found found) {
+        if (found.scanned != Found.NOT_SEARCHED) {
+            metrics.areaSearched(found.scanned, found.widgets.size());
+        }
+        return found.widgets;
+    }
+
+    /*
+    ** All the widgets, under the read lock: the lazy z-order copies them (see LazyZOrder.asSortedSet), the dense one
+    ** returns its tree.
+    */
+    private SortedSet<Widget> findAllWidgets(Read read) {
+        metrics.lockedRead(read);
         long stamp = sl.readLock();
         try {
-            int count = 0;
-            for (Widget widget : widgetsX) {
-                if (widget.getX() >= upperRight.getX()) {
-                    System.out.println("search for area terminated after " + count + " iterations.");
-                    break;
-                }
-                if (includeWidget(widget, lowerLeft, upperRight)) {
-                    ret.add(widget);
-                }
-                count++;
-            }
+            return widgetsZIndex.asSortedSet();
         } finally {
             sl.unlockRead(stamp);
         }
-        return ret;
+    }
+
+    private Found findAllInRectangleInternal(Point lowerLeft, Point upperRight, long stamp) {
+        // This return set is ordered by zIndex (natural order of Widget)
+        SortedSet<Widget> ret = new TreeSet<>();
+        // checked as the nodes are visited: a search that finds nothing is given up too
+        int scanned = widgetsArea.search(lowerLeft, upperRight, widget -> ret.add(widgetsZIndex.materialize(widget)),
+                stamp == 0 ? null : () -> checkValid(stamp));
+        return new Found(ret, scanned);
     }
 
     @Override
     public SortedSet<Widget> findAll(Integer page_size, Integer page_num, Point lowerLeft, Point upperRight) {
-        SortedSet<Widget> ret;
-        long stamp;
-
-        // acquire read lock only if the optimistic read "failed"
-        stamp = sl.tryOptimisticRead();
-        ret = findAllInternal(page_size, page_num, lowerLeft, upperRight);
-        if (!sl.validate(stamp)) {
-            stamp = sl.readLock();
-            try {
-                ret = findAllInternal(page_size, page_num, lowerLeft, upperRight);
-            }
-            finally {
-                sl.unlockRead(stamp);
-            }
+        if ((page_num == null || page_size == null) && (lowerLeft == null || upperRight == null)) {
+            return findAllWidgets(Read.FIND_ALL);
         }
-        return ret;
+        return searched(read(Read.FIND_ALL,
+                stamp -> findAllInternal(page_size, page_num, lowerLeft, upperRight, stamp)));
     }
 
-    private SortedSet<Widget> findAllInternal(Integer page_size, Integer page_num, Point lowerLeft, Point upperRight) {
+    private Found findAllInternal(Integer page_size, Integer page_num, Point lowerLeft, Point upperRight,
+            long stamp) {
         SortedSet<Widget> ret = new TreeSet<>();
 
         boolean pageFilter = page_num != null && page_size != null;
         boolean areaFilter = lowerLeft != null && upperRight != null;
-        if (!pageFilter && !areaFilter) {
-            // alternatively, if necessary, a deep copy can be returned:
-            // ret = widgetsZIndex.stream().map(Widget::new).collect(Collectors.toList());
-            return widgetsZIndex;
-        }
 
         int begin = 0;
         int end = widgetsZIndex.size();
@@ -207,10 +464,23 @@ public class WidgetMainRepository implements WidgetRepository {
 
         if (begin > widgetsZIndex.size()) {
             /* returns an empty set if the requested page is greater than total number of pages */
-            return Collections.emptySortedSet();
+            return new Found(Collections.emptySortedSet(), Found.NOT_SEARCHED);
+        }
+        if (!areaFilter) {
+            /* seek directly to the first widget of the page, deep pages cost the same as the first one */
+            Iterator<Widget> it = widgetsZIndex.iterator(begin);
+            for (int count = begin; count < end && it.hasNext(); count++) {
+                checkValid(stamp, count - begin);
+                ret.add(it.next());
+            }
+            return new Found(ret, Found.NOT_SEARCHED);
         }
         int count = 0;
-        for (Widget widget : widgetsZIndex) {
+        int scanned = 0;
+        for (Iterator<Widget> it = widgetsZIndex.iterator(0); it.hasNext(); ) {
+            checkValid(stamp, scanned);
+            Widget widget = it.next();
+            scanned++;
             if(areaFilter && !includeWidget(widget, lowerLeft, upperRight)) {
                 continue;
             }
@@ -224,7 +494,35 @@ public class WidgetMainRepository implements WidgetRepository {
             ret.add(widget);
             count++;
         }
-        return ret;
+        return new Found(ret, scanned);
+    }
+
+    @Override
+    public SortedSet<Widget> findAllAfter(int zIndex, int size) {
+        return findAllAfter(zIndex, size, null, null);
+    }
+
+    @Override
+    public SortedSet<Widget> findAllAfter(int zIndex, int size, Point lowerLeft, Point upperRight) {
+        return searched(read(Read.FIND_ALL_AFTER,
+                stamp -> findAllAfterInternal(zIndex, size, lowerLeft, upperRight, stamp)));
+    }
+
+    /* keyset pagination: seeks to the given z-index instead of counting the widgets that come before */
+    private Found findAllAfterInternal(int zIndex, int size, Point lowerLeft, Point upperRight, long stamp) {
+        SortedSet<Widget> ret = new TreeSet<>();
+        boolean areaFilter = lowerLeft != null && upperRight != null;
+        Iterator<Widget> it = widgetsZIndex.iteratorFrom(zIndex);
+        int scanned = 0;
+        while (it.hasNext() && ret.size() < size) {
+            checkValid(stamp, scanned);
+            Widget widget = it.next();
+            scanned++;
+            if (widget.getzIndex() > zIndex && (!areaFilter || includeWidget(widget, lowerLeft, upperRight))) {
+                ret.add(widget);
+            }
+        }
+        return new Found(ret, areaFilter ? scanned : Found.NOT_SEARCHED);
     }
 
     private boolean includeWidget(Widget widget, Point lowerLeft, Point upperRight) {
@@ -236,26 +534,44 @@ public class WidgetMainRepository implements WidgetRepository {
 
     @Override
     public void deleteById(long id) {
-        long stamp = sl.writeLock();
+        long stamp = writeLock();
         try {
-            Widget widget = widgetsMap.get(id);
-            if (widget == null) {
-                /* do nothing if the widget does not exist */
-                return;
+            WidgetChangeListener listener = this.listener;
+            List<Widget> deleted = listener == null ? null : new ArrayList<>(1);
+            if (removeInternal(id, deleted)) {
+                version++;
+                if (listener != null) {
+                    listener.changed(WidgetChange.delete(deleted.get(0)));
+                }
             }
-            widgetsMap.remove(id);
-            widgetsZIndex.remove(widget);
-            widgetsX.remove(widget);
         } finally {
-            sl.unlockWrite(stamp);
+            unlockWrite(stamp);
         }
     }
 
+    /*
+    ** This function has to be used while holding the write lock, returns false if the widget does not exist.
+    ** The widget removed is added to 'deleted' (if not null) with its current z-index.
+    */
+    private boolean removeInternal(long id, List<Widget> deleted) {
+        Widget widget = widgetsMap.get(id);
+        if (widget == null) {
+            return false;
+        }
+        if (deleted != null) {
+            deleted.add(widgetsZIndex.materialize(widget));
+        }
+        widgetsMap.remove(id);
+        widgetsZIndex.remove(widget);
+        widgetsArea.remove(widget);
+        return true;
+    }
+
     /* This function has to be used in an already thread-safe context */
     private int getNextZIndex() {
         int ret;
         try {
-            ret = widgetsZIndex.last().getzIndex() + 1;
+            ret = widgetsZIndex.lastZIndex() + 1;
         } catch (NoSuchElementException e) {
             ret = 1;
         }
@@ -267,15 +583,45 @@ public class WidgetMainRepository implements WidgetRepository {
         sequence.set(0);
     }
 
+    @Override
+    public void initSequence(long lastId) {
+        sequence.set(lastId);
+    }
+
+    @Override
+    public long lastId() {
+        return sequence.get();
+    }
+
     @Override
     public int size() {
         return widgetsMap.size();
     }
 
+    @Override
+    public long version() {
+        return version;
+    }
+
     @Override
     public void clear() {
-        widgetsMap.clear();
-        widgetsZIndex.clear();
-        widgetsX.clear();
+        long stamp = writeLock();
+        try {
+            widgetsMap.clear();
+            widgetsZIndex.clear();
+            widgetsArea.clear();
+            version++;
+            WidgetChangeListener listener = this.listener;
+            if (listener != null) {
+                listener.changed(WidgetChange.clear());
+            }
+        } finally {
+            unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void setChangeListener(WidgetChangeListener listener) {
+        this.listener = listener;
     }
 }
\ No newline at end of file
@@ -0,0 +1,224 @@
+package com.miro;
+
+import com.miro.entities.Point;
+import com.miro.entities.Widget;
+import com.miro.entities.WidgetBatch;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.Optional;
+import java.util.SortedSet;
+import java.util.concurrent.TimeUnit;
+
+/*
+** Measures the time of every call of a repository, as the timer widgets.repository.calls tagged with the method
+** (the repositories below included: the write-ahead log, the change feed). The number of widgets is a gauge.
+** The accessors of the sequence and of the version, which only read a field, are not measured.
+** A call is timed with System.nanoTime around it, not with Timer.record(Supplier): no lambda is allocated per call.
+** The internals of the MAIN repository are measured by WidgetRepositoryMetrics.
+*/
+public class WidgetMeteredRepository implements WidgetRepository, AutoCloseable {
+
+    private final WidgetRepository repository;
+    private final Timer save;
+    private final Timer update;
+    private final Timer applyBatch;
+    private final Timer findById;
+    private final Timer findAll;
+    private final Timer findAllInRectangle;
+    private final Timer findAllAfter;
+    private final Timer deleteById;
+    private final Timer clear;
+
+    public WidgetMeteredRepository(WidgetRepository repository, MeterRegistry registry) {
+        this.repository = repository;
+        this.save = timer(registry, "save");
+        this.update = timer(registry, "update");
+        this.applyBatch = timer(registry, "applyBatch");
+        this.findById = timer(registry, "findById");
+        this.findAll = timer(registry, "findAll");
+        this.findAllInRectangle = timer(registry, "findAllInRectangle");
+        this.findAllAfter = timer(registry, "findAllAfter");
+        this.deleteById = timer(registry, "deleteById");
+        this.clear = timer(registry, "clear");
+        registerSize(repository, registry);
+    }
+
+    /* the gauge of the number of widgets alone, when the calls are not measured */
+    public static void registerSize(WidgetRepository repository, MeterRegistry registry) {
+        Gauge.builder("widgets.repository.size", repository, WidgetRepository::size)
+                .description("Widgets in the repository")
+                .baseUnit("widgets")
+                .register(registry);
+    }
+
+    private static Timer timer(MeterRegistry registry, String method) {
+        return Timer.builder("widgets.repository.calls")
+                .description("Calls of the repository")
+                .tag("method", method)
+                .register(registry);
+    }
+
+    private static void record(Timer timer, long start) {
+        timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void save(Widget widget) {
+        long start = System.nanoTime();
+        try {
+            repository.save(widget);
+        } finally {
+            record(save, start);
+        }
+    }
+
+    @Override
+    public void update(Widget widget, Widget newWidget) {
+        long start = System.nanoTime();
+        try {
+            repository.update(widget, newWidget);
+        } finally {
+            record(update, start);
+        }
+    }
+
+    @Override
+    public void applyBatch(WidgetBatch batch) {
+        long start = System.nanoTime();
+        try {
+            repository.applyBatch(batch);
+        } finally {
+            record(applyBatch, start);
+        }
+    }
+
+    @Override
+    public Optional<Widget> findById(long id) {
+        long start = System.nanoTime();
+        try {
+            return repository.findById(id);
+        } finally {
+            record(findById, start);
+        }
+    }
+
+    @Override
+    public Widget findByIdOrNull(long id) {
+        long start = System.nanoTime();
+        try {
+            return repository.findByIdOrNull(id);
+        } finally {
+            record(findById, start);
+        }
+    }
+
+    @Override
+    public SortedSet<Widget> findAll(Integer size, Integer page) {
+        long start = System.nanoTime();
+        try {
+            return repository.findAll(size, page);
+        } finally {
+            record(findAll, start);
+        }
+    }
+
+    @Override
+    public SortedSet<Widget> findAllInRectangle(Point lowerLeft, Point upperRight) {
+        long start = System.nanoTime();
+        try {
+            return repository.findAllInRectangle(lowerLeft, upperRight);
+        } finally {
+            record(findAllInRectangle, start);
+        }
+    }
+
+    @Override
+    public SortedSet<Widget> findAll(Integer size, Integer page, Point lowerLeft, Point upperRight) {
+        long start = System.nanoTime();
+        try {
+            return repository.findAll(size, page, lowerLeft, upperRight);
+        } finally {
+            record(findAll, start);
+        }
+    }
+
+    @Override
+    public SortedSet<Widget> findAllAfter(int zIndex, int size) {
+        long start = System.nanoTime();
+        try {
+            return repository.findAllAfter(zIndex, size);
+        } finally {
+            record(findAllAfter, start);
+        }
+    }
+
+    @Override
+    public SortedSet<Widget> findAllAfter(int zIndex, int size, Point lowerLeft, Point upperRight) {
+        long start = System.nanoTime();
+        try {
+            return repository.findAllAfter(zIndex, size, lowerLeft, upperRight);
+        } finally {
+            record(findAllAfter, start);
+        }
+    }
+
+    @Override
+    public void deleteById(long id) {
+        long start = System.nanoTime();
+        try {
+            repository.deleteById(id);
+        } finally {
+            record(deleteById, start);
+        }
+    }
+
+    @Override
+    public void initSequence() {
+        repository.initSequence();
+    }
+
+    @Override
+    public void initSequence(long lastId) {
+        repository.initSequence(lastId);
+    }
+
+    @Override
+    public long lastId() {
+        return repository.lastId();
+    }
+
+    @Override
+    public int size() {
+        return repository.size();
+    }
+
+    @Override
+    public long version() {
+        return repository.version();
+    }
+
+    @Override
+    public void setChangeListener(WidgetChangeListener listener) {
+        repository.setChangeListener(listener);
+    }
+
+    @Override
+    public void clear() {
+        long start = System.nanoTime();
+        try {
+            repository.clear();
+        } finally {
+            record(clear, start);
+        }
+    }
+
+    /* closes the repository below, called by Spring when the application stops */
+    @Override
+    public void close() throws Exception {
+        if (repository instanceof AutoCloseable) {
+            ((AutoCloseable) repository).close();
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.miro;
+
+import com.miro.index.OffHeapWidgetStore;
+
+/*
+** Repository keeping the widgets, the z-order and the area index off-heap, in direct buffers (see OffHeapWidgetStore):
+** the garbage collector does not trace any object per widget, which keeps the pauses short on very large boards.
+** Same semantics and lock scheme as the columnar repository, only the memory layout changes.
+*/
+public class WidgetOffHeapRepository extends WidgetColumnarRepository {
+
+    public WidgetOffHeapRepository() {
+        super(new OffHeapWidgetStore());
+    }
+}
@@ -0,0 +1,233 @@
+package com.miro;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.miro.entities.Point;
+import com.miro.entities.Widget;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.security.InvalidParameterException;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.concurrent.Callable;
+
+/*
+** The widgets API on the non-blocking stack (profile 'reactive', Netty instead of Tomcat): a request holds a thread
+** only while the repository is used, never while a slow client reads the response.
+** The repository may wait for its locks, so it is called on the bounded scheduler 'repositoryScheduler', never on the
+** event loop. The list of all the widgets (or those in an area) is read in chunks of STREAM_CHUNK_SIZE, the next chunk
+** only when the previous one has been written: as application/json it is one array, as application/x-ndjson one line
+** per widget. The pages are read at once.
+** A slow client holds at most a chunk of widgets and the buffers of a few of them, whatever the size of the list.
+** Only a subset of the API of WidgetController is served here:
+** GET /widgets with 'size' and 'page', or 'lowerLeft' and 'upperRight', as JSON or NDJSON;
+** GET, PUT and DELETE /widgets/{id}; POST /widgets.
+** The rest is answered with 400 instead of being ignored: the parameters 'since', 'after' and 'maxWidgets',
+** the ETags (If-None-Match), the binary format, /widgets/batch, /widgets/changes, /widgets/cache and /boards/**.
+*/
+@RestController
+@Profile("reactive")
+public class WidgetReactiveController {
+
+    private static final int MAX_PAGE_SIZE = 500;
+    private static final int STREAM_CHUNK_SIZE = 256;
+
+    @Autowired
+    WidgetRepository repository;
+    @Autowired
+    WidgetUtil utility;
+    @Autowired
+    Scheduler repositoryScheduler;
+    @Autowired
+    ObjectMapper mapper;
+    /* the parameters of GET /widgets served only by WidgetController */
+    private static final List<String> UNSUPPORTED_PARAMS = List.of("since", "after", "maxWidgets");
+
+    /* tells the cursors whether the widgets have only been shifted (see WidgetCursor) */
+    @Autowired
+    ChangeFeed changeFeed;
+
+    /* a chunk of widgets, and the cursor to the next one if it is full */
+    private static final class Chunk {
+        final SortedSet<Widget> widgets;
+        final WidgetCursor next;
+
+        Chunk(SortedSet<Widget> widgets, WidgetCursor next) {
+            this.widgets = widgets;
+            this.next = next;
+        }
+    }
+
+    @GetMapping("/widgets")
+    public ResponseEntity<Flux<DataBuffer>> getAllWidgets(@RequestParam(required = false) Integer size,
+            @RequestParam(required = false) Integer page, @RequestParam(required = false) Point lowerLeft,
+            @RequestParam(required = false) Point upperRight, ServerHttpRequest request) {
+        Flux<Widget> widgets = streamAllWidgets(size, page, lowerLeft, upperRight, request);
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(jsonArray(widgets));
+    }
+
+    @GetMapping(value = "/widgets", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public Flux<Widget> streamAllWidgets(@RequestParam(required = false) Integer size,
+            @RequestParam(required = false) Integer page, @RequestParam(required = false) Point lowerLeft,
+            @RequestParam(required = false) Point upperRight, ServerHttpRequest request) {
+        checkSupported(request);
+        if (page == null) {
+            checkArea(lowerLeft, upperRight);
+            return stream(null, lowerLeft, upperRight);
+        }
+        int page_size = 10;
+        if (size != null) {
+            if (size <= 0) {
+                throw new InvalidParameterException("Page size must be greater than zero, but was: " + size + ".");
+            }
+            if (size > MAX_PAGE_SIZE) {
+                throw new InvalidParameterException("Page size can be at most " + MAX_PAGE_SIZE + ", but was: " + size + ".");
+            }
+            page_size = size;
+        }
+        if (page <= 0) {
+            throw new InvalidParameterException("The requested 'page' must be greater than zero, but was: " + page + ".");
+        }
+        int pageSize = page_size;
+        return onRepository(() -> repository.findAll(pageSize, page, lowerLeft, upperRight))
+                .flatMapIterable(widgets -> widgets);
+    }
+
+    @GetMapping(value = "/widgets", produces = WidgetBinaryFormat.MEDIA_TYPE)
+    public void streamAllWidgetsBinary() {
+        throw new InvalidParameterException("The binary format is not supported by the reactive stack.");
+    }
+
+    @RequestMapping({"/widgets/batch", "/widgets/changes", "/widgets/cache", "/boards/**"})
+    public void unsupported(ServerHttpRequest request) {
+        throw new InvalidParameterException(request.getPath().value() + " is not supported by the reactive stack.");
+    }
+
+    private static void checkSupported(ServerHttpRequest request) {
+        for (String param : UNSUPPORTED_PARAMS) {
+            if (request.getQueryParams().containsKey(param)) {
+                throw new InvalidParameterException("The parameter '" + param + "' is not supported by the reactive stack.");
+            }
+        }
+        checkNoETag(request);
+    }
+
+    private static void checkNoETag(ServerHttpRequest request) {
+        if (request.getHeaders().containsKey(HttpHeaders.IF_NONE_MATCH)) {
+            throw new InvalidParameterException("The ETags are not supported by the reactive stack.");
+        }
+    }
+
+    private static void checkArea(Point lowerLeft, Point upperRight) {
+        if ((lowerLeft == null) != (upperRight == null)) {
+            throw new InvalidParameterException("Both 'lowerLeft' and 'upperRight' are needed to stream an area.");
+        }
+    }
+
+    /*
+    ** one buffer per widget, the brackets and the commas around them: the JSON encoder would collect a Flux<Widget>
+    ** into a list before writing it
+    */
+    private Flux<DataBuffer> jsonArray(Flux<Widget> widgets) {
+        ObjectWriter writer = mapper.writerFor(Widget.class);
+        return widgets.index()
+                .map(widget -> render(widget.getT1() == 0 ? '[' : ',', writer, widget.getT2()))
+                .switchIfEmpty(Mono.fromSupplier(() -> render('[', null, null)))
+                .concatWith(Mono.fromSupplier(() -> render(']', null, null)));
+    }
+
+    private static DataBuffer render(char prefix, ObjectWriter writer, Widget widget) {
+        DataBuffer buffer = DefaultDataBufferFactory.sharedInstance.allocateBuffer(widget == null ? 1 : 128);
+        buffer.write((byte) prefix);
+        if (widget != null) {
+            try {
+                writer.writeValue(buffer.asOutputStream(), widget);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return buffer;
+    }
+
+    /* the chunks follow each other as the 'after' cursor does: a widget shifted meanwhile is neither skipped nor repeated */
+    private Flux<Widget> stream(WidgetCursor after, Point lowerLeft, Point upperRight) {
+        return chunk(after, lowerLeft, upperRight)
+                .expand(chunk -> chunk.next == null ? Mono.empty() : chunk(chunk.next, lowerLeft, upperRight))
+                .concatMapIterable(chunk -> chunk.widgets, 1);
+    }
+
+    private Mono<Chunk> chunk(WidgetCursor after, Point lowerLeft, Point upperRight) {
+        return onRepository(() -> {
+            long version = repository.version();
+            long feedVersion = changeFeed.version();
+            int zIndex = after == null ? Integer.MIN_VALUE : after.resumeZIndex(repository, changeFeed);
+            SortedSet<Widget> widgets = repository.findAllAfter(zIndex, STREAM_CHUNK_SIZE, lowerLeft, upperRight);
+            return new Chunk(widgets, widgets.size() < STREAM_CHUNK_SIZE ? null
+                    : WidgetCursor.of(widgets.last(), version, feedVersion));
+        });
+    }
+
+    @GetMapping("/widgets/{id}")
+    Mono<Widget> getWidget(@PathVariable long id, ServerHttpRequest request) {
+        checkNoETag(request);
+        return onRepository(() -> repository.findByIdOrNull(id))
+                .switchIfEmpty(Mono.error(() -> new WidgetNotFoundException(id)));
+    }
+
+    @PostMapping("/widgets")
+    Mono<ResponseEntity<Widget>> createWidget(@RequestBody Widget newWidget) {
+        utility.validate(newWidget);
+        return onRepository(() -> {
+            repository.save(newWidget);
+            return ResponseEntity.created(URI.create("/widgets/" + newWidget.getId())).body(newWidget);
+        });
+    }
+
+    @PutMapping("/widgets/{id}")
+    Mono<Widget> updateWidget(@RequestBody Widget newWidget, @PathVariable long id) {
+        return onRepository(() -> {
+            Widget widget = repository.findByIdOrNull(id);
+            if (widget == null) {
+                throw new WidgetNotFoundException(id);
+            }
+            utility.merge(widget, newWidget);
+            repository.update(widget, newWidget);
+            return newWidget;
+        });
+    }
+
+    @DeleteMapping("/widgets/{id}")
+    Mono<ResponseEntity<Void>> deleteWidget(@PathVariable long id) {
+        return onRepository(() -> {
+            repository.deleteById(id);
+            return ResponseEntity.noContent().build();
+        });
+    }
+
+    /* the result of the call, made on the repository scheduler; empty if it is null */
+    private <T> Mono<T> onRepository(Callable<T> call) {
+        return Mono.fromCallable(call).subscribeOn(repositoryScheduler);
+    }
+}
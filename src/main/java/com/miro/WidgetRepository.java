@@ -2,7 +2,9 @@ package com.miro;
 
 import com.miro.entities.Point;
 import com.miro.entities.Widget;
+import com.miro.entities.WidgetBatch;
 
+import java.util.List;
 import java.util.Optional;
 import java.util.SortedSet;
 
@@ -10,12 +12,60 @@ public interface WidgetRepository  {
 
     void save(Widget widget);
     void update(Widget widget, Widget newWidget);
+    /*
+    ** applies the batch as the following changes in this order would do: delete the widgets of 'delete', delete the
+    ** widgets of 'update', save the widgets of 'update' (with their id) and then the widgets of 'create'.
+    ** The widgets of the batch are expected to be valid, those of 'update' complete (as after WidgetUtil.merge).
+    ** By default the changes are applied one by one; the in-memory repositories apply the whole batch under a single
+    ** acquisition of their write lock, the readers never see a part of it.
+    */
+    default void applyBatch(WidgetBatch batch) {
+        for (long id : batch.getDelete()) {
+            deleteById(id);
+        }
+        for (Widget widget : batch.getUpdate()) {
+            deleteById(widget.getId());
+        }
+        for (Widget widget : batch.getUpdate()) {
+            save(widget);
+        }
+        for (Widget widget : batch.getCreate()) {
+            save(widget);
+        }
+        // the widgets saved later in the batch may have shifted the ones saved before
+        for (List<Widget> saved : List.of(batch.getUpdate(), batch.getCreate())) {
+            for (Widget widget : saved) {
+                Widget stored = findByIdOrNull(widget.getId());
+                if (stored != null) {
+                    widget.setzIndex(stored.getzIndex());
+                    widget.setModificationDate(stored.getModificationDate());
+                }
+            }
+        }
+    }
     Optional<Widget> findById(long id);
+    /* same as findById, without allocating an Optional: returns null if there is no widget with the given id */
+    Widget findByIdOrNull(long id);
     SortedSet<Widget> findAll(Integer size, Integer page);
     SortedSet<Widget> findAllInRectangle(Point lowerLeft, Point upperRight);
     SortedSet<Widget> findAll(Integer size, Integer page, Point lowerLeft, Point upperRight);
+    SortedSet<Widget> findAllAfter(int zIndex, int size);
+    /* same as findAllAfter, only the widgets that fall entirely into the area (if any): a chunk of a stream */
+    SortedSet<Widget> findAllAfter(int zIndex, int size, Point lowerLeft, Point upperRight);
     void deleteById(long id);
     void initSequence();
+    /* the next widget created gets the id following the given one, e.g. after the widgets have been restored */
+    void initSequence(long lastId);
+    /* the id of the last widget created */
+    long lastId();
     int size();
+    long version();
     void clear();
+    /*
+    ** every change applied from now on is passed to the listener (see WidgetChangeListener), a batch as the changes
+    ** of its parts applied one by one. The wrappers pass it to the repository they wrap.
+    */
+    default void setChangeListener(WidgetChangeListener listener) {
+        throw new UnsupportedOperationException("The changes of this repository cannot be listened to");
+    }
 }
@@ -0,0 +1,158 @@
+package com.miro;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+/*
+** The meters of the internals of WidgetMainRepository: the wait for its write lock and the time it is held, the
+** optimistic reads (tried, made again under the read lock, or not tried: see WidgetMainRepository.ReadStrategy),
+** the widgets shifted by every save, the widgets compared with an area against those returned.
+** NONE records nothing and never reads the clock.
+** The time of every call of the repository is measured by WidgetMeteredRepository.
+*/
+public class WidgetRepositoryMetrics {
+
+    public static final WidgetRepositoryMetrics NONE = new WidgetRepositoryMetrics();
+
+    /* the reads tried without lock first */
+    public enum Read {
+        FIND_BY_ID("findById"),
+        FIND_ALL("findAll"),
+        FIND_ALL_AFTER("findAllAfter"),
+        FIND_ALL_IN_RECTANGLE("findAllInRectangle");
+
+        private final String method;
+
+        Read(String method) {
+            this.method = method;
+        }
+    }
+
+    private final boolean enabled;
+    private final MeterRegistry registry;
+    private final Timer lockWait;
+    private final Timer lockHeld;
+    private final Counter[] optimisticReads;
+    private final Counter[] optimisticFailures;
+    private final Counter[] lockedReads;
+    private final DistributionSummary shifted;
+    private final DistributionSummary areaScanned;
+    private final DistributionSummary areaReturned;
+
+    public WidgetRepositoryMetrics(MeterRegistry registry) {
+        this.enabled = true;
+        this.registry = registry;
+        this.lockWait = Timer.builder("widgets.repository.lock.wait")
+                .description("Wait for the write lock")
+                .register(registry);
+        this.lockHeld = Timer.builder("widgets.repository.lock.held")
+                .description("Time the write lock is held")
+                .register(registry);
+        this.optimisticReads = new Counter[Read.values().length];
+        this.optimisticFailures = new Counter[Read.values().length];
+        this.lockedReads = new Counter[Read.values().length];
+        for (Read read : Read.values()) {
+            optimisticReads[read.ordinal()] = Counter.builder("widgets.repository.optimistic.reads")
+                    .description("Reads tried without lock")
+                    .tag("method", read.method)
+                    .register(registry);
+            optimisticFailures[read.ordinal()] = Counter.builder("widgets.repository.optimistic.failures")
+                    .description("Optimistic reads made again under the read lock")
+                    .tag("method", read.method)
+                    .register(registry);
+            lockedReads[read.ordinal()] = Counter.builder("widgets.repository.locked.reads")
+                    .description("Reads made under the read lock without trying, the optimistic ones failing too often")
+                    .tag("method", read.method)
+                    .register(registry);
+        }
+        this.shifted = DistributionSummary.builder("widgets.repository.shifted")
+                .description("Widgets shifted by a save")
+                .baseUnit("widgets")
+                .register(registry);
+        this.areaScanned = DistributionSummary.builder("widgets.repository.area.scanned")
+                .description("Widgets compared with the area of a query")
+                .baseUnit("widgets")
+                .register(registry);
+        this.areaReturned = DistributionSummary.builder("widgets.repository.area.returned")
+                .description("Widgets in the area of a query")
+                .baseUnit("widgets")
+                .register(registry);
+    }
+
+    private WidgetRepositoryMetrics() {
+        this.enabled = false;
+        this.registry = null;
+        this.lockWait = null;
+        this.lockHeld = null;
+        this.optimisticReads = null;
+        this.optimisticFailures = null;
+        this.lockedReads = null;
+        this.shifted = null;
+        this.areaScanned = null;
+        this.areaReturned = null;
+    }
+
+    /* the time in nanoseconds, 0 if nothing is recorded */
+    long clock() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    void lockAcquired(long requested, long acquired) {
+        if (enabled) {
+            lockWait.record(acquired - requested, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    void lockReleased(long acquired, long released) {
+        if (enabled) {
+            lockHeld.record(released - acquired, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    void optimisticRead(Read read) {
+        if (enabled) {
+            optimisticReads[read.ordinal()].increment();
+        }
+    }
+
+    void optimisticReadFailed(Read read) {
+        if (enabled) {
+            optimisticFailures[read.ordinal()].increment();
+        }
+    }
+
+    void lockedRead(Read read) {
+        if (enabled) {
+            lockedReads[read.ordinal()].increment();
+        }
+    }
+
+    /* the recent failure rate of the optimistic reads, as decided by the repository */
+    <T> void failureRate(Read read, T strategy, ToDoubleFunction<T> rate) {
+        if (enabled) {
+            Gauge.builder("widgets.repository.optimistic.failure.rate", strategy, rate)
+                    .description("Recent failure rate of the optimistic reads")
+                    .tag("method", read.method)
+                    .register(registry);
+        }
+    }
+
+    void saved(int shiftedWidgets) {
+        if (enabled) {
+            shifted.record(shiftedWidgets);
+        }
+    }
+
+    void areaSearched(int scanned, int returned) {
+        if (enabled) {
+            areaScanned.record(scanned);
+            areaReturned.record(returned);
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package com.miro;
+
+import com.miro.entities.Point;
+import com.miro.entities.Widget;
+import com.miro.entities.WidgetChange;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+** The rendered responses of the last queries of a page or an area of the widgets, least recently used first.
+** A response is kept with the version of the change feed read before its query, the writers never touch the cache:
+** when the response is found, the changes published since then are compared with its widgets, its area and its range
+** of z-index. The response is dropped only if one of them changes it, otherwise it is served and its version moves on.
+** A response with more than MAX_PENDING changes to compare is dropped as well.
+*/
+public class WidgetResponseCache {
+
+    private static final int MAX_PENDING = 256;
+    /* a larger response is not kept */
+    private static final int MAX_WIDGETS = 1000;
+
+    /* the response of a query, rendered once */
+    public static final class Response {
+        private final byte[] body;
+        /* the cursor of the next page, if any */
+        private final String cursor;
+
+        public Response(byte[] body, String cursor) {
+            this.body = body;
+            this.cursor = cursor;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        public String getCursor() {
+            return cursor;
+        }
+    }
+
+    private static final class Entry {
+        final Response response;
+        final Point lowerLeft;
+        final Point upperRight;
+        final boolean paged;
+        /* a full page: a widget added above it goes to the next page */
+        final boolean full;
+        final Set<Long> ids = new HashSet<>();
+        final int minZIndex;
+        final int maxZIndex;
+        /* the changes up to this version have been compared */
+        volatile long version;
+
+        Entry(Response response, SortedSet<Widget> widgets, Point lowerLeft, Point upperRight, Integer pageSize,
+                long version) {
+            this.response = response;
+            this.lowerLeft = lowerLeft;
+            this.upperRight = upperRight;
+            this.paged = pageSize != null;
+            this.full = paged && widgets.size() == pageSize;
+            for (Widget widget : widgets) {
+                ids.add(widget.getId());
+            }
+            this.minZIndex = widgets.isEmpty() ? Integer.MAX_VALUE : widgets.first().getzIndex();
+            this.maxZIndex = widgets.isEmpty() ? Integer.MIN_VALUE : widgets.last().getzIndex();
+            this.version = version;
+        }
+
+        boolean changedBy(WidgetChange change) {
+            switch (change.getType()) {
+                case CLEAR:
+                    return !ids.isEmpty();
+                case SHIFT:
+                    return change.getzIndex() <= maxZIndex;
+                case DELETE:
+                    // a widget removed before the page moves the page
+                    return ids.contains(change.getId()) || (paged && !ids.isEmpty() && change.getzIndex() < minZIndex);
+                case UPDATE:
+                    return ids.contains(change.getId()) || (lowerLeft != null && added(change.getWidget()));
+                case INSERT:
+                    return added(change.getWidget());
+                default:
+                    return true;
+            }
+        }
+
+        /* true if the widget is part of the response once added */
+        private boolean added(Widget widget) {
+            if (lowerLeft != null && !inArea(widget)) {
+                return false;
+            }
+            return !paged || !full || widget.getzIndex() <= maxZIndex;
+        }
+
+        private boolean inArea(Widget widget) {
+            return widget.getX() >= lowerLeft.getX() &&
+                   widget.getX() + widget.getWidth() <= upperRight.getX() &&
+                   widget.getY() >= lowerLeft.getY() &&
+                   widget.getY() + widget.getHeight() <= upperRight.getY();
+        }
+    }
+
+    private final ChangeFeed feed;
+    private final Map<String, Entry> entries;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public WidgetResponseCache(ChangeFeed feed, int capacity) {
+        this.feed = feed;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > capacity) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /* the key of a query, the same for the same widgets */
+    public static String key(Integer pageSize, Integer page, Point lowerLeft, Point upperRight) {
+        StringBuilder key = new StringBuilder();
+        if (pageSize != null) {
+            key.append(pageSize).append('/').append(page == null ? 1 : page);
+        }
+        if (lowerLeft != null && upperRight != null) {
+            key.append('@').append(lowerLeft.getX()).append(',').append(lowerLeft.getY())
+               .append(':').append(upperRight.getX()).append(',').append(upperRight.getY());
+        }
+        return key.toString();
+    }
+
+    /* to be read before the query of a response to keep */
+    public long version() {
+        return feed.version();
+    }
+
+    /* the response of the query, null if it is not kept or if it has changed */
+    public Response get(String key) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        long version = entry.version;
+        List<WidgetChange> changes = feed.read(version, MAX_PENDING);
+        boolean changed = changes == null || changes.size() == MAX_PENDING;
+        for (int i = 0; !changed && i < changes.size(); i++) {
+            changed = entry.changedBy(changes.get(i));
+        }
+        if (changed) {
+            synchronized (entries) {
+                entries.remove(key, entry);
+            }
+            invalidations.increment();
+            misses.increment();
+            return null;
+        }
+        if (!changes.isEmpty()) {
+            entry.version = changes.get(changes.size() - 1).getVersion();
+        }
+        hits.increment();
+        return entry.response;
+    }
+
+    /* keeps the response of the query, rendered from the widgets read after the given version */
+    public void put(String key, long version, SortedSet<Widget> widgets, Integer pageSize, Point lowerLeft,
+            Point upperRight, Response response) {
+        if (widgets.size() > MAX_WIDGETS) {
+            return;
+        }
+        Entry entry = new Entry(response, widgets, lowerLeft, upperRight, pageSize, version);
+        synchronized (entries) {
+            entries.put(key, entry);
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /* the counters of the cache as meters of the registry, read when the registry is scraped */
+    public void register(MeterRegistry registry) {
+        FunctionCounter.builder("widgets.response.cache.hits", this, WidgetResponseCache::hits)
+                .description("Responses served from the cache")
+                .register(registry);
+        FunctionCounter.builder("widgets.response.cache.misses", this, WidgetResponseCache::misses)
+                .description("Responses not found in the cache, or dropped since they have changed")
+                .register(registry);
+        FunctionCounter.builder("widgets.response.cache.invalidations", this, WidgetResponseCache::invalidations)
+                .description("Responses dropped since the widgets have changed")
+                .register(registry);
+        FunctionCounter.builder("widgets.response.cache.evictions", this, WidgetResponseCache::evictions)
+                .description("Responses dropped, least recently used, to keep the size of the cache")
+                .register(registry);
+        Gauge.builder("widgets.response.cache.size", this, WidgetResponseCache::size)
+                .description("Responses in the cache")
+                .register(registry);
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long invalidations() {
+        return invalidations.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public double hitRate() {
+        long hits = hits();
+        long total = hits + misses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+}
@@ -0,0 +1,544 @@
+package com.miro;
+
+import com.miro.entities.Point;
+import com.miro.entities.Widget;
+import com.miro.entities.WidgetBatch;
+import com.miro.entities.WidgetChange;
+import com.miro.index.DenseZOrder;
+import com.miro.index.LongObjectMap;
+import com.miro.index.WidgetRTree;
+import com.miro.index.ZOrder;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+
+/*
+** Repository partitioned in shards (by id): each shard has its own lock, id map and R-tree.
+** The z-order is global and has its own lock, always acquired before the lock of a shard: the writes (save, update,
+** delete) hold it in write mode only while the z-order is changed, then the map and the R-tree of the shard are updated
+** holding the lock of the shard only, so the writes on different shards proceed in parallel there. An update that
+** keeps the z-index holds it in read mode only (see replace): the updates of the geometry never wait for each other
+** on different shards.
+** A widget is never changed once it is stored, except its z-index by a shift: an update stores the new version of the
+** widget in its place, a reader never sees a part of it. A query by area is consistent shard by shard: each shard is
+** searched holding its own lock only, the widgets found are ordered by z-index once the z-order is known not to have
+** changed meanwhile (see read).
+** The changes are passed to the listener (if any) holding the lock of the z-order in write mode if they change it,
+** holding the lock of the shard otherwise: in the order the z-order, and each widget, are changed.
+*/
+public class WidgetShardedRepository implements WidgetRepository {
+
+    public static final int DEFAULT_SHARDS = 16;
+
+    /* checks the optimistic reads every VALIDATE_INTERVAL widgets scanned (a power of two) */
+    private static final int VALIDATE_INTERVAL = 64;
+    /* thrown to give up an optimistic read, without stack trace */
+    private static final RuntimeException INVALIDATED =
+            new RuntimeException("optimistic read invalidated", null, false, false) {};
+
+    /* a query, run without the lock of the z-order if 'zStamp' is not 0 (see checkValid) */
+    private interface Query<T> {
+        T run(long zStamp);
+    }
+
+    private static final class Shard {
+        final StampedLock sl = new StampedLock();
+        /* finds by id in constant time on average, the ids are not boxed */
+        final LongObjectMap<Widget> widgetsMap = new LongObjectMap<>();
+        /* R-tree over the bounding boxes of the widgets of this shard */
+        final WidgetRTree widgetsArea = new WidgetRTree();
+    }
+
+    private final Shard[] shards;
+    /* guards the z-order, it is always acquired before the lock of a shard */
+    private final StampedLock zLock = new StampedLock();
+    private final ZOrder widgetsZIndex = new DenseZOrder();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong version = new AtomicLong();
+    /* receives the changes, null if none (see setChangeListener) */
+    private volatile WidgetChangeListener listener;
+
+    public WidgetShardedRepository() {
+        this(DEFAULT_SHARDS);
+    }
+
+    /* the number of shards must be a power of two */
+    public WidgetShardedRepository(int numShards) {
+        if (numShards <= 0 || Integer.bitCount(numShards) != 1) {
+            throw new IllegalArgumentException("The number of shards must be a power of two: " + numShards);
+        }
+        shards = new Shard[numShards];
+        for (int i = 0; i < numShards; i++) {
+            shards[i] = new Shard();
+        }
+    }
+
+    private Shard shard(long id) {
+        // the ids are sequential, consecutive widgets go to different shards
+        return shards[(int) (id & (shards.length - 1))];
+    }
+
+    @Override
+    public void save(Widget widget) {
+        saveInternal(widget);
+    }
+
+    /* inserts the widget in the z-order (shifting the others if needed), replacing the widget with the same id if any */
+    private void saveInternal(Widget widget) {
+        Shard shard;
+        Widget stored;
+        long stamp;
+        long zStamp = zLock.writeLock();
+        try {
+            if (widget.getzIndex() == null) {
+                widget.setzIndex(getNextZIndex());
+            }
+            // the Id is already set in case of update
+            if (widget.getId() == null) {
+                widget.setId(sequence.incrementAndGet());
+            }
+            widget.setModificationDate(WidgetClock.now());
+            shard = shard(widget.getId());
+            // the shard is locked before the z-order is released: a reader never finds the widget missing from its shard
+            stamp = shard.sl.writeLock();
+            stored = shard.widgetsMap.get(widget.getId());
+            if (stored != null) {
+                widgetsZIndex.remove(stored);
+            }
+            int shifted = widgetsZIndex.insert(widget);
+            WidgetChangeListener listener = this.listener;
+            if (listener != null) {
+                // the readers of the widget wait for the lock of the shard, held until it is stored there
+                if (stored != null) {
+                    listener.changed(WidgetChange.delete(stored));
+                }
+                if (shifted > 0) {
+                    listener.changed(WidgetChange.shift(widget.getzIndex()));
+                }
+                listener.changed(WidgetChange.insert(widget));
+            }
+        } finally {
+            zLock.unlockWrite(zStamp);
+        }
+        try {
+            if (stored != null) {
+                shard.widgetsArea.remove(stored);
+            }
+            shard.widgetsMap.put(widget.getId(), widget);
+            shard.widgetsArea.insert(widget);
+            version.incrementAndGet();
+        } finally {
+            shard.sl.unlockWrite(stamp);
+        }
+    }
+
+    /* the new version replaces the stored widget, with the same id, as a save would do */
+    @Override
+    public void update(Widget widget, Widget newWidget) {
+        if (newWidget.getzIndex() == null || !replace(newWidget)) {
+            saveInternal(newWidget);
+        }
+    }
+
+    /*
+    ** Replaces the stored widget by its new version if the z-index is the same, returns false otherwise: the z-order
+    ** only swaps the widget of its node (see ZOrder.replace), the lock of the z-order is held in read mode to keep
+    ** the z-index from being shifted meanwhile.
+    */
+    private boolean replace(Widget widget) {
+        Shard shard = shard(widget.getId());
+        long zStamp = zLock.readLock();
+        try {
+            long stamp = shard.sl.writeLock();
+            try {
+                Widget stored = shard.widgetsMap.get(widget.getId());
+                if (stored == null || !stored.getzIndex().equals(widget.getzIndex())) {
+                    return false;
+                }
+                widget.setModificationDate(WidgetClock.now());
+                widgetsZIndex.replace(stored, widget);
+                shard.widgetsArea.remove(stored);
+                shard.widgetsMap.put(widget.getId(), widget);
+                shard.widgetsArea.insert(widget);
+                version.incrementAndGet();
+                WidgetChangeListener listener = this.listener;
+                if (listener != null) {
+                    listener.changed(WidgetChange.update(widget));
+                }
+                return true;
+            } finally {
+                shard.sl.unlockWrite(stamp);
+            }
+        } finally {
+            zLock.unlockRead(zStamp);
+        }
+    }
+
+    /*
+    ** all the shards are locked, as by clear: the batch can change any of them; the shifts are merged by the z-order,
+    ** the changes of the parts of the batch, if listened to, are found before (see WidgetBatchZOrder)
+    */
+    @Override
+    public void applyBatch(WidgetBatch batch) {
+        long zStamp = zLock.writeLock();
+        long[] stamps = new long[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            stamps[i] = shards[i].sl.writeLock();
+        }
+        try {
+            WidgetChangeListener listener = this.listener;
+            WidgetBatchZOrder zOrder = listener == null ? null : new WidgetBatchZOrder(widgetsZIndex, batch);
+            List<Widget> deleted = new ArrayList<>();
+            for (long id : batch.getDelete()) {
+                removeInternal(id, deleted);
+            }
+            for (Widget widget : batch.getUpdate()) {
+                removeInternal(widget.getId(), deleted);
+            }
+            List<Widget> saved = new ArrayList<>(batch.getUpdate().size() + batch.getCreate().size());
+            saved.addAll(batch.getUpdate());
+            saved.addAll(batch.getCreate());
+            LocalDateTime now = WidgetClock.now();
+            for (Widget widget : saved) {
+                // the Id is already set in case of update
+                if (widget.getId() == null) {
+                    widget.setId(sequence.incrementAndGet());
+                }
+                widget.setModificationDate(now);
+            }
+            widgetsZIndex.insertAll(saved);
+            for (Widget widget : saved) {
+                Shard shard = shard(widget.getId());
+                shard.widgetsMap.put(widget.getId(), widget);
+                shard.widgetsArea.insert(widget);
+            }
+            version.incrementAndGet();
+            if (listener != null) {
+                for (Widget widget : deleted) {
+                    listener.changed(WidgetChange.delete(widget));
+                }
+                for (int i = 0; i < zOrder.saved().size(); i++) {
+                    if (zOrder.shifts(i)) {
+                        listener.changed(WidgetChange.shift(zOrder.zIndex(i)));
+                    }
+                    listener.changed(WidgetChange.insert(zOrder.saved().get(i), zOrder.zIndex(i)));
+                }
+            }
+        } finally {
+            for (int i = shards.length - 1; i >= 0; i--) {
+                shards[i].sl.unlockWrite(stamps[i]);
+            }
+            zLock.unlockWrite(zStamp);
+        }
+    }
+
+    /*
+    ** This function has to be used holding the z-order lock and the lock of the shard of the widget,
+    ** the widget removed (if any) is added to 'deleted'
+    */
+    private void removeInternal(long id, List<Widget> deleted) {
+        Shard shard = shard(id);
+        Widget widget = shard.widgetsMap.remove(id);
+        if (widget != null) {
+            widgetsZIndex.remove(widget);
+            shard.widgetsArea.remove(widget);
+            deleted.add(widget);
+        }
+    }
+
+    @Override
+    public Optional<Widget> findById(long id) {
+        return Optional.ofNullable(findByIdOrNull(id));
+    }
+
+    @Override
+    public Widget findByIdOrNull(long id) {
+        Shard shard = shard(id);
+        Widget widget;
+        // acquire read locks only if the optimistic read "failed", the z-index can be changed by a shift
+        long zStamp = zLock.tryOptimisticRead();
+        long stamp = shard.sl.tryOptimisticRead();
+        widget = shard.widgetsMap.get(id);
+        if (!shard.sl.validate(stamp) || !zLock.validate(zStamp)) {
+            zStamp = zLock.readLock();
+            try {
+                stamp = shard.sl.readLock();
+                try {
+                    widget = shard.widgetsMap.get(id);
+                } finally {
+                    shard.sl.unlockRead(stamp);
+                }
+            } finally {
+                zLock.unlockRead(zStamp);
+            }
+        }
+        return widget;
+    }
+
+    @Override
+    public SortedSet<Widget> findAll(Integer page_size, Integer page_num) {
+        return findAll(page_size, page_num, null, null);
+    }
+
+    @Override
+    public SortedSet<Widget> findAllInRectangle(Point lowerLeft, Point upperRight) {
+        if (lowerLeft == null || upperRight == null) {
+            return widgetsZIndex.asSortedSet();
+        }
+        List<Widget> found = new ArrayList<>();
+        for (Shard shard : shards) {
+            long stamp = shard.sl.readLock();
+            try {
+                shard.widgetsArea.search(lowerLeft, upperRight, found::add);
+            } finally {
+                shard.sl.unlockRead(stamp);
+            }
+        }
+        // This return set is ordered by zIndex (natural order of Widget), a shift may be renumbering the widgets found
+        return read(zStamp -> new TreeSet<>(found));
+    }
+
+    @Override
+    public SortedSet<Widget> findAll(Integer page_size, Integer page_num, Point lowerLeft, Point upperRight) {
+        boolean pageFilter = page_num != null && page_size != null;
+        boolean areaFilter = lowerLeft != null && upperRight != null;
+        if (areaFilter) {
+            // the geometry is guarded by the locks of the shards, the area is searched in the R-trees
+            SortedSet<Widget> widgets = findAllInRectangle(lowerLeft, upperRight);
+            return pageFilter ? page(widgets, page_size, page_num) : widgets;
+        }
+
+        if (!pageFilter) {
+            return widgetsZIndex.asSortedSet();
+        }
+        return read(zStamp -> findAllInternal(page_size, page_num, zStamp));
+    }
+
+    private SortedSet<Widget> findAllInternal(int page_size, int page_num, long zStamp) {
+        int begin = (page_num * page_size) - page_size;
+        int end = page_num * page_size;
+        if (begin > widgetsZIndex.size()) {
+            /* returns an empty set if the requested page is greater than total number of pages */
+            return Collections.emptySortedSet();
+        }
+        SortedSet<Widget> ret = new TreeSet<>();
+        /* seek directly to the first widget of the page */
+        Iterator<Widget> it = widgetsZIndex.iterator(begin);
+        for (int count = begin; count < end && it.hasNext(); count++) {
+            checkValid(zStamp, count - begin);
+            ret.add(it.next());
+        }
+        return ret;
+    }
+
+    private SortedSet<Widget> page(SortedSet<Widget> widgets, int page_size, int page_num) {
+        int begin = (page_num * page_size) - page_size;
+        int end = page_num * page_size;
+        SortedSet<Widget> ret = new TreeSet<>();
+        int count = 0;
+        for (Widget widget : widgets) {
+            if (count >= end) {
+                break;
+            }
+            if (count >= begin) {
+                ret.add(widget);
+            }
+            count++;
+        }
+        return ret;
+    }
+
+    @Override
+    public SortedSet<Widget> findAllAfter(int zIndex, int size) {
+        return findAllAfter(zIndex, size, null, null);
+    }
+
+    @Override
+    public SortedSet<Widget> findAllAfter(int zIndex, int size, Point lowerLeft, Point upperRight) {
+        if (lowerLeft != null && upperRight != null) {
+            return read(zStamp -> findAllAfterInArea(zIndex, size, lowerLeft, upperRight, zStamp));
+        }
+        return read(zStamp -> findAllAfterInternal(zIndex, size, zStamp));
+    }
+
+    /* keyset pagination: seeks to the given z-index instead of counting the widgets that come before */
+    private SortedSet<Widget> findAllAfterInternal(int zIndex, int size, long zStamp) {
+        SortedSet<Widget> ret = new TreeSet<>();
+        Iterator<Widget> it = widgetsZIndex.iteratorFrom(zIndex);
+        int scanned = 0;
+        while (it.hasNext() && ret.size() < size) {
+            checkValid(zStamp, scanned++);
+            Widget widget = it.next();
+            if (widget.getzIndex() > zIndex) {
+                ret.add(widget);
+            }
+        }
+        return ret;
+    }
+
+    /*
+    ** The first widgets above the z-index among those found in the area of each shard, searched holding the lock of the
+    ** shard only: the z-indexes compared are checked not to have been shifted meanwhile after each shard.
+    */
+    private SortedSet<Widget> findAllAfterInArea(int zIndex, int size, Point lowerLeft, Point upperRight, long zStamp) {
+        TreeSet<Widget> ret = new TreeSet<>();
+        for (Shard shard : shards) {
+            long stamp = shard.sl.readLock();
+            try {
+                shard.widgetsArea.search(lowerLeft, upperRight, widget -> {
+                    if (widget.getzIndex() > zIndex) {
+                        ret.add(widget);
+                        if (ret.size() > size) {
+                            ret.pollLast();
+                        }
+                    }
+                });
+            } finally {
+                shard.sl.unlockRead(stamp);
+            }
+            checkValid(zStamp, 0);
+        }
+        return ret;
+    }
+
+    /*
+    ** Runs the query without the lock of the z-order and validates it, or runs it again holding the lock in read mode
+    ** if a writer has changed the z-order meanwhile (the inconsistent state seen may also have made it throw), as
+    ** WidgetMainRepository.read does. A scan gives up as soon as it sees the change instead of running to its end.
+    */
+    private <T> T read(Query<T> query) {
+        long zStamp = zLock.tryOptimisticRead();
+        if (zStamp != 0) {
+            try {
+                T ret = query.run(zStamp);
+                if (zLock.validate(zStamp)) {
+                    return ret;
+                }
+            } catch (RuntimeException e) {
+                // a writer may have left the z-order inconsistent: rethrown only if the read was valid
+                if (e != INVALIDATED && zLock.validate(zStamp)) {
+                    throw e;
+                }
+            }
+        }
+        zStamp = zLock.readLock();
+        try {
+            return query.run(0);
+        } finally {
+            zLock.unlockRead(zStamp);
+        }
+    }
+
+    /* gives up an optimistic read once the z-order has changed, checked every VALIDATE_INTERVAL widgets scanned */
+    private void checkValid(long zStamp, int scanned) {
+        if ((scanned & (VALIDATE_INTERVAL - 1)) == 0 && zStamp != 0 && !zLock.validate(zStamp)) {
+            throw INVALIDATED;
+        }
+    }
+
+    @Override
+    public void deleteById(long id) {
+        Shard shard = shard(id);
+        Widget widget;
+        long stamp;
+        long zStamp = zLock.writeLock();
+        try {
+            stamp = shard.sl.writeLock();
+            widget = shard.widgetsMap.get(id);
+            if (widget != null) {
+                widgetsZIndex.remove(widget);
+                WidgetChangeListener listener = this.listener;
+                if (listener != null) {
+                    listener.changed(WidgetChange.delete(widget));
+                }
+            }
+        } finally {
+            zLock.unlockWrite(zStamp);
+        }
+        try {
+            if (widget == null) {
+                /* do nothing if the widget does not exist */
+                return;
+            }
+            shard.widgetsMap.remove(id);
+            shard.widgetsArea.remove(widget);
+            version.incrementAndGet();
+        } finally {
+            shard.sl.unlockWrite(stamp);
+        }
+    }
+
+    /* This function has to be used holding the z-order lock */
+    private int getNextZIndex() {
+        int ret;
+        try {
+            ret = widgetsZIndex.lastZIndex() + 1;
+        } catch (NoSuchElementException e) {
+            ret = 1;
+        }
+        return ret;
+    }
+
+    @Override
+    public void initSequence() {
+        sequence.set(0);
+    }
+
+    @Override
+    public void initSequence(long lastId) {
+        sequence.set(lastId);
+    }
+
+    @Override
+    public long lastId() {
+        return sequence.get();
+    }
+
+    @Override
+    public int size() {
+        return widgetsZIndex.size();
+    }
+
+    @Override
+    public long version() {
+        return version.get();
+    }
+
+    @Override
+    public void clear() {
+        long zStamp = zLock.writeLock();
+        try {
+            for (Shard shard : shards) {
+                long stamp = shard.sl.writeLock();
+                try {
+                    shard.widgetsMap.clear();
+                    shard.widgetsArea.clear();
+                } finally {
+                    shard.sl.unlockWrite(stamp);
+                }
+            }
+            widgetsZIndex.clear();
+            version.incrementAndGet();
+            WidgetChangeListener listener = this.listener;
+            if (listener != null) {
+                listener.changed(WidgetChange.clear());
+            }
+        } finally {
+            zLock.unlockWrite(zStamp);
+        }
+    }
+
+    @Override
+    public void setChangeListener(WidgetChangeListener listener) {
+        this.listener = listener;
+    }
+}
@@ -0,0 +1,381 @@
+package com.miro;
+
+import com.miro.entities.Point;
+import com.miro.entities.Widget;
+import com.miro.entities.WidgetBatch;
+import com.miro.entities.WidgetChange;
+import com.miro.index.PersistentRTree;
+import com.miro.index.PersistentTreeSet;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+** Multi-version repository: the widgets are kept in persistent (immutable, structurally shared) trees,
+** grouped in a snapshot that is never modified once published.
+** Writers are serialized by a lock, build the next snapshot from the current one (copying only the paths to the
+** changed nodes) and publish it with a single volatile write.
+** Readers take the current snapshot without any lock: a query always sees one consistent version of the board,
+** and the set returned by findAll is the snapshot itself, nothing is copied.
+** The stored widgets are never modified: a shifted widget is replaced by a copy with the new z-index.
+** The changes are passed to the listener (if any) once the snapshot that contains them is published, before the
+** write lock is released.
+*/
+public class WidgetSnapshotRepository implements WidgetRepository {
+
+    private static final Comparator<Widget> BY_ID = Comparator.comparing(Widget::getId);
+
+    private static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(PersistentTreeSet.empty(BY_ID), PersistentTreeSet.empty(),
+                PersistentRTree.EMPTY, 0);
+
+        /* finds by id */
+        final PersistentTreeSet<Widget> byId;
+        /* ordered by z-index (natural order of Widget), it supports findAll, pagination and the shifts */
+        final PersistentTreeSet<Widget> byZIndex;
+        /* the z-index of the widgets in the R-tree may be outdated, the current widget is looked up by id */
+        final PersistentRTree area;
+        final long version;
+
+        Snapshot(PersistentTreeSet<Widget> byId, PersistentTreeSet<Widget> byZIndex, PersistentRTree area, long version) {
+            this.byId = byId;
+            this.byZIndex = byZIndex;
+            this.area = area;
+            this.version = version;
+        }
+
+        Widget findById(long id) {
+            return byId.find(probe(id));
+        }
+    }
+
+    private final ReentrantLock writeLock = new ReentrantLock();
+    /* the current version of the widgets, replaced (never modified) by the writers */
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+    private final AtomicLong sequence = new AtomicLong();
+    /* receives the changes while the write lock is held, null if none (see setChangeListener) */
+    private volatile WidgetChangeListener listener;
+
+    @Override
+    public void save(Widget widget) {
+        writeLock.lock();
+        try {
+            List<WidgetChange> changes = changes();
+            snapshot = saveInternal(snapshot, widget, changes);
+            publish(changes);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /* This function has to be used while holding the write lock, the changes are added to 'changes' if not null */
+    private Snapshot saveInternal(Snapshot s, Widget widget, List<WidgetChange> changes) {
+        if (widget.getzIndex() == null) {
+            widget.setzIndex(s.byZIndex.isEmpty() ? 1 : s.byZIndex.last().getzIndex() + 1);
+        }
+        // the Id is already set in case of update
+        if (widget.getId() == null) {
+            widget.setId(sequence.incrementAndGet());
+        }
+        LocalDateTime now = WidgetClock.now();
+        widget.setModificationDate(now);
+        // the caller keeps its own instance, the stored one must never change
+        Widget stored = new Widget(widget);
+
+        PersistentTreeSet<Widget> byId = s.byId;
+        PersistentTreeSet<Widget> byZIndex = s.byZIndex;
+        if (byZIndex.contains(stored)) {
+            // shifts the contiguous sequence of widgets starting at the same z-index, from the top one
+            List<Widget> shifted = new ArrayList<>();
+            int previous_z = stored.getzIndex() - 1;
+            for (Widget w : byZIndex.tailSet(stored)) {
+                if (w.getzIndex() > previous_z + 1) {
+                    break;
+                }
+                previous_z = w.getzIndex();
+                shifted.add(w);
+            }
+            for (int i = shifted.size() - 1; i >= 0; i--) {
+                Widget copy = new Widget(shifted.get(i));
+                copy.setzIndex(copy.getzIndex() + 1);
+                copy.setModificationDate(now);
+                byZIndex = byZIndex.with(copy);
+                byId = byId.with(copy);
+            }
+            if (changes != null) {
+                changes.add(WidgetChange.shift(stored.getzIndex()));
+            }
+        }
+        if (changes != null) {
+            changes.add(WidgetChange.insert(stored));
+        }
+        // replaces the lowest widget of the sequence (if any), it has already been copied one position above
+        byZIndex = byZIndex.with(stored);
+        byId = byId.with(stored);
+        return new Snapshot(byId, byZIndex, s.area.insert(stored), s.version + 1);
+    }
+
+    @Override
+    public void update(Widget widget, Widget newWidget) {
+        writeLock.lock();
+        try {
+            Snapshot s = snapshot;
+            Widget stored = s.findById(widget.getId());
+            if (stored != null) {
+                s = new Snapshot(s.byId, s.byZIndex.without(stored), s.area.remove(stored), s.version);
+            }
+            List<WidgetChange> changes = changes();
+            if (changes != null && stored != null && stored.getzIndex().equals(newWidget.getzIndex())) {
+                // the z-order does not change
+                snapshot = saveInternal(s, newWidget, null);
+                changes.add(WidgetChange.update(newWidget));
+            } else {
+                // removed first: the previous version of the widget may be in the sequence to shift
+                if (changes != null && stored != null) {
+                    changes.add(WidgetChange.delete(stored));
+                }
+                // removal and insertion are published together
+                snapshot = saveInternal(s, newWidget, changes);
+            }
+            publish(changes);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void applyBatch(WidgetBatch batch) {
+        writeLock.lock();
+        try {
+            Snapshot s = snapshot;
+            List<WidgetChange> changes = changes();
+            for (long id : batch.getDelete()) {
+                s = removeInternal(s, id, changes);
+            }
+            for (Widget widget : batch.getUpdate()) {
+                s = removeInternal(s, widget.getId(), changes);
+            }
+            for (Widget widget : batch.getUpdate()) {
+                s = saveInternal(s, widget, changes);
+            }
+            for (Widget widget : batch.getCreate()) {
+                s = saveInternal(s, widget, changes);
+            }
+            // the widgets saved later in the batch may have shifted the ones saved before
+            for (List<Widget> widgets : List.of(batch.getUpdate(), batch.getCreate())) {
+                for (Widget widget : widgets) {
+                    Widget stored = s.findById(widget.getId());
+                    widget.setzIndex(stored.getzIndex());
+                    widget.setModificationDate(stored.getModificationDate());
+                }
+            }
+            // the whole batch is published at once
+            snapshot = s;
+            publish(changes);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public Optional<Widget> findById(long id) {
+        return Optional.ofNullable(findByIdOrNull(id));
+    }
+
+    @Override
+    public Widget findByIdOrNull(long id) {
+        return snapshot.findById(id);
+    }
+
+    @Override
+    public SortedSet<Widget> findAll(Integer page_size, Integer page_num) {
+        return findAll(page_size, page_num, null, null);
+    }
+
+    @Override
+    public SortedSet<Widget> findAllInRectangle(Point lowerLeft, Point upperRight) {
+        Snapshot s = snapshot;
+        if (lowerLeft == null || upperRight == null) {
+            return s.byZIndex;
+        }
+        // This return set is ordered by zIndex (natural order of Widget)
+        SortedSet<Widget> ret = new TreeSet<>();
+        s.area.search(lowerLeft, upperRight, widget -> ret.add(s.findById(widget.getId())));
+        return ret;
+    }
+
+    @Override
+    public SortedSet<Widget> findAll(Integer page_size, Integer page_num, Point lowerLeft, Point upperRight) {
+        Snapshot s = snapshot;
+        boolean pageFilter = page_num != null && page_size != null;
+        boolean areaFilter = lowerLeft != null && upperRight != null;
+        if (!pageFilter && !areaFilter) {
+            return s.byZIndex;
+        }
+
+        int begin = 0;
+        int end = s.byZIndex.size();
+        /* support for pagination */
+        if (pageFilter) {
+            begin = (page_num * page_size) - page_size;
+            end = page_num * page_size;
+        }
+        if (begin > s.byZIndex.size()) {
+            /* returns an empty set if the requested page is greater than total number of pages */
+            return Collections.emptySortedSet();
+        }
+
+        SortedSet<Widget> ret = new TreeSet<>();
+        if (!areaFilter) {
+            /* seek directly to the first widget of the page */
+            Iterator<Widget> it = s.byZIndex.iterator(begin);
+            for (int count = begin; count < end && it.hasNext(); count++) {
+                ret.add(it.next());
+            }
+            return ret;
+        }
+        int count = 0;
+        for (Widget widget : s.byZIndex) {
+            if (!includeWidget(widget, lowerLeft, upperRight)) {
+                continue;
+            }
+            if (count < begin) {
+                count++;
+                continue;
+            }
+            if (count >= end) {
+                break;
+            }
+            ret.add(widget);
+            count++;
+        }
+        return ret;
+    }
+
+    /* keyset pagination: seeks to the given z-index instead of counting the widgets that come before */
+    @Override
+    public SortedSet<Widget> findAllAfter(int zIndex, int size) {
+        return findAllAfter(zIndex, size, null, null);
+    }
+
+    @Override
+    public SortedSet<Widget> findAllAfter(int zIndex, int size, Point lowerLeft, Point upperRight) {
+        SortedSet<Widget> ret = new TreeSet<>();
+        boolean areaFilter = lowerLeft != null && upperRight != null;
+        Iterator<Widget> it = snapshot.byZIndex.tailSet(new Widget(null, null, null, null, zIndex)).iterator();
+        while (it.hasNext() && ret.size() < size) {
+            Widget widget = it.next();
+            if (widget.getzIndex() > zIndex && (!areaFilter || includeWidget(widget, lowerLeft, upperRight))) {
+                ret.add(widget);
+            }
+        }
+        return ret;
+    }
+
+    private boolean includeWidget(Widget widget, Point lowerLeft, Point upperRight) {
+        return (widget.getX() >= lowerLeft.getX()) &&
+               (widget.getX() + widget.getWidth() <= upperRight.getX()) &&
+               (widget.getY() >= lowerLeft.getY()) &&
+               (widget.getY() + widget.getHeight() <= upperRight.getY());
+    }
+
+    @Override
+    public void deleteById(long id) {
+        writeLock.lock();
+        try {
+            List<WidgetChange> changes = changes();
+            snapshot = removeInternal(snapshot, id, changes);
+            publish(changes);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /* This function has to be used while holding the write lock, the changes are added to 'changes' if not null */
+    private Snapshot removeInternal(Snapshot s, long id, List<WidgetChange> changes) {
+        Widget widget = s.findById(id);
+        if (widget == null) {
+            /* do nothing if the widget does not exist */
+            return s;
+        }
+        if (changes != null) {
+            changes.add(WidgetChange.delete(widget));
+        }
+        return new Snapshot(s.byId.without(widget), s.byZIndex.without(widget), s.area.remove(widget), s.version + 1);
+    }
+
+    @Override
+    public void initSequence() {
+        sequence.set(0);
+    }
+
+    @Override
+    public void initSequence(long lastId) {
+        sequence.set(lastId);
+    }
+
+    @Override
+    public long lastId() {
+        return sequence.get();
+    }
+
+    @Override
+    public int size() {
+        return snapshot.byId.size();
+    }
+
+    @Override
+    public long version() {
+        return snapshot.version;
+    }
+
+    @Override
+    public void clear() {
+        writeLock.lock();
+        try {
+            snapshot = new Snapshot(Snapshot.EMPTY.byId, Snapshot.EMPTY.byZIndex, Snapshot.EMPTY.area,
+                    snapshot.version + 1);
+            WidgetChangeListener listener = this.listener;
+            if (listener != null) {
+                listener.changed(WidgetChange.clear());
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void setChangeListener(WidgetChangeListener listener) {
+        this.listener = listener;
+    }
+
+    /* the list the changes of a write are collected in, null if they are not listened to */
+    private List<WidgetChange> changes() {
+        return listener == null ? null : new ArrayList<>(2);
+    }
+
+    /* This function has to be used while holding the write lock, once the snapshot with the changes is published */
+    private void publish(List<WidgetChange> changes) {
+        WidgetChangeListener listener = this.listener;
+        if (changes != null && listener != null) {
+            for (WidgetChange change : changes) {
+                listener.changed(change);
+            }
+        }
+    }
+
+    private static Widget probe(long id) {
+        Widget widget = new Widget(null, null, null, null, null);
+        widget.setId(id);
+        return widget;
+    }
+}
@@ -0,0 +1,161 @@
+package com.miro;
+
+import com.miro.entities.Point;
+import com.miro.entities.Widget;
+import com.miro.entities.WidgetBatch;
+import com.miro.index.WidgetTilePyramid;
+
+import java.util.Optional;
+import java.util.SortedSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+** Keeps a tile pyramid (see WidgetTilePyramid) in step with a repository: every change is applied to the repository,
+** then to the pyramid, holding a lock so that both see the changes in the same order (the updates that keep the
+** z-index come in parallel from the change feed above, they are ordered here). A batch is applied to the pyramid
+** at once too. The widgets loaded or replayed at startup go through it. The reads go straight to the repository.
+** Every change costs MAX_LEVEL + 1 tiles and this lock: the clusters are disabled by default.
+*/
+public class WidgetTiledRepository implements WidgetRepository, AutoCloseable {
+
+    private final WidgetRepository repository;
+    private final WidgetTilePyramid tiles;
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    public WidgetTiledRepository(WidgetRepository repository, WidgetTilePyramid tiles) {
+        this.repository = repository;
+        this.tiles = tiles;
+        tiles.clear();
+        for (Widget widget : repository.findAll(null, null)) {
+            tiles.insert(widget);
+        }
+    }
+
+    @Override
+    public void save(Widget widget) {
+        writeLock.lock();
+        try {
+            repository.save(widget);
+            tiles.insert(widget);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void update(Widget widget, Widget newWidget) {
+        writeLock.lock();
+        try {
+            repository.update(widget, newWidget);
+            tiles.insert(newWidget);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void applyBatch(WidgetBatch batch) {
+        writeLock.lock();
+        try {
+            repository.applyBatch(batch);
+            tiles.applyBatch(batch);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void deleteById(long id) {
+        writeLock.lock();
+        try {
+            repository.deleteById(id);
+            tiles.remove(id);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        writeLock.lock();
+        try {
+            repository.clear();
+            tiles.clear();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public Optional<Widget> findById(long id) {
+        return repository.findById(id);
+    }
+
+    @Override
+    public Widget findByIdOrNull(long id) {
+        return repository.findByIdOrNull(id);
+    }
+
+    @Override
+    public SortedSet<Widget> findAll(Integer size, Integer page) {
+        return repository.findAll(size, page);
+    }
+
+    @Override
+    public SortedSet<Widget> findAllInRectangle(Point lowerLeft, Point upperRight) {
+        return repository.findAllInRectangle(lowerLeft, upperRight);
+    }
+
+    @Override
+    public SortedSet<Widget> findAll(Integer size, Integer page, Point lowerLeft, Point upperRight) {
+        return repository.findAll(size, page, lowerLeft, upperRight);
+    }
+
+    @Override
+    public SortedSet<Widget> findAllAfter(int zIndex, int size) {
+        return repository.findAllAfter(zIndex, size);
+    }
+
+    @Override
+    public SortedSet<Widget> findAllAfter(int zIndex, int size, Point lowerLeft, Point upperRight) {
+        return repository.findAllAfter(zIndex, size, lowerLeft, upperRight);
+    }
+
+    @Override
+    public void initSequence() {
+        repository.initSequence();
+    }
+
+    @Override
+    public void initSequence(long lastId) {
+        repository.initSequence(lastId);
+    }
+
+    @Override
+    public long lastId() {
+        return repository.lastId();
+    }
+
+    @Override
+    public int size() {
+        return repository.size();
+    }
+
+    @Override
+    public long version() {
+        return repository.version();
+    }
+
+    @Override
+    public void setChangeListener(WidgetChangeListener listener) {
+        repository.setChangeListener(listener);
+    }
+
+    /* closes the repository below, called by Spring when the application stops */
+    @Override
+    public void close() throws Exception {
+        if (repository instanceof AutoCloseable) {
+            ((AutoCloseable) repository).close();
+        }
+    }
+}
@@ -0,0 +1,410 @@
+package com.miro;
+
+import com.miro.entities.Widget;
+import com.miro.index.SlotWidgetStore;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/*
+** Append-only log of the changes of the widgets, written through a FileChannel with group commit:
+** the records are appended to a buffer in memory, a flusher thread writes all the records pending and forces them
+** to disk with a single fsync.
+** - syncWrites false: the flusher waits fsyncIntervalMillis after the first pending record, so many records share
+**   the same fsync; a crash loses at most the records of the last interval, but a write never waits for the disk.
+** - syncWrites true: a write returns only when its record is on disk (see awaitDurable); the records appended while
+**   an fsync is running are forced together by the next one.
+** Every record has the length and the CRC32 of its content: the records after a torn or corrupted one (crash during
+** a write) are discarded when the log is opened, only in the last segment: a closed segment has been forced to disk
+** entirely, it cannot be replayed if it is not valid up to its end.
+** The log is split in numbered segments (files <base>.<number>): rollover closes the current segment, so that
+** the closed ones can be merged into a checkpoint and deleted (see WidgetCheckpoint).
+*/
+public class WriteAheadLog implements AutoCloseable {
+
+    static final byte SAVE = 1;
+    static final byte UPDATE = 2;
+    static final byte DELETE = 3;
+    static final byte CLEAR = 4;
+    /* a widget saved without z-index, on top of the others */
+    static final byte SAVE_ON_TOP = 5;
+
+    /* length and CRC32 of the content of the record */
+    private static final int HEADER_SIZE = 8;
+    /* type, id, x, y, width, height, z-index (0 for SAVE_ON_TOP), modification date (epoch microseconds, UTC) */
+    private static final int MAX_CONTENT_SIZE = 1 + 8 + 5 * 4 + 8;
+    /* type, id (DELETE, CLEAR) */
+    private static final int MIN_CONTENT_SIZE = 1 + 8;
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    /* the writers wait for the flusher beyond this size of records pending */
+    private static final int MAX_BUFFER_SIZE = 8 * 1024 * 1024;
+
+    /* applies a record while the log is read, the widget is null for DELETE and CLEAR, its z-index for SAVE_ON_TOP */
+    interface Replayer {
+        void apply(byte type, long id, Widget widget);
+    }
+
+    private final Path base;
+    /* the segment written, replaced by rollover while there are no records pending */
+    private FileChannel channel;
+    private long segment;
+    /* no record in the segment written, those replayed when the log was opened included */
+    private boolean segmentEmpty;
+    /* the first segment not deleted yet (see deleteSegments) */
+    private long firstSegment;
+    private final long fsyncIntervalMillis;
+    private final boolean syncWrites;
+    private final ReentrantLock lock = new ReentrantLock();
+    /* signaled to the flusher when there are records to write */
+    private final Condition pending = lock.newCondition();
+    /* signaled to the writers when records are on disk */
+    private final Condition flushed = lock.newCondition();
+    private final CRC32 crc = new CRC32();
+    /* the writers append to buffer, the flusher writes spare: they are swapped by the flusher */
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private ByteBuffer spare = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    /* number of the last record appended, and of the last record on disk */
+    private long appended;
+    private long synced;
+    /* set when the records pending must be written without waiting for the end of the batching window */
+    private boolean flushNow;
+    private IOException failure;
+    private boolean closed;
+    private final Thread flusher;
+
+    /*
+    ** opens the log and replays the records of the segments from firstSegment on (the previous ones are deleted,
+    ** they are already in the checkpoint), then the new records are appended to the last segment
+    */
+    public WriteAheadLog(Path base, long firstSegment, long fsyncIntervalMillis, boolean syncWrites,
+                         Replayer replayer) throws IOException {
+        if (fsyncIntervalMillis < 0) {
+            throw new IllegalArgumentException("The fsync interval cannot be negative: " + fsyncIntervalMillis);
+        }
+        this.base = base;
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+        this.syncWrites = syncWrites;
+        this.firstSegment = firstSegment;
+        segment = firstSegment;
+        for (long number : segments(base)) {
+            if (number < firstSegment) {
+                Files.delete(segment(base, number));
+            } else {
+                segment = number;
+            }
+        }
+        long last = segment;
+        for (long number = firstSegment; number < last; number++) {
+            replay(segment(base, number), replayer);
+        }
+        channel = FileChannel.open(segment(base, last), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        long end = replay(channel, replayer);
+        // discards what follows the last valid record
+        channel.truncate(end);
+        channel.position(end);
+        segmentEmpty = end == 0;
+        flusher = new Thread(this::flushLoop, "widgets-wal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /* appends a record and returns its number, to be passed to awaitDurable */
+    long append(byte type, long id, Widget widget) {
+        lock.lock();
+        try {
+            checkFailure();
+            while (buffer.position() + HEADER_SIZE + MAX_CONTENT_SIZE > MAX_BUFFER_SIZE && failure == null) {
+                flushNow = true;
+                pending.signal();
+                flushed.awaitUninterruptibly();
+            }
+            checkFailure();
+            if (buffer.remaining() < HEADER_SIZE + MAX_CONTENT_SIZE) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.min(buffer.capacity() * 2, MAX_BUFFER_SIZE));
+                buffer.flip();
+                buffer = larger.put(buffer);
+            }
+            boolean wasEmpty = buffer.position() == 0;
+            int start = buffer.position();
+            buffer.position(start + HEADER_SIZE);
+            buffer.put(type).putLong(id);
+            if (widget != null) {
+                buffer.putInt(widget.getX()).putInt(widget.getY()).putInt(widget.getWidth()).putInt(widget.getHeight())
+                        .putInt(type == SAVE_ON_TOP ? 0 : widget.getzIndex())
+                        .putLong(SlotWidgetStore.toMicros(widget.getModificationDate()));
+            }
+            int length = buffer.position() - start - HEADER_SIZE;
+            crc.reset();
+            crc.update(buffer.array(), start + HEADER_SIZE, length);
+            buffer.putInt(start, length);
+            buffer.putInt(start + 4, (int) crc.getValue());
+            if (wasEmpty || syncWrites) {
+                pending.signal();
+            }
+            segmentEmpty = false;
+            return ++appended;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* waits until the record is on disk, if the log is in sync mode */
+    void awaitDurable(long record) {
+        if (!syncWrites) {
+            return;
+        }
+        lock.lock();
+        try {
+            while (synced < record && failure == null) {
+                flushed.awaitUninterruptibly();
+            }
+            checkFailure();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* writes the records pending and closes the file */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            pending.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    /*
+    ** writes the records pending, then the next records go to a new segment; returns the number of the segment closed.
+    ** No record must be appended meanwhile: the caller prevents the writes (see WidgetJournaledRepository).
+    */
+    long rollover() throws IOException {
+        lock.lock();
+        try {
+            checkFailure();
+            if (synced < appended) {
+                flushNow = true;
+                pending.signal();
+            }
+            while (synced < appended && failure == null) {
+                flushed.awaitUninterruptibly();
+            }
+            checkFailure();
+            // the flusher is waiting for records, it does not use the channel
+            FileChannel next = FileChannel.open(segment(base, segment + 1), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            channel.close();
+            channel = next;
+            segmentEmpty = true;
+            return segment++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* deletes the segments up to the given one, included */
+    void deleteSegments(long last) throws IOException {
+        for (long number : segments(base)) {
+            if (number <= last) {
+                Files.delete(segment(base, number));
+            }
+        }
+        lock.lock();
+        try {
+            firstSegment = Math.max(firstSegment, last + 1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* true if no record has been logged since the segments were deleted: a checkpoint would not change */
+    boolean isIdle() {
+        lock.lock();
+        try {
+            return segment == firstSegment && segmentEmpty;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    static Path segment(Path base, long number) {
+        return base.resolveSibling(base.getFileName() + "." + number);
+    }
+
+    /* the numbers of the segments of the log, in ascending order */
+    static List<Long> segments(Path base) throws IOException {
+        Path dir = base.toAbsolutePath().getParent();
+        String prefix = base.getFileName() + ".";
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.startsWith(prefix) && name.length() > prefix.length()
+                            && name.substring(prefix.length()).chars().allMatch(Character::isDigit))
+                    .map(name -> Long.parseLong(name.substring(prefix.length())))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /* applies the records of a closed segment, throws if they are not all valid */
+    static void replay(Path segment, Replayer replayer) throws IOException {
+        try (FileChannel in = FileChannel.open(segment, StandardOpenOption.READ)) {
+            long end = replay(in, replayer);
+            if (end < in.size()) {
+                throw new IOException("The segment " + segment + " of the write-ahead log is corrupted at position "
+                        + end + " of " + in.size());
+            }
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            ByteBuffer records;
+            FileChannel out;
+            long last;
+            lock.lock();
+            try {
+                while (buffer.position() == 0 && !closed) {
+                    pending.awaitUninterruptibly();
+                }
+                if (!syncWrites && !closed && fsyncIntervalMillis > 0) {
+                    // batching window: the records appended meanwhile share the same fsync
+                    awaitQuietly(fsyncIntervalMillis);
+                }
+                if (buffer.position() == 0) {
+                    return;
+                }
+                flushNow = false;
+                records = buffer;
+                buffer = spare;
+                spare = records;
+                out = channel;
+                last = appended;
+            } finally {
+                lock.unlock();
+            }
+            IOException error = null;
+            try {
+                records.flip();
+                while (records.hasRemaining()) {
+                    out.write(records);
+                }
+                out.force(false);
+            } catch (IOException e) {
+                error = e;
+            }
+            records.clear();
+            lock.lock();
+            try {
+                if (error != null) {
+                    failure = error;
+                } else {
+                    synced = last;
+                }
+                flushed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            if (error != null) {
+                return;
+            }
+        }
+    }
+
+    /* This function has to be used holding the lock */
+    private void awaitQuietly(long millis) {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(millis);
+        while (nanos > 0 && !closed && !flushNow) {
+            try {
+                nanos = pending.awaitNanos(nanos);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /* This function has to be used holding the lock */
+    private void checkFailure() {
+        if (failure != null) {
+            throw new UncheckedIOException("The write-ahead log cannot be written", failure);
+        }
+        if (closed) {
+            throw new IllegalStateException("The write-ahead log is closed");
+        }
+    }
+
+    /* applies the valid records and returns the position following the last one */
+    private static long replay(FileChannel channel, Replayer replayer) throws IOException {
+        ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        CRC32 check = new CRC32();
+        long position = 0;
+        long size = channel.size();
+        while (position < size) {
+            in.clear();
+            channel.read(in, position);
+            in.flip();
+            int consumed = 0;
+            while (in.remaining() >= HEADER_SIZE) {
+                int start = in.position();
+                int length = in.getInt(start);
+                int expected = in.getInt(start + 4);
+                if (length != MIN_CONTENT_SIZE && length != MAX_CONTENT_SIZE) {
+                    return position + consumed;
+                }
+                if (in.remaining() < HEADER_SIZE + length) {
+                    break;
+                }
+                check.reset();
+                check.update(in.array(), start + HEADER_SIZE, length);
+                if ((int) check.getValue() != expected) {
+                    return position + consumed;
+                }
+                in.position(start + HEADER_SIZE);
+                byte type = in.get();
+                long id = in.getLong();
+                boolean withWidget = type == SAVE || type == UPDATE || type == SAVE_ON_TOP;
+                if (length != (withWidget ? MAX_CONTENT_SIZE : MIN_CONTENT_SIZE)) {
+                    return position + consumed;
+                }
+                Widget widget = null;
+                if (withWidget) {
+                    widget = new Widget(in.getInt(), in.getInt(), in.getInt(), in.getInt(), in.getInt());
+                    widget.setId(id);
+                    if (type == SAVE_ON_TOP) {
+                        widget.setzIndex(null);
+                    }
+                    widget.setModificationDate(SlotWidgetStore.fromMicros(in.getLong()));
+                }
+                replayer.apply(type, id, widget);
+                consumed += HEADER_SIZE + length;
+                in.position(start + HEADER_SIZE + length);
+            }
+            if (consumed == 0) {
+                // a truncated record at the end of the file
+                return position;
+            }
+            position += consumed;
+        }
+        return position;
+    }
+}
@@ -21,6 +21,15 @@ public class Point {
         return new Point(x, y);
     }
 
+    /* parses "x,y", used to bind the request parameters (e.g. lowerLeft=0,0) */
+    public static Point valueOf(String s) {
+        int comma = s.indexOf(',');
+        if (comma < 0) {
+            throw new IllegalArgumentException("A point is written as 'x,y', but was: " + s + ".");
+        }
+        return new Point(Integer.parseInt(s.substring(0, comma).trim()), Integer.parseInt(s.substring(comma + 1).trim()));
+    }
+
     @Override
     public String toString() {
         return "Point{" +
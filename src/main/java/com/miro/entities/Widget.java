@@ -15,6 +15,16 @@ public class Widget implements Comparable<Widget> {
     public Widget() {
     }
 
+    public Widget(Widget widget) {
+        this.id = widget.id;
+        this.x = widget.x;
+        this.y = widget.y;
+        this.width = widget.width;
+        this.height = widget.height;
+        this.zIndex = widget.zIndex;
+        this.modificationDate = widget.modificationDate;
+    }
+
     public Widget(Integer x, Integer y, Integer width, Integer height, Integer zIndex) {
         this.x = x;
         this.y = y;
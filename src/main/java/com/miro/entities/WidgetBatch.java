@@ -0,0 +1,51 @@
+package com.miro.entities;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+** Changes applied together: the widgets to delete (by id), then the widgets to update, then the widgets to create.
+** Once applied, the widgets carry their id, z-index and modification date.
+*/
+public class WidgetBatch {
+    private List<Widget> create = new ArrayList<>();
+    private List<Widget> update = new ArrayList<>();
+    private List<Long> delete = new ArrayList<>();
+
+    public WidgetBatch() {
+    }
+
+    public WidgetBatch(List<Widget> create, List<Widget> update, List<Long> delete) {
+        this.create = create;
+        this.update = update;
+        this.delete = delete;
+    }
+
+    public List<Widget> getCreate() {
+        return create;
+    }
+
+    public void setCreate(List<Widget> create) {
+        this.create = create == null ? new ArrayList<>() : create;
+    }
+
+    public List<Widget> getUpdate() {
+        return update;
+    }
+
+    public void setUpdate(List<Widget> update) {
+        this.update = update == null ? new ArrayList<>() : update;
+    }
+
+    public List<Long> getDelete() {
+        return delete;
+    }
+
+    public void setDelete(List<Long> delete) {
+        this.delete = delete == null ? new ArrayList<>() : delete;
+    }
+
+    public int size() {
+        return create.size() + update.size() + delete.size();
+    }
+}
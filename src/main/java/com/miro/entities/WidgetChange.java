@@ -0,0 +1,117 @@
+package com.miro.entities;
+
+/*
+** A change of the widgets, numbered by the version of the change feed (one more at every change).
+** Applied in order of version to the widgets as they were at the version before the first one, the changes give
+** the current widgets:
+** INSERT: the widget is added, its z-index is free at this point.
+** UPDATE: the widget with the same id is replaced, the z-index does not change.
+** DELETE: the widget with the id (and the z-index) is removed.
+** SHIFT: the widget with the z-index, and the contiguous sequence of widgets above it, are shifted upwards by one
+** (it comes before the INSERT of the widget taking the z-index).
+** CLEAR: all the widgets are removed.
+*/
+public class WidgetChange {
+
+    public enum Type {
+        INSERT,
+        UPDATE,
+        DELETE,
+        SHIFT,
+        CLEAR
+    }
+
+    private long version;
+    private Type type;
+    private Long id;
+    private Integer zIndex;
+    /* a copy of the widget as saved, for INSERT and UPDATE */
+    private Widget widget;
+
+    public WidgetChange() {
+    }
+
+    private WidgetChange(Type type, Long id, Integer zIndex, Widget widget) {
+        this.type = type;
+        this.id = id;
+        this.zIndex = zIndex;
+        this.widget = widget;
+    }
+
+    public static WidgetChange insert(Widget widget) {
+        return new WidgetChange(Type.INSERT, widget.getId(), widget.getzIndex(), new Widget(widget));
+    }
+
+    /* the widget as it was inserted, with the given z-index: the later inserts may have shifted it since */
+    public static WidgetChange insert(Widget widget, int zIndex) {
+        Widget copy = new Widget(widget);
+        copy.setzIndex(zIndex);
+        return new WidgetChange(Type.INSERT, widget.getId(), zIndex, copy);
+    }
+
+    public static WidgetChange update(Widget widget) {
+        return new WidgetChange(Type.UPDATE, widget.getId(), widget.getzIndex(), new Widget(widget));
+    }
+
+    public static WidgetChange delete(Widget widget) {
+        return new WidgetChange(Type.DELETE, widget.getId(), widget.getzIndex(), null);
+    }
+
+    public static WidgetChange shift(int zIndex) {
+        return new WidgetChange(Type.SHIFT, null, zIndex, null);
+    }
+
+    public static WidgetChange clear() {
+        return new WidgetChange(Type.CLEAR, null, null, null);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public void setType(Type type) {
+        this.type = type;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public Integer getzIndex() {
+        return zIndex;
+    }
+
+    public void setzIndex(Integer zIndex) {
+        this.zIndex = zIndex;
+    }
+
+    public Widget getWidget() {
+        return widget;
+    }
+
+    public void setWidget(Widget widget) {
+        this.widget = widget;
+    }
+
+    @Override
+    public String toString() {
+        return "WidgetChange{" +
+                "version=" + version +
+                ", type=" + type +
+                ", id=" + id +
+                ", z_index=" + zIndex +
+                '}';
+    }
+}
@@ -0,0 +1,95 @@
+package com.miro.entities;
+
+/*
+** The widgets of a tile of the level of detail (see WidgetClusters): their number, the bounding box of their bounds
+** (x, y, width, height as for a widget, it may go beyond the tile) and the mean of their centers.
+*/
+public class WidgetCluster {
+    private int count;
+    private int x;
+    private int y;
+    private long width;
+    private long height;
+    private int centerX;
+    private int centerY;
+
+    public WidgetCluster() {
+    }
+
+    public WidgetCluster(int count, int x, int y, long width, long height, int centerX, int centerY) {
+        this.count = count;
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+        this.centerX = centerX;
+        this.centerY = centerY;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public void setCount(int count) {
+        this.count = count;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public void setX(int x) {
+        this.x = x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    public void setY(int y) {
+        this.y = y;
+    }
+
+    public long getWidth() {
+        return width;
+    }
+
+    public void setWidth(long width) {
+        this.width = width;
+    }
+
+    public long getHeight() {
+        return height;
+    }
+
+    public void setHeight(long height) {
+        this.height = height;
+    }
+
+    public int getCenterX() {
+        return centerX;
+    }
+
+    public void setCenterX(int centerX) {
+        this.centerX = centerX;
+    }
+
+    public int getCenterY() {
+        return centerY;
+    }
+
+    public void setCenterY(int centerY) {
+        this.centerY = centerY;
+    }
+
+    @Override
+    public String toString() {
+        return "WidgetCluster{" +
+                "count=" + count +
+                ", x=" + x +
+                ", y=" + y +
+                ", width=" + width +
+                ", height=" + height +
+                '}';
+    }
+}
@@ -0,0 +1,86 @@
+package com.miro.entities;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+** The answer to a zoomed-out query: at most the number of items asked, whatever the number of widgets in the area.
+** If there are more widgets, 'clustered' is set: 'clusters' has the tiles of 'level' (squares of 'tileSize' units)
+** that hold widgets of the area, and 'count' the widgets of these tiles. Otherwise 'widgets' has the widgets of the area.
+*/
+public class WidgetClusters {
+    private boolean clustered;
+    private int level;
+    private long tileSize;
+    private int count;
+    private List<WidgetCluster> clusters = new ArrayList<>();
+    private List<Widget> widgets = new ArrayList<>();
+
+    public WidgetClusters() {
+    }
+
+    public static WidgetClusters of(int level, long tileSize, int count, List<WidgetCluster> clusters) {
+        WidgetClusters ret = new WidgetClusters();
+        ret.clustered = true;
+        ret.level = level;
+        ret.tileSize = tileSize;
+        ret.count = count;
+        ret.clusters = clusters;
+        return ret;
+    }
+
+    public static WidgetClusters widgets(List<Widget> widgets) {
+        WidgetClusters ret = new WidgetClusters();
+        ret.count = widgets.size();
+        ret.widgets = widgets;
+        return ret;
+    }
+
+    public boolean isClustered() {
+        return clustered;
+    }
+
+    public void setClustered(boolean clustered) {
+        this.clustered = clustered;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    public long getTileSize() {
+        return tileSize;
+    }
+
+    public void setTileSize(long tileSize) {
+        this.tileSize = tileSize;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public void setCount(int count) {
+        this.count = count;
+    }
+
+    public List<WidgetCluster> getClusters() {
+        return clusters;
+    }
+
+    public void setClusters(List<WidgetCluster> clusters) {
+        this.clusters = clusters == null ? new ArrayList<>() : clusters;
+    }
+
+    public List<Widget> getWidgets() {
+        return widgets;
+    }
+
+    public void setWidgets(List<Widget> widgets) {
+        this.widgets = widgets == null ? new ArrayList<>() : widgets;
+    }
+}
@@ -0,0 +1,67 @@
+package com.miro.entities;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+** The answer to a client that asks for the changes since a version: the changes following it, in order of version
+** (see WidgetChange), and the version they lead to.
+** If the changes are not retained anymore, 'reset' is set: 'widgets' has all the widgets as they are at 'version',
+** the client replaces its own and asks for the following changes from there.
+*/
+public class WidgetDelta {
+    private long version;
+    private boolean reset;
+    private List<WidgetChange> changes = new ArrayList<>();
+    private List<Widget> widgets = new ArrayList<>();
+
+    public WidgetDelta() {
+    }
+
+    public static WidgetDelta of(long since, List<WidgetChange> changes) {
+        WidgetDelta delta = new WidgetDelta();
+        delta.version = changes.isEmpty() ? since : changes.get(changes.size() - 1).getVersion();
+        delta.changes = changes;
+        return delta;
+    }
+
+    public static WidgetDelta reset(long version, List<Widget> widgets) {
+        WidgetDelta delta = new WidgetDelta();
+        delta.version = version;
+        delta.reset = true;
+        delta.widgets = widgets;
+        return delta;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    public boolean isReset() {
+        return reset;
+    }
+
+    public void setReset(boolean reset) {
+        this.reset = reset;
+    }
+
+    public List<WidgetChange> getChanges() {
+        return changes;
+    }
+
+    public void setChanges(List<WidgetChange> changes) {
+        this.changes = changes == null ? new ArrayList<>() : changes;
+    }
+
+    public List<Widget> getWidgets() {
+        return widgets;
+    }
+
+    public void setWidgets(List<Widget> widgets) {
+        this.widgets = widgets == null ? new ArrayList<>() : widgets;
+    }
+}
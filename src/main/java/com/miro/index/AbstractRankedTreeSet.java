@@ -0,0 +1,333 @@
+package com.miro.index;
+
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.SortedSet;
+
+/*
+** Read operations of the sorted sets backed by a weight-balanced tree in which every node keeps the size of its subtree
+** (see RankedTreeSet and PersistentTreeSet). Besides the usual SortedSet operations (same semantics of a TreeSet),
+** the sizes allow to find the element at a given rank, or the rank of an element, in O(log n): a page can be reached
+** directly instead of walking all the elements that come before it.
+** The sub-set views (headSet, tailSet, subSet) are backed by the set, but they are read-only.
+*/
+abstract class AbstractRankedTreeSet<E> extends AbstractSet<E> implements SortedSet<E> {
+
+    /* balance parameters of the weight-balanced tree (Hirai and Yamamoto) */
+    static final int DELTA = 3;
+    static final int GAMMA = 2;
+
+    static final class Node<E> {
+        E value;
+        Node<E> left;
+        Node<E> right;
+        int size = 1;
+
+        Node(E value) {
+            this.value = value;
+        }
+    }
+
+    final Comparator<? super E> comparator;
+
+    AbstractRankedTreeSet(Comparator<? super E> comparator) {
+        this.comparator = comparator;
+    }
+
+    abstract Node<E> root();
+
+    @Override
+    public boolean contains(Object o) {
+        return findNode(o) != null;
+    }
+
+    @Override
+    public int size() {
+        return size(root());
+    }
+
+    /* Returns the element at the given rank (0 is the first element) */
+    public E get(int rank) {
+        if (rank < 0 || rank >= size(root())) {
+            throw new IndexOutOfBoundsException("Rank " + rank + " out of bounds for size " + size(root()));
+        }
+        Node<E> n = root();
+        while (true) {
+            int leftSize = size(n.left);
+            if (rank < leftSize) {
+                n = n.left;
+            } else if (rank == leftSize) {
+                return n.value;
+            } else {
+                rank -= leftSize + 1;
+                n = n.right;
+            }
+        }
+    }
+
+    /* Returns the number of elements strictly lower than the given one */
+    public int rank(E e) {
+        int rank = 0;
+        Node<E> n = root();
+        while (n != null) {
+            if (compare(e, n.value) <= 0) {
+                n = n.left;
+            } else {
+                rank += size(n.left) + 1;
+                n = n.right;
+            }
+        }
+        return rank;
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        return iterator(0);
+    }
+
+    /* Iterates in ascending order starting from the element at the given rank */
+    public Iterator<E> iterator(int fromRank) {
+        Deque<Node<E>> stack = new ArrayDeque<>();
+        Node<E> n = root();
+        int rank = fromRank;
+        while (n != null) {
+            int leftSize = size(n.left);
+            if (rank < leftSize) {
+                stack.push(n);
+                n = n.left;
+            } else if (rank == leftSize) {
+                stack.push(n);
+                break;
+            } else {
+                rank -= leftSize + 1;
+                n = n.right;
+            }
+        }
+        return new TreeIterator(stack, null);
+    }
+
+    @Override
+    public Comparator<? super E> comparator() {
+        return comparator;
+    }
+
+    @Override
+    public SortedSet<E> subSet(E fromElement, E toElement) {
+        return new View(fromElement, toElement);
+    }
+
+    @Override
+    public SortedSet<E> headSet(E toElement) {
+        return new View(null, toElement);
+    }
+
+    @Override
+    public SortedSet<E> tailSet(E fromElement) {
+        return new View(fromElement, null);
+    }
+
+    @Override
+    public E first() {
+        return firstFrom(null);
+    }
+
+    @Override
+    public E last() {
+        return lastBefore(null);
+    }
+
+    /* first element >= from (or the first element if from is null) */
+    private E firstFrom(E from) {
+        Node<E> n = root();
+        E ret = null;
+        boolean found = false;
+        while (n != null) {
+            if (from == null || compare(n.value, from) >= 0) {
+                ret = n.value;
+                found = true;
+                n = n.left;
+            } else {
+                n = n.right;
+            }
+        }
+        if (!found) {
+            throw new NoSuchElementException();
+        }
+        return ret;
+    }
+
+    /* last element < to (or the last element if to is null) */
+    private E lastBefore(E to) {
+        Node<E> n = root();
+        E ret = null;
+        boolean found = false;
+        while (n != null) {
+            if (to == null || compare(n.value, to) < 0) {
+                ret = n.value;
+                found = true;
+                n = n.right;
+            } else {
+                n = n.left;
+            }
+        }
+        if (!found) {
+            throw new NoSuchElementException();
+        }
+        return ret;
+    }
+
+    private Iterator<E> iterator(E from, E to) {
+        Deque<Node<E>> stack = new ArrayDeque<>();
+        Node<E> n = root();
+        while (n != null) {
+            if (from == null || compare(n.value, from) >= 0) {
+                stack.push(n);
+                n = n.left;
+            } else {
+                n = n.right;
+            }
+        }
+        return new TreeIterator(stack, to);
+    }
+
+    Node<E> findNode(Object o) {
+        @SuppressWarnings("unchecked")
+        E e = (E) o;
+        Node<E> n = root();
+        while (n != null) {
+            int c = compare(e, n.value);
+            if (c == 0) {
+                return n;
+            }
+            n = c < 0 ? n.left : n.right;
+        }
+        return null;
+    }
+
+    static <E> void update(Node<E> n) {
+        n.size = 1 + size(n.left) + size(n.right);
+    }
+
+    static <E> int size(Node<E> n) {
+        return n == null ? 0 : n.size;
+    }
+
+    @SuppressWarnings("unchecked")
+    int compare(E e1, E e2) {
+        if (comparator != null) {
+            return comparator.compare(e1, e2);
+        }
+        return ((Comparable<? super E>) e1).compareTo(e2);
+    }
+
+    private final class TreeIterator implements Iterator<E> {
+        private final Deque<Node<E>> stack;
+        /* exclusive upper bound, null if unbounded */
+        private final E to;
+
+        TreeIterator(Deque<Node<E>> stack, E to) {
+            this.stack = stack;
+            this.to = to;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !stack.isEmpty() && (to == null || compare(stack.peek().value, to) < 0);
+        }
+
+        @Override
+        public E next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Node<E> n = stack.pop();
+            for (Node<E> c = n.right; c != null; c = c.left) {
+                stack.push(c);
+            }
+            return n.value;
+        }
+    }
+
+    /* read-only view of the elements in the range [from, to), a null bound means unbounded */
+    private final class View extends AbstractSet<E> implements SortedSet<E> {
+        private final E from;
+        private final E to;
+
+        View(E from, E to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        private boolean inRange(E e) {
+            return (from == null || compare(e, from) >= 0) && (to == null || compare(e, to) < 0);
+        }
+
+        @Override
+        public Iterator<E> iterator() {
+            return AbstractRankedTreeSet.this.iterator(from, to);
+        }
+
+        @Override
+        public int size() {
+            int begin = from == null ? 0 : rank(from);
+            int end = to == null ? AbstractRankedTreeSet.this.size() : rank(to);
+            return Math.max(0, end - begin);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean contains(Object o) {
+            return inRange((E) o) && AbstractRankedTreeSet.this.contains(o);
+        }
+
+        @Override
+        public Comparator<? super E> comparator() {
+            return comparator;
+        }
+
+        @Override
+        public SortedSet<E> subSet(E fromElement, E toElement) {
+            return new View(max(from, fromElement), min(to, toElement));
+        }
+
+        @Override
+        public SortedSet<E> headSet(E toElement) {
+            return new View(from, min(to, toElement));
+        }
+
+        @Override
+        public SortedSet<E> tailSet(E fromElement) {
+            return new View(max(from, fromElement), to);
+        }
+
+        @Override
+        public E first() {
+            E e = firstFrom(from);
+            if (to != null && compare(e, to) >= 0) {
+                throw new NoSuchElementException();
+            }
+            return e;
+        }
+
+        @Override
+        public E last() {
+            E e = lastBefore(to);
+            if (from != null && compare(e, from) < 0) {
+                throw new NoSuchElementException();
+            }
+            return e;
+        }
+
+        private E max(E e1, E e2) {
+            return e1 == null ? e2 : compare(e1, e2) >= 0 ? e1 : e2;
+        }
+
+        private E min(E e1, E e2) {
+            return e1 == null ? e2 : compare(e1, e2) <= 0 ? e1 : e2;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.miro.index;
+
+import com.miro.entities.Widget;
+
+import java.util.Arrays;
+
+/*
+** Widgets stored by column (struct of arrays): one primitive array per field, indexed by slot (see SlotWidgetStore).
+** The columns are split in pages of PAGE_SIZE slots allocated when needed: no unused capacity beyond the last page
+** and no copy of the columns when they grow, a page is never moved.
+** 72 bytes per slot and 16 to 32 bytes in the map of the slots by id (see LongIntMap), where a Widget object and
+** its boxed fields take about 200 bytes, and its entries in the indexes about 100 more.
+*/
+public class ColumnarWidgetStore extends SlotWidgetStore {
+
+    private static final int PAGE_SHIFT = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    private static final int MIN_PAGES = 16;
+
+    private static final class Page {
+        final long[] id = new long[PAGE_SIZE];
+        final int[] x = new int[PAGE_SIZE];
+        final int[] y = new int[PAGE_SIZE];
+        final int[] width = new int[PAGE_SIZE];
+        final int[] height = new int[PAGE_SIZE];
+        final int[] zIndex = new int[PAGE_SIZE];
+        /* epoch microseconds (UTC), 0 if the slot is empty */
+        final long[] modified = new long[PAGE_SIZE];
+        final int[] left = new int[PAGE_SIZE];
+        final int[] right = new int[PAGE_SIZE];
+        final int[] size = new int[PAGE_SIZE];
+        final int[] areaLeft = new int[PAGE_SIZE];
+        final int[] areaRight = new int[PAGE_SIZE];
+        final int[] areaSize = new int[PAGE_SIZE];
+        final int[] maxY = new int[PAGE_SIZE];
+        final int[] minYEnd = new int[PAGE_SIZE];
+        final int[] minXEnd = new int[PAGE_SIZE];
+    }
+
+    /* only the array of the pages is replaced when it grows, a reader always finds the pages it has seen */
+    private Page[] pages;
+
+    public ColumnarWidgetStore() {
+        super(false);
+        clear();
+    }
+
+    @Override
+    void store(int s, Widget widget, long modified) {
+        int p = s >>> PAGE_SHIFT;
+        if (p >= pages.length) {
+            pages = Arrays.copyOf(pages, Math.max(p + 1, pages.length * 2));
+        }
+        if (pages[p] == null) {
+            pages[p] = new Page();
+        }
+        Page page = pages[p];
+        int i = s & PAGE_MASK;
+        page.id[i] = widget.getId();
+        page.x[i] = widget.getX();
+        page.y[i] = widget.getY();
+        page.width[i] = widget.getWidth();
+        page.height[i] = widget.getHeight();
+        page.zIndex[i] = widget.getzIndex();
+        page.modified[i] = modified;
+    }
+
+    @Override
+    boolean isStored(int s) {
+        Page[] p = pages;
+        if ((s >>> PAGE_SHIFT) >= p.length) {
+            return false;
+        }
+        Page page = p[s >>> PAGE_SHIFT];
+        return page != null && page.modified[s & PAGE_MASK] != 0;
+    }
+
+    @Override
+    void setEmpty(int s) {
+        pages[s >>> PAGE_SHIFT].modified[s & PAGE_MASK] = 0;
+    }
+
+    @Override
+    Widget materialize(int s) {
+        Page page = pages[s >>> PAGE_SHIFT];
+        int i = s & PAGE_MASK;
+        return widget(page.id[i], page.x[i], page.y[i], page.width[i], page.height[i], page.zIndex[i], page.modified[i]);
+    }
+
+    @Override
+    void reset() {
+        pages = new Page[MIN_PAGES];
+        pages[0] = new Page();
+    }
+
+    @Override
+    long id(int n) {
+        return pages[n >>> PAGE_SHIFT].id[n & PAGE_MASK];
+    }
+
+    @Override
+    int x(int n) {
+        return pages[n >>> PAGE_SHIFT].x[n & PAGE_MASK];
+    }
+
+    @Override
+    int y(int n) {
+        return pages[n >>> PAGE_SHIFT].y[n & PAGE_MASK];
+    }
+
+    @Override
+    int width(int n) {
+        return pages[n >>> PAGE_SHIFT].width[n & PAGE_MASK];
+    }
+
+    @Override
+    int height(int n) {
+        return pages[n >>> PAGE_SHIFT].height[n & PAGE_MASK];
+    }
+
+    @Override
+    int zIndex(int n) {
+        return pages[n >>> PAGE_SHIFT].zIndex[n & PAGE_MASK];
+    }
+
+    @Override
+    int left(int n) {
+        return pages[n >>> PAGE_SHIFT].left[n & PAGE_MASK];
+    }
+
+    @Override
+    int right(int n) {
+        return pages[n >>> PAGE_SHIFT].right[n & PAGE_MASK];
+    }
+
+    @Override
+    int size(int n) {
+        return pages[n >>> PAGE_SHIFT].size[n & PAGE_MASK];
+    }
+
+    @Override
+    int areaLeft(int n) {
+        return pages[n >>> PAGE_SHIFT].areaLeft[n & PAGE_MASK];
+    }
+
+    @Override
+    int areaRight(int n) {
+        return pages[n >>> PAGE_SHIFT].areaRight[n & PAGE_MASK];
+    }
+
+    @Override
+    int areaSize(int n) {
+        return pages[n >>> PAGE_SHIFT].areaSize[n & PAGE_MASK];
+    }
+
+    @Override
+    int maxY(int n) {
+        return pages[n >>> PAGE_SHIFT].maxY[n & PAGE_MASK];
+    }
+
+    @Override
+    int minYEnd(int n) {
+        return pages[n >>> PAGE_SHIFT].minYEnd[n & PAGE_MASK];
+    }
+
+    @Override
+    int minXEnd(int n) {
+        return pages[n >>> PAGE_SHIFT].minXEnd[n & PAGE_MASK];
+    }
+
+    @Override
+    void setZIndex(int n, int value) {
+        pages[n >>> PAGE_SHIFT].zIndex[n & PAGE_MASK] = value;
+    }
+
+    @Override
+    void setLeft(int n, int value) {
+        pages[n >>> PAGE_SHIFT].left[n & PAGE_MASK] = value;
+    }
+
+    @Override
+    void setRight(int n, int value) {
+        pages[n >>> PAGE_SHIFT].right[n & PAGE_MASK] = value;
+    }
+
+    @Override
+    void setSize(int n, int value) {
+        pages[n >>> PAGE_SHIFT].size[n & PAGE_MASK] = value;
+    }
+
+    @Override
+    void setAreaLeft(int n, int value) {
+        pages[n >>> PAGE_SHIFT].areaLeft[n & PAGE_MASK] = value;
+    }
+
+    @Override
+    void setAreaRight(int n, int value) {
+        pages[n >>> PAGE_SHIFT].areaRight[n & PAGE_MASK] = value;
+    }
+
+    @Override
+    void setAreaSize(int n, int value) {
+        pages[n >>> PAGE_SHIFT].areaSize[n & PAGE_MASK] = value;
+    }
+
+    @Override
+    void setModified(int n, long value) {
+        pages[n >>> PAGE_SHIFT].modified[n & PAGE_MASK] = value;
+    }
+
+    @Override
+    void setBounds(int n, int maxY, int minYEnd, int minXEnd) {
+        Page page = pages[n >>> PAGE_SHIFT];
+        int i = n & PAGE_MASK;
+        page.maxY[i] = maxY;
+        page.minYEnd[i] = minYEnd;
+        page.minXEnd[i] = minXEnd;
+    }
+}
@@ -0,0 +1,228 @@
+package com.miro.index;
+
+import com.miro.entities.Widget;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.SortedSet;
+
+/*
+** The z-index is stored in the widgets themselves: a shift renumbers every widget of the contiguous
+** sequence above the insertion point, so it costs O(k log n) where k is the number of shifted widgets.
+*/
+public class DenseZOrder implements ZOrder {
+
+    /* Each node knows the size of its subtree, so a page is reached by rank in O(log n) */
+    private final RankedTreeSet<Widget> widgets = new RankedTreeSet<>();
+
+    @Override
+    public int insert(Widget widget) {
+        if (!widgets.contains(widget)) {
+            widgets.add(widget);
+            return 0;
+        }
+        // update z-index of following widgets (if any)
+        SortedSet<Widget> w_subset = widgets.tailSet(widget);
+        int previous_z = w_subset.first().getzIndex();
+        int shifted = 0;
+        for(Widget w : w_subset) {
+            int current_z = w.getzIndex();
+            if(current_z > previous_z + 1) {
+                break;
+            }
+            previous_z = current_z;
+            w.setzIndex(w.getzIndex() + 1);
+            // the widgets shifted are modified at the same time as the widget inserted
+            w.setModificationDate(widget.getModificationDate());
+            widgets.add(w);
+            shifted++;
+        }
+        widgets.add(widget);
+        return shifted;
+    }
+
+    /*
+    ** Same result as inserting the widgets one by one, but a widget shifted by several inserts of the batch is
+    ** renumbered (and repositioned in the tree) only once: the inserts are first applied to the z-indexes of the
+    ** affected range, read from the tree only as far as the shifts reach, then the range is written in one pass.
+    */
+    @Override
+    public void insertAll(List<Widget> batch) {
+        int from = Integer.MAX_VALUE;
+        for (Widget widget : batch) {
+            if (widget.getzIndex() != null) {
+                from = Math.min(from, widget.getzIndex());
+            }
+        }
+        if (from == Integer.MAX_VALUE) {
+            // only widgets on top, nothing is shifted
+            ZOrder.super.insertAll(batch);
+            return;
+        }
+        AffectedRange range = new AffectedRange(widgets.tailSet(new Widget(null, null, null, null, from)).iterator(),
+                widgets.isEmpty() ? 0 : widgets.last().getzIndex());
+        for (Widget widget : batch) {
+            if (widget.getzIndex() == null) {
+                range.insertOnTop(widget);
+            } else {
+                range.insert(widget);
+            }
+        }
+        // the widgets of the batch are saved at the same time, the widgets shifted with them
+        range.apply(batch.get(0).getModificationDate());
+        for (Widget widget : batch) {
+            widgets.add(widget);
+        }
+    }
+
+    /*
+    ** The widgets from the lowest z-index of a batch upwards, with their z-index after the inserts simulated so far.
+    ** The stored widgets are loaded from the tree only when an insert reaches them, the ones not loaded yet keep
+    ** their z-index, which is always greater than the z-index of the loaded ones.
+    */
+    private static final class AffectedRange {
+        private static final class Entry {
+            final Widget widget;
+            final boolean inserted;
+            int zIndex;
+
+            Entry(Widget widget, boolean inserted, int zIndex) {
+                this.widget = widget;
+                this.inserted = inserted;
+                this.zIndex = zIndex;
+            }
+        }
+
+        /* ordered by z-index, strictly increasing */
+        private final List<Entry> entries = new ArrayList<>();
+        /* widgets put on top while some stored widgets are not loaded yet, they follow them */
+        private final List<Entry> onTop = new ArrayList<>();
+        private final Iterator<Widget> stored;
+        private Widget nextStored;
+        /* the z-index of the top widget of the tree, before the batch */
+        private final int lastZIndex;
+
+        AffectedRange(Iterator<Widget> stored, int lastZIndex) {
+            this.stored = stored;
+            this.lastZIndex = lastZIndex;
+            nextStored = stored.hasNext() ? stored.next() : null;
+        }
+
+        void insert(Widget widget) {
+            int z = widget.getzIndex();
+            while (nextStored != null && nextStored.getzIndex() <= z) {
+                loadNext();
+            }
+            // the first widget with the same or a greater z-index
+            int low = 0;
+            int high = entries.size();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (entries.get(mid).zIndex < z) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            entries.add(low, new Entry(widget, true, z));
+            // shifts the contiguous sequence above, loading the stored widgets it reaches
+            for (int i = low + 1; ; i++) {
+                int previous_z = entries.get(i - 1).zIndex;
+                if (i == entries.size()) {
+                    if (nextStored == null || nextStored.getzIndex() > previous_z) {
+                        break;
+                    }
+                    loadNext();
+                }
+                Entry entry = entries.get(i);
+                if (entry.zIndex > previous_z) {
+                    break;
+                }
+                entry.zIndex = previous_z + 1;
+            }
+        }
+
+        void insertOnTop(Widget widget) {
+            int z;
+            if (!onTop.isEmpty()) {
+                z = onTop.get(onTop.size() - 1).zIndex;
+            } else if (nextStored != null || entries.isEmpty()) {
+                z = lastZIndex;
+            } else {
+                z = entries.get(entries.size() - 1).zIndex;
+            }
+            widget.setzIndex(z + 1);
+            (nextStored != null ? onTop : entries).add(new Entry(widget, true, z + 1));
+        }
+
+        private void loadNext() {
+            entries.add(new Entry(nextStored, false, nextStored.getzIndex()));
+            nextStored = stored.hasNext() ? stored.next() : null;
+            if (nextStored == null) {
+                entries.addAll(onTop);
+                onTop.clear();
+            }
+        }
+
+        /* the relative order of the stored widgets does not change, the tree stays ordered */
+        void apply(LocalDateTime date) {
+            for (List<Entry> list : List.of(entries, onTop)) {
+                for (Entry entry : list) {
+                    if (entry.inserted) {
+                        entry.widget.setzIndex(entry.zIndex);
+                    } else if (entry.widget.getzIndex() != entry.zIndex) {
+                        entry.widget.setzIndex(entry.zIndex);
+                        entry.widget.setModificationDate(date);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void remove(Widget widget) {
+        widgets.remove(widget);
+    }
+
+    @Override
+    public void replace(Widget widget, Widget newWidget) {
+        widgets.replace(newWidget);
+    }
+
+    @Override
+    public Widget materialize(Widget widget) {
+        return widget;
+    }
+
+    @Override
+    public Iterator<Widget> iterator(int fromRank) {
+        return widgets.iterator(fromRank);
+    }
+
+    @Override
+    public Iterator<Widget> iteratorFrom(int zIndex) {
+        return widgets.tailSet(new Widget(null, null, null, null, zIndex)).iterator();
+    }
+
+    @Override
+    public int lastZIndex() {
+        return widgets.last().getzIndex();
+    }
+
+    @Override
+    public SortedSet<Widget> asSortedSet() {
+        return widgets;
+    }
+
+    @Override
+    public int size() {
+        return widgets.size();
+    }
+
+    @Override
+    public void clear() {
+        widgets.clear();
+    }
+}
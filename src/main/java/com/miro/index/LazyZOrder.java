@@ -0,0 +1,433 @@
+package com.miro.index;
+
+import com.miro.entities.Widget;
+
+import java.time.LocalDateTime;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+** The widgets are kept by position in a treap (implicit key), the z-index is not rewritten in the widgets.
+** A shift adds one to the z-index of a contiguous sequence of positions: the addition is stored as a pending
+** tag on the root of that sequence and applied to the nodes below only when the treap is restructured there.
+** The end of the sequence is found by a search: along the z-index order, z-index minus rank never decreases,
+** and it is constant exactly on a contiguous sequence. Saving a widget costs O(log n) expected, shift included.
+** The z-index and the modification date of a widget are computed when it is read (see materialize),
+** the widgets returned by the queries are copies of the stored ones. The set of all the widgets is a copy too, made
+** while the caller excludes the writers: the treap is restructured by every change and cannot be read as it changes.
+*/
+public class LazyZOrder implements ZOrder {
+
+    private static final class Node {
+        Widget widget;
+        final int priority;
+        /* z-index and modification date, exact once the tags of the ancestors are applied */
+        int zIndex;
+        LocalDateTime modificationDate;
+        /* shift and modification date still to be applied to the children */
+        int shiftTag;
+        LocalDateTime dateTag;
+        int size = 1;
+        Node left;
+        Node right;
+        Node parent;
+
+        Node(Widget widget, int priority) {
+            this.widget = widget;
+            this.priority = priority;
+            this.zIndex = widget.getzIndex();
+            this.modificationDate = widget.getModificationDate();
+        }
+    }
+
+    private final LongObjectMap<Node> nodes = new LongObjectMap<>();
+    private Node root;
+
+    @Override
+    public int insert(Widget widget) {
+        Node node = new Node(widget, ThreadLocalRandom.current().nextInt());
+        int zIndex = widget.getzIndex();
+        int rank = rankOf(zIndex);
+        int shifted = 0;
+        if (rank < size(root) && zIndexAt(rank) == zIndex) {
+            // the contiguous sequence starting at rank ends before the first widget with a greater (z-index - rank)
+            shifted = sequenceEnd(zIndex - rank) - rank;
+        }
+        Node[] parts = split(root, rank);
+        if (shifted > 0) {
+            Node[] shiftedParts = split(parts[1], shifted);
+            apply(shiftedParts[0], 1, widget.getModificationDate());
+            root = merge(merge(parts[0], node), merge(shiftedParts[0], shiftedParts[1]));
+        } else {
+            root = merge(merge(parts[0], node), parts[1]);
+        }
+        root.parent = null;
+        nodes.put(widget.getId(), node);
+        return shifted;
+    }
+
+    @Override
+    public void remove(Widget widget) {
+        Node node = nodes.remove(widget.getId());
+        if (node == null) {
+            return;
+        }
+        int rank = rankOf(node);
+        Node[] parts = split(root, rank);
+        Node[] removed = split(parts[1], 1);
+        root = merge(parts[0], removed[1]);
+        if (root != null) {
+            root.parent = null;
+        }
+    }
+
+    /* the z-index of the node is kept, the modification date of the new version is the latest one */
+    @Override
+    public void replace(Widget widget, Widget newWidget) {
+        Node node = nodes.get(widget.getId());
+        if (node != null) {
+            node.widget = newWidget;
+            node.modificationDate = newWidget.getModificationDate();
+        }
+    }
+
+    @Override
+    public Widget materialize(Widget widget) {
+        Node node = nodes.get(widget.getId());
+        if (node == null) {
+            return widget;
+        }
+        int shift = 0;
+        LocalDateTime date = null;
+        int depth = 0;
+        for (Node n = node.parent; n != null; n = n.parent) {
+            // read without lock, a writer may have left a cycle: no path is longer than the treap
+            if (++depth > size(root)) {
+                throw new IllegalStateException("the z-order is being changed");
+            }
+            shift += n.shiftTag;
+            date = max(date, n.dateTag);
+        }
+        return copy(node, shift, date);
+    }
+
+    @Override
+    public Iterator<Widget> iterator(int fromRank) {
+        LazyIterator it = new LazyIterator();
+        Node n = root;
+        int shift = 0;
+        LocalDateTime date = null;
+        int rank = fromRank;
+        while (n != null) {
+            int leftSize = size(n.left);
+            if (rank <= leftSize) {
+                it.push(n, shift, date);
+            }
+            if (rank == leftSize) {
+                break;
+            }
+            shift += n.shiftTag;
+            date = max(date, n.dateTag);
+            if (rank < leftSize) {
+                n = n.left;
+            } else {
+                rank -= leftSize + 1;
+                n = n.right;
+            }
+        }
+        return it;
+    }
+
+    @Override
+    public Iterator<Widget> iteratorFrom(int zIndex) {
+        LazyIterator it = new LazyIterator();
+        Node n = root;
+        int shift = 0;
+        LocalDateTime date = null;
+        while (n != null) {
+            boolean greaterOrEqual = n.zIndex + shift >= zIndex;
+            if (greaterOrEqual) {
+                it.push(n, shift, date);
+            }
+            shift += n.shiftTag;
+            date = max(date, n.dateTag);
+            n = greaterOrEqual ? n.left : n.right;
+        }
+        return it;
+    }
+
+    @Override
+    public int lastZIndex() {
+        if (root == null) {
+            throw new NoSuchElementException();
+        }
+        int shift = 0;
+        Node n = root;
+        while (n.right != null) {
+            shift += n.shiftTag;
+            n = n.right;
+        }
+        return n.zIndex + shift;
+    }
+
+    /* built in linear time from the in-order walk of the treap (see InOrder) */
+    @Override
+    public SortedSet<Widget> asSortedSet() {
+        return new TreeSet<>(new InOrder());
+    }
+
+    @Override
+    public int size() {
+        return size(root);
+    }
+
+    @Override
+    public void clear() {
+        root = null;
+        nodes.clear();
+    }
+
+    /* number of widgets with a z-index lower than the given one */
+    private int rankOf(int zIndex) {
+        int rank = 0;
+        int shift = 0;
+        Node n = root;
+        while (n != null) {
+            boolean lower = n.zIndex + shift < zIndex;
+            if (lower) {
+                rank += size(n.left) + 1;
+            }
+            shift += n.shiftTag;
+            n = lower ? n.right : n.left;
+        }
+        return rank;
+    }
+
+    private int rankOf(Node node) {
+        int rank = size(node.left);
+        for (Node n = node; n.parent != null; n = n.parent) {
+            if (n == n.parent.right) {
+                rank += size(n.parent.left) + 1;
+            }
+        }
+        return rank;
+    }
+
+    private int zIndexAt(int rank) {
+        int shift = 0;
+        Node n = root;
+        while (true) {
+            int leftSize = size(n.left);
+            if (rank == leftSize) {
+                return n.zIndex + shift;
+            }
+            shift += n.shiftTag;
+            if (rank < leftSize) {
+                n = n.left;
+            } else {
+                rank -= leftSize + 1;
+                n = n.right;
+            }
+        }
+    }
+
+    /* number of widgets whose (z-index - rank) is not greater than the given difference */
+    private int sequenceEnd(int difference) {
+        int count = 0;
+        int shift = 0;
+        Node n = root;
+        while (n != null) {
+            int rank = count + size(n.left);
+            boolean inSequence = n.zIndex + shift - rank <= difference;
+            if (inSequence) {
+                count = rank + 1;
+            }
+            shift += n.shiftTag;
+            n = inSequence ? n.right : n.left;
+        }
+        return count;
+    }
+
+    /* splits the treap in the first k widgets and the others */
+    private Node[] split(Node n, int k) {
+        if (n == null) {
+            return new Node[2];
+        }
+        push(n);
+        Node[] parts;
+        if (size(n.left) >= k) {
+            parts = split(n.left, k);
+            n.left = parts[1];
+            update(n);
+            parts[1] = n;
+        } else {
+            parts = split(n.right, k - size(n.left) - 1);
+            n.right = parts[0];
+            update(n);
+            parts[0] = n;
+        }
+        return parts;
+    }
+
+    private Node merge(Node a, Node b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        if (a.priority > b.priority) {
+            push(a);
+            a.right = merge(a.right, b);
+            update(a);
+            return a;
+        }
+        push(b);
+        b.left = merge(a, b.left);
+        update(b);
+        return b;
+    }
+
+    private static void push(Node n) {
+        if (n.shiftTag != 0 || n.dateTag != null) {
+            apply(n.left, n.shiftTag, n.dateTag);
+            apply(n.right, n.shiftTag, n.dateTag);
+            n.shiftTag = 0;
+            n.dateTag = null;
+        }
+    }
+
+    private static void apply(Node n, int shift, LocalDateTime date) {
+        if (n == null) {
+            return;
+        }
+        n.zIndex += shift;
+        n.shiftTag += shift;
+        n.modificationDate = max(n.modificationDate, date);
+        n.dateTag = max(n.dateTag, date);
+    }
+
+    private static void update(Node n) {
+        n.size = 1 + size(n.left) + size(n.right);
+        if (n.left != null) {
+            n.left.parent = n;
+        }
+        if (n.right != null) {
+            n.right.parent = n;
+        }
+    }
+
+    private static int size(Node n) {
+        return n == null ? 0 : n.size;
+    }
+
+    private static LocalDateTime max(LocalDateTime d1, LocalDateTime d2) {
+        if (d1 == null) {
+            return d2;
+        }
+        if (d2 == null) {
+            return d1;
+        }
+        return d1.isAfter(d2) ? d1 : d2;
+    }
+
+    private static Widget copy(Node n, int shift, LocalDateTime date) {
+        Widget widget = new Widget(n.widget);
+        widget.setzIndex(n.zIndex + shift);
+        widget.setModificationDate(max(n.modificationDate, date));
+        return widget;
+    }
+
+    /*
+    ** The widgets in z-index order, as a SortedSet only to be copied: a TreeSet is built from a SortedSet with the same
+    ** order without comparing its elements.
+    */
+    private final class InOrder extends AbstractSet<Widget> implements SortedSet<Widget> {
+
+        @Override
+        public Iterator<Widget> iterator() {
+            return LazyZOrder.this.iterator(0);
+        }
+
+        @Override
+        public int size() {
+            return LazyZOrder.this.size();
+        }
+
+        @Override
+        public Comparator<? super Widget> comparator() {
+            // natural order of Widget, by z-index
+            return null;
+        }
+
+        @Override
+        public SortedSet<Widget> subSet(Widget fromElement, Widget toElement) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public SortedSet<Widget> headSet(Widget toElement) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public SortedSet<Widget> tailSet(Widget fromElement) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Widget first() {
+            return LazyZOrder.this.iterator(0).next();
+        }
+
+        @Override
+        public Widget last() {
+            return LazyZOrder.this.iterator(size() - 1).next();
+        }
+    }
+
+    /* in-order iteration, each entry of the stack keeps the tags of the ancestors not yet applied to its node */
+    private static final class LazyIterator implements Iterator<Widget> {
+        private final Deque<Node> nodes = new ArrayDeque<>();
+        private final Deque<Integer> shifts = new ArrayDeque<>();
+        private final Deque<LocalDateTime> dates = new ArrayDeque<>();
+
+        void push(Node n, int shift, LocalDateTime date) {
+            nodes.push(n);
+            shifts.push(shift);
+            // ArrayDeque does not accept nulls
+            dates.push(date == null ? LocalDateTime.MIN : date);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !nodes.isEmpty();
+        }
+
+        @Override
+        public Widget next() {
+            if (nodes.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            Node n = nodes.pop();
+            int shift = shifts.pop();
+            LocalDateTime date = dates.pop();
+            Widget widget = copy(n, shift, date);
+            shift += n.shiftTag;
+            date = max(date, n.dateTag);
+            for (Node c = n.right; c != null; c = c.left) {
+                push(c, shift, date);
+                shift += c.shiftTag;
+                date = max(date, c.dateTag);
+            }
+            return widget;
+        }
+    }
+}
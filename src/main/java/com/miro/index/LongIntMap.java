@@ -0,0 +1,171 @@
+package com.miro.index;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+
+/*
+** Hash map from primitive long keys to int values (open addressing, linear probing), the value 0 means no entry.
+** Keys and values are not boxed and there is no entry object: 12 bytes per slot, 16 to 32 bytes per entry
+** depending on the load, where a HashMap<Long, Integer> needs about 80.
+** The table can be kept off-heap, in direct buffers not traced by the garbage collector (see OffHeapWidgetStore).
+** Removals shift back the following entries of the cluster, so there are no tombstones.
+** This class is not thread-safe, it has to be used in an already thread-safe context. A get concurrent with a put
+** or a remove may return a wrong result, but it neither throws nor loops forever: it can be used for optimistic reads
+** validated afterwards (see StampedLock and LongObjectMap).
+*/
+public class LongIntMap {
+
+    private static final int MIN_CAPACITY = 16;
+    /* the table is grown above 3/4 of the slots used */
+    private static final int MAX_LOAD_NUMERATOR = 3;
+    private static final int MAX_LOAD_DENOMINATOR = 4;
+    /* 2^64 divided by the golden ratio, spreads sequential keys over the table (Fibonacci hashing) */
+    private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+
+    /* keys and values are replaced together, a reader always sees buffers of the same capacity */
+    private static final class Table {
+        final LongBuffer keys;
+        final IntBuffer values;
+        final int mask;
+        final int shift;
+
+        Table(int capacity, boolean offHeap) {
+            if (offHeap) {
+                keys = ByteBuffer.allocateDirect(capacity * Long.BYTES).order(ByteOrder.nativeOrder()).asLongBuffer();
+                values = ByteBuffer.allocateDirect(capacity * Integer.BYTES).order(ByteOrder.nativeOrder()).asIntBuffer();
+            } else {
+                keys = LongBuffer.allocate(capacity);
+                values = IntBuffer.allocate(capacity);
+            }
+            mask = capacity - 1;
+            shift = Long.SIZE - Integer.numberOfTrailingZeros(capacity);
+        }
+    }
+
+    private final boolean offHeap;
+    private Table table;
+    private int size;
+
+    public LongIntMap() {
+        this(false);
+    }
+
+    public LongIntMap(boolean offHeap) {
+        this.offHeap = offHeap;
+        table = new Table(MIN_CAPACITY, offHeap);
+    }
+
+    /* Returns the value of the key, 0 if there is none */
+    public int get(long key) {
+        Table t = table;
+        int mask = t.mask;
+        int i = index(t, key);
+        // the number of probes is bounded: a concurrent writer may leave no free slot on the way
+        for (int probes = 0; probes <= mask; probes++) {
+            int value = t.values.get(i);
+            if (value == 0) {
+                return 0;
+            }
+            if (t.keys.get(i) == key) {
+                return value;
+            }
+            i = (i + 1) & mask;
+        }
+        return 0;
+    }
+
+    /* Returns the previous value of the key, 0 if there was none */
+    public int put(long key, int value) {
+        if (value == 0) {
+            throw new IllegalArgumentException("The value 0 is not supported");
+        }
+        Table t = table;
+        int mask = t.mask;
+        int i = index(t, key);
+        while (t.values.get(i) != 0) {
+            if (t.keys.get(i) == key) {
+                int previous = t.values.get(i);
+                t.values.put(i, value);
+                return previous;
+            }
+            i = (i + 1) & mask;
+        }
+        t.keys.put(i, key);
+        t.values.put(i, value);
+        size++;
+        if (size * MAX_LOAD_DENOMINATOR > (t.mask + 1) * MAX_LOAD_NUMERATOR) {
+            resize((t.mask + 1) * 2);
+        }
+        return 0;
+    }
+
+    /* Returns the removed value, 0 if the key was not present */
+    public int remove(long key) {
+        Table t = table;
+        int mask = t.mask;
+        int i = index(t, key);
+        while (t.values.get(i) != 0) {
+            if (t.keys.get(i) == key) {
+                int previous = t.values.get(i);
+                shiftBack(t, i);
+                size--;
+                return previous;
+            }
+            i = (i + 1) & mask;
+        }
+        return 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        table = new Table(MIN_CAPACITY, offHeap);
+        size = 0;
+    }
+
+    /* empties the slot, moving back the following entries of the cluster that would not be found anymore */
+    private static void shiftBack(Table t, int free) {
+        int mask = t.mask;
+        int i = free;
+        while (true) {
+            i = (i + 1) & mask;
+            if (t.values.get(i) == 0) {
+                break;
+            }
+            int home = index(t, t.keys.get(i));
+            // the entry can fill the free slot if its home is not in (free, i], cyclically
+            if (((i - home) & mask) >= ((i - free) & mask)) {
+                t.keys.put(free, t.keys.get(i));
+                t.values.put(free, t.values.get(i));
+                free = i;
+            }
+        }
+        t.keys.put(free, 0);
+        t.values.put(free, 0);
+    }
+
+    private void resize(int capacity) {
+        Table old = table;
+        Table t = new Table(capacity, offHeap);
+        int mask = capacity - 1;
+        for (int j = 0; j <= old.mask; j++) {
+            if (old.values.get(j) != 0) {
+                int i = index(t, old.keys.get(j));
+                while (t.values.get(i) != 0) {
+                    i = (i + 1) & mask;
+                }
+                t.keys.put(i, old.keys.get(j));
+                t.values.put(i, old.values.get(j));
+            }
+        }
+        table = t;
+    }
+
+    private static int index(Table t, long key) {
+        return (int) ((key * GOLDEN) >>> t.shift);
+    }
+}
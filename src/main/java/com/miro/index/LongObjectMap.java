@@ -0,0 +1,159 @@
+package com.miro.index;
+
+/*
+** Hash map with primitive long keys (open addressing, linear probing), the values cannot be null.
+** Keys are not boxed and there is no entry object: about 12 bytes per slot (long key and compressed reference),
+** 16 to 32 bytes per entry depending on the load, where a HashMap<Long, V> needs about 64.
+** Removals shift back the following entries of the cluster, so there are no tombstones.
+** This class is not thread-safe, it has to be used in an already thread-safe context. A get concurrent with a put
+** or a remove may return a wrong result, but it neither throws nor loops forever: it can be used for optimistic reads
+** validated afterwards (see StampedLock).
+*/
+public class LongObjectMap<V> {
+
+    private static final int MIN_CAPACITY = 16;
+    /* the table is grown above 3/4 of the slots used */
+    private static final int MAX_LOAD_NUMERATOR = 3;
+    private static final int MAX_LOAD_DENOMINATOR = 4;
+    /* 2^64 divided by the golden ratio, spreads sequential keys over the table (Fibonacci hashing) */
+    private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+
+    /* keys and values are replaced together, a reader always sees arrays of the same length */
+    private static final class Table {
+        final long[] keys;
+        final Object[] values;
+        final int shift;
+
+        Table(int capacity) {
+            keys = new long[capacity];
+            values = new Object[capacity];
+            shift = Long.SIZE - Integer.numberOfTrailingZeros(capacity);
+        }
+    }
+
+    private Table table = new Table(MIN_CAPACITY);
+    private int size;
+
+    /* Returns the value of the key, null if there is none */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        Table t = table;
+        int mask = t.keys.length - 1;
+        int i = index(t, key);
+        // the number of probes is bounded: a concurrent writer may leave no free slot on the way
+        for (int probes = 0; probes <= mask; probes++) {
+            Object value = t.values[i];
+            if (value == null) {
+                return null;
+            }
+            if (t.keys[i] == key) {
+                return (V) value;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    /* Returns the previous value of the key, null if there was none */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("Null values are not supported");
+        }
+        Table t = table;
+        int mask = t.keys.length - 1;
+        int i = index(t, key);
+        while (t.values[i] != null) {
+            if (t.keys[i] == key) {
+                V previous = (V) t.values[i];
+                t.values[i] = value;
+                return previous;
+            }
+            i = (i + 1) & mask;
+        }
+        t.keys[i] = key;
+        t.values[i] = value;
+        size++;
+        if (size * MAX_LOAD_DENOMINATOR > t.keys.length * MAX_LOAD_NUMERATOR) {
+            resize(t.keys.length * 2);
+        }
+        return null;
+    }
+
+    /* Returns the removed value, null if the key was not present */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        Table t = table;
+        int mask = t.keys.length - 1;
+        int i = index(t, key);
+        while (t.values[i] != null) {
+            if (t.keys[i] == key) {
+                V previous = (V) t.values[i];
+                shiftBack(t, i);
+                size--;
+                return previous;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        table = new Table(MIN_CAPACITY);
+        size = 0;
+    }
+
+    /* empties the slot, moving back the following entries of the cluster that would not be found anymore */
+    private static void shiftBack(Table t, int free) {
+        int mask = t.keys.length - 1;
+        int i = free;
+        while (true) {
+            i = (i + 1) & mask;
+            if (t.values[i] == null) {
+                break;
+            }
+            int home = index(t, t.keys[i]);
+            // the entry can fill the free slot if its home is not in (free, i], cyclically
+            if (((i - home) & mask) >= ((i - free) & mask)) {
+                t.keys[free] = t.keys[i];
+                t.values[free] = t.values[i];
+                free = i;
+            }
+        }
+        t.keys[free] = 0;
+        t.values[free] = null;
+    }
+
+    private void resize(int capacity) {
+        Table old = table;
+        Table t = new Table(capacity);
+        int mask = capacity - 1;
+        for (int j = 0; j < old.keys.length; j++) {
+            if (old.values[j] != null) {
+                int i = index(t, old.keys[j]);
+                while (t.values[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                t.keys[i] = old.keys[j];
+                t.values[i] = old.values[j];
+            }
+        }
+        table = t;
+    }
+
+    private static int index(Table t, long key) {
+        return (int) ((key * GOLDEN) >>> t.shift);
+    }
+}
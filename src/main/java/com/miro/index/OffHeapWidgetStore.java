@@ -0,0 +1,238 @@
+package com.miro.index;
+
+import com.miro.entities.Widget;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/*
+** Widgets stored off-heap: the slots (see SlotWidgetStore) are fixed-size records in direct ByteBuffers,
+** so the widgets and the nodes of the z-order and of the area index are invisible to the garbage collector, that only
+** sees one buffer per page of PAGE_SIZE slots. The map of the slots by id is off-heap too (see LongIntMap):
+** 72 bytes per record and 16 to 32 bytes per entry of the map.
+** The pages are allocated when needed and released (by the garbage collector) when the store is cleared;
+** the memory is limited by -XX:MaxDirectMemorySize (by default the maximum heap size).
+*/
+public class OffHeapWidgetStore extends SlotWidgetStore {
+
+    private static final int PAGE_SHIFT = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    private static final int MIN_PAGES = 16;
+
+    /* layout of a record */
+    private static final int ID = 0;
+    /* epoch microseconds (UTC), 0 if the slot is empty */
+    private static final int MODIFIED = 8;
+    private static final int X = 16;
+    private static final int Y = 20;
+    private static final int WIDTH = 24;
+    private static final int HEIGHT = 28;
+    private static final int Z_INDEX = 32;
+    private static final int LEFT = 36;
+    private static final int RIGHT = 40;
+    private static final int SIZE = 44;
+    private static final int AREA_LEFT = 48;
+    private static final int AREA_RIGHT = 52;
+    private static final int AREA_SIZE = 56;
+    private static final int MAX_Y = 60;
+    private static final int MIN_Y_END = 64;
+    private static final int MIN_X_END = 68;
+    private static final int RECORD_SIZE = 72;
+
+    /* only the array of the pages is replaced when it grows, a reader always finds the pages it has seen */
+    private ByteBuffer[] pages;
+
+    public OffHeapWidgetStore() {
+        super(true);
+        clear();
+    }
+
+    @Override
+    void store(int s, Widget widget, long modified) {
+        int p = s >>> PAGE_SHIFT;
+        if (p >= pages.length) {
+            pages = Arrays.copyOf(pages, Math.max(p + 1, pages.length * 2));
+        }
+        if (pages[p] == null) {
+            pages[p] = newPage();
+        }
+        ByteBuffer page = pages[p];
+        int offset = offset(s);
+        page.putLong(offset + ID, widget.getId());
+        page.putInt(offset + X, widget.getX());
+        page.putInt(offset + Y, widget.getY());
+        page.putInt(offset + WIDTH, widget.getWidth());
+        page.putInt(offset + HEIGHT, widget.getHeight());
+        page.putInt(offset + Z_INDEX, widget.getzIndex());
+        page.putLong(offset + MODIFIED, modified);
+    }
+
+    @Override
+    boolean isStored(int s) {
+        ByteBuffer[] p = pages;
+        if ((s >>> PAGE_SHIFT) >= p.length) {
+            return false;
+        }
+        ByteBuffer page = p[s >>> PAGE_SHIFT];
+        return page != null && page.getLong(offset(s) + MODIFIED) != 0;
+    }
+
+    @Override
+    void setEmpty(int s) {
+        page(s).putLong(offset(s) + MODIFIED, 0);
+    }
+
+    @Override
+    Widget materialize(int s) {
+        ByteBuffer page = page(s);
+        int offset = offset(s);
+        return widget(page.getLong(offset + ID), page.getInt(offset + X), page.getInt(offset + Y),
+                page.getInt(offset + WIDTH), page.getInt(offset + HEIGHT), page.getInt(offset + Z_INDEX),
+                page.getLong(offset + MODIFIED));
+    }
+
+    @Override
+    void reset() {
+        pages = new ByteBuffer[MIN_PAGES];
+        pages[0] = newPage();
+    }
+
+    @Override
+    long id(int n) {
+        return page(n).getLong(offset(n) + ID);
+    }
+
+    @Override
+    int x(int n) {
+        return page(n).getInt(offset(n) + X);
+    }
+
+    @Override
+    int y(int n) {
+        return page(n).getInt(offset(n) + Y);
+    }
+
+    @Override
+    int width(int n) {
+        return page(n).getInt(offset(n) + WIDTH);
+    }
+
+    @Override
+    int height(int n) {
+        return page(n).getInt(offset(n) + HEIGHT);
+    }
+
+    @Override
+    int zIndex(int n) {
+        return page(n).getInt(offset(n) + Z_INDEX);
+    }
+
+    @Override
+    int left(int n) {
+        return page(n).getInt(offset(n) + LEFT);
+    }
+
+    @Override
+    int right(int n) {
+        return page(n).getInt(offset(n) + RIGHT);
+    }
+
+    @Override
+    int size(int n) {
+        return page(n).getInt(offset(n) + SIZE);
+    }
+
+    @Override
+    int areaLeft(int n) {
+        return page(n).getInt(offset(n) + AREA_LEFT);
+    }
+
+    @Override
+    int areaRight(int n) {
+        return page(n).getInt(offset(n) + AREA_RIGHT);
+    }
+
+    @Override
+    int areaSize(int n) {
+        return page(n).getInt(offset(n) + AREA_SIZE);
+    }
+
+    @Override
+    int maxY(int n) {
+        return page(n).getInt(offset(n) + MAX_Y);
+    }
+
+    @Override
+    int minYEnd(int n) {
+        return page(n).getInt(offset(n) + MIN_Y_END);
+    }
+
+    @Override
+    int minXEnd(int n) {
+        return page(n).getInt(offset(n) + MIN_X_END);
+    }
+
+    @Override
+    void setZIndex(int n, int value) {
+        page(n).putInt(offset(n) + Z_INDEX, value);
+    }
+
+    @Override
+    void setLeft(int n, int value) {
+        page(n).putInt(offset(n) + LEFT, value);
+    }
+
+    @Override
+    void setRight(int n, int value) {
+        page(n).putInt(offset(n) + RIGHT, value);
+    }
+
+    @Override
+    void setSize(int n, int value) {
+        page(n).putInt(offset(n) + SIZE, value);
+    }
+
+    @Override
+    void setAreaLeft(int n, int value) {
+        page(n).putInt(offset(n) + AREA_LEFT, value);
+    }
+
+    @Override
+    void setAreaRight(int n, int value) {
+        page(n).putInt(offset(n) + AREA_RIGHT, value);
+    }
+
+    @Override
+    void setAreaSize(int n, int value) {
+        page(n).putInt(offset(n) + AREA_SIZE, value);
+    }
+
+    @Override
+    void setModified(int n, long value) {
+        page(n).putLong(offset(n) + MODIFIED, value);
+    }
+
+    @Override
+    void setBounds(int n, int maxY, int minYEnd, int minXEnd) {
+        ByteBuffer page = page(n);
+        int offset = offset(n);
+        page.putInt(offset + MAX_Y, maxY);
+        page.putInt(offset + MIN_Y_END, minYEnd);
+        page.putInt(offset + MIN_X_END, minXEnd);
+    }
+
+    private ByteBuffer page(int s) {
+        return pages[s >>> PAGE_SHIFT];
+    }
+
+    private static int offset(int s) {
+        return (s & PAGE_MASK) * RECORD_SIZE;
+    }
+
+    /* the direct buffers are zeroed when allocated: all the slots are empty */
+    private static ByteBuffer newPage() {
+        return ByteBuffer.allocateDirect(PAGE_SIZE * RECORD_SIZE).order(ByteOrder.nativeOrder());
+    }
+}
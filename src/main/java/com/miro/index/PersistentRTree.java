@@ -0,0 +1,284 @@
+package com.miro.index;
+
+import com.miro.entities.Point;
+import com.miro.entities.Widget;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/*
+** Immutable R-tree (Guttman, quadratic split) over the bounding boxes of the widgets.
+** Insert and remove return a new tree and leave this one untouched: only the nodes on the path to the changed leaf
+** are copied, the rest is shared, so an older tree can still be searched while the new one is built.
+** Widgets are identified by id: the z-index of the indexed copy may be outdated, callers resolve the current one.
+*/
+public final class PersistentRTree {
+
+    public static final PersistentRTree EMPTY = new PersistentRTree(Node.leaf(new Widget[0]), 0);
+
+    private static final class Node {
+        /* leaf nodes hold widgets, internal nodes hold children, the arrays are never modified */
+        final Widget[] widgets;
+        final Node[] children;
+        final int minX, minY, maxX, maxY;
+
+        private Node(Widget[] widgets, Node[] children, int minX, int minY, int maxX, int maxY) {
+            this.widgets = widgets;
+            this.children = children;
+            this.minX = minX;
+            this.minY = minY;
+            this.maxX = maxX;
+            this.maxY = maxY;
+        }
+
+        static Node leaf(Widget[] widgets) {
+            if (widgets.length == 0) {
+                return new Node(widgets, null, 0, 0, 0, 0);
+            }
+            int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+            for (Widget w : widgets) {
+                minX = Math.min(minX, w.getX());
+                minY = Math.min(minY, w.getY());
+                maxX = Math.max(maxX, w.getX() + w.getWidth());
+                maxY = Math.max(maxY, w.getY() + w.getHeight());
+            }
+            return new Node(widgets, null, minX, minY, maxX, maxY);
+        }
+
+        static Node internal(Node[] children) {
+            int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+            for (Node c : children) {
+                minX = Math.min(minX, c.minX);
+                minY = Math.min(minY, c.minY);
+                maxX = Math.max(maxX, c.maxX);
+                maxY = Math.max(maxY, c.maxY);
+            }
+            return new Node(null, children, minX, minY, maxX, maxY);
+        }
+
+        boolean isLeaf() {
+            return widgets != null;
+        }
+
+        int count() {
+            return isLeaf() ? widgets.length : children.length;
+        }
+
+        boolean covers(int x1, int y1, int x2, int y2) {
+            return minX <= x1 && minY <= y1 && maxX >= x2 && maxY >= y2;
+        }
+    }
+
+    private final Node root;
+    private final int size;
+
+    private PersistentRTree(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    public PersistentRTree insert(Widget widget) {
+        return new PersistentRTree(insertInternal(root, widget), size + 1);
+    }
+
+    /* returns this tree if there is no widget with the same id */
+    public PersistentRTree remove(Widget widget) {
+        List<Widget> orphans = new ArrayList<>();
+        Node newRoot = remove(root, widget, orphans, true);
+        if (newRoot == root) {
+            return this;
+        }
+        while (!newRoot.isLeaf() && newRoot.children.length <= 1) {
+            newRoot = newRoot.children.length == 0 ? Node.leaf(new Widget[0]) : newRoot.children[0];
+        }
+        for (Widget orphan : orphans) {
+            newRoot = insertInternal(newRoot, orphan);
+        }
+        return new PersistentRTree(newRoot, size - 1);
+    }
+
+    /* Passes to the consumer all the widgets that fall entirely into the area */
+    public void search(Point lowerLeft, Point upperRight, Consumer<? super Widget> consumer) {
+        if (size == 0) {
+            return;
+        }
+        search(root, lowerLeft.getX(), lowerLeft.getY(), upperRight.getX(), upperRight.getY(), consumer);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private static void search(Node node, int x1, int y1, int x2, int y2, Consumer<? super Widget> consumer) {
+        if (node.isLeaf()) {
+            for (Widget w : node.widgets) {
+                if (w.getX() >= x1 && w.getX() + w.getWidth() <= x2 && w.getY() >= y1 && w.getY() + w.getHeight() <= y2) {
+                    consumer.accept(w);
+                }
+            }
+            return;
+        }
+        for (Node child : node.children) {
+            if (child.minX <= x2 && child.maxX >= x1 && child.minY <= y2 && child.maxY >= y1) {
+                search(child, x1, y1, x2, y2, consumer);
+            }
+        }
+    }
+
+    private static Node insertInternal(Node root, Widget widget) {
+        Node[] nodes = insert(root, widget);
+        return nodes.length == 1 ? nodes[0] : Node.internal(nodes);
+    }
+
+    /* returns the copy of the node with the widget added, or the two halves if the copy overflows */
+    private static Node[] insert(Node node, Widget widget) {
+        if (node.isLeaf()) {
+            Widget[] widgets = Arrays.copyOf(node.widgets, node.widgets.length + 1);
+            widgets[widgets.length - 1] = widget;
+            return widgets.length > RTrees.MAX_ENTRIES ? splitLeaf(widgets) : new Node[] {Node.leaf(widgets)};
+        }
+        int i = chooseChild(node, widget);
+        Node[] nodes = insert(node.children[i], widget);
+        Node[] children;
+        if (nodes.length == 1) {
+            children = node.children.clone();
+            children[i] = nodes[0];
+        } else {
+            children = Arrays.copyOf(node.children, node.children.length + 1);
+            children[i] = nodes[0];
+            children[children.length - 1] = nodes[1];
+        }
+        return children.length > RTrees.MAX_ENTRIES ? splitInternal(children) : new Node[] {Node.internal(children)};
+    }
+
+    /* the child that needs the least enlargement (ties resolved by the smallest area) */
+    private static int chooseChild(Node node, Widget widget) {
+        int x1 = widget.getX();
+        int y1 = widget.getY();
+        int x2 = x1 + widget.getWidth();
+        int y2 = y1 + widget.getHeight();
+        int best = 0;
+        long bestEnlargement = Long.MAX_VALUE;
+        long bestArea = Long.MAX_VALUE;
+        for (int i = 0; i < node.children.length; i++) {
+            Node child = node.children[i];
+            long area = RTrees.area(child.minX, child.minY, child.maxX, child.maxY);
+            long enlargement = RTrees.area(Math.min(child.minX, x1), Math.min(child.minY, y1),
+                    Math.max(child.maxX, x2), Math.max(child.maxY, y2)) - area;
+            if (enlargement < bestEnlargement || (enlargement == bestEnlargement && area < bestArea)) {
+                best = i;
+                bestEnlargement = enlargement;
+                bestArea = area;
+            }
+        }
+        return best;
+    }
+
+    private static Node[] splitLeaf(Widget[] widgets) {
+        int total = widgets.length;
+        int[] x1 = new int[total];
+        int[] y1 = new int[total];
+        int[] x2 = new int[total];
+        int[] y2 = new int[total];
+        for (int i = 0; i < total; i++) {
+            x1[i] = widgets[i].getX();
+            y1[i] = widgets[i].getY();
+            x2[i] = widgets[i].getX() + widgets[i].getWidth();
+            y2[i] = widgets[i].getY() + widgets[i].getHeight();
+        }
+        int[] group = RTrees.quadraticSplit(x1, y1, x2, y2, RTrees.MIN_ENTRIES);
+        List<Widget> first = new ArrayList<>();
+        List<Widget> second = new ArrayList<>();
+        for (int i = 0; i < total; i++) {
+            (group[i] == 1 ? first : second).add(widgets[i]);
+        }
+        return new Node[] {Node.leaf(first.toArray(new Widget[0])), Node.leaf(second.toArray(new Widget[0]))};
+    }
+
+    private static Node[] splitInternal(Node[] children) {
+        int total = children.length;
+        int[] x1 = new int[total];
+        int[] y1 = new int[total];
+        int[] x2 = new int[total];
+        int[] y2 = new int[total];
+        for (int i = 0; i < total; i++) {
+            x1[i] = children[i].minX;
+            y1[i] = children[i].minY;
+            x2[i] = children[i].maxX;
+            y2[i] = children[i].maxY;
+        }
+        int[] group = RTrees.quadraticSplit(x1, y1, x2, y2, RTrees.MIN_ENTRIES);
+        List<Node> first = new ArrayList<>();
+        List<Node> second = new ArrayList<>();
+        for (int i = 0; i < total; i++) {
+            (group[i] == 1 ? first : second).add(children[i]);
+        }
+        return new Node[] {Node.internal(first.toArray(new Node[0])), Node.internal(second.toArray(new Node[0]))};
+    }
+
+    /*
+    ** Returns the same node if the widget is not found below it, null if the copy underflows
+    ** (its widgets are then added to the orphans to be re-inserted), otherwise the copy without the widget.
+    */
+    private static Node remove(Node node, Widget widget, List<Widget> orphans, boolean root) {
+        long id = widget.getId();
+        if (node.isLeaf()) {
+            for (int i = 0; i < node.widgets.length; i++) {
+                if (node.widgets[i].getId() == id) {
+                    Widget[] widgets = new Widget[node.widgets.length - 1];
+                    System.arraycopy(node.widgets, 0, widgets, 0, i);
+                    System.arraycopy(node.widgets, i + 1, widgets, i, widgets.length - i);
+                    if (!root && widgets.length < RTrees.MIN_ENTRIES) {
+                        orphans.addAll(Arrays.asList(widgets));
+                        return null;
+                    }
+                    return Node.leaf(widgets);
+                }
+            }
+            return node;
+        }
+        int x1 = widget.getX();
+        int y1 = widget.getY();
+        int x2 = x1 + widget.getWidth();
+        int y2 = y1 + widget.getHeight();
+        for (int i = 0; i < node.children.length; i++) {
+            Node child = node.children[i];
+            if (!child.covers(x1, y1, x2, y2)) {
+                continue;
+            }
+            Node newChild = remove(child, widget, orphans, false);
+            if (newChild == child) {
+                continue;
+            }
+            Node[] children;
+            if (newChild == null) {
+                children = new Node[node.children.length - 1];
+                System.arraycopy(node.children, 0, children, 0, i);
+                System.arraycopy(node.children, i + 1, children, i, children.length - i);
+            } else {
+                children = node.children.clone();
+                children[i] = newChild;
+            }
+            if (!root && children.length < RTrees.MIN_ENTRIES) {
+                for (Node c : children) {
+                    collect(c, orphans);
+                }
+                return null;
+            }
+            return children.length == 0 ? Node.leaf(new Widget[0]) : Node.internal(children);
+        }
+        return node;
+    }
+
+    private static void collect(Node node, List<Widget> widgets) {
+        if (node.isLeaf()) {
+            widgets.addAll(Arrays.asList(node.widgets));
+            return;
+        }
+        for (Node child : node.children) {
+            collect(child, widgets);
+        }
+    }
+}
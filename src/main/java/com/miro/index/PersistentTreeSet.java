@@ -0,0 +1,129 @@
+package com.miro.index;
+
+import java.util.Comparator;
+
+/*
+** Immutable sorted set backed by a weight-balanced tree in which every node keeps the size of its subtree
+** (see AbstractRankedTreeSet). The set never changes once built: with and without return a new set
+** that shares with this one all the nodes not on the path to the changed element, in O(log n).
+** An instance can be read by any number of threads without synchronization, provided it was safely published
+** (e.g. through a volatile field); the mutators of the Set interface throw UnsupportedOperationException.
+*/
+public final class PersistentTreeSet<E> extends AbstractRankedTreeSet<E> {
+
+    private final Node<E> root;
+
+    private PersistentTreeSet(Comparator<? super E> comparator, Node<E> root) {
+        super(comparator);
+        this.root = root;
+    }
+
+    /* the empty set with the natural ordering of the elements */
+    public static <E> PersistentTreeSet<E> empty() {
+        return new PersistentTreeSet<>(null, null);
+    }
+
+    public static <E> PersistentTreeSet<E> empty(Comparator<? super E> comparator) {
+        return new PersistentTreeSet<>(comparator, null);
+    }
+
+    @Override
+    Node<E> root() {
+        return root;
+    }
+
+    /* Returns the element equal to the given one (according to the ordering), null if there is none */
+    public E find(E e) {
+        Node<E> n = findNode(e);
+        return n == null ? null : n.value;
+    }
+
+    /* Returns a set with the given element, replacing the equal one (according to the ordering) if any */
+    public PersistentTreeSet<E> with(E e) {
+        return new PersistentTreeSet<>(comparator, insert(root, e));
+    }
+
+    /* Returns a set without the element equal to the given one, this set if there is none */
+    public PersistentTreeSet<E> without(Object o) {
+        Node<E> newRoot = delete(root, o);
+        return newRoot == root ? this : new PersistentTreeSet<>(comparator, newRoot);
+    }
+
+    private Node<E> insert(Node<E> n, E e) {
+        if (n == null) {
+            return node(e, null, null);
+        }
+        int c = compare(e, n.value);
+        if (c == 0) {
+            return node(e, n.left, n.right);
+        }
+        if (c < 0) {
+            return balance(n.value, insert(n.left, e), n.right);
+        }
+        return balance(n.value, n.left, insert(n.right, e));
+    }
+
+    /* returns the same node if the element is not found below it */
+    private Node<E> delete(Node<E> n, Object o) {
+        if (n == null) {
+            return null;
+        }
+        @SuppressWarnings("unchecked")
+        int c = compare((E) o, n.value);
+        if (c < 0) {
+            Node<E> left = delete(n.left, o);
+            return left == n.left ? n : balance(n.value, left, n.right);
+        }
+        if (c > 0) {
+            Node<E> right = delete(n.right, o);
+            return right == n.right ? n : balance(n.value, n.left, right);
+        }
+        if (n.left == null) {
+            return n.right;
+        }
+        if (n.right == null) {
+            return n.left;
+        }
+        Node<E> min = n.right;
+        while (min.left != null) {
+            min = min.left;
+        }
+        return balance(min.value, n.left, deleteMin(n.right));
+    }
+
+    private Node<E> deleteMin(Node<E> n) {
+        if (n.left == null) {
+            return n.right;
+        }
+        return balance(n.value, deleteMin(n.left), n.right);
+    }
+
+    /* builds a new node restoring the weight balance, after a single insertion or deletion below it */
+    private static <E> Node<E> balance(E value, Node<E> left, Node<E> right) {
+        int leftWeight = size(left) + 1;
+        int rightWeight = size(right) + 1;
+        if (rightWeight > DELTA * leftWeight) {
+            if (size(right.left) + 1 >= GAMMA * (size(right.right) + 1)) {
+                Node<E> rl = right.left;
+                return node(rl.value, node(value, left, rl.left), node(right.value, rl.right, right.right));
+            }
+            return node(right.value, node(value, left, right.left), right.right);
+        }
+        if (leftWeight > DELTA * rightWeight) {
+            if (size(left.right) + 1 >= GAMMA * (size(left.left) + 1)) {
+                Node<E> lr = left.right;
+                return node(lr.value, node(left.value, left.left, lr.left), node(value, lr.right, right));
+            }
+            return node(left.value, left.left, node(value, left.right, right));
+        }
+        return node(value, left, right);
+    }
+
+    private static <E> Node<E> node(E value, Node<E> left, Node<E> right) {
+        Node<E> n = new Node<>(value);
+        n.left = left;
+        n.right = right;
+        update(n);
+        return n;
+    }
+}
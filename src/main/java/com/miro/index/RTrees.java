@@ -0,0 +1,106 @@
+package com.miro.index;
+
+/*
+** Algorithms shared by the R-trees over the bounding boxes of the widgets (see WidgetRTree and PersistentRTree).
+*/
+final class RTrees {
+
+    static final int MAX_ENTRIES = 16;
+    static final int MIN_ENTRIES = 6;
+
+    private RTrees() {
+    }
+
+    /*
+    ** Quadratic split (Guttman) of the entries given by their bounds: returns the group (1 or 2) of each entry,
+    ** both groups get at least minEntries entries.
+    */
+    static int[] quadraticSplit(int[] x1, int[] y1, int[] x2, int[] y2, int minEntries) {
+        int total = x1.length;
+        // pick the two entries that would waste the most area if put together
+        int seed1 = 0;
+        int seed2 = 1;
+        long worst = Long.MIN_VALUE;
+        for (int i = 0; i < total; i++) {
+            for (int j = i + 1; j < total; j++) {
+                long waste = area(Math.min(x1[i], x1[j]), Math.min(y1[i], y1[j]), Math.max(x2[i], x2[j]), Math.max(y2[i], y2[j]))
+                        - area(x1[i], y1[i], x2[i], y2[i]) - area(x1[j], y1[j], x2[j], y2[j]);
+                if (waste > worst) {
+                    worst = waste;
+                    seed1 = i;
+                    seed2 = j;
+                }
+            }
+        }
+
+        int[] group = new int[total];
+        int[][] bounds = {
+                {x1[seed1], y1[seed1], x2[seed1], y2[seed1]},
+                {x1[seed2], y1[seed2], x2[seed2], y2[seed2]}
+        };
+        int[] counts = {1, 1};
+        group[seed1] = 1;
+        group[seed2] = 2;
+        int remaining = total - 2;
+        while (remaining > 0) {
+            if (counts[0] + remaining <= minEntries || counts[1] + remaining <= minEntries) {
+                int g = counts[0] + remaining <= minEntries ? 1 : 2;
+                for (int i = 0; i < total; i++) {
+                    if (group[i] == 0) {
+                        group[i] = g;
+                    }
+                }
+                break;
+            }
+            // pick the entry with the greatest preference for one group
+            int next = -1;
+            long maxDiff = -1;
+            long nextEnl1 = 0;
+            long nextEnl2 = 0;
+            for (int i = 0; i < total; i++) {
+                if (group[i] != 0) {
+                    continue;
+                }
+                long enl1 = enlargement(bounds[0], x1[i], y1[i], x2[i], y2[i]);
+                long enl2 = enlargement(bounds[1], x1[i], y1[i], x2[i], y2[i]);
+                long diff = Math.abs(enl1 - enl2);
+                if (diff > maxDiff) {
+                    maxDiff = diff;
+                    next = i;
+                    nextEnl1 = enl1;
+                    nextEnl2 = enl2;
+                }
+            }
+            int g;
+            if (nextEnl1 != nextEnl2) {
+                g = nextEnl1 < nextEnl2 ? 1 : 2;
+            } else {
+                long area1 = area(bounds[0][0], bounds[0][1], bounds[0][2], bounds[0][3]);
+                long area2 = area(bounds[1][0], bounds[1][1], bounds[1][2], bounds[1][3]);
+                if (area1 != area2) {
+                    g = area1 < area2 ? 1 : 2;
+                } else {
+                    g = counts[0] <= counts[1] ? 1 : 2;
+                }
+            }
+            int[] b = bounds[g - 1];
+            b[0] = Math.min(b[0], x1[next]);
+            b[1] = Math.min(b[1], y1[next]);
+            b[2] = Math.max(b[2], x2[next]);
+            b[3] = Math.max(b[3], y2[next]);
+            group[next] = g;
+            counts[g - 1]++;
+            remaining--;
+        }
+        return group;
+    }
+
+    static long enlargement(int[] b, int x1, int y1, int x2, int y2) {
+        return area(Math.min(b[0], x1), Math.min(b[1], y1), Math.max(b[2], x2), Math.max(b[3], y2))
+                - area(b[0], b[1], b[2], b[3]);
+    }
+
+    static long area(int x1, int y1, int x2, int y2) {
+        return ((long) x2 - x1) * ((long) y2 - y1);
+    }
+}
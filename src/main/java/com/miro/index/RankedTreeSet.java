@@ -0,0 +1,150 @@
+package com.miro.index;
+
+import java.util.Comparator;
+
+/*
+** Mutable sorted set backed by a weight-balanced tree in which every node keeps the size of its subtree,
+** so the element at a given rank, or the rank of an element, is found in O(log n) (see AbstractRankedTreeSet).
+** This class is not thread-safe, it has to be used in an already thread-safe context.
+*/
+public class RankedTreeSet<E> extends AbstractRankedTreeSet<E> {
+
+    private Node<E> root;
+
+    public RankedTreeSet() {
+        this(null);
+    }
+
+    public RankedTreeSet(Comparator<? super E> comparator) {
+        super(comparator);
+    }
+
+    @Override
+    Node<E> root() {
+        return root;
+    }
+
+    @Override
+    public boolean add(E e) {
+        if (findNode(e) != null) {
+            return false;
+        }
+        int before = size(root);
+        root = insert(root, e);
+        return size(root) != before;
+    }
+
+    /*
+    ** Replaces the element equal to the given one by it, in place: the tree is not restructured, a reader sees either
+    ** the old or the new element. Returns false if there is no equal element.
+    */
+    public boolean replace(E e) {
+        Node<E> n = findNode(e);
+        if (n == null) {
+            return false;
+        }
+        n.value = e;
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        int before = size(root);
+        root = delete(root, o);
+        return size(root) != before;
+    }
+
+    @Override
+    public void clear() {
+        root = null;
+    }
+
+    private Node<E> insert(Node<E> n, E e) {
+        if (n == null) {
+            return new Node<>(e);
+        }
+        int c = compare(e, n.value);
+        if (c == 0) {
+            return n;
+        }
+        if (c < 0) {
+            n.left = insert(n.left, e);
+        } else {
+            n.right = insert(n.right, e);
+        }
+        return balance(n);
+    }
+
+    private Node<E> delete(Node<E> n, Object o) {
+        if (n == null) {
+            return null;
+        }
+        @SuppressWarnings("unchecked")
+        int c = compare((E) o, n.value);
+        if (c < 0) {
+            n.left = delete(n.left, o);
+        } else if (c > 0) {
+            n.right = delete(n.right, o);
+        } else {
+            if (n.left == null) {
+                return n.right;
+            }
+            if (n.right == null) {
+                return n.left;
+            }
+            Node<E> min = n.right;
+            while (min.left != null) {
+                min = min.left;
+            }
+            n.right = deleteMin(n.right);
+            n.value = min.value;
+        }
+        return balance(n);
+    }
+
+    private Node<E> deleteMin(Node<E> n) {
+        if (n.left == null) {
+            return n.right;
+        }
+        n.left = deleteMin(n.left);
+        return balance(n);
+    }
+
+    /* restores the weight balance after a single insertion or deletion below the node */
+    private Node<E> balance(Node<E> n) {
+        int leftWeight = size(n.left) + 1;
+        int rightWeight = size(n.right) + 1;
+        if (rightWeight > DELTA * leftWeight) {
+            if (size(n.right.left) + 1 >= GAMMA * (size(n.right.right) + 1)) {
+                n.right = rotateRight(n.right);
+            }
+            return rotateLeft(n);
+        }
+        if (leftWeight > DELTA * rightWeight) {
+            if (size(n.left.right) + 1 >= GAMMA * (size(n.left.left) + 1)) {
+                n.left = rotateLeft(n.left);
+            }
+            return rotateRight(n);
+        }
+        update(n);
+        return n;
+    }
+
+    private Node<E> rotateLeft(Node<E> n) {
+        Node<E> r = n.right;
+        n.right = r.left;
+        update(n);
+        r.left = n;
+        update(r);
+        return r;
+    }
+
+    private Node<E> rotateRight(Node<E> n) {
+        Node<E> l = n.left;
+        n.left = l.right;
+        update(n);
+        l.right = n;
+        update(l);
+        return l;
+    }
+}
@@ -0,0 +1,558 @@
+package com.miro.index;
+
+import com.miro.entities.Widget;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Collection;
+import java.util.NoSuchElementException;
+
+/*
+** Widgets stored in slots of primitive fields (see ColumnarWidgetStore and OffHeapWidgetStore, that define how
+** the slots are laid out in memory), the slot of a widget is found by its id in a LongIntMap.
+** There are no objects per widget: a Widget is created only when it is returned (see materialize).
+** The slots are the nodes of two weight-balanced trees, whose links and sizes are fields of the slots:
+** - the z-order, a shift renumbers the contiguous sequence of z-indexes in place, the order of the slots does not
+**   change;
+** - the area index, ordered by x and augmented with the bounds of the subtrees (greatest y, least y + height and
+**   least x + width), a query by area only visits the subtrees that can hold a widget falling into the area.
+** Slot 0 is never used and stands for the empty subtree. The slot of a deleted widget is emptied (modification
+** date 0) and reused by the next insertion: the free slots are linked through their left field.
+** This class is not thread-safe, it has to be used in an already thread-safe context;
+** materialize can be used for optimistic reads validated afterwards (see StampedLock).
+*/
+public abstract class SlotWidgetStore {
+
+    static final int NIL = 0;
+    /* balance parameters of the weight-balanced trees (Hirai and Yamamoto) */
+    private static final int DELTA = 3;
+    private static final int GAMMA = 2;
+    /* bound of the height of the weight-balanced trees for int sizes, used for the iteration stacks */
+    private static final int MAX_HEIGHT = 128;
+
+    private final LongIntMap slots;
+    private final SlotTree zOrder = new ZOrderTree();
+    private final SlotTree areas = new AreaTree();
+    private int root;
+    private int areaRoot;
+    /* first free slot, the next ones follow the left field */
+    private int free;
+    /* highest slot used so far, the slots above have never been stored */
+    private int maxSlot;
+
+    /* the map of the slots by id is kept where the slots are (see LongIntMap) */
+    SlotWidgetStore(boolean offHeap) {
+        slots = new LongIntMap(offHeap);
+    }
+
+    /* the fields of a slot, the slot must have been stored */
+    abstract long id(int n);
+
+    abstract int x(int n);
+
+    abstract int y(int n);
+
+    abstract int width(int n);
+
+    abstract int height(int n);
+
+    abstract int zIndex(int n);
+
+    abstract int left(int n);
+
+    abstract int right(int n);
+
+    abstract int size(int n);
+
+    abstract int areaLeft(int n);
+
+    abstract int areaRight(int n);
+
+    abstract int areaSize(int n);
+
+    /* greatest y of the subtree of the area index */
+    abstract int maxY(int n);
+
+    /* least y + height of the subtree of the area index */
+    abstract int minYEnd(int n);
+
+    /* least x + width of the subtree of the area index */
+    abstract int minXEnd(int n);
+
+    abstract void setZIndex(int n, int value);
+
+    abstract void setModified(int n, long value);
+
+    abstract void setLeft(int n, int value);
+
+    abstract void setRight(int n, int value);
+
+    abstract void setSize(int n, int value);
+
+    abstract void setAreaLeft(int n, int value);
+
+    abstract void setAreaRight(int n, int value);
+
+    abstract void setAreaSize(int n, int value);
+
+    abstract void setBounds(int n, int maxY, int minYEnd, int minXEnd);
+
+    /* writes the fields of the widget in its slot, allocating the memory if needed */
+    abstract void store(int s, Widget widget, long modified);
+
+    /* false if the slot is empty or beyond the allocated memory */
+    abstract boolean isStored(int s);
+
+    abstract void setEmpty(int s);
+
+    abstract Widget materialize(int s);
+
+    /* releases all the slots, slot 0 (the empty subtree) must have sizes 0 afterwards */
+    abstract void reset();
+
+    /* the widget with the given id, null if there is none */
+    public Widget materialize(long id) {
+        int s = slots.get(id);
+        // a concurrent writer may have reused the slot: the read is validated afterwards
+        if (s == NIL || !isStored(s) || id(s) != id) {
+            return null;
+        }
+        return materialize(s);
+    }
+
+    /* adds a widget with id and z-index already assigned and not stored yet, returns the number of widgets shifted */
+    public int insert(Widget widget) {
+        long modified = toMicros(widget.getModificationDate());
+        int shifted = shift(widget.getzIndex(), modified);
+        int s = allocate();
+        store(s, widget, modified);
+        slots.put(widget.getId(), s);
+        root = zOrder.insert(root, s);
+        areaRoot = areas.insert(areaRoot, s);
+        return shifted;
+    }
+
+    /* returns false if there is no widget with the given id */
+    public boolean remove(long id) {
+        int s = slots.remove(id);
+        if (s == NIL) {
+            return false;
+        }
+        root = zOrder.delete(root, s);
+        areaRoot = areas.delete(areaRoot, s);
+        setEmpty(s);
+        setLeft(s, free);
+        free = s;
+        return true;
+    }
+
+    public int size() {
+        return size(root);
+    }
+
+    /* number of slots allocated, used or free: the greatest number of widgets stored at once since the last clear */
+    public int slots() {
+        return maxSlot;
+    }
+
+    /* throws NoSuchElementException if there are no widgets */
+    public int lastZIndex() {
+        if (root == NIL) {
+            throw new NoSuchElementException();
+        }
+        int n = root;
+        while (right(n) != NIL) {
+            n = right(n);
+        }
+        return zIndex(n);
+    }
+
+    /* adds to the collection the widgets that fall entirely into the area, in no particular order */
+    public void collectInRectangle(int x1, int y1, int x2, int y2, Collection<? super Widget> out) {
+        collectInRectangle(areaRoot, x1, y1, x2, y2, out);
+    }
+
+    /* adds to the collection at most count widgets in z-index order, starting from the given rank */
+    public void collect(int fromRank, int count, Collection<? super Widget> out) {
+        int[] stack = new int[MAX_HEIGHT];
+        int top = 0;
+        int n = root;
+        int rank = fromRank;
+        while (n != NIL) {
+            int leftSize = size(left(n));
+            if (rank < leftSize) {
+                stack[top++] = n;
+                n = left(n);
+            } else if (rank == leftSize) {
+                stack[top++] = n;
+                break;
+            } else {
+                rank -= leftSize + 1;
+                n = right(n);
+            }
+        }
+        collect(stack, top, count, null, out);
+    }
+
+    /* adds to the collection at most count widgets in z-index order, starting after the given z-index */
+    public void collectAfter(int zIndex, int count, Collection<? super Widget> out) {
+        int[] stack = new int[MAX_HEIGHT];
+        int top = 0;
+        int n = root;
+        while (n != NIL) {
+            if (zIndex(n) > zIndex) {
+                stack[top++] = n;
+                n = left(n);
+            } else {
+                n = right(n);
+            }
+        }
+        collect(stack, top, count, null, out);
+    }
+
+    /*
+    ** same as collectAfter, only the widgets that fall entirely into the area are added:
+    ** the z-order is scanned until count widgets are found
+    */
+    public void collectAfter(int zIndex, int count, int x1, int y1, int x2, int y2, Collection<? super Widget> out) {
+        int[] stack = new int[MAX_HEIGHT];
+        int top = 0;
+        int n = root;
+        while (n != NIL) {
+            if (zIndex(n) > zIndex) {
+                stack[top++] = n;
+                n = left(n);
+            } else {
+                n = right(n);
+            }
+        }
+        collect(stack, top, count, new int[] {x1, y1, x2, y2}, out);
+    }
+
+    public void clear() {
+        reset();
+        slots.clear();
+        root = NIL;
+        areaRoot = NIL;
+        free = NIL;
+        maxSlot = 0;
+    }
+
+    /* true if the widget of the slot falls entirely into the area */
+    private boolean isInRectangle(int s, int x1, int y1, int x2, int y2) {
+        int x = x(s);
+        int y = y(s);
+        return x >= x1 && y >= y1 && x + width(s) <= x2 && y + height(s) <= y2;
+    }
+
+    /* the first free slot, or a new one above the highest slot used */
+    private int allocate() {
+        if (free != NIL) {
+            int s = free;
+            free = left(s);
+            return s;
+        }
+        if (maxSlot == Integer.MAX_VALUE) {
+            throw new IllegalStateException("No more slots in the store");
+        }
+        return ++maxSlot;
+    }
+
+    /* the widths are positive: a widget at x >= x2 cannot fall into the area */
+    private void collectInRectangle(int n, int x1, int y1, int x2, int y2, Collection<? super Widget> out) {
+        while (n != NIL) {
+            if (maxY(n) < y1 || minYEnd(n) > y2 || minXEnd(n) > x2) {
+                return;
+            }
+            int x = x(n);
+            if (x < x1) {
+                // the slot and its left subtree are on the left of the area
+                n = areaRight(n);
+            } else if (x >= x2) {
+                // the slot and its right subtree are on the right of the area
+                n = areaLeft(n);
+            } else {
+                collectInRectangle(areaLeft(n), x1, y1, x2, y2, out);
+                if (isInRectangle(n, x1, y1, x2, y2)) {
+                    out.add(materialize(n));
+                }
+                n = areaRight(n);
+            }
+        }
+    }
+
+    /* in-order iteration from the slots on the stack, the slot on top is the next one */
+    private void collect(int[] stack, int top, int count, int[] area, Collection<? super Widget> out) {
+        int added = 0;
+        while (top > 0 && added < count) {
+            int n = stack[--top];
+            if (area == null || isInRectangle(n, area[0], area[1], area[2], area[3])) {
+                out.add(materialize(n));
+                added++;
+            }
+            for (int child = right(n); child != NIL; child = left(child)) {
+                stack[top++] = child;
+            }
+        }
+    }
+
+    /* renumbers the contiguous sequence of z-indexes starting at the given one, if it is taken */
+    private int shift(int zIndex, long modified) {
+        int[] stack = new int[MAX_HEIGHT];
+        int top = 0;
+        int n = root;
+        while (n != NIL) {
+            if (zIndex(n) >= zIndex) {
+                stack[top++] = n;
+                n = left(n);
+            } else {
+                n = right(n);
+            }
+        }
+        int shifted = 0;
+        int expected = zIndex;
+        while (top > 0) {
+            n = stack[--top];
+            if (zIndex(n) != expected) {
+                break;
+            }
+            // the next widget has a z-index greater than expected + 1: the order of the slots does not change
+            setZIndex(n, expected + 1);
+            setModified(n, modified);
+            expected++;
+            shifted++;
+            for (int child = right(n); child != NIL; child = left(child)) {
+                stack[top++] = child;
+            }
+        }
+        return shifted;
+    }
+
+    /* a weight-balanced tree through the slots, its links and sizes are fields of the slots */
+    private abstract static class SlotTree {
+
+        abstract int left(int n);
+
+        abstract int right(int n);
+
+        abstract int size(int n);
+
+        abstract void setLeft(int n, int value);
+
+        abstract void setRight(int n, int value);
+
+        abstract void setSize(int n, int value);
+
+        /* the order of the tree, total over the slots */
+        abstract boolean before(int a, int b);
+
+        void update(int n) {
+            setSize(n, 1 + size(left(n)) + size(right(n)));
+        }
+
+        int insert(int n, int s) {
+            if (n == NIL) {
+                setLeft(s, NIL);
+                setRight(s, NIL);
+                update(s);
+                return s;
+            }
+            if (before(s, n)) {
+                setLeft(n, insert(left(n), s));
+            } else {
+                setRight(n, insert(right(n), s));
+            }
+            return balance(n);
+        }
+
+        int delete(int n, int s) {
+            if (n == NIL) {
+                return NIL;
+            }
+            if (n != s) {
+                if (before(s, n)) {
+                    setLeft(n, delete(left(n), s));
+                } else {
+                    setRight(n, delete(right(n), s));
+                }
+                return balance(n);
+            }
+            if (left(n) == NIL) {
+                return right(n);
+            }
+            if (right(n) == NIL) {
+                return left(n);
+            }
+            int min = right(n);
+            while (left(min) != NIL) {
+                min = left(min);
+            }
+            setRight(min, deleteMin(right(n)));
+            setLeft(min, left(n));
+            return balance(min);
+        }
+
+        private int deleteMin(int n) {
+            if (left(n) == NIL) {
+                return right(n);
+            }
+            setLeft(n, deleteMin(left(n)));
+            return balance(n);
+        }
+
+        /* restores the weight balance after a single insertion or deletion below the node */
+        private int balance(int n) {
+            int leftWeight = size(left(n)) + 1;
+            int rightWeight = size(right(n)) + 1;
+            if (rightWeight > DELTA * leftWeight) {
+                int r = right(n);
+                if (size(left(r)) + 1 >= GAMMA * (size(right(r)) + 1)) {
+                    setRight(n, rotateRight(r));
+                }
+                return rotateLeft(n);
+            }
+            if (leftWeight > DELTA * rightWeight) {
+                int l = left(n);
+                if (size(right(l)) + 1 >= GAMMA * (size(left(l)) + 1)) {
+                    setLeft(n, rotateLeft(l));
+                }
+                return rotateRight(n);
+            }
+            update(n);
+            return n;
+        }
+
+        private int rotateLeft(int n) {
+            int r = right(n);
+            setRight(n, left(r));
+            update(n);
+            setLeft(r, n);
+            update(r);
+            return r;
+        }
+
+        private int rotateRight(int n) {
+            int l = left(n);
+            setLeft(n, right(l));
+            update(n);
+            setRight(l, n);
+            update(l);
+            return l;
+        }
+    }
+
+    private final class ZOrderTree extends SlotTree {
+
+        @Override
+        int left(int n) {
+            return SlotWidgetStore.this.left(n);
+        }
+
+        @Override
+        int right(int n) {
+            return SlotWidgetStore.this.right(n);
+        }
+
+        @Override
+        int size(int n) {
+            return SlotWidgetStore.this.size(n);
+        }
+
+        @Override
+        void setLeft(int n, int value) {
+            SlotWidgetStore.this.setLeft(n, value);
+        }
+
+        @Override
+        void setRight(int n, int value) {
+            SlotWidgetStore.this.setRight(n, value);
+        }
+
+        @Override
+        void setSize(int n, int value) {
+            SlotWidgetStore.this.setSize(n, value);
+        }
+
+        @Override
+        boolean before(int a, int b) {
+            return zIndex(a) < zIndex(b);
+        }
+    }
+
+    /* ordered by x then by slot, the bounds of a node cover its subtree */
+    private final class AreaTree extends SlotTree {
+
+        @Override
+        int left(int n) {
+            return areaLeft(n);
+        }
+
+        @Override
+        int right(int n) {
+            return areaRight(n);
+        }
+
+        @Override
+        int size(int n) {
+            return areaSize(n);
+        }
+
+        @Override
+        void setLeft(int n, int value) {
+            setAreaLeft(n, value);
+        }
+
+        @Override
+        void setRight(int n, int value) {
+            setAreaRight(n, value);
+        }
+
+        @Override
+        void setSize(int n, int value) {
+            setAreaSize(n, value);
+        }
+
+        @Override
+        boolean before(int a, int b) {
+            return x(a) < x(b) || (x(a) == x(b) && a < b);
+        }
+
+        @Override
+        void update(int n) {
+            super.update(n);
+            int maxY = y(n);
+            int minYEnd = maxY + height(n);
+            int minXEnd = x(n) + width(n);
+            int l = areaLeft(n);
+            if (l != NIL) {
+                maxY = Math.max(maxY, maxY(l));
+                minYEnd = Math.min(minYEnd, minYEnd(l));
+                minXEnd = Math.min(minXEnd, minXEnd(l));
+            }
+            int r = areaRight(n);
+            if (r != NIL) {
+                maxY = Math.max(maxY, maxY(r));
+                minYEnd = Math.min(minYEnd, minYEnd(r));
+                minXEnd = Math.min(minXEnd, minXEnd(r));
+            }
+            setBounds(n, maxY, minYEnd, minXEnd);
+        }
+    }
+
+    static Widget widget(long id, int x, int y, int width, int height, int zIndex, long modified) {
+        Widget widget = new Widget(x, y, width, height, zIndex);
+        widget.setId(id);
+        widget.setModificationDate(fromMicros(modified));
+        return widget;
+    }
+
+    /* microseconds are the resolution of LocalDateTime.now() on most platforms */
+    public static long toMicros(LocalDateTime date) {
+        return date.toEpochSecond(ZoneOffset.UTC) * 1_000_000L + date.getNano() / 1_000;
+    }
+
+    public static LocalDateTime fromMicros(long micros) {
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(micros, 1_000_000L),
+                (int) Math.floorMod(micros, 1_000_000L) * 1_000, ZoneOffset.UTC);
+    }
+}
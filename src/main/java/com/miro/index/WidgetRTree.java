@@ -0,0 +1,339 @@
+package com.miro.index;
+
+import com.miro.entities.Point;
+import com.miro.entities.Widget;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/*
+** R-tree (Guttman, quadratic split) built over the bounding boxes of the widgets.
+** An area query only visits the nodes whose bounding box intersects the searched area,
+** so its cost is O(log n + k) whatever the position of the area on the board, on both axes.
+** Widgets are identified by reference: the z-index of a widget can change while it is indexed.
+** This class is not thread-safe, it has to be used in an already thread-safe context.
+*/
+public class WidgetRTree {
+
+    /* the nodes visited by a search between two checks (a power of two) */
+    private static final int CHECK_INTERVAL = 16;
+
+    private static final class Node {
+        final boolean leaf;
+        /* leaf nodes hold widgets, internal nodes hold children (one slot more to allow the overflow before a split) */
+        final Widget[] widgets;
+        final Node[] children;
+        int count;
+        Node parent;
+        int minX, minY, maxX, maxY;
+
+        Node(boolean leaf) {
+            this.leaf = leaf;
+            this.widgets = leaf ? new Widget[RTrees.MAX_ENTRIES + 1] : null;
+            this.children = leaf ? null : new Node[RTrees.MAX_ENTRIES + 1];
+        }
+
+        void add(Widget widget) {
+            widgets[count++] = widget;
+        }
+
+        void add(Node child) {
+            child.parent = this;
+            children[count++] = child;
+        }
+
+        void removeAt(int i) {
+            count--;
+            if (leaf) {
+                widgets[i] = widgets[count];
+                widgets[count] = null;
+            } else {
+                children[i] = children[count];
+                children[count] = null;
+            }
+        }
+
+        int minX(int i) {
+            return leaf ? widgets[i].getX() : children[i].minX;
+        }
+
+        int minY(int i) {
+            return leaf ? widgets[i].getY() : children[i].minY;
+        }
+
+        int maxX(int i) {
+            return leaf ? widgets[i].getX() + widgets[i].getWidth() : children[i].maxX;
+        }
+
+        int maxY(int i) {
+            return leaf ? widgets[i].getY() + widgets[i].getHeight() : children[i].maxY;
+        }
+
+        void computeBounds() {
+            if (count == 0) {
+                minX = minY = maxX = maxY = 0;
+                return;
+            }
+            minX = minX(0);
+            minY = minY(0);
+            maxX = maxX(0);
+            maxY = maxY(0);
+            for (int i = 1; i < count; i++) {
+                minX = Math.min(minX, minX(i));
+                minY = Math.min(minY, minY(i));
+                maxX = Math.max(maxX, maxX(i));
+                maxY = Math.max(maxY, maxY(i));
+            }
+        }
+    }
+
+    private Node root = new Node(true);
+    private int size;
+
+    public void insert(Widget widget) {
+        insertInternal(widget);
+        size++;
+    }
+
+    public boolean remove(Widget widget) {
+        Node leaf = findLeaf(root, widget);
+        if (leaf == null) {
+            return false;
+        }
+        for (int i = 0; i < leaf.count; i++) {
+            if (leaf.widgets[i] == widget) {
+                leaf.removeAt(i);
+                break;
+            }
+        }
+        size--;
+        condense(leaf);
+        return true;
+    }
+
+    /*
+    ** Passes to the consumer all the widgets that fall entirely into the area, returns the number of widgets compared
+    ** with it (those of the leaves visited)
+    */
+    public int search(Point lowerLeft, Point upperRight, Consumer<? super Widget> consumer) {
+        return search(lowerLeft, upperRight, consumer, null);
+    }
+
+    /*
+    ** Same as search, the check is run every CHECK_INTERVAL nodes visited (if not null): it throws to stop a search
+    ** that reads the tree without lock once a writer has changed it (see WidgetMainRepository.read), before the search
+    ** has gone through an inconsistent tree, whether it finds widgets or not.
+    */
+    public int search(Point lowerLeft, Point upperRight, Consumer<? super Widget> consumer, Runnable check) {
+        if (size == 0) {
+            return 0;
+        }
+        Search search = new Search(lowerLeft.getX(), lowerLeft.getY(), upperRight.getX(), upperRight.getY(), consumer,
+                check);
+        return search.visit(root);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        root = new Node(true);
+        size = 0;
+    }
+
+    /* the state of a search, a search does not change the tree: several ones can run at the same time */
+    private static final class Search {
+        final int x1, y1, x2, y2;
+        final Consumer<? super Widget> consumer;
+        final Runnable check;
+        int visited;
+
+        Search(int x1, int y1, int x2, int y2, Consumer<? super Widget> consumer, Runnable check) {
+            this.x1 = x1;
+            this.y1 = y1;
+            this.x2 = x2;
+            this.y2 = y2;
+            this.consumer = consumer;
+            this.check = check;
+        }
+
+        int visit(Node node) {
+            if (check != null && (++visited & (CHECK_INTERVAL - 1)) == 0) {
+                check.run();
+            }
+            if (node.leaf) {
+                for (int i = 0; i < node.count; i++) {
+                    if (node.minX(i) >= x1 && node.maxX(i) <= x2 && node.minY(i) >= y1 && node.maxY(i) <= y2) {
+                        consumer.accept(node.widgets[i]);
+                    }
+                }
+                return node.count;
+            }
+            int scanned = 0;
+            for (int i = 0; i < node.count; i++) {
+                Node child = node.children[i];
+                if (child.minX <= x2 && child.maxX >= x1 && child.minY <= y2 && child.maxY >= y1) {
+                    scanned += visit(child);
+                }
+            }
+            return scanned;
+        }
+    }
+
+    private void insertInternal(Widget widget) {
+        Node leaf = chooseLeaf(widget);
+        leaf.add(widget);
+        adjust(leaf);
+    }
+
+    /* descends the tree choosing the child that needs the least enlargement (ties resolved by the smallest area) */
+    private Node chooseLeaf(Widget widget) {
+        int x1 = widget.getX();
+        int y1 = widget.getY();
+        int x2 = x1 + widget.getWidth();
+        int y2 = y1 + widget.getHeight();
+        Node node = root;
+        while (!node.leaf) {
+            Node best = null;
+            long bestEnlargement = Long.MAX_VALUE;
+            long bestArea = Long.MAX_VALUE;
+            for (int i = 0; i < node.count; i++) {
+                Node child = node.children[i];
+                long area = RTrees.area(child.minX, child.minY, child.maxX, child.maxY);
+                long enlargement = RTrees.area(Math.min(child.minX, x1), Math.min(child.minY, y1),
+                        Math.max(child.maxX, x2), Math.max(child.maxY, y2)) - area;
+                if (enlargement < bestEnlargement || (enlargement == bestEnlargement && area < bestArea)) {
+                    best = child;
+                    bestEnlargement = enlargement;
+                    bestArea = area;
+                }
+            }
+            node = best;
+        }
+        return node;
+    }
+
+    /* propagates the changes from the node up to the root, splitting the nodes that overflow */
+    private void adjust(Node node) {
+        while (node != null) {
+            if (node.count > RTrees.MAX_ENTRIES) {
+                Node sibling = split(node);
+                if (node.parent == null) {
+                    Node newRoot = new Node(false);
+                    newRoot.add(node);
+                    newRoot.add(sibling);
+                    newRoot.computeBounds();
+                    root = newRoot;
+                    return;
+                }
+                node.parent.add(sibling);
+            } else {
+                node.computeBounds();
+            }
+            node = node.parent;
+        }
+    }
+
+    /* quadratic split: the node keeps the first group and the returned sibling gets the second one */
+    private Node split(Node node) {
+        int total = node.count;
+        int[] x1 = new int[total];
+        int[] y1 = new int[total];
+        int[] x2 = new int[total];
+        int[] y2 = new int[total];
+        for (int i = 0; i < total; i++) {
+            x1[i] = node.minX(i);
+            y1[i] = node.minY(i);
+            x2[i] = node.maxX(i);
+            y2[i] = node.maxY(i);
+        }
+
+        int[] group = RTrees.quadraticSplit(x1, y1, x2, y2, RTrees.MIN_ENTRIES);
+
+        Node sibling = new Node(node.leaf);
+        if (node.leaf) {
+            Widget[] widgets = node.widgets.clone();
+            Arrays.fill(node.widgets, null);
+            node.count = 0;
+            for (int i = 0; i < total; i++) {
+                (group[i] == 1 ? node : sibling).add(widgets[i]);
+            }
+        } else {
+            Node[] children = node.children.clone();
+            Arrays.fill(node.children, null);
+            node.count = 0;
+            for (int i = 0; i < total; i++) {
+                (group[i] == 1 ? node : sibling).add(children[i]);
+            }
+        }
+        node.computeBounds();
+        sibling.computeBounds();
+        return sibling;
+    }
+
+    private Node findLeaf(Node node, Widget widget) {
+        if (node.leaf) {
+            for (int i = 0; i < node.count; i++) {
+                if (node.widgets[i] == widget) {
+                    return node;
+                }
+            }
+            return null;
+        }
+        int x1 = widget.getX();
+        int y1 = widget.getY();
+        int x2 = x1 + widget.getWidth();
+        int y2 = y1 + widget.getHeight();
+        for (int i = 0; i < node.count; i++) {
+            Node child = node.children[i];
+            if (child.minX <= x1 && child.minY <= y1 && child.maxX >= x2 && child.maxY >= y2) {
+                Node leaf = findLeaf(child, widget);
+                if (leaf != null) {
+                    return leaf;
+                }
+            }
+        }
+        return null;
+    }
+
+    /* removes the nodes that underflow after a removal and re-inserts their widgets */
+    private void condense(Node node) {
+        List<Widget> orphans = new ArrayList<>();
+        while (node != root) {
+            Node parent = node.parent;
+            if (node.count < RTrees.MIN_ENTRIES) {
+                for (int i = 0; i < parent.count; i++) {
+                    if (parent.children[i] == node) {
+                        parent.removeAt(i);
+                        break;
+                    }
+                }
+                collect(node, orphans);
+            } else {
+                node.computeBounds();
+            }
+            node = parent;
+        }
+        root.computeBounds();
+        while (!root.leaf && root.count <= 1) {
+            root = root.count == 0 ? new Node(true) : root.children[0];
+            root.parent = null;
+        }
+        for (Widget widget : orphans) {
+            insertInternal(widget);
+        }
+    }
+
+    private void collect(Node node, List<Widget> widgets) {
+        for (int i = 0; i < node.count; i++) {
+            if (node.leaf) {
+                widgets.add(node.widgets[i]);
+            } else {
+                collect(node.children[i], widgets);
+            }
+        }
+    }
+}
@@ -0,0 +1,324 @@
+package com.miro.index;
+
+import com.miro.entities.Point;
+import com.miro.entities.Widget;
+import com.miro.entities.WidgetBatch;
+import com.miro.entities.WidgetCluster;
+import com.miro.entities.WidgetClusters;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+
+/*
+** Pyramid of square tiles over the board (a quadtree): level 0 is a single tile covering all the int coordinates,
+** every level splits the tiles of the level above in four, down to the tiles of LEAF_SIZE units of MAX_LEVEL.
+** A widget belongs to the tile of every level that contains its center. Every tile keeps the number of its widgets,
+** the sum of their centers and the bounding box of their bounds, updated by every insert and remove along the path of
+** the widget (MAX_LEVEL + 1 tiles). Only the tiles with widgets exist.
+** The leaves keep the bounds of their widgets: a remove that shrinks the bounding box of its leaf recomputes it, and
+** those of the tiles above from their children, until one does not change.
+** cluster() returns the tiles of the deepest level with at most the given number of tiles overlapping an area: the
+** level of detail of a zoomed-out view, its size depends on the resolution asked and not on the number of widgets.
+** This class is thread-safe: the changes are made under the write lock, the clusters are read under the read lock.
+*/
+public class WidgetTilePyramid {
+
+    public static final int MAX_LEVEL = 24;
+    /* the side of the tiles of MAX_LEVEL */
+    public static final int LEAF_SIZE = 1 << (32 - MAX_LEVEL);
+
+    /* the bounds of a widget, in its leaf at 'slot' */
+    private static final class Entry {
+        final long id;
+        final int minX, minY, maxX, maxY;
+        /* the center, as the offset from Integer.MIN_VALUE (unsigned, 32 bits) */
+        final long centerX, centerY;
+        Tile leaf;
+        int slot;
+
+        Entry(Widget widget) {
+            this.id = widget.getId();
+            this.minX = widget.getX();
+            this.minY = widget.getY();
+            this.maxX = widget.getX() + widget.getWidth();
+            this.maxY = widget.getY() + widget.getHeight();
+            this.centerX = center(minX, maxX);
+            this.centerY = center(minY, maxY);
+        }
+
+        private static long center(int min, int max) {
+            long center = ((long) min + max) >> 1;
+            return Math.max(0, Math.min(0xFFFFFFFFL, center - Integer.MIN_VALUE));
+        }
+
+        /* the child of a tile of the level that holds the widget */
+        int quadrant(int level) {
+            int shift = 31 - level;
+            return (int) ((centerX >>> shift) & 1) | (int) ((centerY >>> shift) & 1) << 1;
+        }
+    }
+
+    private static final class Tile {
+        final Tile parent;
+        final int quadrant;
+        final int level;
+        /* the children for the levels above MAX_LEVEL, the widgets for the leaves */
+        final Tile[] children;
+        Entry[] entries;
+        int count;
+        long sumX, sumY;
+        int minX, minY, maxX, maxY;
+
+        Tile(Tile parent, int quadrant, int level) {
+            this.parent = parent;
+            this.quadrant = quadrant;
+            this.level = level;
+            this.children = level < MAX_LEVEL ? new Tile[4] : null;
+            this.entries = level < MAX_LEVEL ? null : new Entry[2];
+        }
+
+        Tile child(int quadrant) {
+            Tile child = children[quadrant];
+            if (child == null) {
+                child = new Tile(this, quadrant, level + 1);
+                children[quadrant] = child;
+            }
+            return child;
+        }
+
+        void add(Entry entry) {
+            if (count == 0) {
+                minX = entry.minX;
+                minY = entry.minY;
+                maxX = entry.maxX;
+                maxY = entry.maxY;
+            } else {
+                minX = Math.min(minX, entry.minX);
+                minY = Math.min(minY, entry.minY);
+                maxX = Math.max(maxX, entry.maxX);
+                maxY = Math.max(maxY, entry.maxY);
+            }
+            count++;
+            sumX += entry.centerX;
+            sumY += entry.centerY;
+        }
+
+        /* the widgets of a leaf are stored in the first 'count' slots, once counted by add */
+        void addEntry(Entry entry) {
+            if (count > entries.length) {
+                Entry[] grown = new Entry[entries.length * 2];
+                System.arraycopy(entries, 0, grown, 0, entries.length);
+                entries = grown;
+            }
+            entry.leaf = this;
+            entry.slot = count - 1;
+            entries[entry.slot] = entry;
+        }
+
+        void removeEntry(Entry entry) {
+            Entry last = entries[count - 1];
+            entries[entry.slot] = last;
+            last.slot = entry.slot;
+            entries[count - 1] = null;
+        }
+
+        void remove(Entry entry) {
+            count--;
+            sumX -= entry.centerX;
+            sumY -= entry.centerY;
+        }
+
+        /* true if the widget lies on the bounding box: without it the box may be smaller */
+        boolean touches(Entry entry) {
+            return entry.minX == minX || entry.minY == minY || entry.maxX == maxX || entry.maxY == maxY;
+        }
+
+        /* returns true if the bounding box has changed */
+        boolean computeBounds() {
+            int oldMinX = minX, oldMinY = minY, oldMaxX = maxX, oldMaxY = maxY;
+            minX = minY = Integer.MAX_VALUE;
+            maxX = maxY = Integer.MIN_VALUE;
+            if (entries != null) {
+                for (int i = 0; i < count; i++) {
+                    union(entries[i].minX, entries[i].minY, entries[i].maxX, entries[i].maxY);
+                }
+            } else {
+                for (Tile child : children) {
+                    if (child != null) {
+                        union(child.minX, child.minY, child.maxX, child.maxY);
+                    }
+                }
+            }
+            return minX != oldMinX || minY != oldMinY || maxX != oldMaxX || maxY != oldMaxY;
+        }
+
+        private void union(int minX, int minY, int maxX, int maxY) {
+            this.minX = Math.min(this.minX, minX);
+            this.minY = Math.min(this.minY, minY);
+            this.maxX = Math.max(this.maxX, maxX);
+            this.maxY = Math.max(this.maxY, maxY);
+        }
+
+        boolean overlaps(Point lowerLeft, Point upperRight) {
+            return lowerLeft == null || (minX <= upperRight.getX() && maxX >= lowerLeft.getX() &&
+                                         minY <= upperRight.getY() && maxY >= lowerLeft.getY());
+        }
+
+        WidgetCluster toCluster() {
+            return new WidgetCluster(count, minX, minY, (long) maxX - minX, (long) maxY - minY,
+                    (int) (sumX / count + Integer.MIN_VALUE), (int) (sumY / count + Integer.MIN_VALUE));
+        }
+    }
+
+    private final StampedLock sl = new StampedLock();
+    private final LongObjectMap<Entry> entries = new LongObjectMap<>();
+    private Tile root = new Tile(null, 0, 0);
+
+    /* adds the widget, or moves it if it is already there */
+    public void insert(Widget widget) {
+        long stamp = sl.writeLock();
+        try {
+            insertInternal(widget);
+        } finally {
+            sl.unlockWrite(stamp);
+        }
+    }
+
+    /* returns false if the widget is not there */
+    public boolean remove(long id) {
+        long stamp = sl.writeLock();
+        try {
+            return removeInternal(id);
+        } finally {
+            sl.unlockWrite(stamp);
+        }
+    }
+
+    /* applies a batch as WidgetRepository.applyBatch does, the clusters read never show a part of it */
+    public void applyBatch(WidgetBatch batch) {
+        long stamp = sl.writeLock();
+        try {
+            for (long id : batch.getDelete()) {
+                removeInternal(id);
+            }
+            for (Widget widget : batch.getUpdate()) {
+                insertInternal(widget);
+            }
+            for (Widget widget : batch.getCreate()) {
+                insertInternal(widget);
+            }
+        } finally {
+            sl.unlockWrite(stamp);
+        }
+    }
+
+    private void insertInternal(Widget widget) {
+        removeInternal(widget.getId());
+        Entry entry = new Entry(widget);
+        entries.put(entry.id, entry);
+        Tile tile = root;
+        tile.add(entry);
+        while (tile.level < MAX_LEVEL) {
+            tile = tile.child(entry.quadrant(tile.level));
+            tile.add(entry);
+        }
+        tile.addEntry(entry);
+    }
+
+    private boolean removeInternal(long id) {
+        Entry entry = entries.remove(id);
+        if (entry == null) {
+            return false;
+        }
+        Tile tile = entry.leaf;
+        tile.removeEntry(entry);
+        /* the bounding boxes of the tiles above change only if the one below has changed */
+        boolean shrink = true;
+        while (tile != null) {
+            tile.remove(entry);
+            if (tile.count == 0) {
+                if (tile.parent != null) {
+                    tile.parent.children[tile.quadrant] = null;
+                }
+            } else if (shrink) {
+                shrink = tile.touches(entry) && tile.computeBounds();
+            }
+            tile = tile.parent;
+        }
+        return true;
+    }
+
+    /*
+    ** the tiles of the deepest level that has at most 'maxTiles' tiles overlapping the area (the whole board if the
+    ** corners are null), as clusters. A tile overlaps the area if the bounding box of its widgets does, its cluster
+    ** counts all of them. The cost is O(MAX_LEVEL * maxTiles) whatever the number of widgets.
+    */
+    public WidgetClusters cluster(Point lowerLeft, Point upperRight, int maxTiles) {
+        long stamp = sl.readLock();
+        try {
+            List<Tile> tiles = new ArrayList<>();
+            if (root.count > 0 && root.overlaps(lowerLeft, upperRight)) {
+                tiles.add(root);
+            }
+            int level = 0;
+            while (level < MAX_LEVEL && !tiles.isEmpty()) {
+                List<Tile> next = overlapping(tiles, lowerLeft, upperRight, maxTiles);
+                if (next == null) {
+                    break;
+                }
+                tiles = next;
+                level++;
+            }
+            List<WidgetCluster> clusters = new ArrayList<>(tiles.size());
+            int count = 0;
+            for (Tile tile : tiles) {
+                clusters.add(tile.toCluster());
+                count += tile.count;
+            }
+            return WidgetClusters.of(level, tileSize(level), count, clusters);
+        } finally {
+            sl.unlockRead(stamp);
+        }
+    }
+
+    /* the children of the tiles that overlap the area, null if there are more than maxTiles */
+    private static List<Tile> overlapping(List<Tile> tiles, Point lowerLeft, Point upperRight, int maxTiles) {
+        List<Tile> ret = new ArrayList<>();
+        for (Tile tile : tiles) {
+            for (Tile child : tile.children) {
+                if (child != null && child.overlaps(lowerLeft, upperRight)) {
+                    if (ret.size() == maxTiles) {
+                        return null;
+                    }
+                    ret.add(child);
+                }
+            }
+        }
+        return ret;
+    }
+
+    /* the side of the tiles of the level */
+    public static long tileSize(int level) {
+        return 1L << (32 - level);
+    }
+
+    public int size() {
+        long stamp = sl.readLock();
+        try {
+            return entries.size();
+        } finally {
+            sl.unlockRead(stamp);
+        }
+    }
+
+    public void clear() {
+        long stamp = sl.writeLock();
+        try {
+            entries.clear();
+            root = new Tile(null, 0, 0);
+        } finally {
+            sl.unlockWrite(stamp);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.miro.index;
+
+import com.miro.entities.Widget;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.SortedSet;
+
+/*
+** Keeps the widgets ordered by z-index and applies the z-index rules of the README:
+** a widget saved with an existing z-index shifts upwards the widget with the same (and greater if needed) z-index.
+** The widgets returned by the queries carry their current z-index and modification date.
+** Implementations are not thread-safe, they have to be used in an already thread-safe context.
+*/
+public interface ZOrder {
+
+    /* adds a widget with a z-index already assigned, returns the number of widgets shifted */
+    int insert(Widget widget);
+    /*
+    ** adds the widgets as many inserts in the same order would do: a widget without z-index goes on top of the
+    ** widgets inserted before it. Implementations may merge the shifts of the whole batch.
+    */
+    default void insertAll(List<Widget> widgets) {
+        for (Widget widget : widgets) {
+            if (widget.getzIndex() == null) {
+                widget.setzIndex(size() == 0 ? 1 : lastZIndex() + 1);
+            }
+            insert(widget);
+        }
+    }
+    void remove(Widget widget);
+    /*
+    ** replaces the stored widget by its new version, with the same id and the same z-index: the order is not changed,
+    ** a reader sees either the old or the new version
+    */
+    void replace(Widget widget, Widget newWidget);
+    /* the widget, as stored by the repository, with its current z-index */
+    Widget materialize(Widget widget);
+    /* the widgets in z-index order, starting from the given rank (0 is the lowest z-index) */
+    Iterator<Widget> iterator(int fromRank);
+    /* the widgets in z-index order, starting from the first widget with z-index >= the given one */
+    Iterator<Widget> iteratorFrom(int zIndex);
+    /* throws NoSuchElementException if there are no widgets */
+    int lastZIndex();
+    /* all the widgets, read while the writers are excluded: a copy if the z-order cannot be read as it changes */
+    SortedSet<Widget> asSortedSet();
+    int size();
+    void clear();
+}
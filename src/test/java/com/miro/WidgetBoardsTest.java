@@ -0,0 +1,154 @@
+package com.miro;
+
+import com.miro.entities.Widget;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.InvalidParameterException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class WidgetBoardsTest {
+
+    private Path dir;
+    private WidgetBoards boards;
+
+    @BeforeEach
+    void createDir() throws IOException {
+        dir = Files.createTempDirectory("boards");
+    }
+
+    @AfterEach
+    void deleteDir() throws IOException {
+        if (boards != null) {
+            boards.close();
+        }
+        TestUtils.deleteRecursively(dir);
+    }
+
+    private Widget save(String boardId, Integer zIndex) {
+        Widget widget = new Widget(1, 1, 10, 10, zIndex);
+        return boards.withBoard(boardId, repository -> {
+            repository.save(widget);
+            return widget;
+        });
+    }
+
+    @Test
+    public void testBoardsAreIndependent() {
+        boards = new WidgetBoards(WidgetMainRepository::new, null, 60_000);
+        Widget a1 = save("a", 1);
+        Widget b1 = save("b", 1);
+        Widget b2 = save("b", 1);
+        // every board has its own ids and its own z-order
+        assertEquals(1, a1.getId());
+        assertEquals(1, b1.getId());
+        assertEquals(2, b2.getId());
+        assertEquals(2, boards.withBoard("b", repository -> repository.findByIdOrNull(b1.getId())).getzIndex());
+        assertEquals(1, boards.withBoard("a", repository -> repository.findByIdOrNull(a1.getId())).getzIndex());
+        assertEquals(1, boards.withBoard("a", WidgetRepository::size));
+        assertEquals(2, boards.size());
+
+        assertThrows(InvalidParameterException.class, () -> boards.withBoard("../a", WidgetRepository::size));
+    }
+
+    @Test
+    public void testIdleBoardsAreEvicted() {
+        boards = new WidgetBoards(WidgetMainRepository::new, dir, 60_000);
+        save("empty", null);
+        boards.withBoard("empty", repository -> {
+            repository.clear();
+            return null;
+        });
+        List<Widget> saved = List.of(save("full", 5), save("full", 5));
+        assertEquals(2, boards.size());
+
+        // not idle yet
+        boards.evictIdle(System.currentTimeMillis());
+        assertEquals(2, boards.size());
+
+        long later = System.currentTimeMillis() + 120_000;
+        /* a board in use is not evicted */
+        boards.withBoard("full", repository -> {
+            boards.evictIdle(later);
+            assertEquals(1, boards.size());
+            return null;
+        });
+        boards.evictIdle(later);
+        assertEquals(0, boards.size());
+        assertTrue(Files.exists(dir.resolve("full.checkpoint")));
+        assertFalse(Files.exists(dir.resolve("empty.checkpoint")));
+
+        /* loaded again with its widgets and its sequence, the checkpoint is kept until the board is written again */
+        assertEquals(2, boards.withBoard("full", WidgetRepository::size));
+        assertTrue(Files.exists(dir.resolve("full.checkpoint")));
+        assertEquals(6, boards.withBoard("full", repository -> repository.findByIdOrNull(saved.get(0).getId())).getzIndex());
+        assertEquals(3, save("full", null).getId());
+        assertEquals(0, boards.withBoard("empty", WidgetRepository::size));
+        assertEquals(1, save("empty", null).getId());
+    }
+
+    @Test
+    public void testBoardsAreWrittenWhenClosed() {
+        boards = new WidgetBoards(WidgetMainRepository::new, dir, 60_000);
+        save("full", 5);
+        save("emptied", 1);
+        boards.evictIdle(System.currentTimeMillis() + 120_000);
+        assertTrue(Files.exists(dir.resolve("emptied.checkpoint")));
+        boards.withBoard("emptied", repository -> {
+            repository.clear();
+            return null;
+        });
+        boards.close();
+        assertEquals(0, boards.size());
+        assertTrue(Files.exists(dir.resolve("full.checkpoint")));
+        // the checkpoint of a board without widgets is dropped
+        assertFalse(Files.exists(dir.resolve("emptied.checkpoint")));
+
+        boards = new WidgetBoards(WidgetMainRepository::new, dir, 60_000);
+        assertEquals(1, boards.withBoard("full", WidgetRepository::size));
+        assertEquals(0, boards.withBoard("emptied", WidgetRepository::size));
+    }
+
+    @Test
+    public void testCloseWaitsForTheRequestsRunning() throws InterruptedException {
+        boards = new WidgetBoards(WidgetMainRepository::new, dir, 60_000);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread request = new Thread(() -> boards.withBoard("busy", repository -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            repository.save(new Widget(1, 1, 10, 10, 1));
+            return null;
+        }));
+        request.start();
+        started.await();
+        Thread closing = new Thread(boards::close);
+        closing.start();
+        closing.join(200);
+        // the board is not written while the request runs, the next requests are refused
+        assertTrue(closing.isAlive());
+        assertFalse(Files.exists(dir.resolve("busy.checkpoint")));
+        assertThrows(IllegalStateException.class, () -> boards.withBoard("busy", WidgetRepository::size));
+        release.countDown();
+        closing.join();
+        request.join();
+        assertTrue(Files.exists(dir.resolve("busy.checkpoint")));
+
+        boards = new WidgetBoards(WidgetMainRepository::new, dir, 60_000);
+        assertEquals(1, boards.withBoard("busy", WidgetRepository::size));
+    }
+}
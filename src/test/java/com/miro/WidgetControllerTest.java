@@ -4,21 +4,38 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.json.JsonMapper;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.miro.entities.Widget;
+import com.miro.entities.WidgetBatch;
+import com.miro.entities.WidgetChange;
+import com.miro.entities.WidgetCluster;
+import com.miro.entities.WidgetClusters;
+import com.miro.entities.WidgetDelta;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
 
+import java.nio.ByteBuffer;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.equalTo;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
-@SpringBootTest
+@SpringBootTest(properties = "widgets.clusters.enabled=true")
 @AutoConfigureMockMvc
 public class WidgetControllerTest {
 
@@ -117,6 +134,69 @@ public class WidgetControllerTest {
         deleteWidget(w1);
     }
 
+    @Test
+    public void testApplyBatchApi() throws Exception {
+        String sw1 = "{\"x\": 10, \"y\": 10, \"width\": 3, \"height\" : 40, \"zIndex\" : 30}";
+        String sw2 = "{\"x\": 20, \"y\": 20, \"width\": 3, \"height\" : 40, \"zIndex\" : 31}";
+        Widget w1 = createWidget(sw1);
+        Widget w2 = createWidget(sw2);
+
+        /* w1 is deleted, w2 is moved, two widgets are created at the z-index 30: the second one shifts the first one */
+        String batch = "{\"delete\": [" + w1.getId() + "], \"update\": [{\"id\": " + w2.getId() + ", \"x\": 25}]," +
+                " \"create\": [{\"x\": 1, \"y\": 1, \"width\": 5, \"height\": 5, \"zIndex\": 30}," +
+                " {\"x\": 2, \"y\": 2, \"width\": 5, \"height\": 5, \"zIndex\": 30}]}";
+        String ret = "{\"delete\": [" + w1.getId() + "], \"update\": [{\"id\": " + w2.getId() + ", \"x\": 25, \"zIndex\": 32}]," +
+                " \"create\": [{\"x\": 1, \"zIndex\": 31}, {\"x\": 2, \"zIndex\": 30}]}";
+        MvcResult result = mvc.perform(MockMvcRequestBuilders.post("/widgets/batch")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(batch)
+                .accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(content().json(ret))
+                .andReturn();
+
+        mvc.perform(MockMvcRequestBuilders.get("/widgets/" + w1.getId())
+                .accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isNotFound());
+
+        // cleanup
+        WidgetBatch applied = mapper.readValue(result.getResponse().getContentAsString(), WidgetBatch.class);
+        deleteWidget(w2);
+        for (Widget w : applied.getCreate()) {
+            deleteWidget(w);
+        }
+    }
+
+    @Test
+    public void testApplyInvalidBatchApi() throws Exception {
+        String sw1 = "{\"x\": 10, \"y\": 10, \"width\": 3, \"height\" : 40, \"zIndex\" : 40}";
+        Widget w1 = createWidget(sw1);
+
+        /* Expected to fail (return 400) as the width of the second widget is negative: nothing is applied */
+        String batch = "{\"delete\": [" + w1.getId() + "]," +
+                " \"create\": [{\"x\": 1, \"y\": 1, \"width\": 5, \"height\": 5}, {\"x\": 2, \"y\": 2, \"width\": -5, \"height\": 5}]}";
+        mvc.perform(MockMvcRequestBuilders.post("/widgets/batch")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(batch)
+                .accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isBadRequest());
+
+        /* the same widget cannot be deleted and updated */
+        batch = "{\"delete\": [" + w1.getId() + "], \"update\": [{\"id\": " + w1.getId() + ", \"x\": 25}]}";
+        mvc.perform(MockMvcRequestBuilders.post("/widgets/batch")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(batch)
+                .accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isBadRequest());
+
+        mvc.perform(MockMvcRequestBuilders.get("/widgets/" + w1.getId())
+                .accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk());
+
+        // cleanup
+        deleteWidget(w1);
+    }
+
     @Test
     public void testGetAllWidgetsApi() throws Exception {
         // ingest some data
@@ -187,6 +267,385 @@ public class WidgetControllerTest {
         deleteWidget(w8);
     }
 
+    @Test
+    public void testGetAllWidgetsWithCursorApi() throws Exception {
+        // ingest some data
+        String sw1 = "{\"x\": 10, \"y\": 10, \"width\": 3, \"height\" : 10, \"zIndex\" : 1}";
+        String sw2 = "{\"x\": 20, \"y\": 20, \"width\": 3, \"height\" : 20, \"zIndex\" : 2}";
+        String sw3 = "{\"x\": 30, \"y\": 30, \"width\": 3, \"height\" : 30, \"zIndex\" : 3}";
+        String sw4 = "{\"x\": 40, \"y\": 40, \"width\": 3, \"height\" : 40, \"zIndex\" : 4}";
+
+        Widget w1 = createWidget(sw1);
+        Widget w2 = createWidget(sw2);
+        Widget w3 = createWidget(sw3);
+        Widget w4 = createWidget(sw4);
+
+        // the first page returns the cursor to resume from
+        String ret = "[{\"x\": 10, \"y\": 10, \"width\": 3, \"height\" : 10, \"zIndex\" : 1}," +
+                "{\"x\": 20, \"y\": 20, \"width\": 3, \"height\" : 20, \"zIndex\" : 2}]";
+        MvcResult result = mvc.perform(MockMvcRequestBuilders.get("/widgets")
+                .param("size", "2")
+                .param("page", "1")
+                .accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.LINK, containsString("rel=\"next\"")))
+                .andExpect(content().json(ret))
+                .andReturn();
+        String cursor = result.getResponse().getHeader("X-Next-Cursor");
+
+        /* a new widget shifts all the others: the next page must neither repeat nor skip widgets */
+        String sw5 = "{\"x\": 50, \"y\": 50, \"width\": 3, \"height\" : 50, \"zIndex\" : 1}";
+        Widget w5 = createWidget(sw5);
+
+        ret = "[{\"x\": 30, \"y\": 30, \"width\": 3, \"height\" : 30, \"zIndex\" : 4}," +
+                "{\"x\": 40, \"y\": 40, \"width\": 3, \"height\" : 40, \"zIndex\" : 5}]";
+        result = mvc.perform(MockMvcRequestBuilders.get("/widgets")
+                .param("size", "2")
+                .param("after", cursor)
+                .accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(content().json(ret))
+                .andReturn();
+        cursor = result.getResponse().getHeader("X-Next-Cursor");
+
+        // the last page is empty and has no next link
+        mvc.perform(MockMvcRequestBuilders.get("/widgets")
+                .param("size", "2")
+                .param("after", cursor)
+                .accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(header().doesNotExist(HttpHeaders.LINK))
+                .andExpect(content().json("[]"));
+
+        mvc.perform(MockMvcRequestBuilders.get("/widgets")
+                .param("after", "not-a-cursor")
+                .accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isBadRequest());
+
+        // cleanup
+        deleteWidget(w1);
+        deleteWidget(w2);
+        deleteWidget(w3);
+        deleteWidget(w4);
+        deleteWidget(w5);
+    }
+
+    @Test
+    public void testGetWidgetClustersApi() throws Exception {
+        // ingest some data: two widgets close to each other, one far away
+        Widget w1 = createWidget("{\"x\": 10, \"y\": 10, \"width\": 10, \"height\" : 10}");
+        Widget w2 = createWidget("{\"x\": 30, \"y\": 10, \"width\": 10, \"height\" : 20}");
+        Widget w3 = createWidget("{\"x\": 100000, \"y\": 100000, \"width\": 10, \"height\" : 10}");
+
+        // few enough widgets: the widgets themselves
+        WidgetClusters clusters = getWidgetClusters("10", null, null);
+        assertFalse(clusters.isClustered());
+        assertEquals(3, clusters.getWidgets().size());
+
+        // more widgets than asked: one cluster per tile
+        clusters = getWidgetClusters("2", null, null);
+        assertTrue(clusters.isClustered());
+        assertEquals(3, clusters.getCount());
+        assertEquals(2, clusters.getClusters().size());
+        WidgetCluster near = clusters.getClusters().get(0).getCount() == 2 ? clusters.getClusters().get(0)
+                : clusters.getClusters().get(1);
+        assertEquals(2, near.getCount());
+        assertEquals(10, near.getX());
+        assertEquals(30, near.getWidth());
+        assertEquals(20, near.getHeight());
+
+        // only the widgets of the area
+        clusters = getWidgetClusters("1", "0,0", "1000,1000");
+        assertTrue(clusters.isClustered());
+        assertEquals(2, clusters.getCount());
+        clusters = getWidgetClusters("2", "0,0", "1000,1000");
+        assertFalse(clusters.isClustered());
+        assertEquals(2, clusters.getWidgets().size());
+
+        mvc.perform(MockMvcRequestBuilders.get("/widgets")
+                .param("maxWidgets", "0")
+                .accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isBadRequest());
+        mvc.perform(MockMvcRequestBuilders.get("/widgets")
+                .param("maxWidgets", "10")
+                .param("lowerLeft", "0,0")
+                .accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isBadRequest());
+
+        // cleanup
+        deleteWidget(w1);
+        deleteWidget(w2);
+        deleteWidget(w3);
+    }
+
+    private WidgetClusters getWidgetClusters(String maxWidgets, String lowerLeft, String upperRight) throws Exception {
+        MockHttpServletRequestBuilder request = MockMvcRequestBuilders.get("/widgets")
+                .param("maxWidgets", maxWidgets)
+                .accept(MediaType.APPLICATION_JSON);
+        if (lowerLeft != null) {
+            request.param("lowerLeft", lowerLeft).param("upperRight", upperRight);
+        }
+        MvcResult result = mvc.perform(request)
+                .andExpect(status().isOk())
+                .andReturn();
+        return mapper.readValue(result.getResponse().getContentAsString(), WidgetClusters.class);
+    }
+
+    @Test
+    public void testStreamAllWidgetsApi() throws Exception {
+        // ingest some data
+        String sw1 = "{\"x\": 10, \"y\": 10, \"width\": 3, \"height\" : 10, \"zIndex\" : 7}";
+        String sw2 = "{\"x\": 20, \"y\": 20, \"width\": 3, \"height\" : 20, \"zIndex\" : 3}";
+
+        Widget w1 = createWidget(sw1);
+        Widget w2 = createWidget(sw2);
+
+        // one widget per line, in z-index order
+        MvcResult result = mvc.perform(MockMvcRequestBuilders.get("/widgets")
+                .accept(WidgetController.APPLICATION_NDJSON))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.CONTENT_TYPE, WidgetController.APPLICATION_NDJSON))
+                .andReturn();
+        String[] lines = result.getResponse().getContentAsString().split("\n");
+        assertEquals(2, lines.length);
+        assertEquals(w2.getId(), mapper.readValue(lines[0], Widget.class).getId());
+        assertEquals(w1.getId(), mapper.readValue(lines[1], Widget.class).getId());
+
+        // cleanup
+        deleteWidget(w1);
+        deleteWidget(w2);
+    }
+
+    @Test
+    public void testStreamAllWidgetsBinaryApi() throws Exception {
+        // ingest some data
+        String sw1 = "{\"x\": -10, \"y\": 10, \"width\": 3, \"height\" : 10, \"zIndex\" : 7}";
+        String sw2 = "{\"x\": 20, \"y\": -20, \"width\": 4, \"height\" : 20, \"zIndex\" : -3}";
+
+        Widget w1 = createWidget(sw1);
+        Widget w2 = createWidget(sw2);
+
+        // one fixed-size record per widget, in z-index order
+        MvcResult result = mvc.perform(MockMvcRequestBuilders.get("/widgets")
+                .accept(WidgetBinaryFormat.MEDIA_TYPE))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.CONTENT_TYPE, WidgetBinaryFormat.MEDIA_TYPE))
+                .andReturn();
+        byte[] body = result.getResponse().getContentAsByteArray();
+        assertEquals(2 * WidgetBinaryFormat.RECORD_SIZE, body.length);
+        List<Widget> widgets = WidgetBinaryFormat.read(ByteBuffer.wrap(body));
+        Widget r2 = widgets.get(0);
+        assertEquals(w2.getId(), r2.getId());
+        assertEquals(20, r2.getX());
+        assertEquals(-20, r2.getY());
+        assertEquals(4, r2.getWidth());
+        assertEquals(20, r2.getHeight());
+        assertEquals(-3, r2.getzIndex());
+        assertEquals(w2.getModificationDate().truncatedTo(ChronoUnit.MICROS), r2.getModificationDate());
+        assertEquals(w1.getId(), widgets.get(1).getId());
+        assertEquals(-10, widgets.get(1).getX());
+
+        // cleanup
+        deleteWidget(w1);
+        deleteWidget(w2);
+    }
+
+    @Test
+    public void testStreamChangesApi() throws Exception {
+        MvcResult result = mvc.perform(MockMvcRequestBuilders.get("/widgets/changes")
+                .accept(MediaType.TEXT_EVENT_STREAM))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        String sw1 = "{\"x\": 10, \"y\": 10, \"width\": 3, \"height\" : 40, \"zIndex\" : 50}";
+        Widget w1 = createWidget(sw1);
+
+        /* the events are sent by the threads of the change feed, an event is written in several parts */
+        String inserted = "\"type\":\"INSERT\",\"id\":" + w1.getId();
+        String events = result.getResponse().getContentAsString();
+        for (int i = 0; i < 100 && !events.contains(inserted); i++) {
+            TestUtils.sleep(50);
+            events = result.getResponse().getContentAsString();
+        }
+        assertTrue(events.contains("event:version"));
+        assertTrue(events.contains("event:INSERT"));
+        assertTrue(events.contains(inserted));
+
+        /* a client resuming from a version gets the changes that follow it */
+        long version = Long.parseLong(events.substring(events.indexOf("id:") + 3, events.indexOf('\n', events.indexOf("id:"))));
+        result = mvc.perform(MockMvcRequestBuilders.get("/widgets/changes")
+                .header("Last-Event-ID", version)
+                .accept(MediaType.TEXT_EVENT_STREAM))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        events = result.getResponse().getContentAsString();
+        for (int i = 0; i < 100 && !events.contains(inserted); i++) {
+            TestUtils.sleep(50);
+            events = result.getResponse().getContentAsString();
+        }
+        assertTrue(events.contains("id:" + (version + 1)));
+        assertTrue(events.contains(inserted));
+
+        // cleanup
+        deleteWidget(w1);
+    }
+
+    @Test
+    public void testGetWidgetsSinceApi() throws Exception {
+        String sw1 = "{\"x\": 10, \"y\": 10, \"width\": 3, \"height\" : 40, \"zIndex\" : 60}";
+        Widget w1 = createWidget(sw1);
+
+        /* a version not known by the server gives all the widgets, at the current version */
+        WidgetDelta delta = getWidgetsSince(Long.MAX_VALUE);
+        assertTrue(delta.isReset());
+        assertTrue(delta.getChanges().isEmpty());
+        assertTrue(delta.getWidgets().stream().anyMatch(w -> w.getId().equals(w1.getId()) && w.getzIndex() == 60));
+        long version = delta.getVersion();
+
+        /* then only the changes that follow */
+        mvc.perform(MockMvcRequestBuilders.put("/widgets/" + w1.getId())
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("{\"x\": 20}")
+                .accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk());
+        deleteWidget(w1);
+        delta = getWidgetsSince(version);
+        assertFalse(delta.isReset());
+        assertTrue(delta.getWidgets().isEmpty());
+        assertEquals(version + 2, delta.getVersion());
+        assertEquals(2, delta.getChanges().size());
+        assertEquals(WidgetChange.Type.UPDATE, delta.getChanges().get(0).getType());
+        assertEquals(20, delta.getChanges().get(0).getWidget().getX());
+        assertEquals(WidgetChange.Type.DELETE, delta.getChanges().get(1).getType());
+        assertEquals(w1.getId(), delta.getChanges().get(1).getId());
+
+        /* up to date */
+        delta = getWidgetsSince(version + 2);
+        assertEquals(version + 2, delta.getVersion());
+        assertTrue(delta.getChanges().isEmpty());
+
+        mvc.perform(MockMvcRequestBuilders.get("/widgets")
+                .param("since", "-1")
+                .accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void testConditionalGetApi() throws Exception {
+        String sw1 = "{\"x\": 10, \"y\": 10, \"width\": 3, \"height\" : 40, \"zIndex\" : 70}";
+        Widget w1 = createWidget(sw1);
+
+        String widgetTag = mvc.perform(MockMvcRequestBuilders.get("/widgets/" + w1.getId())
+                .accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(header().exists(HttpHeaders.ETAG))
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+        String listTag = mvc.perform(MockMvcRequestBuilders.get("/widgets")
+                .accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(header().exists(HttpHeaders.ETAG))
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+
+        /* unchanged: not modified, without a body */
+        mvc.perform(MockMvcRequestBuilders.get("/widgets/" + w1.getId())
+                .header(HttpHeaders.IF_NONE_MATCH, widgetTag)
+                .accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isNotModified())
+                .andExpect(content().string(""));
+        mvc.perform(MockMvcRequestBuilders.get("/widgets")
+                .header(HttpHeaders.IF_NONE_MATCH, listTag)
+                .accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isNotModified())
+                .andExpect(content().string(""));
+
+        /* a shift changes the widget, and the list */
+        String sw2 = "{\"x\": 10, \"y\": 10, \"width\": 3, \"height\" : 40, \"zIndex\" : 70}";
+        Widget w2 = createWidget(sw2);
+        mvc.perform(MockMvcRequestBuilders.get("/widgets/" + w1.getId())
+                .header(HttpHeaders.IF_NONE_MATCH, widgetTag)
+                .accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(content().json("{\"zIndex\" : 71}"));
+        mvc.perform(MockMvcRequestBuilders.get("/widgets")
+                .header(HttpHeaders.IF_NONE_MATCH, listTag)
+                .accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk());
+
+        // cleanup
+        deleteWidget(w1);
+        deleteWidget(w2);
+    }
+
+    @Test
+    public void testResponseCacheApi() throws Exception {
+        String sw1 = "{\"x\": 5000, \"y\": 5000, \"width\": 3, \"height\" : 4, \"zIndex\" : 80}";
+        Widget w1 = createWidget(sw1);
+
+        String area = "/widgets?lowerLeft=4990,4990&upperRight=5010,5010";
+        String ret = "[{\"id\": " + w1.getId() + ", \"x\": 5000}]";
+        mvc.perform(MockMvcRequestBuilders.get(area).accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(content().json(ret));
+        MvcResult result = mvc.perform(MockMvcRequestBuilders.get("/widgets/cache").accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andReturn();
+        long hits = mapper.readTree(result.getResponse().getContentAsString()).get("hits").asLong();
+
+        /* served again, then changed by a widget moving into the area */
+        mvc.perform(MockMvcRequestBuilders.get(area).accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(content().json(ret));
+        mvc.perform(MockMvcRequestBuilders.get("/widgets/cache").accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(content().json("{\"hits\": " + (hits + 1) + "}"));
+        String sw2 = "{\"x\": 10, \"y\": 10, \"width\": 3, \"height\" : 4}";
+        Widget w2 = createWidget(sw2);
+        mvc.perform(MockMvcRequestBuilders.put("/widgets/" + w2.getId())
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("{\"x\": 5001, \"y\": 5001}")
+                .accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk());
+        mvc.perform(MockMvcRequestBuilders.get(area).accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(content().json("[{\"id\": " + w1.getId() + "}, {\"id\": " + w2.getId() + "}]"));
+
+        // cleanup
+        deleteWidget(w1);
+        deleteWidget(w2);
+    }
+
+    @Test
+    public void testBoardsApi() throws Exception {
+        String sw1 = "{\"x\": 10, \"y\": 10, \"width\": 3, \"height\" : 40, \"zIndex\" : 1}";
+        Widget w1 = createWidget("/boards/first/widgets", sw1);
+        Widget w2 = createWidget("/boards/second/widgets", sw1);
+        /* the ids are generated per board */
+        assertEquals(1, w1.getId());
+        assertEquals(1, w2.getId());
+
+        mvc.perform(MockMvcRequestBuilders.put("/boards/first/widgets/" + w1.getId())
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("{\"x\": 20}")
+                .accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk());
+        mvc.perform(MockMvcRequestBuilders.get("/boards/first/widgets").accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(content().json("[{\"id\": 1, \"x\": 20}]"));
+        mvc.perform(MockMvcRequestBuilders.get("/boards/second/widgets/" + w2.getId()).accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(content().json("{\"id\": 1, \"x\": 10}"));
+
+        mvc.perform(MockMvcRequestBuilders.delete("/boards/first/widgets/" + w1.getId()))
+                .andExpect(status().isNoContent());
+        mvc.perform(MockMvcRequestBuilders.get("/boards/first/widgets/" + w1.getId()).accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isNotFound());
+        mvc.perform(MockMvcRequestBuilders.get("/boards/no.such.board/widgets").accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isBadRequest());
+
+        // cleanup
+        mvc.perform(MockMvcRequestBuilders.delete("/boards/second/widgets/" + w2.getId()))
+                .andExpect(status().isNoContent());
+    }
+
     @Test
     public void testGetById() throws Exception {
         // ingest some data
@@ -238,8 +697,21 @@ public class WidgetControllerTest {
                 .andExpect(status().isNoContent());
     }
 
+    private WidgetDelta getWidgetsSince(long version) throws Exception {
+        MvcResult result = mvc.perform(MockMvcRequestBuilders.get("/widgets")
+                .param("since", String.valueOf(version))
+                .accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andReturn();
+        return mapper.readValue(result.getResponse().getContentAsString(), WidgetDelta.class);
+    }
+
     private Widget createWidget(String w1) throws Exception {
-        MvcResult result = mvc.perform(MockMvcRequestBuilders.post("/widgets")
+        return createWidget("/widgets", w1);
+    }
+
+    private Widget createWidget(String uri, String w1) throws Exception {
+        MvcResult result = mvc.perform(MockMvcRequestBuilders.post(uri)
                 .contentType(MediaType.APPLICATION_JSON)
                 .content(w1)
                 .accept(MediaType.APPLICATION_JSON))
@@ -0,0 +1,153 @@
+package com.miro;
+
+import com.miro.entities.Widget;
+import com.miro.entities.WidgetBatch;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class WidgetDatabaseRepositoryTest {
+
+    private static final WidgetUtil util = new WidgetUtil();
+    private Path dir;
+    private JdbcDataSource dataSource;
+    /* keeps the database open between the connections, as the pool of the application does */
+    private Connection connection;
+
+    @BeforeEach
+    void createDatabase() throws IOException, SQLException {
+        dir = Files.createTempDirectory("widgets");
+        dataSource = WidgetsDatabaseUnitTest.dataSource("jdbc:h2:file:" + dir.resolve("widgets").toAbsolutePath());
+        connection = dataSource.getConnection();
+    }
+
+    @AfterEach
+    void deleteDatabase() throws IOException, SQLException {
+        connection.close();
+        TestUtils.deleteRecursively(dir);
+    }
+
+    private WidgetDatabaseRepository open(boolean writeBehind) throws SQLException {
+        return new WidgetDatabaseRepository(new WidgetMainRepository(), dataSource, writeBehind, 5);
+    }
+
+    @Test
+    void testWriteBehindRestoresTheWidgets() throws SQLException {
+        Random random = new Random(7);
+        WidgetDatabaseRepository repo = open(true);
+        // the saves below the top and the moves shift the others
+        long lastId = WriteAheadLogTest.randomChanges(repo, random, 500);
+        repo.flush();
+        // the last widgets are deleted: their ids are not reused
+        repo.deleteById(lastId);
+        repo.close();
+
+        WidgetDatabaseRepository loaded = open(true);
+        WriteAheadLogTest.assertSameWidgets(repo, loaded);
+        Widget widget = util.of(1, 1, 1, 1, null);
+        loaded.save(widget);
+        assertEquals(lastId + 1, widget.getId());
+        loaded.close();
+    }
+
+    @Test
+    void testSynchronousWritesRestoreTheWidgets() throws SQLException {
+        Random random = new Random(13);
+        WidgetDatabaseRepository repo = open(false);
+        WriteAheadLogTest.randomChanges(repo, random, 500);
+        // no close: every change is already in the database
+        WriteAheadLogTest.assertSameWidgets(repo, open(false));
+    }
+
+    @Test
+    void testBatchesRestoreTheWidgets() throws SQLException {
+        Random random = new Random(17);
+        WidgetDatabaseRepository repo = open(true);
+        for (int round = 0; round < 10; round++) {
+            WriteAheadLogTest.randomChanges(repo, random, 50);
+            List<Widget> widgets = List.copyOf(repo.findAll(null, null));
+            WidgetBatch batch = new WidgetBatch();
+            batch.getDelete().add(widgets.get(random.nextInt(widgets.size())).getId());
+            Widget updated = new Widget(widgets.get(random.nextInt(widgets.size())));
+            updated.setzIndex(random.nextInt(20) + 1);
+            batch.getUpdate().add(updated);
+            // the batch is applied at once in memory, written as its parts applied one by one: the shifts are the same
+            for (int i = 0; i < 10; i++) {
+                batch.getCreate().add(util.of(i, i, 10, 10, random.nextInt(4) == 0 ? null : random.nextInt(20) + 1));
+            }
+            repo.applyBatch(batch);
+        }
+        repo.close();
+        WidgetDatabaseRepository loaded = open(true);
+        WriteAheadLogTest.assertSameWidgets(repo, loaded);
+        loaded.close();
+    }
+
+    @Test
+    void testClearIsWritten() throws SQLException {
+        WidgetDatabaseRepository repo = open(true);
+        for (int i = 0; i < 10; i++) {
+            repo.save(util.of(i, i, 10, 10, 1));
+        }
+        repo.clear();
+        repo.save(util.of(1, 1, 10, 10, null));
+        repo.close();
+
+        WidgetDatabaseRepository loaded = open(true);
+        assertEquals(1, loaded.size());
+        assertEquals(11L, loaded.findAll(null, null).first().getId());
+        loaded.close();
+    }
+
+    @Test
+    void testChangeThatKeepsFailingIsSkipped() throws SQLException {
+        WidgetDatabaseRepository repo = open(true);
+        // a row unknown to the repository: the insert of the widget with the same id fails on the primary key
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("INSERT INTO widget (id, x, y, width, height, z_index) VALUES (1, 0, 0, 1, 1, 100)");
+        }
+        repo.save(util.of(1, 1, 10, 10, null));
+        repo.save(util.of(2, 2, 10, 10, null));
+        // the changes behind the failing one are written, the failure is reported once
+        assertThrows(IllegalStateException.class, repo::flush);
+        repo.flush();
+        repo.close();
+
+        WidgetDatabaseRepository loaded = open(true);
+        assertEquals(2, loaded.size());
+        assertEquals(0, loaded.findByIdOrNull(1).getX());
+        assertEquals(2, loaded.findByIdOrNull(2).getX());
+        loaded.close();
+    }
+
+    @Test
+    void testModificationDatesAreLoaded() throws SQLException, InterruptedException {
+        WidgetDatabaseRepository repo = open(true);
+        Widget widget = util.of(1, 1, 10, 10, null);
+        repo.save(widget);
+        repo.close();
+        Thread.sleep(50);
+
+        WidgetDatabaseRepository loaded = open(true);
+        // to the precision of the column, not the time of the load
+        Duration difference = Duration.between(widget.getModificationDate(),
+                loaded.findByIdOrNull(widget.getId()).getModificationDate());
+        assertTrue(difference.abs().toMillis() < 1);
+        loaded.close();
+    }
+}
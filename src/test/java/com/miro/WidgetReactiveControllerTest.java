@@ -0,0 +1,133 @@
+package com.miro;
+
+import com.miro.entities.Widget;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.reactive.AutoConfigureWebTestClient;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/* the same API on the reactive stack */
+/* the test context sets the type of application before the properties of the profile are read */
+@SpringBootTest(properties = "spring.main.web-application-type=reactive")
+@AutoConfigureWebTestClient
+@ActiveProfiles("reactive")
+public class WidgetReactiveControllerTest {
+
+    @Autowired
+    private WebTestClient client;
+
+    private Widget createWidget(String widget) {
+        return client.post().uri("/widgets")
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(widget)
+                .exchange()
+                .expectStatus().isCreated()
+                .expectBody(Widget.class)
+                .returnResult().getResponseBody();
+    }
+
+    @Test
+    public void testWidgetsApi() {
+        Widget w1 = createWidget("{\"x\": 10, \"y\": 10, \"width\": 3, \"height\" : 40, \"zIndex\" : 1}");
+        Widget w2 = createWidget("{\"x\": 20, \"y\": 20, \"width\": 3, \"height\" : 40, \"zIndex\" : 1}");
+
+        client.get().uri("/widgets/" + w1.getId())
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody().json("{\"x\": 10, \"zIndex\": 2}");
+        client.put().uri("/widgets/" + w2.getId())
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue("{\"x\": 30}")
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody().json("{\"x\": 30, \"zIndex\": 1}");
+        client.get().uri("/widgets?size=1&page=2")
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody().json("[{\"id\": " + w1.getId() + "}]");
+        client.get().uri("/widgets?lowerLeft=0,0&upperRight=15,100")
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody().json("[{\"id\": " + w1.getId() + "}]");
+        client.get().uri("/widgets?size=0&page=1")
+                .exchange()
+                .expectStatus().isBadRequest();
+
+        client.delete().uri("/widgets/" + w1.getId())
+                .exchange()
+                .expectStatus().isNoContent();
+        client.get().uri("/widgets/" + w1.getId())
+                .exchange()
+                .expectStatus().isNotFound();
+        client.delete().uri("/widgets/" + w2.getId())
+                .exchange()
+                .expectStatus().isNoContent();
+    }
+
+    @Test
+    public void testStreamAllWidgetsApi() {
+        /* more than one chunk */
+        List<Widget> widgets = new ArrayList<>();
+        for (int i = 0; i < 2500; i++) {
+            widgets.add(createWidget("{\"x\": 10, \"y\": 10, \"width\": 3, \"height\" : 4}"));
+        }
+        List<Widget> streamed = client.get().uri("/widgets")
+                .accept(MediaType.APPLICATION_NDJSON)
+                .exchange()
+                .expectStatus().isOk()
+                .returnResult(Widget.class)
+                .getResponseBody().collectList().block();
+        assertEquals(widgets.size(), streamed.size());
+        for (int i = 0; i < widgets.size(); i++) {
+            assertEquals(widgets.get(i).getId(), streamed.get(i).getId());
+        }
+        List<Widget> array = client.get().uri("/widgets")
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentType(MediaType.APPLICATION_JSON)
+                .expectBodyList(Widget.class)
+                .returnResult().getResponseBody();
+        assertEquals(widgets.size(), array.size());
+        for (int i = 0; i < widgets.size(); i++) {
+            assertEquals(widgets.get(i).getId(), array.get(i).getId());
+        }
+        for (Widget widget : widgets) {
+            client.delete().uri("/widgets/" + widget.getId()).exchange().expectStatus().isNoContent();
+        }
+        client.get().uri("/widgets")
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody().json("[]");
+    }
+
+    @Test
+    public void testUnsupportedApiIsRejected() {
+        for (String uri : List.of("/widgets?since=0", "/widgets?after=abc", "/widgets?maxWidgets=10",
+                "/widgets?lowerLeft=0,0", "/widgets/changes", "/widgets/cache", "/boards/team-1/widgets")) {
+            client.get().uri(uri)
+                    .exchange()
+                    .expectStatus().isBadRequest();
+        }
+        client.post().uri("/widgets/batch")
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue("{}")
+                .exchange()
+                .expectStatus().isBadRequest();
+        client.get().uri("/widgets")
+                .header("If-None-Match", "\"1\"")
+                .exchange()
+                .expectStatus().isBadRequest();
+        client.get().uri("/widgets")
+                .accept(MediaType.valueOf(WidgetBinaryFormat.MEDIA_TYPE))
+                .exchange()
+                .expectStatus().isBadRequest();
+    }
+}
@@ -0,0 +1,167 @@
+package com.miro;
+
+import com.miro.entities.Point;
+import com.miro.entities.Widget;
+import com.miro.entities.WidgetBatch;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class WidgetRepositoryMetricsTest {
+
+    private MeterRegistry registry;
+    private WidgetRepository repo;
+
+    @BeforeEach
+    void init() {
+        registry = new SimpleMeterRegistry();
+        WidgetMainRepository main = new WidgetMainRepository(WidgetMainRepository.ZOrderMode.DENSE,
+                new WidgetRepositoryMetrics(registry));
+        repo = new WidgetMeteredRepository(main, registry);
+        repo.initSequence();
+    }
+
+    private long calls(String method) {
+        return registry.get("widgets.repository.calls").tag("method", method).timer().count();
+    }
+
+    @Test
+    public void testWritesAreMeasured() {
+        repo.save(new Widget(0, 0, 10, 10, 1));
+        repo.save(new Widget(0, 0, 10, 10, 2));
+        repo.save(new Widget(0, 0, 10, 10, 3));
+        /* shifts the three widgets */
+        Widget bottom = new Widget(0, 0, 10, 10, 1);
+        repo.save(bottom);
+        repo.deleteById(bottom.getId());
+
+        assertEquals(4, calls("save"));
+        assertEquals(1, calls("deleteById"));
+        DistributionSummary shifted = registry.get("widgets.repository.shifted").summary();
+        assertEquals(4, shifted.count());
+        assertEquals(3, shifted.totalAmount());
+        assertEquals(3, shifted.max());
+        assertEquals(5, registry.get("widgets.repository.lock.wait").timer().count());
+        assertEquals(5, registry.get("widgets.repository.lock.held").timer().count());
+        assertEquals(3, registry.get("widgets.repository.size").gauge().value());
+    }
+
+    @Test
+    public void testAreaQueriesAreMeasured() {
+        for (int i = 0; i < 100; i++) {
+            repo.save(new Widget(i * 20, 0, 10, 10, null));
+        }
+        assertEquals(5, repo.findAllInRectangle(Point.of(0, 0), Point.of(100, 100)).size());
+        DistributionSummary scanned = registry.get("widgets.repository.area.scanned").summary();
+        DistributionSummary returned = registry.get("widgets.repository.area.returned").summary();
+        assertEquals(1, scanned.count());
+        assertEquals(5, returned.totalAmount());
+        // the R-tree compares only the widgets of the leaves it visits
+        assertTrue(scanned.totalAmount() >= 5 && scanned.totalAmount() < 100);
+
+        /* a page of an area is read in z-index order, every widget below the last one is compared */
+        assertEquals(2, repo.findAll(2, 1, Point.of(0, 0), Point.of(100, 100)).size());
+        assertEquals(2, scanned.count());
+        assertEquals(5 + 2, returned.totalAmount());
+        assertEquals(1, calls("findAllInRectangle"));
+        assertEquals(1, calls("findAll"));
+
+        repo.findByIdOrNull(1);
+        assertEquals(1, calls("findById"));
+        assertNotNull(registry.get("widgets.repository.optimistic.failures").tag("method", "findById").counter());
+    }
+
+    @Test
+    public void testReadStrategySwitchesToTheReadLock() {
+        WidgetMainRepository.ReadStrategy strategy = new WidgetMainRepository.ReadStrategy();
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(strategy.optimistic());
+            strategy.succeeded();
+        }
+        assertEquals(0, strategy.failureRate());
+        /* a few failures among the successes */
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(strategy.optimistic());
+            if (i % 20 == 0) {
+                strategy.failed();
+            } else {
+                strategy.succeeded();
+            }
+        }
+        assertTrue(strategy.failureRate() < 0.125);
+        /* most of them fail */
+        int failures = 0;
+        while (strategy.optimistic()) {
+            strategy.failed();
+            failures++;
+        }
+        assertTrue(failures < 20);
+        for (int i = 1; i < WidgetMainRepository.ReadStrategy.LOCKED_READS; i++) {
+            assertFalse(strategy.optimistic());
+        }
+        assertTrue(strategy.optimistic());
+    }
+
+    @Test
+    public void testOptimisticReadsSeeOnlyWholeBatches() throws Exception {
+        /* every batch moves a widget out of the area and another one into it, the area always has 100 widgets */
+        List<Widget> inside = new ArrayList<>();
+        List<Widget> outside = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Widget in = new Widget(i * 5, i * 5, 10, 10, null);
+            Widget out = new Widget(5000 + i * 5, 5000, 10, 10, null);
+            repo.save(in);
+            repo.save(out);
+            inside.add(in);
+            outside.add(out);
+        }
+        Point lowerLeft = Point.of(0, 0);
+        Point upperRight = Point.of(1000, 1000);
+        AtomicBoolean stop = new AtomicBoolean();
+        Thread writer = new Thread(() -> {
+            Random random = new Random(3);
+            while (!stop.get()) {
+                int i = random.nextInt(inside.size());
+                int j = random.nextInt(outside.size());
+                Widget in = new Widget(repo.findByIdOrNull(outside.get(j).getId()));
+                Widget out = new Widget(repo.findByIdOrNull(inside.get(i).getId()));
+                in.setX(random.nextInt(900));
+                in.setY(random.nextInt(900));
+                out.setX(5000 + random.nextInt(900));
+                repo.applyBatch(new WidgetBatch(List.of(), List.of(in, out), List.of()));
+                inside.set(i, in);
+                outside.set(j, out);
+            }
+        });
+        writer.start();
+        int queries = 0;
+        try {
+            long end = System.currentTimeMillis() + 1000;
+            while (System.currentTimeMillis() < end) {
+                assertEquals(100, repo.findAllInRectangle(lowerLeft, upperRight).size());
+                assertEquals(100, repo.findAll(null, null, lowerLeft, upperRight).size());
+                assertEquals(10, repo.findAll(10, 10, lowerLeft, upperRight).size());
+                assertEquals(100, repo.findAllAfter(Integer.MIN_VALUE, 1000, lowerLeft, upperRight).size());
+                queries += 4;
+            }
+        } finally {
+            stop.set(true);
+            writer.join();
+        }
+        assertTrue(registry.get("widgets.repository.optimistic.reads").tag("method", "findAll").counter().count() > 0);
+        // the optimistic attempts given up are not measured, only the search of the widgets returned
+        assertEquals(queries, registry.get("widgets.repository.area.scanned").summary().count());
+    }
+}
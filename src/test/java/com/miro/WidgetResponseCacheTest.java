@@ -0,0 +1,200 @@
+package com.miro;
+
+import com.miro.entities.Point;
+import com.miro.entities.Widget;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class WidgetResponseCacheTest {
+
+    private ChangeFeed feed;
+    private WidgetRepository repo;
+    private WidgetResponseCache cache;
+
+    @BeforeEach
+    void init() {
+        feed = new ChangeFeed(1 << 12, 1);
+        repo = new WidgetFeedRepository(new WidgetMainRepository(), feed);
+        repo.initSequence();
+        cache = new WidgetResponseCache(feed, 64);
+    }
+
+    @AfterEach
+    void closeFeed() {
+        feed.close();
+    }
+
+    /* renders the query as the controller does, keeps it and returns it */
+    private String render(Integer pageSize, Integer page, Point lowerLeft, Point upperRight) {
+        String key = WidgetResponseCache.key(pageSize, page, lowerLeft, upperRight);
+        long version = cache.version();
+        SortedSet<Widget> widgets = repo.findAll(pageSize, page, lowerLeft, upperRight);
+        StringBuilder body = new StringBuilder();
+        for (Widget widget : widgets) {
+            body.append(widget.getId()).append(':').append(widget.getzIndex()).append(':').append(widget.getX())
+                .append(':').append(widget.getY()).append(':').append(widget.getModificationDate()).append(' ');
+        }
+        WidgetResponseCache.Response response =
+                new WidgetResponseCache.Response(body.toString().getBytes(StandardCharsets.UTF_8), null);
+        cache.put(key, version, widgets, pageSize, lowerLeft, upperRight, response);
+        return body.toString();
+    }
+
+    private String cached(Integer pageSize, Integer page, Point lowerLeft, Point upperRight) {
+        WidgetResponseCache.Response response = cache.get(WidgetResponseCache.key(pageSize, page, lowerLeft, upperRight));
+        return response == null ? null : new String(response.getBody(), StandardCharsets.UTF_8);
+    }
+
+    private Widget save(int x, int y, Integer zIndex) {
+        Widget widget = new Widget(x, y, 10, 10, zIndex);
+        repo.save(widget);
+        return widget;
+    }
+
+    @Test
+    public void testAreaIsInvalidatedOnlyByTheChangesInside() {
+        Point lowerLeft = Point.of(0, 0);
+        Point upperRight = Point.of(100, 100);
+        Widget inside = save(10, 10, 5);
+        Widget outside = save(500, 500, 10);
+        render(null, null, lowerLeft, upperRight);
+
+        /* changes outside the area, above its widgets */
+        save(600, 600, null);
+        Widget moved = new Widget(outside);
+        moved.setX(700);
+        repo.update(outside, moved);
+        repo.deleteById(outside.getId());
+        assertNotNull(cached(null, null, lowerLeft, upperRight));
+        assertEquals(1, cache.hits());
+
+        /* a widget moving into the area */
+        Widget other = save(300, 300, null);
+        render(null, null, lowerLeft, upperRight);
+        Widget into = new Widget(other);
+        into.setX(20);
+        into.setY(20);
+        repo.update(other, into);
+        assertNull(cached(null, null, lowerLeft, upperRight));
+
+        /* a widget of the area moving out of it */
+        render(null, null, lowerLeft, upperRight);
+        Widget out = new Widget(inside);
+        out.setX(200);
+        repo.update(inside, out);
+        assertNull(cached(null, null, lowerLeft, upperRight));
+
+        /* a shift of the widgets of the area */
+        render(null, null, lowerLeft, upperRight);
+        save(400, 400, into.getzIndex());
+        assertNull(cached(null, null, lowerLeft, upperRight));
+        assertEquals(3, cache.invalidations());
+    }
+
+    @Test
+    public void testPageIsInvalidatedOnlyByTheChangesBeforeIt() {
+        List<Widget> widgets = new ArrayList<>();
+        for (int i = 1; i <= 10; i++) {
+            widgets.add(save(i, i, i * 10));
+        }
+        render(3, 2, null, null);
+
+        /* after the page */
+        save(1, 1, 200);
+        repo.deleteById(widgets.get(9).getId());
+        Widget last = new Widget(widgets.get(8));
+        last.setX(50);
+        repo.update(widgets.get(8), last);
+        assertNotNull(cached(3, 2, null, null));
+
+        /* before the page, the page moves */
+        repo.deleteById(widgets.get(0).getId());
+        assertNull(cached(3, 2, null, null));
+        render(3, 2, null, null);
+        save(1, 1, 15);
+        assertNull(cached(3, 2, null, null));
+
+        /* a page beyond the last widget changes with any widget added */
+        render(3, 10, null, null);
+        repo.deleteById(widgets.get(1).getId());
+        assertNotNull(cached(3, 10, null, null));
+        save(1, 1, null);
+        assertNull(cached(3, 10, null, null));
+    }
+
+    @Test
+    public void testCachedResponsesAreTheCurrentOnes() {
+        Random random = new Random(7);
+        List<Point[]> areas = List.of(
+                new Point[]{Point.of(0, 0), Point.of(500, 500)},
+                new Point[]{Point.of(250, 250), Point.of(1000, 1000)},
+                new Point[]{null, null});
+        List<Widget> widgets = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            int op = random.nextInt(10);
+            if (op < 4 || widgets.isEmpty()) {
+                Integer zIndex = random.nextBoolean() ? null : random.nextInt(200);
+                widgets.add(save(random.nextInt(1000), random.nextInt(1000), zIndex));
+            } else if (op < 7) {
+                Widget widget = widgets.get(random.nextInt(widgets.size()));
+                Widget stored = repo.findByIdOrNull(widget.getId());
+                if (stored != null) {
+                    Widget newWidget = new Widget(stored);
+                    newWidget.setX(random.nextInt(1000));
+                    if (random.nextBoolean()) {
+                        newWidget.setzIndex(random.nextInt(200));
+                    }
+                    repo.update(stored, newWidget);
+                }
+            } else if (op < 8) {
+                repo.deleteById(widgets.remove(random.nextInt(widgets.size())).getId());
+            } else {
+                Point[] area = areas.get(random.nextInt(areas.size()));
+                Integer pageSize = random.nextBoolean() ? null : 5;
+                Integer page = pageSize == null ? null : 1 + random.nextInt(4);
+                if (pageSize == null && area[0] == null) {
+                    continue;
+                }
+                String cached = cached(pageSize, page, area[0], area[1]);
+                String current = render(pageSize, page, area[0], area[1]);
+                if (cached != null) {
+                    assertEquals(current, cached);
+                }
+            }
+        }
+        assertTrue(cache.hits() > 0);
+    }
+
+    @Test
+    public void testCountersAreMeasured() {
+        MeterRegistry registry = new SimpleMeterRegistry();
+        cache.register(registry);
+        Point lowerLeft = Point.of(0, 0);
+        Point upperRight = Point.of(100, 100);
+        save(10, 10, 1);
+        assertNull(cached(null, null, lowerLeft, upperRight));
+        render(null, null, lowerLeft, upperRight);
+        assertNotNull(cached(null, null, lowerLeft, upperRight));
+        save(20, 20, 1);
+        assertNull(cached(null, null, lowerLeft, upperRight));
+
+        assertEquals(1, registry.get("widgets.response.cache.hits").functionCounter().count());
+        assertEquals(2, registry.get("widgets.response.cache.misses").functionCounter().count());
+        assertEquals(1, registry.get("widgets.response.cache.invalidations").functionCounter().count());
+        assertEquals(0, registry.get("widgets.response.cache.size").gauge().value());
+    }
+}
@@ -5,11 +5,13 @@ import com.miro.entities.Widget;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 
 public class WidgetWriter {
     private static final int SLEEP_BATCH = 200;
     private static final int Z_INDEX_BATCH = 10;
+    private static final int MOVE_RECREATE = 10;
     private volatile long sleepIntervalMillis = 200;
     private volatile boolean running;
     private volatile boolean ZIndexShift = true;
@@ -87,6 +89,36 @@ public class WidgetWriter {
         return i - 1;
     }
 
+    /*
+    ** moves the widgets with id in [firstId, lastId] (owned by the calling thread), executed in a thread:
+    ** most of the operations change only the position, one out of MOVE_RECREATE deletes and recreates the widget
+    ** on top of the others. Returns the number of operations.
+    */
+    private int doMoveWidgets(long firstId, long lastId) {
+        TestUtils.msg("Thread Id: " + Thread.currentThread().getId() + ": starting move widgets task.");
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int ops = 0;
+        while(running) {
+            long id = random.nextLong(firstId, lastId + 1);
+            int x = random.nextInt(10000);
+            int y = random.nextInt(10000);
+            if (random.nextInt(MOVE_RECREATE) == 0) {
+                repo.deleteById(id);
+                Widget w = util.of(x, y, 10, 10, null);
+                w.setId(id);
+                repo.save(w);
+            } else {
+                Widget widget = repo.findById(id).orElseThrow();
+                Widget newWidget = new Widget(x, y, null, null, null);
+                util.merge(widget, newWidget);
+                repo.update(widget, newWidget);
+            }
+            ops++;
+        }
+        TestUtils.msg("Thread Id: " + Thread.currentThread().getId() + ": completed move task. Num operations: " + ops);
+        return ops;
+    }
+
     void stop() {
         TestUtils.msg("Stopping the widget writer!");
         running = false;
@@ -115,4 +147,8 @@ public class WidgetWriter {
     Callable<Integer> createWidgetsWithSameZIndex() {
         return this::doCreateWidgetsWithSameZIndex;
     }
+
+    Callable<Integer> moveWidgets(long firstId, long lastId) {
+        return () -> doMoveWidgets(firstId, lastId);
+    }
 }
@@ -0,0 +1,86 @@
+package com.miro;
+
+import com.miro.entities.Widget;
+import com.miro.index.ColumnarWidgetStore;
+import com.miro.index.SlotWidgetStore;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/* runs the unit tests against the columnar repository */
+public class WidgetsColumnarUnitTest extends WidgetsUnitTest {
+
+    private static final WidgetUtil util = new WidgetUtil();
+
+    @Override
+    WidgetRepository createRepository() {
+        return new WidgetColumnarRepository();
+    }
+
+    @Test
+    void testAreaIndexWithReusedSlots() {
+        checkAreaIndexWithReusedSlots(new ColumnarWidgetStore());
+    }
+
+    /* random insertions and removals, the area index gives the same widgets as a scan of all of them */
+    static void checkAreaIndexWithReusedSlots(SlotWidgetStore store) {
+        Random random = new Random(9);
+        Map<Long, Widget> stored = new HashMap<>();
+        List<Long> ids = new ArrayList<>();
+        int mostStored = 0;
+        for (long id = 1; id <= 20_000; id++) {
+            if (stored.size() < 1000 || random.nextBoolean()) {
+                Widget widget = util.of(random.nextInt(1000), random.nextInt(1000),
+                        random.nextInt(100) + 1, random.nextInt(100) + 1, (int) id);
+                widget.setId(id);
+                widget.setModificationDate(LocalDateTime.now());
+                store.insert(widget);
+                stored.put(id, widget);
+                ids.add(id);
+            } else {
+                Long removed = ids.remove(random.nextInt(ids.size()));
+                assertTrue(store.remove(removed));
+                stored.remove(removed);
+            }
+            mostStored = Math.max(mostStored, stored.size());
+        }
+        // the slots of the deleted widgets are reused
+        assertEquals(mostStored, store.slots());
+        assertEquals(stored.size(), store.size());
+        for (int i = 0; i < 100; i++) {
+            int x1 = random.nextInt(1000);
+            int y1 = random.nextInt(1000);
+            int x2 = x1 + random.nextInt(400);
+            int y2 = y1 + random.nextInt(400);
+            Set<Long> expected = new TreeSet<>();
+            for (Widget widget : stored.values()) {
+                if (widget.getX() >= x1 && widget.getY() >= y1 && widget.getX() + widget.getWidth() <= x2
+                        && widget.getY() + widget.getHeight() <= y2) {
+                    expected.add(widget.getId());
+                }
+            }
+            List<Widget> found = new ArrayList<>();
+            store.collectInRectangle(x1, y1, x2, y2, found);
+            Set<Long> foundIds = new TreeSet<>();
+            for (Widget widget : found) {
+                foundIds.add(widget.getId());
+                assertEquals(stored.get(widget.getId()).getX(), widget.getX());
+            }
+            assertEquals(expected.size(), found.size());
+            assertEquals(expected, foundIds);
+        }
+        for (Long id : ids) {
+            assertEquals(stored.get(id).getY(), store.materialize(id).getY());
+        }
+    }
+}
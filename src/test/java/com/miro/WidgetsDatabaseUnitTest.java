@@ -0,0 +1,35 @@
+package com.miro;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+
+import java.sql.SQLException;
+
+/* runs the unit tests against the main repository written behind to an in-memory database */
+public class WidgetsDatabaseUnitTest extends WidgetsUnitTest {
+
+    private static int databases;
+    private WidgetDatabaseRepository database;
+
+    static JdbcDataSource dataSource(String url) {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL(url);
+        return dataSource;
+    }
+
+    @Override
+    WidgetRepository createRepository() {
+        try {
+            database = new WidgetDatabaseRepository(new WidgetMainRepository(),
+                    dataSource("jdbc:h2:mem:widgets" + ++databases + ";DB_CLOSE_DELAY=-1"), true, 1);
+            return database;
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @AfterEach
+    void closeDatabase() {
+        database.close();
+    }
+}
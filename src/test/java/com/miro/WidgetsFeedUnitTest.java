@@ -0,0 +1,305 @@
+package com.miro;
+
+import com.miro.entities.Widget;
+import com.miro.entities.WidgetBatch;
+import com.miro.entities.WidgetChange;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/* runs the unit tests against the main repository publishing its changes, and checks the changes published */
+public class WidgetsFeedUnitTest extends WidgetsUnitTest {
+
+    private static final WidgetUtil util = new WidgetUtil();
+    private ChangeFeed feed;
+
+    @Override
+    WidgetRepository createRepository() {
+        feed = new ChangeFeed(1 << 16, 2);
+        return new WidgetFeedRepository(new WidgetMainRepository(), feed);
+    }
+
+    @AfterEach
+    void closeFeed() {
+        feed.close();
+    }
+
+    /* the widgets of a client, kept up to date by applying the changes as described in WidgetChange */
+    static final class Board {
+        final TreeMap<Integer, Widget> byZIndex = new TreeMap<>();
+        final Map<Long, Widget> byId = new HashMap<>();
+        long version;
+
+        void apply(WidgetChange change) {
+            assertEquals(version + 1, change.getVersion());
+            version = change.getVersion();
+            switch (change.getType()) {
+                case INSERT:
+                    assertNull(byZIndex.put(change.getzIndex(), change.getWidget()));
+                    byId.put(change.getId(), change.getWidget());
+                    break;
+                case UPDATE:
+                    byZIndex.put(change.getzIndex(), change.getWidget());
+                    byId.put(change.getId(), change.getWidget());
+                    break;
+                case DELETE:
+                    byZIndex.remove(byId.remove(change.getId()).getzIndex());
+                    break;
+                case SHIFT:
+                    int top = change.getzIndex();
+                    while (byZIndex.containsKey(top + 1)) {
+                        top++;
+                    }
+                    // a long: the z-index below Integer.MIN_VALUE is reached
+                    for (long z = top; z >= change.getzIndex(); z--) {
+                        Widget widget = byZIndex.remove((int) z);
+                        widget.setzIndex((int) z + 1);
+                        byZIndex.put((int) z + 1, widget);
+                    }
+                    break;
+                case CLEAR:
+                    byZIndex.clear();
+                    byId.clear();
+                    break;
+            }
+        }
+
+        void assertSameWidgets(WidgetRepository repository) {
+            List<Widget> expected = List.copyOf(repository.findAll(null, null));
+            List<Widget> widgets = new ArrayList<>(byZIndex.values());
+            assertEquals(expected.size(), widgets.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.get(i).getId(), widgets.get(i).getId());
+                assertEquals(expected.get(i).getzIndex(), widgets.get(i).getzIndex());
+                assertEquals(expected.get(i).getX(), widgets.get(i).getX());
+            }
+        }
+    }
+
+    @Test
+    void testChangesGiveTheSameWidgets() {
+        Random random = new Random(5);
+        Board board = new Board();
+        for (int round = 0; round < 20; round++) {
+            WriteAheadLogTest.randomChanges(repo, random, 100);
+            List<Widget> widgets = List.copyOf(repo.findAll(null, null));
+            WidgetBatch batch = new WidgetBatch();
+            batch.getDelete().add(widgets.get(random.nextInt(widgets.size())).getId());
+            for (int i = 0; i < 3; i++) {
+                Widget updated = new Widget(widgets.get(random.nextInt(widgets.size())));
+                updated.setX(random.nextInt(100));
+                updated.setzIndex(random.nextBoolean() ? null : random.nextInt(20) + 1);
+                batch.getUpdate().add(updated);
+            }
+            for (int i = 0; i < 10; i++) {
+                batch.getCreate().add(util.of(i, i, 10, 10, random.nextInt(4) == 0 ? null : random.nextInt(20) + 1));
+            }
+            long before = feed.version();
+            long repoVersion = repo.version();
+            repo.applyBatch(batch);
+            // the repository applies the batch at once, the saves are published one by one
+            assertEquals(repoVersion + 1, repo.version());
+            assertTrue(feed.version() - before >= batch.getCreate().size() + batch.getUpdate().size());
+            for (WidgetChange change : feed.read(board.version, Integer.MAX_VALUE)) {
+                board.apply(change);
+            }
+            board.assertSameWidgets(repo);
+        }
+    }
+
+    @Test
+    void testParallelUpdatesArePublishedInOrder() throws InterruptedException {
+        for (int i = 0; i < 10; i++) {
+            repo.save(util.of(i, i, 10, 10, null));
+        }
+        List<Widget> widgets = List.copyOf(repo.findAll(null, null));
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            int seed = t;
+            writers[t] = new Thread(() -> {
+                Random random = new Random(seed);
+                for (int i = 0; i < 2000; i++) {
+                    // the z-index is kept: the updates are published in the order the widget is changed
+                    Widget updated = new Widget(widgets.get(random.nextInt(widgets.size())));
+                    updated.setX(random.nextInt(1000));
+                    repo.update(updated, updated);
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        Board board = new Board();
+        for (WidgetChange change : feed.read(board.version, Integer.MAX_VALUE)) {
+            board.apply(change);
+        }
+        board.assertSameWidgets(repo);
+    }
+
+    @Test
+    void testParallelWritesOfEveryRepositoryArePublishedInOrder() throws InterruptedException {
+        List<WidgetRepository> repositories = List.of(new WidgetMainRepository(),
+                new WidgetMainRepository(WidgetMainRepository.ZOrderMode.LAZY), new WidgetShardedRepository(4),
+                new WidgetSnapshotRepository(), new WidgetColumnarRepository());
+        for (WidgetRepository inner : repositories) {
+            ChangeFeed changes = new ChangeFeed(1 << 16, 1);
+            WidgetRepository repository = new WidgetFeedRepository(inner, changes);
+            Thread[] writers = new Thread[4];
+            for (int t = 0; t < writers.length; t++) {
+                int seed = t;
+                writers[t] = new Thread(() -> {
+                    Random random = new Random(seed);
+                    for (int i = 0; i < 1000; i++) {
+                        Widget stored = repository.findByIdOrNull(random.nextInt((int) repository.lastId() + 1));
+                        int op = random.nextInt(10);
+                        if (stored == null || op < 4) {
+                            repository.save(util.of(i, i, 10, 10, random.nextInt(3) == 0 ? null : random.nextInt(50)));
+                        } else if (op < 8) {
+                            // the z-index kept or moved
+                            Widget updated = new Widget(stored);
+                            updated.setX(random.nextInt(1000));
+                            if (op == 7) {
+                                updated.setzIndex(random.nextInt(50));
+                            }
+                            repository.update(updated, updated);
+                        } else if (op == 8) {
+                            repository.deleteById(stored.getId());
+                        } else {
+                            WidgetBatch batch = new WidgetBatch();
+                            batch.getDelete().add(stored.getId());
+                            batch.getCreate().add(util.of(i, i, 10, 10, random.nextInt(50)));
+                            batch.getCreate().add(util.of(i, i, 10, 10, null));
+                            repository.applyBatch(batch);
+                        }
+                    }
+                });
+                writers[t].start();
+            }
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            Board board = new Board();
+            for (WidgetChange change : changes.read(0, Integer.MAX_VALUE)) {
+                board.apply(change);
+            }
+            board.assertSameWidgets(repository);
+            changes.close();
+        }
+    }
+
+    @Test
+    void testBatchAtTheLowestZIndex() {
+        repo.save(util.of(0, 0, 10, 10, Integer.MIN_VALUE));
+        repo.save(util.of(1, 1, 10, 10, Integer.MIN_VALUE + 1));
+        WidgetBatch batch = new WidgetBatch();
+        batch.getCreate().add(util.of(2, 2, 10, 10, Integer.MIN_VALUE));
+        batch.getCreate().add(util.of(3, 3, 10, 10, Integer.MIN_VALUE));
+        repo.applyBatch(batch);
+        Board board = new Board();
+        for (WidgetChange change : feed.read(0, Integer.MAX_VALUE)) {
+            board.apply(change);
+        }
+        board.assertSameWidgets(repo);
+        assertEquals(Integer.MIN_VALUE + 3, repo.findAll(null, null).last().getzIndex());
+    }
+
+    @Test
+    void testCursorFollowsOnlyTheShifts() {
+        for (int z = 1; z <= 6; z++) {
+            repo.save(util.of(z, z, 10, 10, z));
+        }
+        List<Widget> page = List.copyOf(repo.findAll(3, 1));
+        WidgetCursor cursor = WidgetCursor.of(page.get(2), repo.version(), feed.version());
+        // shifted with the widgets below it: the next page follows it
+        repo.save(util.of(0, 0, 10, 10, 1));
+        assertEquals(4, cursor.resumeZIndex(repo, feed));
+
+        page = List.copyOf(repo.findAll(3, 1));
+        cursor = WidgetCursor.of(page.get(2), repo.version(), feed.version());
+        // moved over the widgets not listed yet: they are not skipped
+        Widget last = new Widget(repo.findByIdOrNull(page.get(2).getId()));
+        last.setzIndex(10);
+        repo.update(last, last);
+        assertEquals(3, cursor.resumeZIndex(repo, feed));
+        assertEquals(3, cursor.resumeZIndex(repo, null));
+    }
+
+    @Test
+    void testSubscriberReceivesTheChangesInOrder() throws InterruptedException {
+        repo.save(util.of(1, 1, 10, 10, null));
+        long start = feed.version();
+        List<WidgetChange> received = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(1);
+        feed.subscribe(start, new ChangeFeed.Subscriber() {
+            @Override
+            public boolean onChanges(List<WidgetChange> changes) {
+                received.addAll(changes);
+                if (received.size() >= 1000) {
+                    done.countDown();
+                }
+                return true;
+            }
+
+            @Override
+            public void onLagged() {
+            }
+        });
+        for (int i = 0; i < 1000; i++) {
+            repo.save(util.of(i, i, 10, 10, null));
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(1000, received.size());
+        for (int i = 0; i < received.size(); i++) {
+            assertEquals(start + i + 1, received.get(i).getVersion());
+        }
+        assertEquals(1, feed.subscribers());
+    }
+
+    @Test
+    void testSlowSubscriberLags() throws InterruptedException {
+        ChangeFeed small = new ChangeFeed(16, 1);
+        WidgetRepository repository = new WidgetFeedRepository(new WidgetMainRepository(), small);
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch lagged = new CountDownLatch(1);
+        small.subscribe(0, new ChangeFeed.Subscriber() {
+            @Override
+            public boolean onChanges(List<WidgetChange> changes) {
+                try {
+                    // the writers keep going while the subscriber is busy
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return true;
+            }
+
+            @Override
+            public void onLagged() {
+                lagged.countDown();
+            }
+        });
+        for (int i = 0; i < 100; i++) {
+            repository.save(util.of(i, i, 10, 10, null));
+        }
+        blocked.countDown();
+        assertTrue(lagged.await(10, TimeUnit.SECONDS));
+        assertEquals(0, small.subscribers());
+        assertNull(small.read(1, 10));
+        assertEquals(10, small.read(90, 10).size());
+        small.close();
+    }
+}
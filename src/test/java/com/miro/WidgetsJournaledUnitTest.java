@@ -0,0 +1,32 @@
+package com.miro;
+
+import org.junit.jupiter.api.AfterEach;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/* runs the unit tests against the main repository with a write-ahead log, every change waits for the disk */
+public class WidgetsJournaledUnitTest extends WidgetsUnitTest {
+
+    private Path dir;
+    private WidgetJournaledRepository journaled;
+
+    @Override
+    WidgetRepository createRepository() {
+        try {
+            dir = Files.createTempDirectory("widgets");
+            journaled = new WidgetJournaledRepository(new WidgetMainRepository(), dir.resolve("widgets.wal"), 1, true);
+            return journaled;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @AfterEach
+    void deleteLog() throws IOException {
+        journaled.close();
+        TestUtils.deleteRecursively(dir);
+    }
+}
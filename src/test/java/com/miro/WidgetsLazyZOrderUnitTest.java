@@ -0,0 +1,94 @@
+package com.miro;
+
+import com.miro.entities.Widget;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/* runs the unit tests against the repository with the lazy z-order */
+public class WidgetsLazyZOrderUnitTest extends WidgetsUnitTest {
+
+    private static final WidgetUtil util = new WidgetUtil();
+
+    @Override
+    WidgetRepository createRepository() {
+        return new WidgetMainRepository(WidgetMainRepository.ZOrderMode.LAZY);
+    }
+
+    @Test
+    void testAllTheWidgetsAreACopyOfTheZOrder() {
+        for (int z = 1; z <= 5; z++) {
+            repo.save(util.of(z, z, 10, 10, z * 2));
+        }
+        SortedSet<Widget> widgets = repo.findAll(null, null);
+        // the shift is not seen by the copy
+        repo.save(util.of(0, 0, 10, 10, 4));
+        assertEquals(5, widgets.size());
+        assertEquals(2, widgets.first().getzIndex());
+        assertEquals(10, widgets.last().getzIndex());
+        assertTrue(widgets.contains(util.of(0, 0, 1, 1, 4)));
+        assertFalse(widgets.contains(util.of(0, 0, 1, 1, 5)));
+
+        widgets = repo.findAllInRectangle(null, null);
+        assertEquals(6, widgets.size());
+        SortedSet<Widget> middle = widgets.subSet(util.of(0, 0, 1, 1, 4), util.of(0, 0, 1, 1, 8));
+        List<Widget> expected = List.of(util.of(0, 0, 1, 1, 4), util.of(0, 0, 1, 1, 5), util.of(0, 0, 1, 1, 6));
+        assertEquals(expected, List.copyOf(middle));
+        assertEquals(8, widgets.tailSet(util.of(0, 0, 1, 1, 7)).first().getzIndex());
+    }
+
+    @Test
+    void testSameZIndexesAsDenseZOrder() {
+        WidgetRepository dense = new WidgetMainRepository(WidgetMainRepository.ZOrderMode.DENSE);
+        WidgetRepository lazy = createRepository();
+        Random random = new Random(11);
+        List<Long> ids = new ArrayList<>();
+
+        for (int i = 0; i < 5000; i++) {
+            int operation = random.nextInt(10);
+            if (operation < 6 || ids.isEmpty()) {
+                /* small z-index range: most of the saves shift a sequence of widgets */
+                Integer zIndex = random.nextInt(4) == 0 ? null : random.nextInt(300);
+                Widget w1 = util.of(i, i, 10, 10, zIndex);
+                Widget w2 = util.of(i, i, 10, 10, zIndex);
+                dense.save(w1);
+                lazy.save(w2);
+                /* every repository has its own id sequence */
+                assertEquals(w1.getId(), w2.getId());
+                ids.add(w1.getId());
+            } else if (operation < 8) {
+                long id = ids.get(random.nextInt(ids.size()));
+                int zIndex = random.nextInt(300);
+                update(dense, id, zIndex);
+                update(lazy, id, zIndex);
+            } else {
+                long id = ids.remove(random.nextInt(ids.size()));
+                dense.deleteById(id);
+                lazy.deleteById(id);
+            }
+        }
+
+        List<Widget> expected = List.copyOf(dense.findAll(null, null));
+        List<Widget> widgets = List.copyOf(lazy.findAll(null, null));
+        assertEquals(expected.size(), widgets.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getzIndex(), widgets.get(i).getzIndex());
+            assertEquals(expected.get(i).getId(), widgets.get(i).getId());
+            assertEquals(expected.get(i).getzIndex(), lazy.findById(widgets.get(i).getId()).get().getzIndex());
+        }
+    }
+
+    private void update(WidgetRepository repository, long id, int zIndex) {
+        Widget widget = repository.findById(id).get();
+        Widget newWidget = new Widget(null, null, null, null, zIndex);
+        util.merge(widget, newWidget);
+        repository.update(widget, newWidget);
+    }
+}
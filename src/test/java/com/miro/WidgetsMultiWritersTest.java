@@ -0,0 +1,109 @@
+package com.miro;
+
+import com.miro.entities.Point;
+import com.miro.entities.Widget;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.miro.TestUtils.msg;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+** Multi-writer variant of WidgetsMultiThreadingTest: each writer thread moves its own widgets
+** (geometry-only updates, with some deletes and re-creations on top), the throughput is reported
+** in operations per second for an increasing number of writer threads.
+*/
+public class WidgetsMultiWritersTest {
+
+    private static final int INI_SIZE = 100000;
+    private static final int TEST_EXEC_TIME_MILLIS = 3000;
+    private static final int[] N_WRITERS = {1, 2, 4, 8};
+    private static ExecutorService threadPool;
+    private static WidgetUtil util;
+
+    @BeforeAll
+    static void setupAll() {
+        util = new WidgetUtil();
+        threadPool = Executors.newCachedThreadPool();
+    }
+
+    @AfterAll
+    private static void tearDown() {
+        threadPool.shutdown();
+        try {
+            if (!threadPool.awaitTermination(30, TimeUnit.SECONDS)) {
+                threadPool.shutdownNow();
+            }
+        } catch (InterruptedException ex) {
+            threadPool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /* returns the number of operations per second */
+    private long mainTestInternal(WidgetRepository repo, int nWriters) {
+        WidgetWriter widgetWriter = new WidgetWriter(repo, util);
+        List<Future<Integer>> writers = new ArrayList<>();
+        long ops = 0;
+
+        repo.clear();
+        repo.initSequence();
+        widgetWriter.init();
+        widgetWriter.initialFetch(INI_SIZE);
+
+        long start = System.nanoTime();
+        int idsPerWriter = INI_SIZE / nWriters;
+        for (int i = 0; i < nWriters; i++) {
+            long firstId = (long) i * idsPerWriter + 1;
+            writers.add(threadPool.submit(widgetWriter.moveWidgets(firstId, firstId + idsPerWriter - 1)));
+        }
+        TestUtils.sleep(TEST_EXEC_TIME_MILLIS);
+        widgetWriter.stop();
+        for (Future<Integer> writer : writers) {
+            try {
+                ops += writer.get();
+            } catch (InterruptedException | ExecutionException e) {
+                msg("Error while waiting for writer future termination: " + e.getMessage());
+            }
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // the writers only move their own widgets: the number of widgets does not change
+        SortedSet<Widget> widgets = repo.findAll(null, null);
+        assertEquals(INI_SIZE, repo.size());
+        assertEquals(INI_SIZE, widgets.size(), "Check consistency of the backing data structures");
+        assertEquals(INI_SIZE, repo.findAllInRectangle(new Point(0, 0), new Point(INI_SIZE + 10, INI_SIZE + 10)).size());
+        for (long id = 1; id <= INI_SIZE; id++) {
+            assertTrue(repo.findById(id).isPresent());
+        }
+        return ops * 1000 / Math.max(1, elapsedMillis);
+    }
+
+    private void mainTest(String name, WidgetRepository repo) {
+        for (int nWriters : N_WRITERS) {
+            long opsPerSecond = mainTestInternal(repo, nWriters);
+            msg("--- " + name + " - writer threads: " + nWriters + ", ops/sec: " + opsPerSecond);
+        }
+    }
+
+    @Test
+    public void testMultiWritersMainRepository() {
+        mainTest("main repository", new WidgetMainRepository());
+    }
+
+    @Test
+    public void testMultiWritersShardedRepository() {
+        mainTest("sharded repository", new WidgetShardedRepository());
+    }
+}
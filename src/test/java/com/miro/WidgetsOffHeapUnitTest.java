@@ -0,0 +1,18 @@
+package com.miro;
+
+import com.miro.index.OffHeapWidgetStore;
+import org.junit.jupiter.api.Test;
+
+/* runs the unit tests against the off-heap repository */
+public class WidgetsOffHeapUnitTest extends WidgetsUnitTest {
+
+    @Override
+    WidgetRepository createRepository() {
+        return new WidgetOffHeapRepository();
+    }
+
+    @Test
+    void testAreaIndexWithReusedSlots() {
+        WidgetsColumnarUnitTest.checkAreaIndexWithReusedSlots(new OffHeapWidgetStore());
+    }
+}
@@ -2,10 +2,20 @@ package com.miro;
 
 import com.miro.entities.Point;
 import com.miro.entities.Widget;
+import com.miro.index.LongObjectMap;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletResponse;
 
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
 import java.util.SortedSet;
 import java.util.concurrent.ThreadLocalRandom;
@@ -131,9 +141,217 @@ public class WidgetsPerformanceTest {
         assertEquals(last1, last2);
     }
 
+    /* inserts widgets at the bottom of a dense stack: every insert shifts all the widgets */
+    private long testSaveWithShiftInternal(WidgetRepository repository, int size, int inserts) {
+        for (int i = 0; i < size; i++) {
+            repository.save(util.of(i, i, 10, 10, null));
+        }
+        long ini = System.currentTimeMillis();
+        for (int i = 0; i < inserts; i++) {
+            repository.save(util.of(i, i, 10, 10, 1));
+        }
+        long end = System.currentTimeMillis();
+        msg("save with shift of " + size + " widgets, " + inserts + " times, duration (millis): " + (end - ini));
+
+        assertEquals(size + inserts, repository.size());
+        SortedSet<Widget> widgets = repository.findAll(null, null);
+        assertEquals(1, widgets.first().getzIndex());
+        assertEquals(size + inserts, widgets.last().getzIndex());
+        repository.clear();
+        return end - ini;
+    }
+
+    @Test
+    public void testSaveWithShiftDenseVsLazyZOrder() {
+        int size = 50000;
+        int inserts = 200;
+        msg("---- save with shift, dense z-order ----");
+        long dense = testSaveWithShiftInternal(new WidgetMainRepository(WidgetMainRepository.ZOrderMode.DENSE), size, inserts);
+        msg("---- save with shift, lazy z-order ----");
+        long lazy = testSaveWithShiftInternal(new WidgetMainRepository(WidgetMainRepository.ZOrderMode.LAZY), size, inserts);
+        assertTrue(dense > lazy * 10, "The lazy z-order is expected to be at least 10 times faster on a dense stack");
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            TestUtils.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    @Test
+    public void testIdIndexFootprint() {
+        int size = 2000000;
+        Widget[] widgets = new Widget[size];
+        for (int i = 0; i < size; i++) {
+            widgets[i] = util.of(i, i, 10, 10, i + 1);
+        }
+
+        long before = usedMemory();
+        Map<Long, Widget> hashMap = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            hashMap.put((long) i + 1, widgets[i]);
+        }
+        long hashMapBytes = (usedMemory() - before) / size;
+        assertEquals(size, hashMap.size());
+        hashMap = null;
+
+        before = usedMemory();
+        LongObjectMap<Widget> longMap = new LongObjectMap<>();
+        for (int i = 0; i < size; i++) {
+            longMap.put((long) i + 1, widgets[i]);
+        }
+        long longMapBytes = (usedMemory() - before) / size;
+        assertEquals(size, longMap.size());
+
+        msg("id index footprint per widget (bytes), HashMap<Long, Widget>: " + hashMapBytes + ", LongObjectMap<Widget>: " + longMapBytes);
+        assertTrue(longMapBytes * 2 < hashMapBytes, "The primitive map is expected to take less than half of the memory of the HashMap");
+    }
+
+    @Test
+    public void testColumnarFootprint() {
+        int size = 1000000;
+
+        long before = usedMemory();
+        WidgetRepository mainRepo = new WidgetMainRepository();
+        mainRepo.initSequence();
+        for (int i = 0; i < size; i++) {
+            mainRepo.save(util.of(i, i, 10, 10, null));
+        }
+        long mainBytes = (usedMemory() - before) / size;
+        assertEquals(size, mainRepo.size());
+        mainRepo = null;
+
+        before = usedMemory();
+        WidgetRepository columnarRepo = new WidgetColumnarRepository();
+        columnarRepo.initSequence();
+        for (int i = 0; i < size; i++) {
+            columnarRepo.save(util.of(i, i, 10, 10, null));
+        }
+        long columnarBytes = (usedMemory() - before) / size;
+        assertEquals(size, columnarRepo.size());
+
+        msg("repository footprint per widget (bytes), main: " + mainBytes + ", columnar: " + columnarBytes);
+        assertTrue(columnarBytes * 5 < mainBytes, "The columnar repository is expected to take less than a fifth of the memory");
+    }
+
+    @Test
+    public void testOffHeapFootprint() {
+        int size = 1000000;
+
+        long before = usedMemory();
+        WidgetRepository offHeapRepo = new WidgetOffHeapRepository();
+        offHeapRepo.initSequence();
+        for (int i = 0; i < size; i++) {
+            offHeapRepo.save(util.of(i, i, 10, 10, null));
+        }
+        long heapBytes = (usedMemory() - before) / size;
+        assertEquals(size, offHeapRepo.size());
+
+        msg("heap footprint per widget (bytes) of the off-heap repository: " + heapBytes);
+        assertTrue(heapBytes < 4, "The off-heap repository is expected to keep almost nothing on the heap");
+    }
+
+    @Test
+    public void testStreamingMemory() throws IOException {
+        int size = 1000000;
+        fetchData(size);
+        WidgetController controller = new WidgetController(repo, util);
+
+        // the whole body rendered at once, as the JSON response does
+        long before = usedMemory();
+        byte[] body = controller.mapper.writeValueAsBytes(repo.findAll(null, null));
+        long bufferedBytes = usedMemory() - before;
+        int bodyLength = body.length;
+        body = null;
+
+        // the heap used is sampled while the widgets are streamed
+        long[] written = {0};
+        long[] peak = {0};
+        long beforeStreaming = usedMemory();
+        MockHttpServletResponse response = new MockHttpServletResponse() {
+            @Override
+            public ServletOutputStream getOutputStream() {
+                return new ServletOutputStream() {
+                    @Override
+                    public void write(int b) {
+                        write(new byte[] {(byte) b}, 0, 1);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) {
+                        if ((written[0] >> 23) != ((written[0] + len) >> 23)) {
+                            peak[0] = Math.max(peak[0], usedMemory() - beforeStreaming);
+                        }
+                        written[0] += len;
+                    }
+
+                    @Override
+                    public boolean isReady() {
+                        return true;
+                    }
+
+                    @Override
+                    public void setWriteListener(WriteListener writeListener) {
+                    }
+                };
+            }
+        };
+        controller.streamAllWidgets(null, null, response);
+
+        msg("memory used to return " + size + " widgets (bytes), whole body: " + bufferedBytes + ", streamed: " + peak[0]
+                + " (" + written[0] + " bytes written)");
+        assertTrue(written[0] >= bodyLength, "All the widgets are expected to be streamed");
+        assertTrue(peak[0] * 10 < bufferedBytes, "Streaming is expected to take less than a tenth of the memory of the whole body");
+    }
+
+    @Test
+    public void testRestartFromCheckpoint() throws IOException {
+        int size = 500000;
+        int moves = 1500000;
+        Path dir = Files.createTempDirectory("widgets");
+        Path file = dir.resolve("widgets.wal");
+        try {
+            WidgetJournaledRepository journaled = new WidgetJournaledRepository(new WidgetMainRepository(), file, 10, false);
+            journaled.initSequence();
+            for (int i = 0; i < size; i++) {
+                journaled.save(util.of(i, i, 10, 10, null));
+            }
+            // the log keeps the whole history, the checkpoint only the last position of the widgets
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < moves; i++) {
+                Widget widget = journaled.findByIdOrNull(random.nextInt(size) + 1);
+                Widget moved = util.of(random.nextInt(size), random.nextInt(size), 10, 10, widget.getzIndex());
+                moved.setId(widget.getId());
+                journaled.update(widget, moved);
+            }
+            journaled.close();
+
+            long ini = System.currentTimeMillis();
+            journaled = new WidgetJournaledRepository(new WidgetMainRepository(), file, 10, false);
+            long fromLog = System.currentTimeMillis() - ini;
+            assertEquals(size, journaled.size());
+            journaled.checkpoint();
+            journaled.close();
+
+            ini = System.currentTimeMillis();
+            journaled = new WidgetJournaledRepository(new WidgetMainRepository(), file, 10, false);
+            long fromCheckpoint = System.currentTimeMillis() - ini;
+            assertEquals(size, journaled.size());
+            journaled.close();
+
+            msg("restart with " + size + " widgets and " + moves + " moves (millis), replaying the log: " + fromLog + ", from the checkpoint: " + fromCheckpoint);
+            assertTrue(fromCheckpoint < fromLog, "The restart from the checkpoint is expected to be faster than the replay of the log");
+        } finally {
+            TestUtils.deleteRecursively(dir);
+        }
+    }
+
     @Test
     public void testGetById() {
-        int size = 10000;
+        int size = 100000;
         fetchData(size);
         testGetByIdInternal(size);
     }
@@ -174,7 +392,22 @@ public class WidgetsPerformanceTest {
         Point upperRight = Point.of(6000, 6600);
         // do not fetch again, use data from previous tests
         testGetByIdInternal(size);
-        // the dedicated API is expected to be much faster (it leverages the order by x coordinate)
+        // the dedicated API is expected to be much faster (it leverages the spatial index)
+        testGetAllWithinRectangleInternal(lowerLeft, upperRight);
+
+        // area close to the right edge of the board
+        lowerLeft = Point.of(size - 1000, size - 1000);
+        upperRight = Point.of(size + 10, size + 10);
+        testGetAllWithinRectangleInternal(lowerLeft, upperRight);
+
+        // thin horizontal strip covering the whole width of the board
+        lowerLeft = Point.of(0, 5000);
+        upperRight = Point.of(size + 10, 5011);
+        testGetAllWithinRectangleInternal(lowerLeft, upperRight);
+
+        // thin vertical strip covering the whole height of the board
+        lowerLeft = Point.of(size - 5011, 0);
+        upperRight = Point.of(size - 5000, size + 10);
         testGetAllWithinRectangleInternal(lowerLeft, upperRight);
     }
 }
@@ -0,0 +1,61 @@
+package com.miro;
+
+import com.miro.entities.Point;
+import com.miro.entities.Widget;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/* runs the unit tests against the sharded repository */
+public class WidgetsShardedUnitTest extends WidgetsUnitTest {
+
+    private static final WidgetUtil util = new WidgetUtil();
+
+    @Override
+    WidgetRepository createRepository() {
+        return new WidgetShardedRepository();
+    }
+
+    @Test
+    void testUpdateDoesNotChangeTheWidgetsRead() {
+        Widget w = util.of(10, 20, 50, 50, 1);
+        repo.save(w);
+        Widget read = repo.findByIdOrNull(w.getId());
+        Widget newWidget = util.of(30, 40, 60, 60, 1);
+        util.merge(read, newWidget);
+        repo.update(read, newWidget);
+        // a reader holding the previous version never sees a part of the update
+        assertEquals(10, read.getX());
+        assertEquals(20, read.getY());
+        assertEquals(30, repo.findByIdOrNull(w.getId()).getX());
+        assertEquals(40, repo.findByIdOrNull(w.getId()).getY());
+    }
+
+    @Test
+    void testUpdateKeepingTheZIndexReplacesTheWidget() {
+        Widget w1 = util.of(0, 0, 10, 10, 1);
+        Widget w2 = util.of(0, 0, 10, 10, 2);
+        repo.save(w1);
+        repo.save(w2);
+        Widget newWidget = util.of(100, 100, 10, 10, 1);
+        util.merge(repo.findByIdOrNull(w1.getId()), newWidget);
+        repo.update(w1, newWidget);
+
+        // the new version takes the place of the stored one in the z-order and in the R-tree of its shard
+        assertSame(newWidget, repo.findAll(null, null).first());
+        assertEquals(List.of(newWidget), List.copyOf(repo.findAllInRectangle(Point.of(90, 90), Point.of(120, 120))));
+        assertTrue(repo.findAllInRectangle(Point.of(0, 0), Point.of(20, 20)).contains(w2));
+        assertEquals(1, repo.findAllInRectangle(Point.of(0, 0), Point.of(20, 20)).size());
+        assertEquals(List.of(newWidget), List.copyOf(repo.findAllAfter(0, 5, Point.of(90, 90), Point.of(120, 120))));
+
+        // and it is shifted as the stored one would have been
+        repo.save(util.of(0, 0, 10, 10, 1));
+        assertEquals(2, repo.findByIdOrNull(w1.getId()).getzIndex());
+        assertEquals(3, repo.findByIdOrNull(w2.getId()).getzIndex());
+        assertEquals(3, repo.size());
+    }
+}
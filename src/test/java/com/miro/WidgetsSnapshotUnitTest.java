@@ -0,0 +1,110 @@
+package com.miro;
+
+import com.miro.entities.Point;
+import com.miro.entities.Widget;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/* runs the unit tests against the multi-version repository */
+public class WidgetsSnapshotUnitTest extends WidgetsUnitTest {
+
+    private static final WidgetUtil util = new WidgetUtil();
+
+    @Override
+    WidgetRepository createRepository() {
+        return new WidgetSnapshotRepository();
+    }
+
+    @Test
+    void testSnapshotIsNotAffectedByLaterChanges() {
+        WidgetRepository repository = createRepository();
+        for (int i = 1; i <= 10; i++) {
+            repository.save(util.of(i, i, 10, 10, i));
+        }
+        SortedSet<Widget> snapshot = repository.findAll(null, null);
+        long firstId = snapshot.first().getId();
+
+        /* shifts all the widgets, then deletes one and adds another one */
+        repository.save(util.of(50, 50, 10, 10, 1));
+        repository.deleteById(firstId);
+        repository.save(util.of(60, 60, 10, 10, null));
+
+        assertEquals(10, snapshot.size());
+        int zIndex = 1;
+        for (Widget widget : snapshot) {
+            assertEquals(zIndex++, widget.getzIndex());
+        }
+        assertEquals(firstId, snapshot.first().getId());
+        assertEquals(11, repository.findAll(null, null).size());
+        assertEquals(12, repository.findAll(null, null).last().getzIndex());
+    }
+
+    @Test
+    void testSameWidgetsAsMainRepository() {
+        WidgetRepository main = new WidgetMainRepository();
+        WidgetRepository snapshot = createRepository();
+        main.initSequence();
+        snapshot.initSequence();
+        Random random = new Random(13);
+        List<Long> ids = new ArrayList<>();
+
+        for (int i = 0; i < 3000; i++) {
+            int operation = random.nextInt(10);
+            if (operation < 6 || ids.isEmpty()) {
+                Integer zIndex = random.nextInt(4) == 0 ? null : random.nextInt(200);
+                int x = random.nextInt(500);
+                int y = random.nextInt(500);
+                Widget w1 = util.of(x, y, 10, 10, zIndex);
+                Widget w2 = util.of(x, y, 10, 10, zIndex);
+                main.save(w1);
+                snapshot.save(w2);
+                assertEquals(w1.getId(), w2.getId());
+                ids.add(w1.getId());
+            } else if (operation < 8) {
+                long id = ids.get(random.nextInt(ids.size()));
+                int zIndex = random.nextInt(200);
+                int x = random.nextInt(500);
+                update(main, id, x, zIndex);
+                update(snapshot, id, x, zIndex);
+            } else {
+                long id = ids.remove(random.nextInt(ids.size()));
+                main.deleteById(id);
+                snapshot.deleteById(id);
+            }
+        }
+
+        assertSameWidgets(main.findAll(null, null), snapshot.findAll(null, null));
+        for (int i = 0; i < 20; i++) {
+            Point lowerLeft = new Point(random.nextInt(400), random.nextInt(400));
+            Point upperRight = new Point(lowerLeft.getX() + random.nextInt(200), lowerLeft.getY() + random.nextInt(200));
+            assertSameWidgets(main.findAllInRectangle(lowerLeft, upperRight), snapshot.findAllInRectangle(lowerLeft, upperRight));
+        }
+        for (long id : ids) {
+            assertEquals(main.findById(id).get().getzIndex(), snapshot.findById(id).get().getzIndex());
+        }
+    }
+
+    private void assertSameWidgets(SortedSet<Widget> expected, SortedSet<Widget> actual) {
+        List<Widget> expectedList = List.copyOf(expected);
+        List<Widget> actualList = List.copyOf(actual);
+        assertEquals(expectedList.size(), actualList.size());
+        for (int i = 0; i < expectedList.size(); i++) {
+            assertEquals(expectedList.get(i).getId(), actualList.get(i).getId());
+            assertEquals(expectedList.get(i).getzIndex(), actualList.get(i).getzIndex());
+            assertEquals(expectedList.get(i).getX(), actualList.get(i).getX());
+        }
+    }
+
+    private void update(WidgetRepository repository, long id, int x, int zIndex) {
+        Widget widget = repository.findById(id).get();
+        Widget newWidget = new Widget(x, null, null, null, zIndex);
+        util.merge(widget, newWidget);
+        repository.update(widget, newWidget);
+    }
+}
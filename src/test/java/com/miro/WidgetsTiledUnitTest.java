@@ -0,0 +1,174 @@
+package com.miro;
+
+import com.miro.entities.Point;
+import com.miro.entities.Widget;
+import com.miro.entities.WidgetBatch;
+import com.miro.entities.WidgetCluster;
+import com.miro.entities.WidgetClusters;
+import com.miro.index.WidgetTilePyramid;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/* runs the unit tests against the main repository keeping a tile pyramid, and checks the clusters of the pyramid */
+public class WidgetsTiledUnitTest extends WidgetsUnitTest {
+
+    private WidgetTilePyramid tiles;
+
+    @Override
+    WidgetRepository createRepository() {
+        tiles = new WidgetTilePyramid();
+        return new WidgetTiledRepository(new WidgetMainRepository(), tiles);
+    }
+
+    /* the clusters of the level computed from the widgets, by tile */
+    private static Map<Long, WidgetCluster> clustersOf(Iterable<Widget> widgets, int level) {
+        Map<Long, long[]> sums = new HashMap<>();
+        for (Widget w : widgets) {
+            long centerX = (((long) w.getX() + w.getX() + w.getWidth()) >> 1) - Integer.MIN_VALUE;
+            long centerY = (((long) w.getY() + w.getY() + w.getHeight()) >> 1) - Integer.MIN_VALUE;
+            long key = (centerX >>> (32 - level)) << 32 | (centerY >>> (32 - level));
+            long[] sum = sums.computeIfAbsent(key, k -> new long[]{0, 0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE,
+                    Integer.MIN_VALUE, Integer.MIN_VALUE});
+            sum[0]++;
+            sum[1] += centerX;
+            sum[2] += centerY;
+            sum[3] = Math.min(sum[3], w.getX());
+            sum[4] = Math.min(sum[4], w.getY());
+            sum[5] = Math.max(sum[5], w.getX() + w.getWidth());
+            sum[6] = Math.max(sum[6], w.getY() + w.getHeight());
+        }
+        Map<Long, WidgetCluster> ret = new HashMap<>();
+        for (long[] sum : sums.values()) {
+            // keyed by the bounding box and the count, enough to tell the clusters apart
+            WidgetCluster cluster = new WidgetCluster((int) sum[0], (int) sum[3], (int) sum[4], sum[5] - sum[3],
+                    sum[6] - sum[4], (int) (sum[1] / sum[0] + Integer.MIN_VALUE), (int) (sum[2] / sum[0] + Integer.MIN_VALUE));
+            ret.put(key(cluster), cluster);
+        }
+        return ret;
+    }
+
+    private static long key(WidgetCluster cluster) {
+        return ((long) cluster.getCenterX() << 32) ^ cluster.getCenterY() ^ ((long) cluster.getCount() << 48)
+                ^ cluster.getX() * 31L ^ cluster.getWidth() * 17L;
+    }
+
+    private void assertClusters(WidgetClusters clusters) {
+        Map<Long, WidgetCluster> expected = clustersOf(repo.findAll(null, null), clusters.getLevel());
+        assertEquals(expected.size(), clusters.getClusters().size());
+        for (WidgetCluster cluster : clusters.getClusters()) {
+            WidgetCluster other = expected.get(key(cluster));
+            assertTrue(other != null, "unexpected " + cluster);
+            assertEquals(other.getX(), cluster.getX());
+            assertEquals(other.getY(), cluster.getY());
+            assertEquals(other.getWidth(), cluster.getWidth());
+            assertEquals(other.getHeight(), cluster.getHeight());
+            assertEquals(other.getCount(), cluster.getCount());
+        }
+    }
+
+    @Test
+    public void testClustersFollowTheChanges() {
+        Random random = new Random(5);
+        List<Widget> saved = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            Widget widget = new Widget(random.nextInt(100_000) - 50_000, random.nextInt(100_000) - 50_000,
+                    1 + random.nextInt(500), 1 + random.nextInt(500), null);
+            repo.save(widget);
+            saved.add(widget);
+        }
+        for (int i = 0; i < 2000; i++) {
+            int j = random.nextInt(saved.size());
+            Widget widget = repo.findByIdOrNull(saved.get(j).getId());
+            switch (random.nextInt(3)) {
+                case 0:
+                    repo.deleteById(widget.getId());
+                    saved.set(j, saved.get(saved.size() - 1));
+                    saved.remove(saved.size() - 1);
+                    break;
+                case 1:
+                    Widget newWidget = new Widget(widget);
+                    newWidget.setX(widget.getX() + random.nextInt(2000) - 1000);
+                    newWidget.setWidth(1 + random.nextInt(3000));
+                    repo.update(widget, newWidget);
+                    saved.set(j, newWidget);
+                    break;
+                default:
+                    Widget moved = new Widget(widget);
+                    moved.setY(random.nextInt(1000));
+                    Widget created = new Widget(random.nextInt(1000), random.nextInt(1000), 10, 10, null);
+                    repo.applyBatch(new WidgetBatch(List.of(created), List.of(moved), List.of()));
+                    saved.set(j, moved);
+                    saved.add(created);
+            }
+        }
+        assertEquals(repo.size(), tiles.size());
+        for (int maxTiles : new int[]{1, 4, 30, 200, 1000, 10_000}) {
+            WidgetClusters clusters = tiles.cluster(null, null, maxTiles);
+            assertTrue(clusters.getClusters().size() <= maxTiles);
+            assertEquals(repo.size(), clusters.getCount());
+            assertClusters(clusters);
+            // the level below has too many tiles
+            if (clusters.getLevel() < WidgetTilePyramid.MAX_LEVEL) {
+                assertTrue(clustersOf(repo.findAll(null, null), clusters.getLevel() + 1).size() > maxTiles);
+            }
+        }
+        repo.clear();
+        assertEquals(0, tiles.cluster(null, null, 10).getCount());
+    }
+
+    @Test
+    public void testClustersOfAnArea() {
+        // a dense block far from a few widgets
+        for (int i = 0; i < 1000; i++) {
+            repo.save(new Widget(1_000_000 + (i % 40) * 20, 1_000_000 + (i / 40) * 20, 10, 10, null));
+        }
+        for (int i = 0; i < 10; i++) {
+            repo.save(new Widget(i * 1000, 0, 10, 10, null));
+        }
+        WidgetClusters block = tiles.cluster(Point.of(900_000, 900_000), Point.of(1_100_000, 1_100_000), 50);
+        assertEquals(1000, block.getCount());
+        assertTrue(block.getClusters().size() <= 50 && block.getClusters().size() > 1);
+        assertEquals(WidgetTilePyramid.tileSize(block.getLevel()), block.getTileSize());
+
+        // the deepest level: every widget in its own leaf
+        WidgetClusters few = tiles.cluster(Point.of(0, 0), Point.of(10_000, 1000), 50);
+        assertEquals(WidgetTilePyramid.MAX_LEVEL, few.getLevel());
+        assertEquals(10, few.getCount());
+        for (WidgetCluster cluster : few.getClusters()) {
+            assertEquals(1, cluster.getCount());
+            assertEquals(10, cluster.getWidth());
+            assertEquals(cluster.getX() + 5, cluster.getCenterX());
+        }
+        assertEquals(1010, tiles.cluster(null, null, 1).getCount());
+    }
+
+    @Test
+    void testBatchReachesThePyramidAtOnce() {
+        int[] batches = new int[1];
+        WidgetTilePyramid counted = new WidgetTilePyramid() {
+            @Override
+            public void applyBatch(WidgetBatch batch) {
+                batches[0]++;
+                super.applyBatch(batch);
+            }
+        };
+        ChangeFeed feed = new ChangeFeed(1024, 1);
+        WidgetRepository repository = new WidgetFeedRepository(
+                new WidgetTiledRepository(new WidgetMainRepository(), counted), feed);
+        WidgetUtil util = new WidgetUtil();
+        repository.save(util.of(0, 0, 10, 10, 1));
+        repository.applyBatch(new WidgetBatch(List.of(util.of(20, 20, 10, 10, 1), util.of(40, 40, 10, 10, null)),
+                List.of(), List.of()));
+        assertEquals(1, batches[0]);
+        assertEquals(3, counted.cluster(new Point(0, 0), new Point(100, 100), 10).getCount());
+        feed.close();
+    }
+}
@@ -2,19 +2,29 @@ package com.miro;
 
 import com.miro.entities.Point;
 import com.miro.entities.Widget;
+import com.miro.entities.WidgetBatch;
+import com.miro.index.WidgetRTree;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class WidgetsUnitTest {
 
-    private static final WidgetRepository repo = new WidgetMainRepository();
+    final WidgetRepository repo = createRepository();
     private static final WidgetUtil util = new WidgetUtil();
 
+    WidgetRepository createRepository() {
+        return new WidgetMainRepository();
+    }
+
     @BeforeEach
     void clear() {
         repo.clear();
@@ -480,4 +490,198 @@ public class WidgetsUnitTest {
         assertEquals(0, w2.getX());
         assertEquals(0, w2.getY());
     }
-}
\ No newline at end of file
+
+    @Test
+    void testGetAllWidgetsWithinRectangleAfterChanges() {
+        Random random = new Random(42);
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            Widget w = util.of(random.nextInt(1000) - 500, random.nextInt(1000) - 500, random.nextInt(100) + 1, random.nextInt(100) + 1, null);
+            repo.save(w);
+            ids.add(w.getId());
+        }
+        /* move some widgets and delete some others, the spatial index has to follow */
+        for (int i = 0; i < 500; i++) {
+            Widget w = repo.findById(ids.get(random.nextInt(ids.size()))).get();
+            Widget newWidget = new Widget(random.nextInt(1000) - 500, random.nextInt(1000) - 500, null, null, null);
+            util.merge(w, newWidget);
+            repo.update(w, newWidget);
+        }
+        for (int i = 0; i < 800; i++) {
+            repo.deleteById(ids.remove(random.nextInt(ids.size())));
+        }
+
+        for (int i = 0; i < 100; i++) {
+            int x = random.nextInt(1200) - 600;
+            int y = random.nextInt(1200) - 600;
+            Point lowerLeft = Point.of(x, y);
+            Point upperRight = Point.of(x + random.nextInt(600), y + random.nextInt(600));
+            List<Widget> expected = List.copyOf(repo.findAll(null, null, lowerLeft, upperRight));
+            List<Widget> widgets = List.copyOf(repo.findAllInRectangle(lowerLeft, upperRight));
+            assertEquals(expected.size(), widgets.size());
+            for (int j = 0; j < expected.size(); j++) {
+                assertEquals(expected.get(j).getId(), widgets.get(j).getId());
+            }
+        }
+    }
+
+    @Test
+    void testGetAllWidgetsWithPaginationAfterDeletes() {
+        Random random = new Random(7);
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            Widget w = util.of(i, i, 10, 10, random.nextInt(5000) - 2500);
+            repo.save(w);
+            ids.add(w.getId());
+        }
+        for (int i = 0; i < 1200; i++) {
+            repo.deleteById(ids.remove(random.nextInt(ids.size())));
+        }
+
+        List<Widget> all = List.copyOf(repo.findAll(null, null));
+        assertEquals(ids.size(), all.size());
+        int pageSize = 70;
+        for (int page = 1; (page - 1) * pageSize < all.size(); page++) {
+            List<Widget> widgets = List.copyOf(repo.findAll(pageSize, page));
+            int begin = (page - 1) * pageSize;
+            assertEquals(Math.min(pageSize, all.size() - begin), widgets.size());
+            for (int j = 0; j < widgets.size(); j++) {
+                assertEquals(all.get(begin + j).getId(), widgets.get(j).getId());
+            }
+        }
+    }
+
+    @Test
+    void testGetAllWidgetsAfterWithinRectangle() {
+        Random random = new Random(21);
+        for (int i = 0; i < 2000; i++) {
+            repo.save(util.of(random.nextInt(1000), random.nextInt(1000), 10, 10, random.nextInt(4000) - 2000));
+        }
+        Point lowerLeft = Point.of(200, 200);
+        Point upperRight = Point.of(600, 500);
+        List<Widget> expected = List.copyOf(repo.findAllInRectangle(lowerLeft, upperRight));
+
+        /* reads the widgets in the area chunk by chunk, resuming after the last z-index of the previous chunk */
+        List<Widget> widgets = new ArrayList<>();
+        int zIndex = Integer.MIN_VALUE;
+        while (true) {
+            List<Widget> chunk = List.copyOf(repo.findAllAfter(zIndex, 37, lowerLeft, upperRight));
+            widgets.addAll(chunk);
+            if (chunk.size() < 37) {
+                break;
+            }
+            zIndex = chunk.get(chunk.size() - 1).getzIndex();
+        }
+        assertEquals(expected.size(), widgets.size());
+        for (int j = 0; j < expected.size(); j++) {
+            assertEquals(expected.get(j).getId(), widgets.get(j).getId());
+        }
+    }
+
+    @Test
+    void testApplyBatch() {
+        Widget w1 = util.of(1, 1, 10, 10, 1);
+        Widget w2 = util.of(2, 2, 10, 10, 2);
+        Widget w3 = util.of(3, 3, 10, 10, 3);
+        Widget w4 = util.of(4, 4, 10, 10, 5);
+        for (Widget w : List.of(w1, w2, w3, w4)) {
+            repo.save(w);
+        }
+
+        /* deletes 1, moves 4 to the z-index 2, then creates a widget at the z-index 2 and one on top */
+        Widget newW4 = util.of(40, 40, 10, 10, 2);
+        newW4.setId(w4.getId());
+        Widget w5 = util.of(5, 5, 10, 10, 2);
+        Widget w6 = util.of(6, 6, 10, 10, null);
+        WidgetBatch batch = new WidgetBatch(new ArrayList<>(List.of(w5, w6)), new ArrayList<>(List.of(newW4)),
+                new ArrayList<>(List.of(w1.getId())));
+        repo.applyBatch(batch);
+
+        List<Widget> widgets = List.copyOf(repo.findAll(null, null));
+        assertEquals(5, widgets.size());
+        long[] ids = {w5.getId(), w4.getId(), w2.getId(), w3.getId(), w6.getId()};
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals(ids[i], widgets.get(i).getId());
+            assertEquals(i + 2, widgets.get(i).getzIndex());
+        }
+        assertEquals(40, widgets.get(1).getX());
+        /* the widgets of the batch carry their final z-index, 4 has been shifted by 5 */
+        assertEquals(2, w5.getzIndex());
+        assertEquals(3, newW4.getzIndex());
+        assertEquals(6, w6.getzIndex());
+    }
+
+    @Test
+    void testApplyBatchSameAsSequentialChanges() {
+        WidgetRepository sequential = new WidgetMainRepository();
+        Random random = new Random(17);
+        int x = 0;
+        for (int round = 0; round < 40; round++) {
+            /* the widgets with the same rank in both repositories are the same widget (checked after every round) */
+            List<Widget> widgets = List.copyOf(repo.findAll(null, null));
+            List<Widget> expected = List.copyOf(sequential.findAll(null, null));
+            WidgetBatch batch = new WidgetBatch();
+            List<Long> deleted = new ArrayList<>();
+            List<Widget> updated = new ArrayList<>();
+            List<Widget> created = new ArrayList<>();
+            Set<Integer> picked = new HashSet<>();
+            for (int i = 0; i < 6 && !widgets.isEmpty(); i++) {
+                int rank = random.nextInt(widgets.size());
+                if (!picked.add(rank)) {
+                    continue;
+                }
+                if (random.nextBoolean()) {
+                    batch.getDelete().add(widgets.get(rank).getId());
+                    deleted.add(expected.get(rank).getId());
+                } else {
+                    Widget newWidget = util.of(x, x, 10, 10, random.nextInt(60));
+                    newWidget.setId(widgets.get(rank).getId());
+                    Widget copy = new Widget(newWidget);
+                    copy.setId(expected.get(rank).getId());
+                    batch.getUpdate().add(newWidget);
+                    updated.add(copy);
+                    x++;
+                }
+            }
+            /* most of the widgets are created in a small range of z-indexes, they shift each other */
+            for (int i = 0; i < 20; i++) {
+                Integer zIndex = random.nextInt(4) == 0 ? null : random.nextInt(60);
+                batch.getCreate().add(util.of(x, x, 10, 10, zIndex));
+                created.add(util.of(x, x, 10, 10, zIndex));
+                x++;
+            }
+
+            repo.applyBatch(batch);
+            deleted.forEach(sequential::deleteById);
+            updated.forEach(w -> sequential.deleteById(w.getId()));
+            updated.forEach(sequential::save);
+            created.forEach(sequential::save);
+
+            widgets = List.copyOf(repo.findAll(null, null));
+            expected = List.copyOf(sequential.findAll(null, null));
+            assertEquals(expected.size(), widgets.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.get(i).getX(), widgets.get(i).getX());
+                assertEquals(expected.get(i).getzIndex(), widgets.get(i).getzIndex());
+            }
+            for (Widget w : batch.getCreate()) {
+                assertEquals(repo.findByIdOrNull(w.getId()).getzIndex(), w.getzIndex());
+            }
+        }
+    }
+
+    @Test
+    void testAreaSearchIsCheckedWhileNothingIsFound() {
+        WidgetRTree tree = new WidgetRTree();
+        for (int i = 0; i < 1000; i++) {
+            tree.insert(util.of(i * 20, 0, 10, 10, i));
+        }
+        int[] checks = new int[1];
+        List<Widget> found = new ArrayList<>();
+        // every node intersects the area, no widget falls entirely into it
+        int scanned = tree.search(new Point(0, 0), new Point(100_000, 5), found::add, () -> checks[0]++);
+        assertEquals(1000, scanned);
+        assertTrue(found.isEmpty());
+        assertTrue(checks[0] > 0);
+    }
+}
@@ -0,0 +1,283 @@
+package com.miro;
+
+import com.miro.entities.Widget;
+import com.miro.entities.WidgetBatch;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class WriteAheadLogTest {
+
+    private static final WidgetUtil util = new WidgetUtil();
+    private Path dir;
+    private Path file;
+
+    @BeforeEach
+    void createDir() throws IOException {
+        dir = Files.createTempDirectory("widgets");
+        file = dir.resolve("widgets.wal");
+    }
+
+    @AfterEach
+    void deleteDir() throws IOException {
+        TestUtils.deleteRecursively(dir);
+    }
+
+    private WidgetJournaledRepository open(boolean syncWrites) throws IOException {
+        return new WidgetJournaledRepository(new WidgetMainRepository(), file, 5, syncWrites);
+    }
+
+    static void assertSameWidgets(WidgetRepository expected, WidgetRepository actual) {
+        List<Widget> expectedWidgets = List.copyOf(expected.findAll(null, null));
+        List<Widget> actualWidgets = List.copyOf(actual.findAll(null, null));
+        assertEquals(expectedWidgets.size(), actualWidgets.size());
+        for (int i = 0; i < expectedWidgets.size(); i++) {
+            Widget e = expectedWidgets.get(i);
+            Widget a = actualWidgets.get(i);
+            assertEquals(e.getId(), a.getId());
+            assertEquals(e.getzIndex(), a.getzIndex());
+            assertEquals(e.getX(), a.getX());
+            assertEquals(e.getY(), a.getY());
+            assertEquals(e.getWidth(), a.getWidth());
+            assertEquals(e.getHeight(), a.getHeight());
+        }
+    }
+
+    /* the modification dates are restored too, those of the shifted widgets included */
+    static void assertSameDates(WidgetRepository expected, WidgetRepository actual) {
+        List<Widget> expectedWidgets = List.copyOf(expected.findAll(null, null));
+        List<Widget> actualWidgets = List.copyOf(actual.findAll(null, null));
+        for (int i = 0; i < expectedWidgets.size(); i++) {
+            assertEquals(expectedWidgets.get(i).getModificationDate(), actualWidgets.get(i).getModificationDate());
+        }
+    }
+
+    @Test
+    void testReplayRestoresTheWidgets() throws IOException {
+        Random random = new Random(7);
+        WidgetJournaledRepository repo = open(false);
+        repo.initSequence();
+        // some widgets are saved below the top, they shift the others
+        long lastId = randomChanges(repo, random, 2000);
+        repo.close();
+
+        WidgetJournaledRepository replayed = open(false);
+        assertSameWidgets(repo, replayed);
+        assertSameDates(repo, replayed);
+        // the ids continue after the last one in the log
+        Widget widget = util.of(1, 1, 1, 1, null);
+        replayed.save(widget);
+        assertEquals(lastId + 1, widget.getId());
+        replayed.close();
+    }
+
+    @Test
+    void testReplayRestoresBatches() throws IOException {
+        Random random = new Random(9);
+        WidgetJournaledRepository repo = open(false);
+        repo.initSequence();
+        randomChanges(repo, random, 200);
+        for (int i = 0; i < 20; i++) {
+            List<Widget> widgets = List.copyOf(repo.findAll(null, null));
+            WidgetBatch batch = new WidgetBatch();
+            batch.getDelete().add(widgets.get(random.nextInt(widgets.size())).getId());
+            Widget newWidget = util.of(random.nextInt(1000), random.nextInt(1000), 20, 20, random.nextInt(widgets.size()) + 1);
+            newWidget.setId(widgets.get(0).getId());
+            batch.getUpdate().add(newWidget);
+            for (int j = 0; j < 10; j++) {
+                // in a small range of z-indexes, the widgets of the batch shift each other
+                Integer z = random.nextInt(4) == 0 ? null : random.nextInt(20) + 1;
+                batch.getCreate().add(util.of(random.nextInt(1000), random.nextInt(1000), 10, 10, z));
+            }
+            repo.applyBatch(batch);
+        }
+        repo.close();
+
+        WidgetJournaledRepository replayed = open(false);
+        assertSameWidgets(repo, replayed);
+        assertSameDates(repo, replayed);
+        replayed.close();
+    }
+
+    @Test
+    void testChangeRefusedByTheLogIsNotApplied() throws IOException {
+        WidgetJournaledRepository repo = open(true);
+        Widget widget = util.of(1, 1, 10, 10, null);
+        repo.save(widget);
+        repo.close();
+        assertThrows(IllegalStateException.class, () -> repo.save(util.of(2, 2, 10, 10, 1)));
+        assertThrows(IllegalStateException.class, () -> repo.deleteById(widget.getId()));
+        assertEquals(1, repo.size());
+        assertEquals(1, repo.findByIdOrNull(widget.getId()).getzIndex());
+    }
+
+    @Test
+    void testTornRecordIsDiscarded() throws IOException {
+        WidgetJournaledRepository repo = open(true);
+        repo.initSequence();
+        for (int i = 0; i < 10; i++) {
+            repo.save(util.of(i, i, 10, 10, null));
+        }
+        repo.close();
+        // a crash in the middle of the last record
+        Path segment = WriteAheadLog.segment(file, 1);
+        long size = Files.size(segment);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(size - 3);
+        }
+
+        WidgetJournaledRepository replayed = open(true);
+        assertEquals(9, replayed.size());
+        assertNull(replayed.findByIdOrNull(10));
+        // the torn record is removed, the new records follow the valid ones
+        Widget widget = util.of(100, 100, 10, 10, null);
+        replayed.save(widget);
+        replayed.close();
+
+        WidgetJournaledRepository reopened = open(true);
+        assertEquals(10, reopened.size());
+        assertEquals(100, reopened.findByIdOrNull(widget.getId()).getX());
+        reopened.close();
+    }
+
+    @Test
+    void testTornClosedSegmentIsRejected() throws IOException {
+        WidgetJournaledRepository repo = open(true);
+        for (int i = 0; i < 10; i++) {
+            repo.save(util.of(i, i, 10, 10, null));
+        }
+        repo.close();
+        // the segment is followed by another one: it was closed, all its records were on disk
+        Path segment = WriteAheadLog.segment(file, 1);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(Files.size(segment) - 3);
+        }
+        Files.createFile(WriteAheadLog.segment(file, 2));
+
+        assertThrows(IOException.class, () -> open(true));
+    }
+
+    @Test
+    void testCheckpointFailsOnAMissingSegment() throws IOException {
+        WidgetJournaledRepository repo = open(false);
+        repo.save(util.of(1, 1, 10, 10, null));
+        Files.delete(WriteAheadLog.segment(file, 1));
+
+        assertThrows(IOException.class, repo::checkpoint);
+        assertTrue(Files.notExists(WidgetCheckpoint.file(file)));
+        repo.close();
+    }
+
+    @Test
+    void testClearIsReplayed() throws IOException {
+        WidgetJournaledRepository repo = open(false);
+        repo.save(util.of(1, 1, 10, 10, null));
+        repo.clear();
+        repo.save(util.of(2, 2, 10, 10, null));
+        repo.close();
+
+        WidgetJournaledRepository replayed = open(false);
+        assertEquals(1, replayed.size());
+        assertEquals(2, replayed.findAll(null, null).first().getX());
+        replayed.close();
+    }
+
+    /* random saves (some of them below the top), updates and deletes */
+    static long randomChanges(WidgetRepository repo, Random random, int changes) {
+        long lastId = 0;
+        for (int i = 0; i < changes; i++) {
+            int op = random.nextInt(10);
+            if (op < 6 || repo.size() == 0) {
+                Integer z = random.nextBoolean() ? null : random.nextInt(repo.size() + 1) + 1;
+                Widget widget = util.of(random.nextInt(1000), random.nextInt(1000), 10, 10, z);
+                repo.save(widget);
+                lastId = widget.getId();
+            } else if (op < 9) {
+                Widget widget = repo.findAll(null, null).first();
+                Widget newWidget = util.of(random.nextInt(1000), random.nextInt(1000), 20, 20, random.nextInt(repo.size()) + 1);
+                newWidget.setId(widget.getId());
+                repo.update(widget, newWidget);
+            } else {
+                repo.deleteById(repo.findAll(null, null).last().getId());
+            }
+        }
+        return lastId;
+    }
+
+    @Test
+    void testCheckpointAndLogTail() throws IOException {
+        Random random = new Random(11);
+        WidgetJournaledRepository repo = open(false);
+        repo.initSequence();
+        randomChanges(repo, random, 1000);
+        repo.checkpoint();
+        randomChanges(repo, random, 500);
+        // the second checkpoint merges the first one and the following segment
+        repo.checkpoint();
+        long lastId = randomChanges(repo, random, 500);
+        repo.close();
+
+        // the segments included in the checkpoint are deleted, only the tail is left
+        assertEquals(List.of(3L), WriteAheadLog.segments(file));
+        assertTrue(Files.exists(WidgetCheckpoint.file(file)));
+
+        WidgetJournaledRepository restored = open(false);
+        assertSameWidgets(repo, restored);
+        assertSameDates(repo, restored);
+        Widget widget = util.of(1, 1, 1, 1, null);
+        restored.save(widget);
+        assertEquals(lastId + 1, widget.getId());
+        restored.close();
+    }
+
+    @Test
+    void testIdleCheckpointIsSkipped() throws IOException {
+        WidgetJournaledRepository repo = open(false);
+        repo.save(util.of(1, 1, 10, 10, null));
+        repo.checkpoint();
+        long written = Files.getLastModifiedTime(WidgetCheckpoint.file(file)).toMillis();
+        // nothing logged since: the log is not rolled over, the checkpoint is not written again
+        repo.checkpoint();
+        assertEquals(List.of(2L), WriteAheadLog.segments(file));
+        assertEquals(written, Files.getLastModifiedTime(WidgetCheckpoint.file(file)).toMillis());
+
+        repo.save(util.of(2, 2, 10, 10, null));
+        repo.checkpoint();
+        assertEquals(List.of(3L), WriteAheadLog.segments(file));
+        repo.close();
+
+        WidgetJournaledRepository restored = open(false);
+        // nothing to merge after a restart either
+        restored.checkpoint();
+        assertEquals(List.of(3L), WriteAheadLog.segments(file));
+        assertEquals(2, restored.size());
+        restored.close();
+    }
+
+    @Test
+    void testCorruptedCheckpointIsRejected() throws IOException {
+        WidgetJournaledRepository repo = open(false);
+        repo.save(util.of(1, 1, 10, 10, null));
+        repo.checkpoint();
+        repo.close();
+        Path checkpoint = WidgetCheckpoint.file(file);
+        byte[] content = Files.readAllBytes(checkpoint);
+        content[30] ^= 1;
+        Files.write(checkpoint, content);
+
+        assertThrows(IOException.class, () -> open(false));
+    }
+}